@@ -40,6 +40,7 @@ import cern.c2mon.client.ext.history.data.HistoryLoadingManagerImpl;
 import cern.c2mon.client.ext.history.dbaccess.HistorySessionFactory;
 import cern.c2mon.client.ext.history.playback.HistoryPlayerCoreAccess;
 import cern.c2mon.client.ext.history.playback.HistoryPlayerImpl;
+import cern.c2mon.client.ext.history.util.CopyOnWriteKeyForValuesMap;
 import cern.c2mon.client.ext.history.util.KeyForValuesMap;
 import cern.c2mon.shared.common.supervision.SupervisionConstants.SupervisionEntity;
 
@@ -63,7 +64,7 @@ public class HistoryManager implements C2monHistoryManager, TagSubscriptionListe
   private HistoryPlayerCoreAccess historyPlayer = null;
 
   /** Keeps track of which tag id belongs to which {@link SupervisionListener} */
-  private final KeyForValuesMap<Long, SupervisionListener> tagToSupervisionListener = new KeyForValuesMap<>();
+  private final KeyForValuesMap<Long, SupervisionListener> tagToSupervisionListener = new CopyOnWriteKeyForValuesMap<>();
 
   /** A connection listener checking if the connection to the JMS is lost. */
   private ConnectionListener jmsConnectionListener = null;
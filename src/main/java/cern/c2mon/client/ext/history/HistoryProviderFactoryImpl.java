@@ -24,6 +24,8 @@ import cern.c2mon.client.ext.history.common.HistoryProviderFactory;
 import cern.c2mon.client.ext.history.common.SavedHistoryEvent;
 import cern.c2mon.client.ext.history.common.SavedHistoryEventsProvider;
 import cern.c2mon.client.ext.history.common.exception.HistoryProviderException;
+import cern.c2mon.client.ext.history.dbaccess.CachingHistoryProvider;
+import cern.c2mon.client.ext.history.dbaccess.HistoryBucketCache;
 import cern.c2mon.client.ext.history.dbaccess.HistorySessionFactory;
 import cern.c2mon.client.ext.history.dbaccess.exceptions.HistoryException;
 
@@ -58,7 +60,13 @@ public class HistoryProviderFactoryImpl implements HistoryProviderFactory {
   @Override
   public HistoryProvider createHistoryProvider() throws HistoryProviderException {
     try {
-      return historyFactory.createHistoryProvider(this.clientDataTagRequestCallback);
+      final HistoryProvider historyProvider = historyFactory.createHistoryProvider(this.clientDataTagRequestCallback);
+      // The cache is shared with the providers of the other factories
+      final HistoryBucketCache historyCache = historyFactory.getHistoryCache();
+      if (historyCache == null) {
+        return historyProvider;
+      }
+      return new CachingHistoryProvider(historyProvider, historyCache);
     }
     catch (HistoryException e) {
       throw new HistoryProviderException("Could not get a history provider.", e);
@@ -0,0 +1,73 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.common;
+
+import java.sql.Timestamp;
+
+/**
+ * The statistics of the numeric values of a tag within one time bucket. Used
+ * to draw trends over long periods without retrieving every record.
+ * 
+ * @see HistoryProvider#getAggregatedHistory(Long[], Timestamp, Timestamp, long)
+ */
+public interface HistoryAggregate {
+
+  /**
+   * @return the tag id
+   */
+  Long getTagId();
+
+  /**
+   * @return the start of the bucket (inclusive)
+   */
+  Timestamp getStartTime();
+
+  /**
+   * @return the end of the bucket (exclusive)
+   */
+  Timestamp getEndTime();
+
+  /**
+   * @return the number of records in the bucket
+   */
+  long getCount();
+
+  /**
+   * @return the lowest value in the bucket
+   */
+  double getMinimum();
+
+  /**
+   * @return the highest value in the bucket
+   */
+  double getMaximum();
+
+  /**
+   * @return the average of the values in the bucket
+   */
+  double getAverage();
+
+  /**
+   * @return the value of the earliest record in the bucket
+   */
+  double getFirst();
+
+  /**
+   * @return the value of the latest record in the bucket
+   */
+  double getLast();
+}
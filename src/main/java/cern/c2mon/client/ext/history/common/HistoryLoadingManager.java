@@ -134,6 +134,27 @@ public interface HistoryLoadingManager {
    */
   Collection<HistoryTagValueUpdate> getHistory(Long tagId);
 
+  /**
+   * Gets the minimum, maximum, average, first and last value of the numeric
+   * tags per time bucket directly from the history provider. The records are
+   * not loaded, so this can be used for trend charts over periods which are
+   * too long to load every record, independently of
+   * {@link #beginLoading()}.
+   * 
+   * @param tagIds
+   *          the tag ids
+   * @param from
+   *          the start time, also the start of the first bucket
+   * @param to
+   *          the end time
+   * @param bucketMillis
+   *          the length of each bucket in milliseconds
+   * @return one aggregate per tag and bucket which have records, ordered by
+   *         tag id and time
+   * @see HistoryProvider#getAggregatedHistory(Long[], Timestamp, Timestamp, long)
+   */
+  Collection<HistoryAggregate> getAggregatedHistory(Collection<Long> tagIds, Timestamp from, Timestamp to, long bucketMillis);
+
   /**
    * 
    * @param supervisionEventId
@@ -55,6 +55,23 @@ public interface HistoryProvider {
    */
   Collection<HistoryTagValueUpdate> getHistory(final Long[] tagIds, final Timestamp from, final Timestamp to);
 
+  /**
+   * Streams the records to the <code>handler</code> while they are being
+   * retrieved, instead of collecting all of them first as
+   * {@link #getHistory(Long[], Timestamp, Timestamp)} does.
+   * 
+   * @param tagIds
+   *          The tag ids to get the historical data for
+   * @param from
+   *          The start time
+   * @param to
+   *          The end time
+   * @param handler
+   *          Receives each of the records that is found for the given tag ids
+   *          in the given time periode
+   */
+  void getHistory(final Long[] tagIds, final Timestamp from, final Timestamp to, final HistoryTagValueUpdateHandler handler);
+
   /**
    * 
    * @param tagIds
@@ -111,6 +128,26 @@ public interface HistoryProvider {
    */
   Collection<HistoryTagValueUpdate> getHistory(final int maximumRecordsPerTag, final Long[] tagIds);
 
+  /**
+   * Gets the minimum, maximum, average, first and last value of each of the
+   * numeric tags per time bucket, instead of each of the records. Used to draw
+   * trends over long periods, where only one point per pixel is needed anyway.
+   * Records of tags which are not numeric are ignored.
+   * 
+   * @param tagIds
+   *          The tag ids to get the historical data for
+   * @param from
+   *          The start time, also the start of the first bucket
+   * @param to
+   *          The end time
+   * @param bucketMillis
+   *          The length of each bucket in milliseconds
+   * @return One aggregate per tag and bucket which have records, ordered by
+   *         tag id and time. <br/>
+   *         Does never return <code>null</code>.
+   */
+  Collection<HistoryAggregate> getAggregatedHistory(final Long[] tagIds, final Timestamp from, final Timestamp to, final long bucketMillis);
+
   /**
    * 
    * @param tagIds
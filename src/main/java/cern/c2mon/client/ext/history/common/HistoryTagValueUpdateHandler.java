@@ -0,0 +1,37 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.common;
+
+import java.sql.Timestamp;
+
+/**
+ * Receives the records of a streamed history request, one at a time while the
+ * query is still running.
+ * 
+ * @see HistoryProvider#getHistory(Long[], Timestamp, Timestamp, HistoryTagValueUpdateHandler)
+ */
+public interface HistoryTagValueUpdateHandler {
+
+  /**
+   * Invoked for each record retrieved, on the thread which requested the
+   * history.
+   * 
+   * @param update
+   *          a record retrieved from the history
+   */
+  void handle(final HistoryTagValueUpdate update);
+}
@@ -19,9 +19,12 @@ package cern.c2mon.client.ext.history.data;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -432,6 +435,44 @@ abstract class HistoryLoadingManagerAbs implements HistoryLoadingManager {
     }
   }
 
+  /**
+   * Removes records which have been added with
+   * {@link #addTagValueUpdates(Collection)}
+   *
+   * @param records the records to remove, the same instances as were added
+   */
+  protected void removeTagValueUpdates(final Collection<HistoryTagValueUpdate> records) {
+    final Map<Long, Set<HistoryTagValueUpdate>> recordsPerTag = new HashMap<Long, Set<HistoryTagValueUpdate>>();
+    for (final HistoryTagValueUpdate record : records) {
+      Set<HistoryTagValueUpdate> tagRecords = recordsPerTag.get(record.getId());
+      if (tagRecords == null) {
+        tagRecords = Collections.newSetFromMap(new IdentityHashMap<HistoryTagValueUpdate, Boolean>());
+        recordsPerTag.put(record.getId(), tagRecords);
+      }
+      tagRecords.add(record);
+    }
+    this.loadedHistoryTagValueUpdatesLock.writeLock().lock();
+    try {
+      for (final Entry<Long, Set<HistoryTagValueUpdate>> entry : recordsPerTag.entrySet()) {
+        final List<HistoryTagValueUpdate> list = this.loadedHistoryTagValueUpdates.get(entry.getKey());
+        if (list == null) {
+          continue;
+        }
+        synchronized (list) {
+          final Iterator<HistoryTagValueUpdate> iterator = list.iterator();
+          while (iterator.hasNext()) {
+            if (entry.getValue().contains(iterator.next())) {
+              iterator.remove();
+            }
+          }
+        }
+      }
+    }
+    finally {
+      this.loadedHistoryTagValueUpdatesLock.writeLock().unlock();
+    }
+  }
+
   /**
    * Adds records to the data store
    *
@@ -29,9 +29,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import cern.c2mon.client.common.tag.Tag;
+import cern.c2mon.client.ext.history.common.HistoryAggregate;
 import cern.c2mon.client.ext.history.common.HistoryLoadingManager;
 import cern.c2mon.client.ext.history.common.HistoryProvider;
 import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdateHandler;
 import cern.c2mon.client.ext.history.common.SupervisionEventRequest;
 import cern.c2mon.client.ext.history.common.Timespan;
 import cern.c2mon.client.ext.history.common.event.HistoryLoadingManagerListener;
@@ -57,6 +59,9 @@ public class HistoryLoadingManagerImpl extends HistoryLoadingManagerAbs implemen
 
   /** The timeout for waiting for the loading to stop */
   private static final long STOP_LOADING_TIMEOUT = 20000;
+
+  /** The number of streamed records which is added at a time while loading */
+  private static final int STREAMED_RECORDS_PER_BATCH = 10000;
   
   /** The history provider to use */
   private final HistoryProvider historyProvider;
@@ -182,20 +187,8 @@ public class HistoryLoadingManagerImpl extends HistoryLoadingManagerAbs implemen
       this.fireOnLoadingStarting();
       this.initLoading();
 
-      if (getConfiguration().isTimeWindowSet()) {
-        this.loadRecordsFromSTL(getTagsToLoad());
-      }
-      else {
-        // Load tags one by one, in order to respect the
-        // maximum amount of records per tag
-        Map<Long, Tag> entryMap = null;
-        for (Entry<Long, Tag> entry : getTagsToLoad().entrySet()) {
-          entryMap = new HashMap<>(1);
-          entryMap.put(entry.getKey(), entry.getValue());
-
-          this.loadRecordsFromSTL(entryMap);
-        }
-      }
+      // Without a time window the maximum amount of records is per tag
+      this.loadRecordsFromSTL(getTagsToLoad(), !getConfiguration().isTimeWindowSet());
       
       HistoryLoadingManagerImpl.this.earliestTimeLoaded = earliestTime;
       HistoryLoadingManagerImpl.this.latestTimeLoaded = lastestTime;
@@ -310,6 +303,98 @@ public class HistoryLoadingManagerImpl extends HistoryLoadingManagerAbs implemen
       earliestTimeWithData = loadingEndTime;
     }
     
+    /**
+     * Streams the records of the given tags from the history provider, and
+     * adds them in batches while the query is still running. If the query
+     * fails, the batches which were already added are removed again, so that
+     * loading the same time again doesn't add the records twice.
+     * 
+     * @param tagIds The tags to load
+     * @param from The start time
+     * @param to The end time
+     * @return The number of records loaded
+     */
+    private int loadTagValueUpdates(final Long[] tagIds, final Timestamp from, final Timestamp to) {
+      final List<HistoryTagValueUpdate> batch = new ArrayList<HistoryTagValueUpdate>();
+      final List<HistoryTagValueUpdate> addedRecords = new ArrayList<HistoryTagValueUpdate>();
+      try {
+        historyProvider.getHistory(tagIds, from, to, new HistoryTagValueUpdateHandler() {
+          @Override
+          public void handle(final HistoryTagValueUpdate update) {
+            batch.add(update);
+            if (batch.size() >= STREAMED_RECORDS_PER_BATCH) {
+              addTagValueUpdates(batch);
+              addedRecords.addAll(batch);
+              batch.clear();
+            }
+          }
+        });
+      }
+      catch (RuntimeException e) {
+        removeTagValueUpdates(addedRecords);
+        throw e;
+      }
+      addTagValueUpdates(batch);
+      return addedRecords.size() + batch.size();
+    }
+    
+    /**
+     * Loads the latest records of the given tags, with one query for all the
+     * tags which are missing the same number of records.
+     * 
+     * @param tagIds The tags to load
+     * @param remainingRecordsPerTag The number of records which are still to
+     *          load for each tag. Is updated with the records loaded, and the
+     *          tags which gets all their records are removed.
+     * @param from The start time
+     * @param to The end time
+     * @return The number of records loaded
+     */
+    private int loadLatestTagValueUpdates(final List<Long> tagIds, final Map<Long, Integer> remainingRecordsPerTag, 
+        final Timestamp from, final Timestamp to) {
+      
+      // Groups the tags by the number of records they are missing
+      final Map<Integer, List<Long>> tagsByRemainingRecords = new HashMap<Integer, List<Long>>();
+      for (final Long tagId : tagIds) {
+        final Integer remainingRecords = remainingRecordsPerTag.get(tagId);
+        List<Long> tagsWithSameRemaining = tagsByRemainingRecords.get(remainingRecords);
+        if (tagsWithSameRemaining == null) {
+          tagsWithSameRemaining = new ArrayList<Long>();
+          tagsByRemainingRecords.put(remainingRecords, tagsWithSameRemaining);
+        }
+        tagsWithSameRemaining.add(tagId);
+      }
+      
+      int resultSize = 0;
+      for (final Entry<Integer, List<Long>> entry : tagsByRemainingRecords.entrySet()) {
+        if (!isLoading()) {
+          break;
+        }
+        final Collection<HistoryTagValueUpdate> result = 
+          historyProvider.getHistory(entry.getKey(), entry.getValue().toArray(new Long[0]), from, to);
+        if (result == null) {
+          continue;
+        }
+        addTagValueUpdates(result);
+        resultSize += result.size();
+        
+        for (final HistoryTagValueUpdate update : result) {
+          final Long tagId = update.getId();
+          final Integer remainingRecords = remainingRecordsPerTag.get(tagId);
+          if (remainingRecords == null) {
+            continue;
+          }
+          if (remainingRecords <= 1) {
+            remainingRecordsPerTag.remove(tagId);
+          }
+          else {
+            remainingRecordsPerTag.put(tagId, remainingRecords - 1);
+          }
+        }
+      }
+      return resultSize;
+    }
+    
     /**
      * Fetches the historical records of the given list of tags from the
      * database. To optimize the loading performance it does one query per
@@ -317,8 +402,10 @@ public class HistoryLoadingManagerImpl extends HistoryLoadingManagerAbs implemen
      * which have not been updated during the given day.
      *
      * @param tags The tags to load
+     * @param maximumIsPerTag <code>true</code> if the maximum records of the
+     *          configuration is per tag, <code>false</code> if it is in total
      */
-    private void loadRecordsFromSTL(final Map<Long, Tag> tags) {
+    private void loadRecordsFromSTL(final Map<Long, Tag> tags, final boolean maximumIsPerTag) {
       
       boolean loadingTimesReached = false;
       boolean numberOfDaysReached = false;
@@ -334,6 +421,17 @@ public class HistoryLoadingManagerImpl extends HistoryLoadingManagerAbs implemen
 
       Integer numberOfRecords = getConfiguration().getMaximumRecords() == null ? null : 0;
       maximumRecordsReached = false;
+
+      // The number of records which are still to load for each tag, when the
+      // maximum is per tag. The tags are removed when they reach the maximum.
+      Map<Long, Integer> remainingRecordsPerTag = null;
+      if (maximumIsPerTag && numberOfRecords != null) {
+        remainingRecordsPerTag = new HashMap<Long, Integer>();
+        for (final Long tagId : tags.keySet()) {
+          remainingRecordsPerTag.put(tagId, getConfiguration().getMaximumRecords());
+        }
+        numberOfRecords = null;
+      }
       
       while (!maximumRecordsReached
           && !loadingTimesReached
@@ -368,6 +466,10 @@ public class HistoryLoadingManagerImpl extends HistoryLoadingManagerAbs implemen
         // Filters out which tags to load
         final List<Long> tagsToLoad = new ArrayList<Long>();
         for (final Long tagId : tags.keySet()) {
+          if (remainingRecordsPerTag != null && !remainingRecordsPerTag.containsKey(tagId)) {
+            // The tag have all its records
+            continue;
+          }
           final Timespan timespan = dailySnapshotFilter.getTimespan(tagId, loadingStartTime);
           // Load the tag if the start or end time is outside of the timespan
           if (timespan == null
@@ -378,26 +480,32 @@ public class HistoryLoadingManagerImpl extends HistoryLoadingManagerAbs implemen
         }
         
         if (tagsToLoad.size() > 0) {
-          Collection<HistoryTagValueUpdate> result;
+          int resultSize = 0;
           
           // Loads the data from history
-          if (maximumNumberOfRecords == null) {
-            result = historyProvider.getHistory(tagsToLoad.toArray(new Long[0]), loadingStartTime, myLoadingEndTime);
+          if (remainingRecordsPerTag != null) {
+            resultSize = loadLatestTagValueUpdates(tagsToLoad, remainingRecordsPerTag, loadingStartTime, myLoadingEndTime);
           }
-          else {
-            result = historyProvider.getHistory(tagsToLoad.toArray(new Long[0]), loadingStartTime, myLoadingEndTime, (int) maximumNumberOfRecords);
+          else if (maximumNumberOfRecords == null) {
+            // Without a maximum the records are added while they are loaded
+            resultSize = loadTagValueUpdates(tagsToLoad.toArray(new Long[0]), loadingStartTime, myLoadingEndTime);
           }
-          if (result != null) {
-            addTagValueUpdates(result);
-            
-            if (numberOfRecords != null) {
-              numberOfRecords += result.size();
+          else {
+            final Collection<HistoryTagValueUpdate> result = 
+              historyProvider.getHistory(tagsToLoad.toArray(new Long[0]), loadingStartTime, myLoadingEndTime, (int) maximumNumberOfRecords);
+            if (result != null) {
+              addTagValueUpdates(result);
+              resultSize = result.size();
             }
-            
-            if (result.size() > 0) {
-              if (loadingStartTime.compareTo(myEarliestTimeWithData) < 0) {
-                myEarliestTimeWithData = loadingStartTime;
-              }
+          }
+          
+          if (numberOfRecords != null) {
+            numberOfRecords += resultSize;
+          }
+          
+          if (resultSize > 0) {
+            if (loadingStartTime.compareTo(myEarliestTimeWithData) < 0) {
+              myEarliestTimeWithData = loadingStartTime;
             }
           }
         }
@@ -413,9 +521,14 @@ public class HistoryLoadingManagerImpl extends HistoryLoadingManagerAbs implemen
         }
         
         // Checking which criterias is met
-        maximumRecordsReached = 
-          numberOfRecords != null
-          && numberOfRecords >= getConfiguration().getMaximumRecords();
+        if (remainingRecordsPerTag != null) {
+          maximumRecordsReached = remainingRecordsPerTag.isEmpty();
+        }
+        else {
+          maximumRecordsReached = 
+            numberOfRecords != null
+            && numberOfRecords >= getConfiguration().getMaximumRecords();
+        }
           
         numberOfDaysReached = 
           numberOfDays != null 
@@ -467,6 +580,11 @@ public class HistoryLoadingManagerImpl extends HistoryLoadingManagerAbs implemen
     }
   }
 
+  @Override
+  public Collection<HistoryAggregate> getAggregatedHistory(final Collection<Long> tagIds, final Timestamp from, final Timestamp to, final long bucketMillis) {
+    return this.historyProvider.getAggregatedHistory(tagIds.toArray(new Long[0]), from, to, bucketMillis);
+  }
+
   @Override
   public Timestamp getEarliestTimeLoaded() {
     return this.earliestTimeLoaded;
@@ -0,0 +1,105 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.data.utilities;
+
+/**
+ * Adapts the number of workers doing queries in parallel to how long the
+ * queries take. As long as adding a worker doesn't make the queries
+ * noticeably slower, the database have capacity for more, and another worker
+ * is added the next time. If the queries gets a lot slower than the fastest
+ * seen, the database is saturated and a worker is removed.
+ */
+public class AdaptiveWorkerCount {
+
+  /** A latency below this times the baseline allows another worker */
+  private static final double INCREASE_LATENCY_RATIO = 1.5;
+
+  /** A latency above this times the baseline removes a worker */
+  private static final double DECREASE_LATENCY_RATIO = 2.5;
+
+  /**
+   * How much of a slower latency is taken into the baseline per measurement.
+   * Lets the baseline follow when all the queries becomes slower, for example
+   * because the tags have more records.
+   */
+  private static final double BASELINE_RISE_RATIO = 1.0 / 8.0;
+
+  /** The maximum number of workers */
+  private final int maximumWorkers;
+
+  /** The number of workers to use */
+  private int workers;
+
+  /** The latency the queries have when the database is not saturated */
+  private double baselineLatency = -1;
+
+  /**
+   * @param maximumWorkers
+   *          The maximum number of workers, usually the number of connections
+   *          the database allows. Starts with one worker.
+   */
+  public AdaptiveWorkerCount(final int maximumWorkers) {
+    this.maximumWorkers = Math.max(1, maximumWorkers);
+    this.workers = 1;
+  }
+
+  /**
+   * @return The number of workers to use for the next queries
+   */
+  public synchronized int getWorkers() {
+    return workers;
+  }
+
+  /**
+   * @return The maximum number of workers
+   */
+  public int getMaximumWorkers() {
+    return maximumWorkers;
+  }
+
+  /**
+   * Adjusts the number of workers after some queries have been done.
+   * 
+   * @param usedWorkers
+   *          The number of workers which did the queries
+   * @param averageLatency
+   *          The average time each of the queries took, in milliseconds
+   */
+  public synchronized void addMeasurement(final int usedWorkers, final double averageLatency) {
+    if (averageLatency <= 0) {
+      return;
+    }
+    if (baselineLatency < 0 || averageLatency < baselineLatency) {
+      baselineLatency = averageLatency;
+    }
+    else {
+      baselineLatency += (averageLatency - baselineLatency) * BASELINE_RISE_RATIO;
+    }
+
+    if (averageLatency > baselineLatency * DECREASE_LATENCY_RATIO) {
+      workers = Math.max(1, Math.min(workers, usedWorkers) - 1);
+    }
+    else if (averageLatency <= baselineLatency * INCREASE_LATENCY_RATIO && usedWorkers >= workers) {
+      workers = Math.min(maximumWorkers, workers + 1);
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d of maximum %d workers, baseline latency %.1f ms", workers, maximumWorkers, baselineLatency);
+  }
+}
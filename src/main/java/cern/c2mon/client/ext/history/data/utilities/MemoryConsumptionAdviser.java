@@ -16,6 +16,10 @@
  *****************************************************************************/
 package cern.c2mon.client.ext.history.data.utilities;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -24,7 +28,16 @@ import org.slf4j.LoggerFactory;
 
 /**
  * This class is used to check the memory consumption. Is used by the
- * {@link HistoryLoader} before loading a new bunch of history.
+ * {@link HistoryLoader} before loading a new bunch of history.<br/>
+ * <br/>
+ * The memory used is the estimate given by the {@link MemoryUsageSource},
+ * which is compared with a memory budget. As the estimate does not cover
+ * everything on the heap, the heap used by the whole JVM is also compared
+ * with the {@link #getMaximumMemoryConsumption()} of the maximum heap size.
+ * The heap used is the one left after the last garbage collection, so that
+ * garbage which is not collected yet does not count. The garbage collector is
+ * never run explicitly, the listeners are instead asked to clean up when
+ * either is exceeded.
  * 
  * @see MemoryConsumptionAdviserListener
  * 
@@ -39,68 +52,183 @@ public class MemoryConsumptionAdviser {
   /** The default value of {@link #maximumMemoryConsumption} */
   private static final double DEFAULT_MAXIMUM_MEMORY_CONSUMPTION_PERCENT = 0.75;
 
+  /** The number of bytes in a megabyte */
+  private static final long BYTES_PER_MB = 1024L * 1024L;
+
   /**
    * The maximum memory consumption in percent of the total memory available
-   * that can be used. A number between 0.0 - 1.0
+   * that can be used. A number between 0.0 - 1.0. Used as the budget when no
+   * {@link #memoryBudget} is set, and always as the limit of the heap used.
    */
   private double maximumMemoryConsumption;
 
+  /** The memory in bytes that can be used, zero or less if not set */
+  private volatile long memoryBudget;
+
+  /**
+   * Gives the memory used. The memory used by the whole JVM is used if not
+   * set.
+   */
+  private volatile MemoryUsageSource memoryUsageSource;
+
   /** The listeners of events */
   private final List<MemoryConsumptionAdviserListener> listeners;
 
+  /**
+   * <code>true</code> if the last check found too little memory. Used to only
+   * warn once while the memory stays low.
+   */
+  private volatile boolean lowOnMemory;
+
   /**
    * Constructor
    */
   public MemoryConsumptionAdviser() {
     this.maximumMemoryConsumption = DEFAULT_MAXIMUM_MEMORY_CONSUMPTION_PERCENT;
+    this.memoryBudget = 0;
+    this.memoryUsageSource = null;
     this.listeners = new ArrayList<MemoryConsumptionAdviserListener>();
+    this.lowOnMemory = false;
   }
 
   /**
+   * If the memory budget or the heap limit is exceeded the listeners are
+   * asked to clean up before checking again.
    * 
    * @return <code>true</code> if more data can be loaded. <code>false</code> if
    *         there is not space in memory for more data
    */
   public boolean haveEnoughMemory() {
-    return haveEnoughMemory(false);
-  }
-
-  /**
-   * 
-   * @param doCleanUp
-   *          <code>true</code> if cleanup should be done before checking the
-   *          memory
-   * @return <code>true</code> if more data can be loaded. <code>false</code> if
-   *         there is not space in memory for more data
-   */
-  private boolean haveEnoughMemory(final boolean doCleanUp) {
-    final Runtime runtime = Runtime.getRuntime();
+    final long budget = getMemoryBudget();
+    long usage = getEstimatedMemoryUsage();
 
-    if (doCleanUp) {
+    if (usage > budget || isHeapExceeded()) {
       // Notifies the listeners
       for (final MemoryConsumptionAdviserListener listener : getMemoryConsumptionAdviserListeners()) {
         listener.cleanUpObjects();
       }
-      runtime.gc();
+      usage = getEstimatedMemoryUsage();
     }
 
-    final long maximumMemoryConsumption = (long) (runtime.maxMemory() * this.maximumMemoryConsumption);
+    for (final MemoryConsumptionAdviserListener listener : getMemoryConsumptionAdviserListeners()) {
+      listener.onMemoryUsageUpdated(usage, budget);
+    }
 
-    final long freeMemory = runtime.freeMemory();
-    final long currentMemoryConsuption = runtime.totalMemory() - runtime.freeMemory();
-    if (currentMemoryConsuption > maximumMemoryConsumption) {
-      if (doCleanUp) {
-        LOG.warn(String.format("Low on memory (%d MB free)", freeMemory / 1000000));
-        return false;
-      }
-      else {
-        LOG.debug("Running the JVM garbage collector because of low memory");
-        return haveEnoughMemory(true);
-      }
+    final String warning;
+    final long heapUsage = getHeapUsage();
+    final long heapLimit = getHeapLimit();
+    if (usage > budget) {
+      warning = String.format("Low on memory (%d MB used of the %d MB budget)", usage / BYTES_PER_MB, budget / BYTES_PER_MB);
+    }
+    else if (heapUsage > heapLimit) {
+      warning = String.format("Low on heap memory (%d MB used of the %d MB limit)", heapUsage / BYTES_PER_MB, heapLimit / BYTES_PER_MB);
     }
     else {
+      if (lowOnMemory) {
+        LOG.info("Enough memory is free again");
+        lowOnMemory = false;
+      }
       return true;
     }
+    
+    if (!lowOnMemory) {
+      LOG.warn(warning);
+      lowOnMemory = true;
+    }
+    else if (LOG.isDebugEnabled()) {
+      LOG.debug(warning);
+    }
+    return false;
+  }
+
+  /**
+   * @return the heap used by the whole JVM after the last garbage collection,
+   *         in bytes. If the memory pools do not tell, the heap used right
+   *         now, which includes the garbage which is not collected yet.
+   */
+  protected long getHeapUsage() {
+    long usage = 0;
+    boolean collected = false;
+    for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        final MemoryUsage collectionUsage = pool.getCollectionUsage();
+        if (collectionUsage != null) {
+          usage += collectionUsage.getUsed();
+          collected = true;
+        }
+      }
+    }
+    if (collected) {
+      return usage;
+    }
+    final Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * @return the {@link #getMaximumMemoryConsumption()} of the maximum heap
+   *         size, in bytes
+   */
+  private long getHeapLimit() {
+    return (long) (Runtime.getRuntime().maxMemory() * this.maximumMemoryConsumption);
+  }
+
+  /**
+   * @return the estimated memory used, in bytes
+   */
+  public long getEstimatedMemoryUsage() {
+    final MemoryUsageSource source = this.memoryUsageSource;
+    if (source != null) {
+      return source.getEstimatedMemoryUsage();
+    }
+    return getHeapUsage();
+  }
+
+  /**
+   * @return <code>true</code> if the heap used after the last garbage
+   *         collection is above the {@link #getMaximumMemoryConsumption()} of
+   *         the maximum heap size. Unlike the memory budget, it only goes down
+   *         once the garbage collector have run.
+   */
+  private boolean isHeapExceeded() {
+    return getHeapUsage() > getHeapLimit();
+  }
+
+  /**
+   * @return the memory in bytes that can be used
+   */
+  public long getMemoryBudget() {
+    final long budget = this.memoryBudget;
+    if (budget > 0) {
+      return budget;
+    }
+    return getHeapLimit();
+  }
+
+  /**
+   * @return the memory in bytes which is left of the budget, zero if the
+   *         budget is exceeded
+   */
+  public long getRemainingMemory() {
+    return Math.max(0, getMemoryBudget() - getEstimatedMemoryUsage());
+  }
+
+  /**
+   * @param memoryBudget
+   *          the memory in bytes that can be used. Zero to use the
+   *          {@link #getMaximumMemoryConsumption()} of the maximum heap size.
+   */
+  public void setMemoryBudget(final long memoryBudget) {
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * @param memoryUsageSource
+   *          gives the memory used, or <code>null</code> to use the memory
+   *          used by the whole JVM
+   */
+  public void setMemoryUsageSource(final MemoryUsageSource memoryUsageSource) {
+    this.memoryUsageSource = memoryUsageSource;
   }
 
   /**
@@ -30,4 +30,14 @@ public interface MemoryConsumptionAdviserListener {
    */
   void cleanUpObjects();
 
+  /**
+   * Is invoked each time the memory consumption is checked
+   * 
+   * @param estimatedMemoryUsage
+   *          The estimated memory used by the history, in bytes
+   * @param memoryBudget
+   *          The memory the history is allowed to use, in bytes
+   */
+  void onMemoryUsageUpdated(long estimatedMemoryUsage, long memoryBudget);
+
 }
@@ -0,0 +1,243 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.data.utilities;
+
+/**
+ * Keeps track of which part of the history is kept in memory when buffering
+ * only a window around the playback clock. The records are loaded until a
+ * look-ahead in front of the clock, and the records older than a retention
+ * behind the clock is evicted.<br/>
+ * <br/>
+ * When the clock is moved to a time where the records have been evicted, the
+ * evicted part from a retention before the new time is marked as a gap which
+ * must be restored. The initial values at the start of the gap is restored
+ * first, then the gap is restored forward in time, no further than the
+ * look-ahead in front of the clock.<br/>
+ * <br/>
+ * All times are in milliseconds since epoch.
+ */
+public class PlaybackWindow {
+
+  /** Used for the times which are not set */
+  public static final long NO_TIME = Long.MIN_VALUE;
+
+  /** How far in front of the clock to load, zero if the window is disabled */
+  private final long lookAhead;
+
+  /** How long behind the clock the records are kept */
+  private final long retention;
+
+  /**
+   * The records before this time have been evicted, except the latest one of
+   * each tag. {@link #NO_TIME} if nothing is evicted.
+   */
+  private long windowStart = NO_TIME;
+
+  /** The first time of the gap which is not restored, {@link #NO_TIME} if there is no gap */
+  private long gapStart = NO_TIME;
+
+  /** The time the gap ends, exclusive */
+  private long gapEnd = NO_TIME;
+
+  /** <code>true</code> if the initial values at {@link #gapStart} must be restored first */
+  private boolean initialValuesNeeded = false;
+
+  /**
+   * @param lookAhead
+   *          How far in front of the clock to load, zero or less to disable
+   *          the window and load everything
+   * @param retention
+   *          How long behind the clock the records are kept
+   */
+  public PlaybackWindow(final long lookAhead, final long retention) {
+    this.lookAhead = Math.max(0, lookAhead);
+    this.retention = Math.max(0, retention);
+  }
+
+  /**
+   * @return <code>true</code> if only a window around the clock is buffered
+   */
+  public boolean isEnabled() {
+    return lookAhead > 0;
+  }
+
+  /**
+   * @return How far in front of the clock to load
+   */
+  public long getLookAhead() {
+    return lookAhead;
+  }
+
+  /**
+   * @return How long behind the clock the records are kept
+   */
+  public long getRetention() {
+    return retention;
+  }
+
+  /**
+   * @param time
+   *          The time to check
+   * @param clockTime
+   *          The current time of the playback clock
+   * @return <code>true</code> if the time is further than the look-ahead in
+   *         front of the clock, and doesn't need to be loaded yet
+   */
+  public boolean isAheadOfClock(final long time, final long clockTime) {
+    return isEnabled() && time > clockTime + lookAhead;
+  }
+
+  /**
+   * @param clockTime
+   *          The current time of the playback clock
+   * @return The time to evict the records before, never later than the start
+   *         of a gap which is not restored
+   */
+  public synchronized long getEvictionTime(final long clockTime) {
+    final long time = clockTime - retention;
+    if (gapStart != NO_TIME) {
+      return Math.min(time, gapStart);
+    }
+    return time;
+  }
+
+  /**
+   * Registers that the records before the time have been evicted
+   *
+   * @param time
+   *          The time the records were evicted before
+   */
+  public synchronized void evicted(final long time) {
+    windowStart = Math.max(windowStart, time);
+  }
+
+  /**
+   * @param time
+   *          The time to check
+   * @return <code>true</code> if the records needed to know the values at the
+   *         time have been evicted, or are not restored yet
+   */
+  public synchronized boolean isMissing(final long time) {
+    return windowStart != NO_TIME && time < windowStart
+        || gapStart != NO_TIME && time >= gapStart && time < gapEnd;
+  }
+
+  /**
+   * Is called when the playback clock is moved. If the records of the new time
+   * are missing, the part from a retention before the time is marked as a gap
+   * to restore.
+   *
+   * @param time
+   *          The new time of the playback clock
+   * @param earliestTime
+   *          The start of the playback, the gap doesn't start before it
+   * @return <code>true</code> if records must be restored
+   */
+  public synchronized boolean seek(final long time, final long earliestTime) {
+    if (!isMissing(time)) {
+      return false;
+    }
+    if (gapStart == NO_TIME) {
+      gapEnd = windowStart;
+    }
+    gapStart = Math.max(earliestTime, time - retention);
+    windowStart = gapStart;
+    initialValuesNeeded = true;
+    return true;
+  }
+
+  /**
+   * @return <code>true</code> if there is a gap which is not restored
+   */
+  public synchronized boolean hasGap() {
+    return gapStart != NO_TIME;
+  }
+
+  /**
+   * @return The first time of the gap which is not restored, or
+   *         {@link #NO_TIME} if there is no gap
+   */
+  public synchronized long getGapStart() {
+    return gapStart;
+  }
+
+  /**
+   * @return The time the gap ends, exclusive
+   */
+  public synchronized long getGapEnd() {
+    return gapEnd;
+  }
+
+  /**
+   * @return <code>true</code> if the initial values at the start of the gap
+   *         must be restored before the gap
+   */
+  public synchronized boolean isInitialValuesNeeded() {
+    return initialValuesNeeded;
+  }
+
+  /**
+   * Registers that the initial values at the start of the gap is restored.
+   * Ignored if the clock have been moved since the restoring started.
+   *
+   * @param restoredGapStart
+   *          The start of the gap the initial values were restored for
+   */
+  public synchronized void initialValuesRestored(final long restoredGapStart) {
+    if (gapStart == restoredGapStart) {
+      initialValuesNeeded = false;
+    }
+  }
+
+  /**
+   * Registers that the start of the gap is restored. Ignored if the clock
+   * have been moved since the restoring started.
+   *
+   * @param restoredGapStart
+   *          The start of the gap when the restoring started
+   * @param restoredUntil
+   *          The time the gap is restored until, inclusive
+   */
+  public synchronized void restored(final long restoredGapStart, final long restoredUntil) {
+    if (gapStart != restoredGapStart || initialValuesNeeded) {
+      return;
+    }
+    if (restoredUntil >= gapEnd - 1) {
+      gapStart = NO_TIME;
+      gapEnd = NO_TIME;
+    }
+    else {
+      gapStart = restoredUntil + 1;
+    }
+  }
+
+  /**
+   * Forgets what have been evicted, for when all the records are cleared
+   */
+  public synchronized void clear() {
+    windowStart = NO_TIME;
+    gapStart = NO_TIME;
+    gapEnd = NO_TIME;
+    initialValuesNeeded = false;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("look-ahead %d ms, retention %d ms, window start %d, gap %d - %d",
+        lookAhead, retention, windowStart, gapStart, gapEnd);
+  }
+}
@@ -0,0 +1,110 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.data.utilities;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distributes units of work between a fixed number of workers. Each worker
+ * has its own queue, which it takes the units from first. A worker which have
+ * nothing more to do takes the units from the end of the queues of the other
+ * workers, so that a worker getting slow units doesn't delay the others. This
+ * class supports multithreading as all calls are thread safe.
+ * 
+ * @param <T>
+ *          The type of the units of work
+ */
+public class WorkStealingQueue<T> {
+
+  /** The queues of the workers */
+  private final ConcurrentLinkedDeque<T>[] queues;
+
+  /** The queue which the next unit is added to */
+  private final AtomicInteger nextQueue = new AtomicInteger(0);
+
+  /** The number of units which were taken from the queue of another worker */
+  private final AtomicLong stolenCount = new AtomicLong(0);
+
+  /**
+   * @param numberOfWorkers
+   *          The number of workers taking units from the queue, at least one
+   */
+  @SuppressWarnings("unchecked")
+  public WorkStealingQueue(final int numberOfWorkers) {
+    if (numberOfWorkers < 1) {
+      throw new IllegalArgumentException(String.format("At least one worker is needed, was %d", numberOfWorkers));
+    }
+    this.queues = new ConcurrentLinkedDeque[numberOfWorkers];
+    for (int i = 0; i < numberOfWorkers; i++) {
+      this.queues[i] = new ConcurrentLinkedDeque<T>();
+    }
+  }
+
+  /**
+   * Adds a unit of work. The units are spread evenly between the queues of the
+   * workers.
+   * 
+   * @param unit
+   *          The unit to add
+   */
+  public void add(final T unit) {
+    final int queue = (nextQueue.getAndIncrement() & Integer.MAX_VALUE) % queues.length;
+    queues[queue].addLast(unit);
+  }
+
+  /**
+   * Takes the next unit from the queue of the worker, or from the end of the
+   * queue of another worker if its own is empty.
+   * 
+   * @param worker
+   *          The number of the worker, from zero to the number of workers
+   *          minus one
+   * @return The unit to work on, or <code>null</code> if there are no more
+   *         units in any of the queues
+   */
+  public T claim(final int worker) {
+    final T own = queues[worker].pollFirst();
+    if (own != null) {
+      return own;
+    }
+    for (int i = 1; i < queues.length; i++) {
+      final T stolen = queues[(worker + i) % queues.length].pollLast();
+      if (stolen != null) {
+        stolenCount.incrementAndGet();
+        return stolen;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return The number of workers
+   */
+  public int getNumberOfWorkers() {
+    return queues.length;
+  }
+
+  /**
+   * @return The number of units which were taken from the queue of another
+   *         worker than the one it were added to
+   */
+  public long getStolenCount() {
+    return stolenCount.get();
+  }
+}
@@ -0,0 +1,463 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.c2mon.client.ext.history.common.HistoryAggregate;
+import cern.c2mon.client.ext.history.common.HistoryProvider;
+import cern.c2mon.client.ext.history.common.HistorySupervisionEvent;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdateHandler;
+import cern.c2mon.client.ext.history.common.SupervisionEventRequest;
+import cern.c2mon.client.ext.history.common.Timespan;
+import cern.c2mon.client.ext.history.common.event.HistoryProviderListener;
+
+/**
+ * Wraps a {@link HistoryProvider} and keeps the records of the days which
+ * have ended in a {@link HistoryBucketCache}, as they will not change
+ * anymore. A request is assembled from the cached days, and only the days
+ * which are missing are requested from the wrapped provider, together with
+ * the part of the request which is too recent to be cached. A day is only
+ * cached when the request covers the whole day. Of the days which are only
+ * partly requested and not cached, only the requested part is requested.
+ * <p>
+ * Only {@link #getHistory(Long[], Timestamp, Timestamp)} and
+ * {@link #getHistory(Long[], Timestamp, Timestamp, HistoryTagValueUpdateHandler)}
+ * uses the cache, all the other requests are given directly to the wrapped
+ * provider. The records returned can be shared with other requests, and must
+ * therefore not be modified.
+ */
+public class CachingHistoryProvider implements HistoryProvider {
+
+  /** Log4j logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(CachingHistoryProvider.class);
+
+  /**
+   * The default time to wait after the end of a day before its records are
+   * cached, as records may still be logged for it
+   */
+  public static final long DEFAULT_SETTLE_TIME = 60L * 60L * 1000L;
+
+  /**
+   * Requests which spans more buckets than this are given directly to the
+   * wrapped provider
+   */
+  private static final int MAXIMUM_BUCKETS_PER_REQUEST = 366;
+
+  /** Sorts the records of a tag by their server time */
+  private static final Comparator<HistoryTagValueUpdate> SERVER_TIME_ORDER = new Comparator<HistoryTagValueUpdate>() {
+    @Override
+    public int compare(final HistoryTagValueUpdate o1, final HistoryTagValueUpdate o2) {
+      return o1.getServerTimestamp().compareTo(o2.getServerTimestamp());
+    }
+  };
+
+  /** The provider which the records that are not cached are requested from */
+  private final HistoryProvider historyProvider;
+
+  /** The cache of the records */
+  private final HistoryBucketCache cache;
+
+  /** The time to wait after the end of a day before its records are cached */
+  private volatile long settleTime = DEFAULT_SETTLE_TIME;
+
+  /**
+   * <code>true</code> while the provider is disabled, in which case the
+   * records retrieved may be incomplete and are not cached
+   */
+  private volatile boolean disabled = false;
+
+  /**
+   * @param historyProvider
+   *          the provider which the records that are not cached are requested
+   *          from
+   * @param cache
+   *          the cache of the records, can be shared with other providers of
+   *          the same history
+   */
+  public CachingHistoryProvider(final HistoryProvider historyProvider, final HistoryBucketCache cache) {
+    this.historyProvider = historyProvider;
+    this.cache = cache;
+  }
+
+  @Override
+  public Collection<HistoryTagValueUpdate> getHistory(final Long[] tagIds, final Timestamp from, final Timestamp to) {
+    if (tagIds == null || tagIds.length == 0 || from == null || to == null || !from.before(to)) {
+      return historyProvider.getHistory(tagIds, from, to);
+    }
+    final List<HistoryTagValueUpdate> result = new ArrayList<HistoryTagValueUpdate>();
+    getHistory(tagIds, from, to, new HistoryTagValueUpdateHandler() {
+      @Override
+      public void handle(final HistoryTagValueUpdate update) {
+        result.add(update);
+      }
+    }, false);
+    return result;
+  }
+
+  /**
+   * The cached records are given to the handler directly, as are the records
+   * which are not cached. Only the records of the days which are cached while
+   * requesting them are collected first.
+   */
+  @Override
+  public void getHistory(final Long[] tagIds, final Timestamp from, final Timestamp to, final HistoryTagValueUpdateHandler handler) {
+    if (tagIds == null || tagIds.length == 0 || from == null || to == null || !from.before(to)) {
+      historyProvider.getHistory(tagIds, from, to, handler);
+      return;
+    }
+    getHistory(tagIds, from, to, handler, true);
+  }
+
+  /**
+   * Gives the records of the request to the handler, taking the records of
+   * the days which have ended from the cache
+   * 
+   * @param tagIds
+   *          the tags to request, at least one
+   * @param from
+   *          the start of the requested time
+   * @param to
+   *          the end of the requested time, after <code>from</code>
+   * @param handler
+   *          is given the records
+   * @param streamed
+   *          <code>true</code> to stream the records which are not cached
+   *          from the wrapped provider, <code>false</code> to request them as
+   *          a collection
+   */
+  private void getHistory(final Long[] tagIds, final Timestamp from, final Timestamp to,
+      final HistoryTagValueUpdateHandler handler, final boolean streamed) {
+    final long fromTime = from.getTime();
+    final long toTime = to.getTime();
+
+    // The buckets which have ended long enough ago to be cached
+    final long firstBucket = HistoryBucketCache.getBucket(fromTime);
+    final long lastBucket = Math.min(
+        HistoryBucketCache.getBucket(toTime - 1),
+        HistoryBucketCache.getBucket(System.currentTimeMillis() - settleTime) - 1);
+    if (lastBucket - firstBucket >= MAXIMUM_BUCKETS_PER_REQUEST) {
+      requestUncached(tagIds, from, to, handler, streamed);
+      return;
+    }
+
+    // Takes the records from the cache, and finds the tags missing for each bucket
+    final Map<Long, List<Long>> missingTagIds = new TreeMap<Long, List<Long>>();
+    for (long bucket = firstBucket; bucket <= lastBucket; bucket++) {
+      for (final Long tagId : tagIds) {
+        final HistoryTagValueUpdate[] records = cache.get(tagId, bucket);
+        if (records == null) {
+          List<Long> bucketTagIds = missingTagIds.get(bucket);
+          if (bucketTagIds == null) {
+            bucketTagIds = new ArrayList<Long>();
+            missingTagIds.put(bucket, bucketTagIds);
+          }
+          bucketTagIds.add(tagId);
+        }
+        else {
+          addRecordsInRange(records, fromTime, toTime, handler);
+        }
+      }
+    }
+
+    // Requests the missing buckets, consecutive buckets missing the same tags in one request
+    Long runFirstBucket = null;
+    long runLastBucket = 0;
+    List<Long> runTagIds = null;
+    for (final Map.Entry<Long, List<Long>> entry : missingTagIds.entrySet()) {
+      if (runFirstBucket != null && entry.getKey() == runLastBucket + 1 && entry.getValue().equals(runTagIds)) {
+        runLastBucket = entry.getKey();
+        continue;
+      }
+      if (runFirstBucket != null) {
+        loadBuckets(runTagIds, runFirstBucket, runLastBucket, fromTime, toTime, handler, streamed);
+      }
+      runFirstBucket = entry.getKey();
+      runLastBucket = entry.getKey();
+      runTagIds = entry.getValue();
+    }
+    if (runFirstBucket != null) {
+      loadBuckets(runTagIds, runFirstBucket, runLastBucket, fromTime, toTime, handler, streamed);
+    }
+
+    // Requests the records which are too recent to be cached
+    final long uncachedFrom = Math.max(fromTime, HistoryBucketCache.getBucketStart(lastBucket + 1));
+    if (uncachedFrom < toTime && !disabled) {
+      requestUncached(tagIds, new Timestamp(uncachedFrom), to, handler, streamed);
+    }
+  }
+
+  /**
+   * Requests records which are not cached from the wrapped provider
+   * 
+   * @param tagIds
+   *          the tags to request
+   * @param from
+   *          the start of the requested time
+   * @param to
+   *          the end of the requested time
+   * @param handler
+   *          is given the records
+   * @param streamed
+   *          <code>true</code> to stream the records, <code>false</code> to
+   *          request them as a collection
+   */
+  private void requestUncached(final Long[] tagIds, final Timestamp from, final Timestamp to,
+      final HistoryTagValueUpdateHandler handler, final boolean streamed) {
+    if (streamed) {
+      historyProvider.getHistory(tagIds, from, to, handler);
+      return;
+    }
+    for (final HistoryTagValueUpdate record : historyProvider.getHistory(tagIds, from, to)) {
+      handler.handle(record);
+    }
+  }
+
+  /**
+   * Requests the records of the tags in the buckets which are within the
+   * requested time. The buckets which are wholly within the requested time
+   * are cached, the other ones are only partly requested and are not cached.
+   * 
+   * @param tagIds
+   *          the tags to request
+   * @param firstBucket
+   *          the first bucket to request
+   * @param lastBucket
+   *          the last bucket to request
+   * @param fromTime
+   *          the start of the requested time
+   * @param toTime
+   *          the end of the requested time
+   * @param handler
+   *          is given the records within the requested time
+   * @param streamed
+   *          <code>true</code> to stream the records when none of the buckets
+   *          can be cached
+   */
+  private void loadBuckets(final List<Long> tagIds, final long firstBucket, final long lastBucket,
+      final long fromTime, final long toTime, final HistoryTagValueUpdateHandler handler, final boolean streamed) {
+    if (disabled) {
+      return;
+    }
+    final long loadedFrom = Math.max(fromTime, HistoryBucketCache.getBucketStart(firstBucket));
+    final long loadedTo = Math.min(toTime, HistoryBucketCache.getBucketStart(lastBucket + 1));
+    final Long[] requestedTagIds = tagIds.toArray(new Long[0]);
+
+    // Only the buckets which are requested from their start to their end are cached
+    final long firstCachedBucket = 
+        loadedFrom == HistoryBucketCache.getBucketStart(firstBucket) ? firstBucket : firstBucket + 1;
+    final long lastCachedBucket = 
+        loadedTo == HistoryBucketCache.getBucketStart(lastBucket + 1) ? lastBucket : lastBucket - 1;
+    if (firstCachedBucket > lastCachedBucket) {
+      requestUncached(requestedTagIds, new Timestamp(loadedFrom), new Timestamp(loadedTo), handler, streamed);
+      return;
+    }
+
+    final Collection<HistoryTagValueUpdate> records = historyProvider.getHistory(
+        requestedTagIds, new Timestamp(loadedFrom), new Timestamp(loadedTo));
+
+    // Splits the records per tag
+    final Map<Long, List<HistoryTagValueUpdate>> tagRecords = new HashMap<Long, List<HistoryTagValueUpdate>>();
+    for (final Long tagId : tagIds) {
+      tagRecords.put(tagId, new ArrayList<HistoryTagValueUpdate>());
+    }
+    boolean cacheable = true;
+    for (final HistoryTagValueUpdate record : records) {
+      final List<HistoryTagValueUpdate> list = tagRecords.get(record.getId());
+      // Records outside of the buckets cannot be placed in them
+      if (list == null || record.getServerTimestamp() == null
+          || record.getServerTimestamp().getTime() < loadedFrom
+          || record.getServerTimestamp().getTime() >= loadedTo) {
+        cacheable = false;
+        break;
+      }
+      list.add(record);
+    }
+
+    // The records may be incomplete if the provider was disabled while requesting them
+    if (!cacheable || disabled) {
+      LOG.debug("The records of the tags are not cached, as they may be incomplete");
+      for (final HistoryTagValueUpdate record : records) {
+        final Timestamp serverTime = record.getServerTimestamp();
+        if (serverTime == null || (serverTime.getTime() >= fromTime && serverTime.getTime() < toTime)) {
+          handler.handle(record);
+        }
+      }
+      return;
+    }
+
+    // Caches the records per bucket, including the buckets without records
+    for (final Map.Entry<Long, List<HistoryTagValueUpdate>> entry : tagRecords.entrySet()) {
+      final HistoryTagValueUpdate[] tagArray = entry.getValue().toArray(new HistoryTagValueUpdate[0]);
+      Arrays.sort(tagArray, SERVER_TIME_ORDER);
+      int fromIndex = 0;
+      for (long bucket = firstBucket; bucket <= lastBucket; bucket++) {
+        final long bucketEnd = HistoryBucketCache.getBucketStart(bucket + 1);
+        int toIndex = fromIndex;
+        while (toIndex < tagArray.length && tagArray[toIndex].getServerTimestamp().getTime() < bucketEnd) {
+          toIndex++;
+        }
+        final HistoryTagValueUpdate[] bucketRecords = Arrays.copyOfRange(tagArray, fromIndex, toIndex);
+        if (bucket >= firstCachedBucket && bucket <= lastCachedBucket) {
+          cache.put(entry.getKey(), bucket, bucketRecords);
+        }
+        addRecordsInRange(bucketRecords, fromTime, toTime, handler);
+        fromIndex = toIndex;
+      }
+    }
+  }
+
+  /**
+   * @param records
+   *          the records of a bucket sorted by server time
+   * @param fromTime
+   *          the first millisecond of the records to add
+   * @param toTime
+   *          the first millisecond of the records not to add
+   * @param handler
+   *          is given the records
+   */
+  private static void addRecordsInRange(final HistoryTagValueUpdate[] records, final long fromTime, final long toTime,
+      final HistoryTagValueUpdateHandler handler) {
+    for (final HistoryTagValueUpdate record : records) {
+      final long serverTime = record.getServerTimestamp().getTime();
+      if (serverTime >= toTime) {
+        break;
+      }
+      if (serverTime >= fromTime) {
+        handler.handle(record);
+      }
+    }
+  }
+
+  @Override
+  public Collection<HistoryTagValueUpdate> getHistory(final Long[] tagIds, final Timestamp from, final Timestamp to, final int maximumTotalRecords) {
+    return historyProvider.getHistory(tagIds, from, to, maximumTotalRecords);
+  }
+
+  @Override
+  public Collection<HistoryTagValueUpdate> getHistory(final Long[] tagIds, final int maximumTotalRecords) {
+    return historyProvider.getHistory(tagIds, maximumTotalRecords);
+  }
+
+  @Override
+  public Collection<HistoryTagValueUpdate> getHistory(final int maximumRecordsPerTag, final Long[] tagIds, final Timestamp from, final Timestamp to) {
+    return historyProvider.getHistory(maximumRecordsPerTag, tagIds, from, to);
+  }
+
+  @Override
+  public Collection<HistoryTagValueUpdate> getHistory(final int maximumRecordsPerTag, final Long[] tagIds) {
+    return historyProvider.getHistory(maximumRecordsPerTag, tagIds);
+  }
+
+  /**
+   * Not cached, the aggregates are small and computed by the database
+   */
+  @Override
+  public Collection<HistoryAggregate> getAggregatedHistory(final Long[] tagIds, final Timestamp from, final Timestamp to, final long bucketMillis) {
+    return historyProvider.getAggregatedHistory(tagIds, from, to, bucketMillis);
+  }
+
+  @Override
+  public Collection<HistoryTagValueUpdate> getDailySnapshotRecords(final Long[] tagIds, final Timestamp from, final Timestamp to) {
+    return historyProvider.getDailySnapshotRecords(tagIds, from, to);
+  }
+
+  @Override
+  public Collection<HistoryTagValueUpdate> getInitialValuesForTags(final Long[] tagIds, final Timestamp before) {
+    return historyProvider.getInitialValuesForTags(tagIds, before);
+  }
+
+  @Override
+  public Collection<HistorySupervisionEvent> getInitialSupervisionEvents(final Timestamp initializationTime, final Collection<SupervisionEventRequest> requests) {
+    return historyProvider.getInitialSupervisionEvents(initializationTime, requests);
+  }
+
+  @Override
+  public Collection<HistorySupervisionEvent> getSupervisionEvents(final Timestamp from, final Timestamp to, final Collection<SupervisionEventRequest> requests) {
+    return historyProvider.getSupervisionEvents(from, to, requests);
+  }
+
+  @Override
+  public void disableProvider() {
+    disabled = true;
+    historyProvider.disableProvider();
+  }
+
+  @Override
+  public void enableProvider() {
+    historyProvider.enableProvider();
+    disabled = false;
+  }
+
+  @Override
+  public void addHistoryProviderListener(final HistoryProviderListener listener) {
+    historyProvider.addHistoryProviderListener(listener);
+  }
+
+  @Override
+  public void removeHistoryProviderListener(final HistoryProviderListener listener) {
+    historyProvider.removeHistoryProviderListener(listener);
+  }
+
+  @Override
+  public void resetProgress() {
+    historyProvider.resetProgress();
+  }
+
+  @Override
+  public Timespan getDateLimits() {
+    return historyProvider.getDateLimits();
+  }
+
+  /**
+   * @return the cache of the records, which also have the hit and miss
+   *         statistics
+   */
+  public HistoryBucketCache getCache() {
+    return cache;
+  }
+
+  /**
+   * @return the provider which the records that are not cached are requested
+   *         from
+   */
+  public HistoryProvider getHistoryProvider() {
+    return historyProvider;
+  }
+
+  /**
+   * @param settleTime
+   *          the time to wait after the end of a day before its records are
+   *          cached, in milliseconds
+   */
+  public void setSettleTime(final long settleTime) {
+    this.settleTime = settleTime;
+  }
+}
@@ -0,0 +1,188 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.apache.ibatis.session.ResultHandler;
+
+import cern.c2mon.client.ext.history.dbaccess.beans.AggregatedHistoryRecordBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.AggregatedHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.DailySnapshotRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.HistoryRecordBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialRecordHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialRecordsHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialSupervisionEventsRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.ShortTermLogHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionEventRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionRecordBean;
+
+/**
+ * A {@link HistoryMapper} which only lets as many queries run at the same time
+ * as there are permits, one per connection of the pool. The threads loading
+ * the history for the playback and the threads of the query executor of the
+ * providers shares the same permits, so together they never ask the pool for
+ * more connections than it has. A query waits for a permit instead of waiting
+ * for a connection inside the pool, where it could time out.
+ */
+class ConnectionLimitedHistoryMapper implements HistoryMapper {
+
+  /** The mapper which does the queries */
+  private final HistoryMapper historyMapper;
+
+  /** One permit per connection of the pool */
+  private final Semaphore connectionPermits;
+
+  /**
+   * @param historyMapper
+   *          The mapper which does the queries
+   * @param connectionPermits
+   *          One permit per connection of the pool, shared by all the mappers
+   *          of the same pool
+   */
+  ConnectionLimitedHistoryMapper(final HistoryMapper historyMapper, final Semaphore connectionPermits) {
+    this.historyMapper = historyMapper;
+    this.connectionPermits = connectionPermits;
+  }
+
+  /**
+   * Waits for a permit
+   * 
+   * @throws IllegalStateException
+   *           if the thread is interrupted while waiting
+   */
+  private void acquirePermit() {
+    try {
+      connectionPermits.acquire();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a database connection", e);
+    }
+  }
+
+  @Override
+  public HistoryRecordBean getInitialRecord(final InitialRecordHistoryRequestBean request) {
+    acquirePermit();
+    try {
+      return historyMapper.getInitialRecord(request);
+    }
+    finally {
+      connectionPermits.release();
+    }
+  }
+
+  @Override
+  public List<HistoryRecordBean> getInitialRecords(final InitialRecordsHistoryRequestBean request) {
+    acquirePermit();
+    try {
+      return historyMapper.getInitialRecords(request);
+    }
+    finally {
+      connectionPermits.release();
+    }
+  }
+
+  @Override
+  public List<HistoryRecordBean> getDailySnapshotRecords(final DailySnapshotRequestBean request) {
+    acquirePermit();
+    try {
+      return historyMapper.getDailySnapshotRecords(request);
+    }
+    finally {
+      connectionPermits.release();
+    }
+  }
+
+  @Override
+  public List<HistoryRecordBean> getRecords(final ShortTermLogHistoryRequestBean request) {
+    acquirePermit();
+    try {
+      return historyMapper.getRecords(request);
+    }
+    finally {
+      connectionPermits.release();
+    }
+  }
+
+  @Override
+  public void getRecords(final ShortTermLogHistoryRequestBean request, final ResultHandler handler) {
+    acquirePermit();
+    try {
+      historyMapper.getRecords(request, handler);
+    }
+    finally {
+      connectionPermits.release();
+    }
+  }
+
+  @Override
+  public List<HistoryRecordBean> getRecordsPerTag(final ShortTermLogHistoryRequestBean request) {
+    acquirePermit();
+    try {
+      return historyMapper.getRecordsPerTag(request);
+    }
+    finally {
+      connectionPermits.release();
+    }
+  }
+
+  @Override
+  public List<AggregatedHistoryRecordBean> getAggregatedRecords(final AggregatedHistoryRequestBean request) {
+    acquirePermit();
+    try {
+      return historyMapper.getAggregatedRecords(request);
+    }
+    finally {
+      connectionPermits.release();
+    }
+  }
+
+  @Override
+  public List<SupervisionRecordBean> getInitialSupervisionEvents(final SupervisionEventRequestBean request) {
+    acquirePermit();
+    try {
+      return historyMapper.getInitialSupervisionEvents(request);
+    }
+    finally {
+      connectionPermits.release();
+    }
+  }
+
+  @Override
+  public List<SupervisionRecordBean> getInitialSupervisionEventsOfIds(final InitialSupervisionEventsRequestBean request) {
+    acquirePermit();
+    try {
+      return historyMapper.getInitialSupervisionEventsOfIds(request);
+    }
+    finally {
+      connectionPermits.release();
+    }
+  }
+
+  @Override
+  public List<SupervisionRecordBean> getSupervisionEvents(final SupervisionEventRequestBean request) {
+    acquirePermit();
+    try {
+      return historyMapper.getSupervisionEvents(request);
+    }
+    finally {
+      connectionPermits.release();
+    }
+  }
+}
@@ -0,0 +1,824 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.updates.LazyHistoryTagValueUpdate;
+import cern.c2mon.shared.client.tag.TagMode;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+import cern.c2mon.shared.common.datatag.DataTagQualityImpl;
+import cern.c2mon.shared.common.datatag.TagQualityStatus;
+
+/**
+ * Keeps the records of tags per UTC day in a local directory, so that they
+ * survives restarts of the client. Used by the {@link HistoryBucketCache}
+ * when the records are not in memory.
+ * <p>
+ * The records of a tag in a bucket are written as one block file in a
+ * compact binary format, where the strings and qualities which are repeated
+ * are only written once. Each block ends with a CRC32 checksum of its
+ * content, which is also kept in the index, and blocks which does not match
+ * are removed. The index file lists the blocks in least recently used
+ * order, and the least recently used blocks are deleted when the directory
+ * uses more than the maximum size. The index also records which database the
+ * records were read from, and the cache is emptied when it is opened for
+ * another database.
+ * <p>
+ * The directory must not be used by more than one cache at a time.
+ */
+public final class DiskHistoryBucketCache implements Closeable {
+
+  /** Log4j logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(DiskHistoryBucketCache.class);
+
+  /** Identifies a block file */
+  private static final int BLOCK_MAGIC = 0x48424c4b;
+
+  /** Identifies an index file */
+  private static final int INDEX_MAGIC = 0x48494458;
+
+  /** The version of the format of the files */
+  private static final int FORMAT_VERSION = 2;
+
+  /** The name of the index file */
+  private static final String INDEX_FILE_NAME = "history-cache.idx";
+
+  /** The extension of the block files */
+  private static final String BLOCK_FILE_EXTENSION = ".blk";
+
+  /** The extension of the files being written */
+  private static final String TEMPORARY_FILE_EXTENSION = ".tmp";
+
+  /** The number of changes to the blocks before the index is written */
+  private static final int INDEX_WRITE_INTERVAL = 256;
+
+  /** The number of bytes of the checksum at the end of the files */
+  private static final int CHECKSUM_LENGTH = 8;
+
+  /** Written instead of a string or quality which is <code>null</code> */
+  private static final int NULL_REFERENCE = -1;
+
+  /** Written before a string or quality which is not written before in the block */
+  private static final int NEW_REFERENCE = -2;
+
+  /** Written instead of a time which is not set */
+  private static final long NO_TIME = Long.MIN_VALUE;
+
+  /** Flag set for the records which are initial values */
+  private static final byte FLAG_INITIAL_VALUE = 1;
+
+  /** The directory of the files */
+  private final File directory;
+
+  /** The maximum size of the block files, in bytes */
+  private final long maximumSize;
+
+  /** Identifies the database the records are read from */
+  private final String source;
+
+  /** The blocks by file name, in least recently used order */
+  private final LinkedHashMap<String, IndexEntry> index = new LinkedHashMap<String, IndexEntry>(16, 0.75f, true);
+
+  /** Lock for {@link #index}, {@link #size} and {@link #changesSinceIndexWritten} */
+  private final ReentrantLock indexLock = new ReentrantLock();
+
+  /** The size of the block files, in bytes */
+  private long size = 0;
+
+  /** The number of changes to the blocks which are not in the index file */
+  private int changesSinceIndexWritten = 0;
+
+  /** The number of blocks found */
+  private final AtomicLong hitCount = new AtomicLong(0);
+
+  /** The number of blocks which were not found */
+  private final AtomicLong missCount = new AtomicLong(0);
+
+  /** The number of blocks deleted to make room for others */
+  private final AtomicLong evictionCount = new AtomicLong(0);
+
+  /** The number of blocks removed because they could not be read */
+  private final AtomicLong corruptedCount = new AtomicLong(0);
+
+  /**
+   * Opens the cache in the directory, with the blocks listed in its index
+   * file. Files which are not in the index are deleted, and all the files are
+   * deleted if the index were written for another source.
+   * 
+   * @param directory
+   *          the directory of the files, created if it does not exist
+   * @param maximumSize
+   *          the maximum size of the block files, in bytes
+   * @param source
+   *          identifies the database the records are read from, for example
+   *          its JDBC url and schema
+   * @throws IOException
+   *           if the directory cannot be created
+   */
+  public DiskHistoryBucketCache(final File directory, final long maximumSize, final String source) throws IOException {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("The maximum size of the cache must be positive");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException(String.format("The directory \"%s\" could not be created", directory));
+    }
+    this.directory = directory;
+    this.maximumSize = maximumSize;
+    this.source = source == null ? "" : source;
+
+    readIndex();
+    deleteUnindexedFiles();
+  }
+
+  /**
+   * @param tagId
+   *          the tag id
+   * @param bucket
+   *          the bucket
+   * @return the records of the tag in the bucket sorted by server time, or
+   *         <code>null</code> if they are not in the cache
+   */
+  public HistoryTagValueUpdate[] get(final Long tagId, final long bucket) {
+    final String fileName = getFileName(tagId, bucket);
+    final IndexEntry entry;
+    indexLock.lock();
+    try {
+      entry = index.get(fileName);
+    }
+    finally {
+      indexLock.unlock();
+    }
+    if (entry == null) {
+      missCount.incrementAndGet();
+      return null;
+    }
+
+    try {
+      final HistoryTagValueUpdate[] records = readBlock(new File(directory, fileName), entry, tagId, bucket);
+      hitCount.incrementAndGet();
+      return records;
+    }
+    catch (IOException e) {
+      LOG.warn(String.format("The cached block \"%s\" could not be read, it is removed", fileName), e);
+    }
+    catch (RuntimeException e) {
+      LOG.warn(String.format("The cached block \"%s\" is invalid, it is removed", fileName), e);
+    }
+    corruptedCount.incrementAndGet();
+    missCount.incrementAndGet();
+    remove(fileName, entry);
+    return null;
+  }
+
+  /**
+   * Writes the records of a tag in a bucket, deleting the least recently used
+   * blocks if the directory is full. The records are not written if a value
+   * cannot be stored as a string.
+   * 
+   * @param tagId
+   *          the tag id
+   * @param bucket
+   *          the bucket
+   * @param records
+   *          all the records of the tag in the bucket sorted by server time
+   */
+  public void put(final Long tagId, final long bucket, final HistoryTagValueUpdate[] records) {
+    final byte[] block = encodeBlock(tagId, bucket, records);
+    if (block == null || block.length > maximumSize) {
+      return;
+    }
+
+    final String fileName = getFileName(tagId, bucket);
+    final IndexEntry entry = new IndexEntry(tagId, bucket, block.length, getChecksum(block, block.length));
+    // Each thread writes its own temporary file, only the index is shared
+    final File temporaryFile = new File(directory, fileName + "." + Thread.currentThread().getId() + TEMPORARY_FILE_EXTENSION);
+    try {
+      writeFile(temporaryFile, block);
+    }
+    catch (IOException e) {
+      LOG.warn(String.format("The records could not be written to \"%s\"", fileName), e);
+      deleteFile(temporaryFile);
+      return;
+    }
+
+    indexLock.lock();
+    try {
+      // Only the rename is done with the lock, so that the file always matches its index entry
+      Files.move(temporaryFile.toPath(), new File(directory, fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+      final IndexEntry previous = index.put(fileName, entry);
+      if (previous != null) {
+        size -= previous.length;
+      }
+      size += entry.length;
+
+      final Iterator<Map.Entry<String, IndexEntry>> iterator = index.entrySet().iterator();
+      while (size > maximumSize && iterator.hasNext()) {
+        final Map.Entry<String, IndexEntry> eldest = iterator.next();
+        iterator.remove();
+        size -= eldest.getValue().length;
+        deleteFile(new File(directory, eldest.getKey()));
+        evictionCount.incrementAndGet();
+      }
+
+      indexChanged();
+    }
+    catch (IOException e) {
+      LOG.warn(String.format("The records could not be written to \"%s\"", fileName), e);
+      deleteFile(temporaryFile);
+    }
+    finally {
+      indexLock.unlock();
+    }
+  }
+
+  /**
+   * Writes the index file if any blocks have changed since it was last
+   * written
+   */
+  public void flush() {
+    indexLock.lock();
+    try {
+      if (changesSinceIndexWritten > 0) {
+        writeIndex();
+      }
+    }
+    finally {
+      indexLock.unlock();
+    }
+  }
+
+  /**
+   * Writes the index file. The cache can still be used afterwards.
+   */
+  @Override
+  public void close() {
+    flush();
+  }
+
+  /**
+   * @return the number of blocks found
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return the number of blocks which were not found
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return the number of blocks deleted to make room for others
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * @return the number of blocks removed because they could not be read or
+   *         their checksum did not match
+   */
+  public long getCorruptedCount() {
+    return corruptedCount.get();
+  }
+
+  /**
+   * @return the number of blocks in the cache
+   */
+  public int getNumberOfBlocks() {
+    indexLock.lock();
+    try {
+      return index.size();
+    }
+    finally {
+      indexLock.unlock();
+    }
+  }
+
+  /**
+   * @return the size of the block files, in bytes
+   */
+  public long getSize() {
+    indexLock.lock();
+    try {
+      return size;
+    }
+    finally {
+      indexLock.unlock();
+    }
+  }
+
+  /**
+   * @return the directory of the files
+   */
+  public File getDirectory() {
+    return directory;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d blocks, %d of %d bytes, %d hits, %d misses, %d evictions, %d corrupted",
+        directory, getNumberOfBlocks(), getSize(), maximumSize, getHitCount(), getMissCount(),
+        getEvictionCount(), getCorruptedCount());
+  }
+
+  /**
+   * @param tagId
+   *          the tag id
+   * @param bucket
+   *          the bucket
+   * @return the name of the block file of the tag in the bucket
+   */
+  private static String getFileName(final Long tagId, final long bucket) {
+    return tagId + "_" + bucket + BLOCK_FILE_EXTENSION;
+  }
+
+  /**
+   * Removes a block which could not be read
+   * 
+   * @param fileName
+   *          the name of the block file
+   * @param entry
+   *          the index entry which were read
+   */
+  private void remove(final String fileName, final IndexEntry entry) {
+    indexLock.lock();
+    try {
+      // Only if it have not been written again in the meantime
+      if (index.get(fileName) == entry) {
+        index.remove(fileName);
+        size -= entry.length;
+        deleteFile(new File(directory, fileName));
+        indexChanged();
+      }
+    }
+    finally {
+      indexLock.unlock();
+    }
+  }
+
+  /**
+   * Writes the index file if there have been enough changes since it was last
+   * written. Must be called with the {@link #indexLock}.
+   */
+  private void indexChanged() {
+    changesSinceIndexWritten++;
+    if (changesSinceIndexWritten >= INDEX_WRITE_INTERVAL) {
+      writeIndex();
+    }
+  }
+
+  /**
+   * Writes the index file. Must be called with the {@link #indexLock}.
+   */
+  private void writeIndex() {
+    final File temporaryFile = new File(directory, INDEX_FILE_NAME + TEMPORARY_FILE_EXTENSION);
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(INDEX_MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      final byte[] sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(sourceBytes.length);
+      out.write(sourceBytes);
+      out.writeInt(index.size());
+      for (final IndexEntry entry : index.values()) {
+        out.writeLong(entry.tagId);
+        out.writeLong(entry.bucket);
+        out.writeInt(entry.length);
+        out.writeLong(entry.checksum);
+      }
+      out.writeLong(getChecksum(bytes.toByteArray(), bytes.size()));
+      out.flush();
+
+      writeFile(temporaryFile, bytes.toByteArray());
+      Files.move(temporaryFile.toPath(), new File(directory, INDEX_FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      changesSinceIndexWritten = 0;
+    }
+    catch (IOException e) {
+      LOG.warn(String.format("The index of the history cache in \"%s\" could not be written", directory), e);
+      deleteFile(temporaryFile);
+    }
+  }
+
+  /**
+   * Reads the index file, if there is one. The cache is empty if it cannot be
+   * read, or if it were written for another source.
+   */
+  private void readIndex() {
+    final File indexFile = new File(directory, INDEX_FILE_NAME);
+    if (!indexFile.isFile()) {
+      return;
+    }
+    try {
+      final byte[] bytes = Files.readAllBytes(indexFile.toPath());
+      final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      if (bytes.length < CHECKSUM_LENGTH
+          || buffer.getLong(bytes.length - CHECKSUM_LENGTH) != getChecksum(bytes, bytes.length - CHECKSUM_LENGTH)) {
+        throw new IOException("The checksum of the index does not match");
+      }
+      if (buffer.getInt() != INDEX_MAGIC || buffer.getInt() != FORMAT_VERSION) {
+        throw new IOException("The index have an unknown format");
+      }
+      final byte[] sourceBytes = new byte[buffer.getInt()];
+      buffer.get(sourceBytes);
+      final String indexSource = new String(sourceBytes, StandardCharsets.UTF_8);
+      if (!source.equals(indexSource)) {
+        LOG.info(String.format("The history cache in \"%s\" were written for \"%s\", it is emptied", directory, indexSource));
+        deleteFile(indexFile);
+        return;
+      }
+      final int numberOfEntries = buffer.getInt();
+      for (int i = 0; i < numberOfEntries; i++) {
+        final IndexEntry entry = new IndexEntry(buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getLong());
+        index.put(getFileName(entry.tagId, entry.bucket), entry);
+        size += entry.length;
+      }
+    }
+    catch (IOException e) {
+      LOG.warn(String.format("The index of the history cache in \"%s\" could not be read, the cache is emptied", directory), e);
+      index.clear();
+      size = 0;
+    }
+    catch (RuntimeException e) {
+      LOG.warn(String.format("The index of the history cache in \"%s\" is invalid, the cache is emptied", directory), e);
+      index.clear();
+      size = 0;
+    }
+  }
+
+  /**
+   * Deletes the block files which are not in the index, and the files which
+   * were being written
+   */
+  private void deleteUnindexedFiles() {
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (final File file : files) {
+      final String name = file.getName();
+      if (name.endsWith(TEMPORARY_FILE_EXTENSION)
+          || (name.endsWith(BLOCK_FILE_EXTENSION) && !index.containsKey(name))) {
+        deleteFile(file);
+      }
+    }
+  }
+
+  /**
+   * @param file
+   *          the file to delete, if it exists
+   */
+  private static void deleteFile(final File file) {
+    if (file.exists() && !file.delete()) {
+      LOG.warn(String.format("The file \"%s\" could not be deleted", file));
+    }
+  }
+
+  /**
+   * @param file
+   *          the file to write
+   * @param content
+   *          the content of the file
+   * @throws IOException
+   *           if the file could not be written
+   */
+  private static void writeFile(final File file, final byte[] content) throws IOException {
+    final OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @param bytes
+   *          the bytes
+   * @param length
+   *          the number of bytes to use from the start
+   * @return the CRC32 checksum of the bytes
+   */
+  private static long getChecksum(final byte[] bytes, final int length) {
+    final CRC32 crc = new CRC32();
+    crc.update(bytes, 0, length);
+    return crc.getValue();
+  }
+
+  /**
+   * Writes the records into a block
+   * 
+   * @param tagId
+   *          the tag id
+   * @param bucket
+   *          the bucket
+   * @param records
+   *          the records of the tag in the bucket
+   * @return the block, or <code>null</code> if a value cannot be stored
+   */
+  private static byte[] encodeBlock(final Long tagId, final long bucket, final HistoryTagValueUpdate[] records) {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + records.length * 48);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    final Map<String, Integer> strings = new HashMap<String, Integer>();
+    final Map<DataTagQuality, Integer> qualities = new HashMap<DataTagQuality, Integer>();
+    try {
+      out.writeInt(BLOCK_MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeLong(tagId);
+      out.writeLong(bucket);
+      out.writeInt(records.length);
+      for (final HistoryTagValueUpdate record : records) {
+        // The value is stored as it was read from the database, unless it is
+        // already decoded
+        Object value = null;
+        if (record instanceof LazyHistoryTagValueUpdate) {
+          value = ((LazyHistoryTagValueUpdate) record).getRawValue();
+        }
+        String dataType = record.getValueClassName();
+        if (value == null) {
+          value = record.getValue();
+          if (value != null && !(value instanceof String || value instanceof Number || value instanceof Boolean)) {
+            return null;
+          }
+          if (value != null && dataType == null) {
+            dataType = value.getClass().getName();
+          }
+        }
+
+        out.writeLong(toTime(record.getServerTimestamp()));
+        out.writeLong(toTime(record.getSourceTimestamp()));
+        out.writeLong(toTime(record.getDaqTimestamp()));
+        out.writeLong(toTime(record.getLogTimestamp()));
+        out.writeByte(record.getMode() == null ? NULL_REFERENCE : record.getMode().ordinal());
+        out.writeByte(record.isInitialValue() ? FLAG_INITIAL_VALUE : 0);
+        writeString(out, value == null ? null : value.toString(), strings);
+        writeString(out, dataType, strings);
+        writeString(out, record.getDescription(), strings);
+        writeQuality(out, record.getDataTagQuality(), strings, qualities);
+      }
+      out.writeLong(getChecksum(bytes.toByteArray(), bytes.size()));
+      out.flush();
+    }
+    catch (IOException e) {
+      // Cannot happen when writing to memory
+      throw new IllegalStateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Writes a string, or a reference to it if it is already written in the
+   * block
+   */
+  private static void writeString(final DataOutputStream out, final String string, final Map<String, Integer> strings) throws IOException {
+    if (string == null) {
+      out.writeInt(NULL_REFERENCE);
+      return;
+    }
+    final Integer reference = strings.get(string);
+    if (reference != null) {
+      out.writeInt(reference);
+      return;
+    }
+    strings.put(string, strings.size());
+    final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(NEW_REFERENCE);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Writes a quality, or a reference to it if the same quality is already
+   * written in the block
+   */
+  private static void writeQuality(final DataOutputStream out, final DataTagQuality quality,
+      final Map<String, Integer> strings, final Map<DataTagQuality, Integer> qualities) throws IOException {
+    if (quality == null) {
+      out.writeInt(NULL_REFERENCE);
+      return;
+    }
+    final Integer reference = qualities.get(quality);
+    if (reference != null) {
+      out.writeInt(reference);
+      return;
+    }
+    qualities.put(quality, qualities.size());
+    final Map<TagQualityStatus, String> states = quality.getInvalidQualityStates();
+    out.writeInt(NEW_REFERENCE);
+    out.writeInt(states.size());
+    for (final Map.Entry<TagQualityStatus, String> state : states.entrySet()) {
+      writeString(out, state.getKey().name(), strings);
+      writeString(out, state.getValue(), strings);
+    }
+  }
+
+  /**
+   * Reads the records of a block file
+   * 
+   * @return the records
+   * @throws IOException
+   *           if the file cannot be read, or does not match the index entry
+   */
+  private static HistoryTagValueUpdate[] readBlock(final File file, final IndexEntry entry, final Long tagId, final long bucket) throws IOException {
+    final byte[] bytes = Files.readAllBytes(file.toPath());
+    if (bytes.length != entry.length) {
+      throw new IOException("The size of the block does not match the index");
+    }
+
+    final int contentLength = entry.length - CHECKSUM_LENGTH;
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    if (getChecksum(bytes, contentLength) != entry.checksum || buffer.getLong(contentLength) != entry.checksum) {
+      throw new IOException("The checksum of the block does not match");
+    }
+
+    if (buffer.getInt() != BLOCK_MAGIC || buffer.getInt() != FORMAT_VERSION
+        || buffer.getLong() != tagId.longValue() || buffer.getLong() != bucket) {
+      throw new IOException("The block have an unknown format, or is of another tag");
+    }
+    final int numberOfRecords = buffer.getInt();
+    final List<String> strings = new ArrayList<String>();
+    final List<DataTagQuality> qualities = new ArrayList<DataTagQuality>();
+    final HistoryTagValueUpdate[] records = new HistoryTagValueUpdate[numberOfRecords];
+    for (int i = 0; i < numberOfRecords; i++) {
+      final Timestamp serverTime = toTimestamp(buffer.getLong());
+      final Timestamp sourceTime = toTimestamp(buffer.getLong());
+      final Timestamp daqTime = toTimestamp(buffer.getLong());
+      final Timestamp logTime = toTimestamp(buffer.getLong());
+      final byte mode = buffer.get();
+      final byte flags = buffer.get();
+      final String rawValue = readString(buffer, strings);
+      final String dataType = readString(buffer, strings);
+      final String description = readString(buffer, strings);
+      final DataTagQuality quality = readQuality(buffer, strings, qualities);
+
+      final LazyHistoryTagValueUpdate record = new LazyHistoryTagValueUpdate(tagId, quality, rawValue, dataType,
+          sourceTime, daqTime, serverTime, logTime, description, mode == NULL_REFERENCE ? null : TagMode.values()[mode]);
+      record.setInitialValue((flags & FLAG_INITIAL_VALUE) != 0);
+      records[i] = record;
+    }
+    return records;
+  }
+
+  /**
+   * Reads a string written by {@link #writeString(DataOutputStream, String, Map)}
+   */
+  private static String readString(final ByteBuffer buffer, final List<String> strings) throws IOException {
+    final int reference = buffer.getInt();
+    if (reference == NULL_REFERENCE) {
+      return null;
+    }
+    if (reference != NEW_REFERENCE) {
+      return strings.get(reference);
+    }
+    final int length = buffer.getInt();
+    final ByteBuffer bytes = buffer.slice();
+    bytes.limit(length);
+    buffer.position(buffer.position() + length);
+    final String string = StandardCharsets.UTF_8.decode(bytes).toString();
+    strings.add(string);
+    return string;
+  }
+
+  /**
+   * Reads a quality written by
+   * {@link #writeQuality(DataOutputStream, DataTagQuality, Map, Map)}. Each
+   * distinct quality of a block is only read once, and each record gets its
+   * own copy of it.
+   */
+  private static DataTagQuality readQuality(final ByteBuffer buffer, final List<String> strings,
+      final List<DataTagQuality> qualities) throws IOException {
+    final int reference = buffer.getInt();
+    if (reference == NULL_REFERENCE) {
+      return null;
+    }
+    if (reference != NEW_REFERENCE) {
+      return copyOf(qualities.get(reference));
+    }
+    final DataTagQuality quality = new DataTagQualityImpl();
+    quality.validate();
+    final int numberOfStates = buffer.getInt();
+    for (int i = 0; i < numberOfStates; i++) {
+      final TagQualityStatus status = TagQualityStatus.valueOf(readString(buffer, strings));
+      quality.addInvalidStatus(status, readString(buffer, strings));
+    }
+    qualities.add(quality);
+    return copyOf(quality);
+  }
+
+  /**
+   * @param quality
+   *          the quality read from the block
+   * @return a copy of the quality which the record can keep
+   */
+  private static DataTagQuality copyOf(final DataTagQuality quality) {
+    try {
+      return quality.clone();
+    }
+    catch (CloneNotSupportedException e) {
+      LOG.debug("Could not clone the data tag quality, the instance is shared.", e);
+      return quality;
+    }
+  }
+
+  /**
+   * @param timestamp
+   *          a timestamp, can be <code>null</code>
+   * @return the time of the timestamp, or {@link #NO_TIME}
+   */
+  private static long toTime(final Timestamp timestamp) {
+    if (timestamp == null) {
+      return NO_TIME;
+    }
+    return timestamp.getTime();
+  }
+
+  /**
+   * @param time
+   *          a time, or {@link #NO_TIME}
+   * @return the timestamp of the time, or <code>null</code>
+   */
+  private static Timestamp toTimestamp(final long time) {
+    if (time == NO_TIME) {
+      return null;
+    }
+    return new Timestamp(time);
+  }
+
+  /**
+   * A block listed in the index
+   */
+  private static final class IndexEntry {
+
+    /** The tag id of the block */
+    private final long tagId;
+
+    /** The bucket of the block */
+    private final long bucket;
+
+    /** The size of the block file, in bytes */
+    private final int length;
+
+    /** The checksum of the block */
+    private final long checksum;
+
+    /**
+     * @param tagId
+     *          the tag id of the block
+     * @param bucket
+     *          the bucket of the block
+     * @param length
+     *          the size of the block file, in bytes
+     * @param checksum
+     *          the checksum of the block
+     */
+    private IndexEntry(final long tagId, final long bucket, final int length, final long checksum) {
+      this.tagId = tagId;
+      this.bucket = bucket;
+      this.length = length;
+      this.checksum = checksum;
+    }
+  }
+}
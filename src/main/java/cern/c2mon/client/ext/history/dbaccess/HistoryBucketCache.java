@@ -0,0 +1,349 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+
+/**
+ * Caches the records of tags per UTC day, for the {@link CachingHistoryProvider}.
+ * The size of the cache is bounded by an estimate of the memory used by the
+ * records, and the least recently used days are evicted first. Can be shared
+ * between several providers.
+ * <p>
+ * The records can also be kept on disk by a {@link DiskHistoryBucketCache},
+ * which is used when the records are not in memory.
+ * <p>
+ * The records given to the cache must not be modified afterwards.
+ */
+public final class HistoryBucketCache {
+
+  /** The length of the time period each bucket holds records for */
+  public static final long BUCKET_LENGTH = 24L * 60L * 60L * 1000L;
+
+  /** The estimated memory used for each bucket, without the records */
+  private static final long BYTES_PER_BUCKET = 96L;
+
+  /** The estimated memory used for each record */
+  private static final long BYTES_PER_RECORD = 200L;
+
+  /** The maximum estimated memory the records can use, in bytes */
+  private final long maximumSize;
+
+  /** The records of each bucket sorted by server time, in least recently used order */
+  private final LinkedHashMap<BucketKey, HistoryTagValueUpdate[]> buckets =
+    new LinkedHashMap<BucketKey, HistoryTagValueUpdate[]>(16, 0.75f, true);
+
+  /** Lock for {@link #buckets} and {@link #size} */
+  private final ReentrantLock bucketsLock = new ReentrantLock();
+
+  /** The estimated memory used by the cached records, in bytes */
+  private long size = 0;
+
+  /**
+   * The cache on disk, used when the records are not in memory.
+   * <code>null</code> if the records are only kept in memory.
+   */
+  private final DiskHistoryBucketCache diskCache;
+
+  /** The number of buckets found in the cache */
+  private final AtomicLong hitCount = new AtomicLong(0);
+
+  /** The number of buckets which were not in the cache */
+  private final AtomicLong missCount = new AtomicLong(0);
+
+  /** The number of buckets removed to make room for others */
+  private final AtomicLong evictionCount = new AtomicLong(0);
+
+  /**
+   * @param maximumSize
+   *          the maximum estimated memory the records can use, in bytes
+   */
+  public HistoryBucketCache(final long maximumSize) {
+    this(maximumSize, null);
+  }
+
+  /**
+   * @param maximumSize
+   *          the maximum estimated memory the records can use, in bytes
+   * @param diskCache
+   *          the cache on disk, used when the records are not in memory. Can
+   *          be <code>null</code> to only keep the records in memory.
+   */
+  public HistoryBucketCache(final long maximumSize, final DiskHistoryBucketCache diskCache) {
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("The maximum size of the cache must be positive");
+    }
+    this.maximumSize = maximumSize;
+    this.diskCache = diskCache;
+  }
+
+  /**
+   * @param time
+   *          a time in milliseconds since epoch
+   * @return the bucket the time belongs to
+   */
+  public static long getBucket(final long time) {
+    return Math.floorDiv(time, BUCKET_LENGTH);
+  }
+
+  /**
+   * @param bucket
+   *          a bucket
+   * @return the first millisecond of the bucket
+   */
+  public static long getBucketStart(final long bucket) {
+    return bucket * BUCKET_LENGTH;
+  }
+
+  /**
+   * @param tagId
+   *          the tag id
+   * @param bucket
+   *          the bucket
+   * @return the records of the tag in the bucket sorted by server time, or
+   *         <code>null</code> if they are not in the cache
+   */
+  public HistoryTagValueUpdate[] get(final Long tagId, final long bucket) {
+    HistoryTagValueUpdate[] records;
+    bucketsLock.lock();
+    try {
+      records = buckets.get(new BucketKey(tagId, bucket));
+    }
+    finally {
+      bucketsLock.unlock();
+    }
+    if (records == null && diskCache != null) {
+      records = diskCache.get(tagId, bucket);
+      if (records != null) {
+        putInMemory(tagId, bucket, records);
+      }
+    }
+    if (records == null) {
+      missCount.incrementAndGet();
+    }
+    else {
+      hitCount.incrementAndGet();
+    }
+    return records;
+  }
+
+  /**
+   * Adds the records of a tag in a bucket, evicting the least recently used
+   * buckets if the cache is full. The records are also written to the disk
+   * cache, if there is one.
+   * 
+   * @param tagId
+   *          the tag id
+   * @param bucket
+   *          the bucket
+   * @param records
+   *          all the records of the tag in the bucket sorted by server time,
+   *          empty if the tag have no records in the bucket
+   */
+  public void put(final Long tagId, final long bucket, final HistoryTagValueUpdate[] records) {
+    putInMemory(tagId, bucket, records);
+    if (diskCache != null) {
+      diskCache.put(tagId, bucket, records);
+    }
+  }
+
+  /**
+   * Adds the records of a tag in a bucket to the memory, evicting the least
+   * recently used buckets if the memory is full.
+   * 
+   * @param tagId
+   *          the tag id
+   * @param bucket
+   *          the bucket
+   * @param records
+   *          all the records of the tag in the bucket sorted by server time
+   */
+  private void putInMemory(final Long tagId, final long bucket, final HistoryTagValueUpdate[] records) {
+    final long recordsSize = estimateSize(records);
+    if (recordsSize > maximumSize) {
+      return;
+    }
+    bucketsLock.lock();
+    try {
+      final HistoryTagValueUpdate[] previous = buckets.put(new BucketKey(tagId, bucket), records);
+      if (previous != null) {
+        size -= estimateSize(previous);
+      }
+      size += recordsSize;
+
+      final Iterator<HistoryTagValueUpdate[]> iterator = buckets.values().iterator();
+      while (size > maximumSize && iterator.hasNext()) {
+        size -= estimateSize(iterator.next());
+        iterator.remove();
+        evictionCount.incrementAndGet();
+      }
+    }
+    finally {
+      bucketsLock.unlock();
+    }
+  }
+
+  /**
+   * @return the cache on disk, or <code>null</code> if the records are only
+   *         kept in memory
+   */
+  public DiskHistoryBucketCache getDiskCache() {
+    return diskCache;
+  }
+
+  /**
+   * Removes all the records from the memory. The records on disk are kept.
+   */
+  public void clear() {
+    bucketsLock.lock();
+    try {
+      buckets.clear();
+      size = 0;
+    }
+    finally {
+      bucketsLock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of buckets found in the cache
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return the number of buckets which were not in the cache
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * @return the ratio of the buckets requested which were found in the cache,
+   *         between 0.0 and 1.0
+   */
+  public double getHitRatio() {
+    final long hits = hitCount.get();
+    final long total = hits + missCount.get();
+    if (total == 0) {
+      return 0.0;
+    }
+    return hits / (double) total;
+  }
+
+  /**
+   * @return the number of buckets removed to make room for others
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * @return the number of buckets in the cache
+   */
+  public int getNumberOfBuckets() {
+    bucketsLock.lock();
+    try {
+      return buckets.size();
+    }
+    finally {
+      bucketsLock.unlock();
+    }
+  }
+
+  /**
+   * @return the estimated memory used by the cached records, in bytes
+   */
+  public long getSize() {
+    bucketsLock.lock();
+    try {
+      return size;
+    }
+    finally {
+      bucketsLock.unlock();
+    }
+  }
+
+  /**
+   * @return the maximum estimated memory the records can use, in bytes
+   */
+  public long getMaximumSize() {
+    return maximumSize;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d buckets, %d of %d bytes, %d hits, %d misses, %d evictions",
+        getNumberOfBuckets(), getSize(), maximumSize, getHitCount(), getMissCount(), getEvictionCount());
+  }
+
+  /**
+   * @param records
+   *          the records of a bucket
+   * @return the estimated memory used by the bucket, in bytes
+   */
+  private static long estimateSize(final HistoryTagValueUpdate[] records) {
+    return BYTES_PER_BUCKET + records.length * BYTES_PER_RECORD;
+  }
+
+  /**
+   * Identifies the bucket of a tag
+   */
+  private static final class BucketKey {
+
+    /** The tag id */
+    private final long tagId;
+
+    /** The bucket */
+    private final long bucket;
+
+    /**
+     * @param tagId
+     *          the tag id
+     * @param bucket
+     *          the bucket
+     */
+    private BucketKey(final long tagId, final long bucket) {
+      this.tagId = tagId;
+      this.bucket = bucket;
+    }
+
+    @Override
+    public int hashCode() {
+      final long hash = tagId * 31L + bucket;
+      return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof BucketKey)) {
+        return false;
+      }
+      final BucketKey other = (BucketKey) obj;
+      return tagId == other.tagId && bucket == other.bucket;
+    }
+  }
+}
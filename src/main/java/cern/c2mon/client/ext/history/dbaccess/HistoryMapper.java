@@ -18,9 +18,15 @@ package cern.c2mon.client.ext.history.dbaccess;
 
 import java.util.List;
 
+import org.apache.ibatis.session.ResultHandler;
+
+import cern.c2mon.client.ext.history.dbaccess.beans.AggregatedHistoryRecordBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.AggregatedHistoryRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.DailySnapshotRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.HistoryRecordBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.InitialRecordHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialRecordsHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialSupervisionEventsRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.ShortTermLogHistoryRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionEventRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionRecordBean;
@@ -47,6 +53,19 @@ public interface HistoryMapper {
    */
   HistoryRecordBean getInitialRecord(final InitialRecordHistoryRequestBean request);
 
+  /**
+   * Requests the initial records of a set of tags in one query. The records
+   * are ordered by tag id, and the latest record of each tag comes first.
+   * Depending on the database more than one record may be returned for a tag
+   * if several records have the same server time, so only the first record of
+   * each tag should be used.
+   * 
+   * @param request
+   *          A request bean describing what to request
+   * @return a list of records meeting the criteria of the request bean
+   */
+  List<HistoryRecordBean> getInitialRecords(final InitialRecordsHistoryRequestBean request);
+
   /**
    * Requests data for a set of tags from the daily snapshot table.
    * 
@@ -64,6 +83,46 @@ public interface HistoryMapper {
    */
   List<HistoryRecordBean> getRecords(final ShortTermLogHistoryRequestBean request);
 
+  /**
+   * Same as {@link #getRecords(ShortTermLogHistoryRequestBean)}, but gives the
+   * records to the <code>handler</code> one at a time while they are read from
+   * the database, instead of collecting them in a list.
+   * 
+   * @param request
+   *          A request bean describing what to request
+   * @param handler
+   *          Receives each {@link HistoryRecordBean} meeting the criteria of
+   *          the request bean
+   */
+  void getRecords(final ShortTermLogHistoryRequestBean request, final ResultHandler handler);
+
+  /**
+   * Requests the latest records of each of the tags, with
+   * <code>request.getMaxRecords()</code> being the maximum number of records
+   * per tag. The records are ordered by tag id, and the latest records of a
+   * tag comes first. Records with the same server time as the last one of a
+   * tag can be included, so the caller must ignore the records exceeding the
+   * maximum.
+   * 
+   * @param request
+   *          A request bean describing what to request, the maximum records
+   *          must be set
+   * @return a list of records meeting the criteria of the request bean
+   */
+  List<HistoryRecordBean> getRecordsPerTag(final ShortTermLogHistoryRequestBean request);
+
+  /**
+   * Requests the statistics of the numeric values of each of the tags, per
+   * time bucket. The buckets are counted from the start time of the request,
+   * and only the buckets having records are returned. The records are ordered
+   * by tag id and bucket.
+   * 
+   * @param request
+   *          A request bean describing what to request
+   * @return one record per tag and bucket with records
+   */
+  List<AggregatedHistoryRecordBean> getAggregatedRecords(final AggregatedHistoryRequestBean request);
+
   /**
    * This method requests only the initial values for the events
    * 
@@ -73,6 +132,18 @@ public interface HistoryMapper {
    */
   List<SupervisionRecordBean> getInitialSupervisionEvents(final SupervisionEventRequestBean request);
 
+  /**
+   * Requests the initial events of several ids of the same entity in one
+   * query. The events are ordered by id. Depending on the database more than
+   * one event may be returned for an id if several events have the same date,
+   * so only the first event of each id should be used.
+   * 
+   * @param request
+   *          A request bean describing what to request
+   * @return a list of records meeting the criteria of the request bean
+   */
+  List<SupervisionRecordBean> getInitialSupervisionEventsOfIds(final InitialSupervisionEventsRequestBean request);
+
   /**
    * Use the {@link #getInitialSupervisionEvents(SupervisionEventRequestBean)}
    * to get the initial values, this function only returns what's in between.
@@ -16,6 +16,7 @@
  *****************************************************************************/
 package cern.c2mon.client.ext.history.dbaccess;
 
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -23,11 +24,17 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import cern.c2mon.client.ext.history.common.HistoryAggregate;
 import cern.c2mon.client.ext.history.common.HistoryProvider;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdateHandler;
 import cern.c2mon.client.ext.history.common.event.HistoryProviderListener;
+import cern.c2mon.client.ext.history.dbaccess.util.StatementRegistry;
+import cern.c2mon.client.ext.history.updates.HistoryAggregateImpl;
 
 /**
  * Implements the listener functions which is common with the history providers
@@ -60,7 +67,10 @@ abstract class HistoryProviderAbs implements HistoryProvider {
    * been called
    */
   private boolean disableProvider = false;
-  
+
+  /** The statements which are being executed, cancelled when disabled */
+  private final StatementRegistry statementRegistry = new StatementRegistry();
+
   /**
    * Constructor
    */
@@ -70,6 +80,211 @@ abstract class HistoryProviderAbs implements HistoryProvider {
     this.queries = new HashMap<Object, Double>();
   }
 
+  /**
+   * Requests the records with {@link #getHistory(Long[], Timestamp, Timestamp)}
+   * and gives them to the <code>handler</code> afterwards. Override to stream
+   * the records while they are being retrieved.
+   */
+  @Override
+  public void getHistory(final Long[] tagIds, final Timestamp from, final Timestamp to, final HistoryTagValueUpdateHandler handler) {
+    for (final HistoryTagValueUpdate update : getHistory(tagIds, from, to)) {
+      handler.handle(update);
+    }
+  }
+
+  /**
+   * Computes the aggregates from the records of
+   * {@link #getHistory(Long[], Timestamp, Timestamp)}. Override to let the
+   * database compute them instead.
+   */
+  @Override
+  public Collection<HistoryAggregate> getAggregatedHistory(final Long[] tagIds, final Timestamp from, final Timestamp to, final long bucketMillis) {
+    checkBucketLength(bucketMillis);
+    return aggregate(getHistory(tagIds, from, to), from, to, bucketMillis);
+  }
+
+  /**
+   * @param bucketMillis
+   *          the length of the buckets to check
+   * @throws IllegalArgumentException
+   *           if the length is not positive
+   */
+  protected static void checkBucketLength(final long bucketMillis) {
+    if (bucketMillis <= 0) {
+      throw new IllegalArgumentException(String.format("The bucket length must be positive, was %d ms", bucketMillis));
+    }
+  }
+
+  /**
+   * Computes the aggregates of the numeric records, in the same way as the
+   * databases does it. The records of a bucket are ordered by server time,
+   * DAQ time and source time, where a missing time comes first. When several
+   * records have the earliest or the latest times of a bucket, the lowest
+   * respectively the highest of their values is used as the first
+   * respectively the last value.
+   * 
+   * @param records
+   *          the records to aggregate, in any order
+   * @param from
+   *          the start time, also the start of the first bucket
+   * @param to
+   *          the end time
+   * @param bucketMillis
+   *          the length of each bucket in milliseconds
+   * @return one aggregate per tag and bucket which have numeric records,
+   *         ordered by tag id and time
+   */
+  protected static Collection<HistoryAggregate> aggregate(final Collection<HistoryTagValueUpdate> records, 
+      final Timestamp from, final Timestamp to, final long bucketMillis) {
+    final Map<Long, Map<Long, Accumulator>> tags = new TreeMap<Long, Map<Long, Accumulator>>();
+    for (final HistoryTagValueUpdate record : records) {
+      if (!(record.getValue() instanceof Number) || record.getServerTimestamp() == null) {
+        continue;
+      }
+      final long time = record.getServerTimestamp().getTime();
+      if (time < from.getTime() || time >= to.getTime()) {
+        continue;
+      }
+      Map<Long, Accumulator> buckets = tags.get(record.getId());
+      if (buckets == null) {
+        buckets = new TreeMap<Long, Accumulator>();
+        tags.put(record.getId(), buckets);
+      }
+      final Long bucket = Long.valueOf((time - from.getTime()) / bucketMillis);
+      Accumulator accumulator = buckets.get(bucket);
+      if (accumulator == null) {
+        accumulator = new Accumulator();
+        buckets.put(bucket, accumulator);
+      }
+      accumulator.add(new long[] { time, toMillis(record.getDaqTimestamp()), toMillis(record.getSourceTimestamp()) },
+          ((Number) record.getValue()).doubleValue());
+    }
+
+    final List<HistoryAggregate> result = new ArrayList<HistoryAggregate>();
+    for (final Entry<Long, Map<Long, Accumulator>> tag : tags.entrySet()) {
+      for (final Entry<Long, Accumulator> bucket : tag.getValue().entrySet()) {
+        final Accumulator accumulator = bucket.getValue();
+        result.add(createAggregate(tag.getKey(), from, to, bucketMillis, bucket.getKey(), accumulator.count, 
+            accumulator.minimum, accumulator.maximum, accumulator.sum / accumulator.count, accumulator.first, accumulator.last));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param time
+   *          a time, or <code>null</code>
+   * @return the time in milliseconds, {@link Long#MIN_VALUE} if it is not
+   *         set so that it comes before all the others
+   */
+  private static long toMillis(final Timestamp time) {
+    return time == null ? Long.MIN_VALUE : time.getTime();
+  }
+
+  /**
+   * Creates the aggregate of a bucket, with the times of the bucket computed
+   * from its index.
+   * 
+   * @param tagId
+   *          the tag id
+   * @param from
+   *          the start time of the request, also the start of the first bucket
+   * @param to
+   *          the end time of the request, the last bucket ends there
+   * @param bucketMillis
+   *          the length of each bucket in milliseconds
+   * @param bucket
+   *          the index of the bucket
+   * @param count
+   *          the number of records in the bucket
+   * @param minimum
+   *          the lowest value
+   * @param maximum
+   *          the highest value
+   * @param average
+   *          the average value
+   * @param first
+   *          the value of the earliest record
+   * @param last
+   *          the value of the latest record
+   * @return the aggregate
+   */
+  protected static HistoryAggregate createAggregate(final Long tagId, final Timestamp from, final Timestamp to, 
+      final long bucketMillis, final long bucket, final long count, final double minimum, final double maximum, 
+      final double average, final double first, final double last) {
+    final long startTime = from.getTime() + bucket * bucketMillis;
+    final long endTime = Math.min(startTime + bucketMillis, to.getTime());
+    return new HistoryAggregateImpl(tagId, new Timestamp(startTime), new Timestamp(endTime), 
+        count, minimum, maximum, average, first, last);
+  }
+
+  /**
+   * Collects the statistics of the values of one bucket
+   */
+  private static final class Accumulator {
+
+    /** The number of values */
+    private long count = 0;
+
+    /** The lowest value */
+    private double minimum = Double.POSITIVE_INFINITY;
+
+    /** The highest value */
+    private double maximum = Double.NEGATIVE_INFINITY;
+
+    /** The sum of the values */
+    private double sum = 0.0;
+
+    /** The server, DAQ and source time of the earliest value */
+    private long[] firstTimes = null;
+
+    /** The value of the earliest record */
+    private double first;
+
+    /** The server, DAQ and source time of the latest value */
+    private long[] lastTimes = null;
+
+    /** The value of the latest record */
+    private double last;
+
+    /**
+     * @param times
+     *          the server, DAQ and source time of the record
+     * @param value
+     *          the value of the record
+     */
+    private void add(final long[] times, final double value) {
+      count++;
+      sum += value;
+      minimum = Math.min(minimum, value);
+      maximum = Math.max(maximum, value);
+      final int comparedToFirst = firstTimes == null ? -1 : compareTimes(times, firstTimes);
+      if (comparedToFirst < 0 || (comparedToFirst == 0 && value < first)) {
+        firstTimes = times;
+        first = value;
+      }
+      final int comparedToLast = lastTimes == null ? 1 : compareTimes(times, lastTimes);
+      if (comparedToLast > 0 || (comparedToLast == 0 && value > last)) {
+        lastTimes = times;
+        last = value;
+      }
+    }
+
+    /**
+     * @return a negative number, zero or a positive number if the first
+     *         times are before, the same as or after the second times, by
+     *         server time first
+     */
+    private static int compareTimes(final long[] times1, final long[] times2) {
+      for (int i = 0; i < times1.length; i++) {
+        if (times1[i] != times2[i]) {
+          return times1[i] < times2[i] ? -1 : 1;
+        }
+      }
+      return 0;
+    }
+  }
+
   @Override
   public void addHistoryProviderListener(final HistoryProviderListener listener) {
     try {
@@ -223,14 +438,63 @@ abstract class HistoryProviderAbs implements HistoryProvider {
     return disableProvider;
   }
   
+  /**
+   * Also cancels the statements which are being executed, so that the
+   * connections are freed immediately. The cancelled queries returns no
+   * records.
+   */
   @Override
   public synchronized void disableProvider() {
     disableProvider = true;
+    statementRegistry.cancelAll();
   }
 
   @Override
   public synchronized void enableProvider() {
     disableProvider = false;
+    statementRegistry.reset();
+  }
+
+  /**
+   * @param seconds
+   *          the maximum time each statement of the provider can execute
+   *          before the driver cancels it, zero for no limit
+   */
+  public void setQueryTimeout(final int seconds) {
+    statementRegistry.setQueryTimeout(seconds);
+  }
+
+  /**
+   * @return the maximum time each statement of the provider can execute, in
+   *         seconds. Zero if there is no limit.
+   */
+  public int getQueryTimeout() {
+    return statementRegistry.getQueryTimeout();
+  }
+
+  /**
+   * @param rows
+   *          the number of rows the driver reads from the database at a time
+   *          for each statement of the provider, zero to leave it to the
+   *          driver
+   */
+  public void setFetchSize(final int rows) {
+    statementRegistry.setFetchSize(rows);
+  }
+
+  /**
+   * @return the number of rows the driver reads at a time for each statement
+   *         of the provider. Zero if it is left to the driver.
+   */
+  public int getFetchSize() {
+    return statementRegistry.getFetchSize();
+  }
+
+  /**
+   * @return the registry of the statements executed for this provider
+   */
+  protected StatementRegistry getStatementRegistry() {
+    return statementRegistry;
   }
 
   @Override
@@ -16,9 +16,25 @@
  *****************************************************************************/
 package cern.c2mon.client.ext.history.dbaccess;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.ibatis.session.SqlSession;
 import org.apache.ibatis.session.SqlSessionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 
 import cern.c2mon.client.ext.history.ClientDataTagRequestCallback;
 import cern.c2mon.client.ext.history.common.HistoryProvider;
@@ -34,6 +50,9 @@ import cern.c2mon.client.ext.history.dbaccess.exceptions.HistoryException;
  */
 public final class HistorySessionFactory {
 
+  /** Log4j logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(HistorySessionFactory.class);
+
   @Autowired
   private HistoryMapper historyMapper;
   
@@ -42,6 +61,53 @@ public final class HistorySessionFactory {
   
   @Autowired
   private SavedHistoryEventsMapper savedHistoryEventsMapper;
+
+  /**
+   * The data source of the mappers, used to size the query executor and the
+   * connection permits
+   */
+  @Autowired(required = false)
+  @Qualifier("historyDataSource")
+  private DataSource historyDataSource;
+
+  /** The number of connections if the size of the connection pool is unknown */
+  private static final int DEFAULT_CONNECTIONS = 4;
+
+  /** The number of rows read from the database at a time if not set */
+  private static final int DEFAULT_FETCH_SIZE = 1000;
+
+  /** The time before an idle query thread is stopped, in seconds */
+  private static final long QUERY_THREAD_KEEP_ALIVE = 60;
+
+  /**
+   * Executes the queries of the history providers in parallel, created when
+   * first needed
+   */
+  private ExecutorService queryExecutor = null;
+
+  /**
+   * The {@link #historyMapper} limited to one query per connection of the
+   * pool, shared by all the history providers. Created when first needed.
+   */
+  private HistoryMapper connectionLimitedHistoryMapper = null;
+
+  /**
+   * The default maximum memory of the {@link #historyCache}, in bytes. The
+   * cache is disabled unless a size is set.
+   */
+  private static final long DEFAULT_HISTORY_CACHE_SIZE = 0L;
+
+  /** The default maximum size of the records kept on disk, in bytes */
+  private static final long DEFAULT_HISTORY_CACHE_DIRECTORY_SIZE = 1024L * 1024L * 1024L;
+
+  /**
+   * The records of the days which have ended, shared by all the history
+   * providers. Created when first needed.
+   */
+  private HistoryBucketCache historyCache = null;
+
+  /** <code>true</code> when the {@link #historyCache} have been created, or is disabled */
+  private boolean historyCacheCreated = false;
   
 
   /**
@@ -64,7 +130,154 @@ public final class HistorySessionFactory {
    *           properties for the data source is not set.
    */
   public HistoryProvider createHistoryProvider(final ClientDataTagRequestCallback clientDataTagRequestCallback) throws HistoryException {
-    return new SqlHistoryProviderDAO(historyMapper, clientDataTagRequestCallback);
+    final SqlHistoryProviderDAO provider = 
+        new SqlHistoryProviderDAO(getConnectionLimitedHistoryMapper(), clientDataTagRequestCallback, getQueryExecutor());
+    provider.setQueryTimeout(getQueryTimeout());
+    provider.setFetchSize(getFetchSize());
+    return provider;
+  }
+
+  /**
+   * @return the query timeout of the history providers in seconds, as given
+   *         by {@link HistorySystemProperties#JDBC_QUERY_TIMEOUT}. Zero for
+   *         no limit.
+   */
+  private static int getQueryTimeout() {
+    final Integer timeout = Integer.getInteger(HistorySystemProperties.JDBC_QUERY_TIMEOUT, 0);
+    return Math.max(0, timeout);
+  }
+
+  /**
+   * @return the number of rows the history providers read from the database
+   *         at a time, as given by
+   *         {@link HistorySystemProperties#JDBC_FETCH_SIZE}. Zero to leave it
+   *         to the driver.
+   */
+  private static int getFetchSize() {
+    final Integer fetchSize = Integer.getInteger(HistorySystemProperties.JDBC_FETCH_SIZE, DEFAULT_FETCH_SIZE);
+    return Math.max(0, fetchSize);
+  }
+
+  /**
+   * @return the number of connections of the pool of the
+   *         {@link #historyDataSource}
+   */
+  private int getNumberOfConnections() {
+    if (historyDataSource instanceof BasicDataSource
+        && ((BasicDataSource) historyDataSource).getMaxActive() > 0) {
+      return ((BasicDataSource) historyDataSource).getMaxActive();
+    }
+    return DEFAULT_CONNECTIONS;
+  }
+
+  /**
+   * The threads loading the history for the playback, and the threads of the
+   * query executor, all do their queries through this mapper. Together they
+   * therefore never run more queries than the pool have connections.
+   * 
+   * @return the history mapper which only runs as many queries at the same
+   *         time as the connection pool have connections
+   */
+  private synchronized HistoryMapper getConnectionLimitedHistoryMapper() {
+    if (connectionLimitedHistoryMapper == null) {
+      connectionLimitedHistoryMapper = 
+          new ConnectionLimitedHistoryMapper(historyMapper, new Semaphore(getNumberOfConnections(), true));
+    }
+    return connectionLimitedHistoryMapper;
+  }
+
+  /**
+   * @return the executor which the history providers use to do their queries
+   *         in parallel. It has as many threads as the connection pool have
+   *         connections.
+   */
+  private synchronized ExecutorService getQueryExecutor() {
+    if (queryExecutor == null) {
+      final int numberOfThreads = getNumberOfConnections();
+
+      final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+          numberOfThreads, numberOfThreads, 
+          QUERY_THREAD_KEEP_ALIVE, TimeUnit.SECONDS, 
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+              final Thread thread = new Thread(runnable, "HistoryQuery-" + threadNumber.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+      queryExecutor = executor;
+    }
+    return queryExecutor;
+  }
+  
+  /**
+   * The size of the cache is given by
+   * {@link HistorySystemProperties#HISTORY_CACHE_SIZE}, the cache is disabled
+   * if it is not set. The records are also
+   * kept on disk if {@link HistorySystemProperties#HISTORY_CACHE_DIRECTORY} is
+   * set.
+   * 
+   * @return the cache of the records of the days which have ended, shared by
+   *         all the history providers. <code>null</code> if the cache is
+   *         disabled.
+   */
+  public synchronized HistoryBucketCache getHistoryCache() {
+    if (!historyCacheCreated) {
+      historyCacheCreated = true;
+      final long cacheSize = Long.getLong(HistorySystemProperties.HISTORY_CACHE_SIZE, DEFAULT_HISTORY_CACHE_SIZE);
+      if (cacheSize > 0) {
+        DiskHistoryBucketCache diskCache = null;
+        final String directory = System.getProperty(HistorySystemProperties.HISTORY_CACHE_DIRECTORY);
+        if (directory != null && !directory.isEmpty()) {
+          try {
+            diskCache = new DiskHistoryBucketCache(new File(directory), 
+                Long.getLong(HistorySystemProperties.HISTORY_CACHE_DIRECTORY_SIZE, DEFAULT_HISTORY_CACHE_DIRECTORY_SIZE),
+                getHistorySource());
+          }
+          catch (IOException e) {
+            LOG.warn("The history records cannot be kept on disk, they are only kept in memory", e);
+          }
+        }
+        historyCache = new HistoryBucketCache(cacheSize, diskCache);
+      }
+    }
+    return historyCache;
+  }
+
+  /**
+   * @return the url and user of the {@link #historyDataSource}, or the
+   *         {@link HistorySystemProperties#JDBC_RO_URL} and
+   *         {@link HistorySystemProperties#JDBC_RO_USERNAME} if the data
+   *         source is unknown. Identifies the database of the records kept on
+   *         disk.
+   */
+  private String getHistorySource() {
+    if (historyDataSource instanceof BasicDataSource) {
+      final BasicDataSource dataSource = (BasicDataSource) historyDataSource;
+      return dataSource.getUrl() + " " + dataSource.getUsername();
+    }
+    return System.getProperty(HistorySystemProperties.JDBC_RO_URL) + " "
+        + System.getProperty(HistorySystemProperties.JDBC_RO_USERNAME);
+  }
+
+  /**
+   * Stops the threads of the query executor, and writes the index of the
+   * records kept on disk if there are any. Called when the application
+   * context is closed.
+   */
+  public synchronized void close() {
+    if (queryExecutor != null) {
+      queryExecutor.shutdownNow();
+      queryExecutor = null;
+    }
+    if (historyCache != null && historyCache.getDiskCache() != null) {
+      historyCache.getDiskCache().close();
+    }
   }
   
   /**
@@ -84,7 +297,11 @@ public final class HistorySessionFactory {
    *           properties for the data source is not set.
    */
   public HistoryProvider createSavedHistoryProvider(final SavedHistoryEvent event, final ClientDataTagRequestCallback clientDataTagRequestCallback) throws HistoryException {
-    return new SqlHistoryEventsProviderDAO(event, historyMapper, savedHistoryMapper, clientDataTagRequestCallback);
+    final SqlHistoryEventsProviderDAO provider = 
+        new SqlHistoryEventsProviderDAO(event, getConnectionLimitedHistoryMapper(), savedHistoryMapper, clientDataTagRequestCallback);
+    provider.setQueryTimeout(getQueryTimeout());
+    provider.setFetchSize(getFetchSize());
+    return provider;
   }
   
   /**
@@ -113,8 +330,9 @@ public final class HistorySessionFactory {
     return savedHistoryEventsMapper;
   }
   
-  public void setHistoryMapper(final HistoryMapper historyMapper) {
+  public synchronized void setHistoryMapper(final HistoryMapper historyMapper) {
     this.historyMapper = historyMapper;
+    this.connectionLimitedHistoryMapper = null;
   }
   
   public void setSavedHistoryMapper(final SavedHistoryMapper savedHistoryMapper) {
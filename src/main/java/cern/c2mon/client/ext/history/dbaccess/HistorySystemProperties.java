@@ -36,6 +36,85 @@ public final class HistorySystemProperties {
   
   /** The jdbc read only password */
   public static final String JDBC_RO_PASSWORD = "c2mon.jdbc.ro.password";
+
+  /**
+   * The Oracle collection type used to bind a list of tag ids as one
+   * parameter. Must be a table or varray of numbers, by default
+   * <code>SYS.ODCINUMBERLIST</code>.
+   */
+  public static final String JDBC_TAG_ID_ARRAY_TYPE = "c2mon.jdbc.tagid.array.type";
+
+  /**
+   * The maximum time in seconds a history query can execute before it is
+   * cancelled by the driver. No limit if not set or zero.
+   */
+  public static final String JDBC_QUERY_TIMEOUT = "c2mon.jdbc.query.timeout";
+
+  /**
+   * The number of rows the driver reads from the database at a time when the
+   * history records are requested, by default 1000. Zero leaves it to the
+   * driver. MySQL only reads the rows in parts when
+   * <code>useCursorFetch=true</code> is set in the jdbc url, otherwise it
+   * reads the whole result at once.
+   */
+  public static final String JDBC_FETCH_SIZE = "c2mon.jdbc.fetch.size";
+
+  /**
+   * The maximum memory in bytes the cache of the history records of the days
+   * which have ended can use. The cache is disabled if not set or zero. Only
+   * the days which are requested from their start to their end are cached.
+   */
+  public static final String HISTORY_CACHE_SIZE = "c2mon.history.cache.size";
+
+  /**
+   * The directory where the history records of the days which have ended are
+   * kept between the sessions of the client. They are only kept in memory if
+   * not set.
+   */
+  public static final String HISTORY_CACHE_DIRECTORY = "c2mon.history.cache.directory";
+
+  /**
+   * The maximum size in bytes of the records kept in the
+   * {@link #HISTORY_CACHE_DIRECTORY}.
+   */
+  public static final String HISTORY_CACHE_DIRECTORY_SIZE = "c2mon.history.cache.directory.size";
+
+  /**
+   * The maximum number of workers loading the history in parallel while
+   * buffering the playback, by default one. The number of workers used adapts
+   * to how long the queries take. The workers share the connections of the
+   * history data source with the parallel queries of the providers, and
+   * waits for a free connection when they are all in use.
+   */
+  public static final String HISTORY_BUFFERING_WORKERS = "c2mon.history.buffering.workers";
+
+  /**
+   * The memory in bytes the records loaded for the playback can use. By
+   * default 75% of the maximum heap size.
+   */
+  public static final String HISTORY_MEMORY_BUDGET = "c2mon.history.memory.budget";
+
+  /**
+   * How far in milliseconds in front of the playback clock the history is
+   * buffered. When set, only a window around the clock is kept in memory
+   * instead of the whole timespan. Disabled if not set or zero.
+   */
+  public static final String HISTORY_WINDOW_LOOKAHEAD = "c2mon.history.window.lookahead";
+
+  /**
+   * How long in milliseconds behind the playback clock the records are kept
+   * when {@link #HISTORY_WINDOW_LOOKAHEAD} is set. By default the same as the
+   * look-ahead.
+   */
+  public static final String HISTORY_WINDOW_RETENTION = "c2mon.history.window.retention";
+
+  /**
+   * Set to <code>true</code> to keep the records of the tags loaded for the
+   * playback in a compact columnar form, which uses a fraction of the memory
+   * but creates the record objects each time they are requested. Disabled by
+   * default.
+   */
+  public static final String HISTORY_COMPACT_STORAGE = "c2mon.history.compact.storage";
   
   
   /** Private constructor, no instance is necessary */
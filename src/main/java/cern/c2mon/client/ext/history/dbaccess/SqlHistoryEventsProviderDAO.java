@@ -29,8 +29,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import cern.c2mon.client.ext.history.ClientDataTagRequestCallback;
+import cern.c2mon.client.ext.history.common.HistoryAggregate;
 import cern.c2mon.client.ext.history.common.HistoryProvider;
 import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdateHandler;
 import cern.c2mon.client.ext.history.common.SavedHistoryEvent;
 import cern.c2mon.client.ext.history.common.Timespan;
 import cern.c2mon.client.ext.history.dbaccess.beans.HistoryRecordBean;
@@ -76,6 +78,13 @@ class SqlHistoryEventsProviderDAO extends SqlHistoryProviderDAO {
   /** iBatis mapper for history DB access. */
   private final SavedHistoryMapper savedHistoryMapper;
 
+  /**
+   * <code>false</code> if the database failed a query with the tag ids bound
+   * as one array parameter, in which case the tag ids are listed in the
+   * queries, {@link #MAXIMUM_NUMBER_OF_TAGS_PER_QUERY} at a time
+   */
+  private volatile boolean tagIdArraySupported = true;
+
   /**
    * @param event
    *          the event to get data for
@@ -93,7 +102,7 @@ class SqlHistoryEventsProviderDAO extends SqlHistoryProviderDAO {
 
     super(historyMapper, clientDataTagRequestCallback);
     this.event = event;
-    this.savedHistoryMapper = savedHistoryMapper;
+    this.savedHistoryMapper = getStatementRegistry().bindToMapper(SavedHistoryMapper.class, savedHistoryMapper);
     this.eventId = event.getId();
     this.allRecords = new KeyForValuesMap<Long, HistoryTagValueUpdate>();
     this.loadedTagIds = new ArrayList<Long>();
@@ -154,8 +163,10 @@ class SqlHistoryEventsProviderDAO extends SqlHistoryProviderDAO {
       final SavedHistoryMapper mapper = getSavedHistoryMapper();
 
       while (!tagIdsToRequest.isEmpty() && !isProviderDisabled()) {
+        // All the tags can be requested at once when they are bound as an array
+        final boolean tagIdsAsArray = tagIdArraySupported;
         final int toIndex;
-        if (MAXIMUM_NUMBER_OF_TAGS_PER_QUERY <= tagIdsToRequest.size()) {
+        if (!tagIdsAsArray && MAXIMUM_NUMBER_OF_TAGS_PER_QUERY <= tagIdsToRequest.size()) {
           toIndex = MAXIMUM_NUMBER_OF_TAGS_PER_QUERY;
         }
         else {
@@ -163,7 +174,19 @@ class SqlHistoryEventsProviderDAO extends SqlHistoryProviderDAO {
         }
         final List<Long> tagIdsToRequestSubList = tagIdsToRequest.subList(0, toIndex);
         final SavedHistoryRequestBean request = new SavedHistoryRequestBean(this.eventId, tagIdsToRequestSubList);
-        final List<SavedHistoryEventRecordBean> requestResult = mapper.getRecords(request);
+        request.setTagIdsAsArray(tagIdsAsArray);
+        final List<SavedHistoryEventRecordBean> requestResult;
+        try {
+          requestResult = mapper.getRecords(request);
+        }
+        catch (RuntimeException e) {
+          if (!tagIdsAsArray) {
+            throw e;
+          }
+          LOG.warn("The tag ids could not be bound as an array, listing them in the queries instead", e);
+          tagIdArraySupported = false;
+          continue;
+        }
 
         if (LOG.isDebugEnabled()) {
           LOG.debug(String.format(
@@ -259,6 +282,28 @@ class SqlHistoryEventsProviderDAO extends SqlHistoryProviderDAO {
     return getHistory(new ShortTermLogHistoryRequestBean(tagIds, from, to));
   }
 
+  /**
+   * The records of the saved event are kept in memory, so they are given to
+   * the <code>handler</code> after being requested with
+   * {@link #getHistory(Long[], Timestamp, Timestamp)}
+   */
+  @Override
+  public void getHistory(final Long[] tagIds, final Timestamp from, final Timestamp to, final HistoryTagValueUpdateHandler handler) {
+    for (final HistoryTagValueUpdate update : getHistory(tagIds, from, to)) {
+      handler.handle(update);
+    }
+  }
+
+  /**
+   * The aggregates are computed from the records of the saved event, which are
+   * not in the short term log
+   */
+  @Override
+  public Collection<HistoryAggregate> getAggregatedHistory(final Long[] tagIds, final Timestamp from, final Timestamp to, final long bucketMillis) {
+    checkBucketLength(bucketMillis);
+    return aggregate(getHistory(tagIds, from, to), from, to, bucketMillis);
+  }
+
   /**
    * 
    * @param tagIds
@@ -16,32 +16,56 @@
  *****************************************************************************/
 package cern.c2mon.client.ext.history.dbaccess;
 
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLSyntaxErrorException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ibatis.session.ResultContext;
+import org.apache.ibatis.session.ResultHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import cern.c2mon.client.ext.history.ClientDataTagRequestCallback;
+import cern.c2mon.client.ext.history.common.HistoryAggregate;
 import cern.c2mon.client.ext.history.common.HistoryProvider;
 import cern.c2mon.client.ext.history.common.HistorySupervisionEvent;
 import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdateHandler;
 import cern.c2mon.client.ext.history.common.SupervisionEventRequest;
 import cern.c2mon.client.ext.history.common.Timespan;
 import cern.c2mon.client.ext.history.data.utilities.DateUtil;
+import cern.c2mon.client.ext.history.dbaccess.beans.AggregatedHistoryRecordBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.AggregatedHistoryRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.DailySnapshotRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.HistoryRecordBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.InitialRecordHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialRecordsHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialSupervisionEventsRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.ShortTermLogHistoryRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionEventRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionRecordBean;
 import cern.c2mon.client.ext.history.dbaccess.util.BeanConverterUtil;
+import cern.c2mon.client.ext.history.dbaccess.util.TagIdArrayTypeHandler;
 import cern.c2mon.shared.client.supervision.SupervisionEvent;
 import cern.c2mon.shared.client.tag.TagValueUpdate;
+import cern.c2mon.shared.common.supervision.SupervisionConstants.SupervisionEntity;
 
 /**
  * Implementation of the {@link HistoryProvider}<br/>
@@ -69,15 +93,76 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
    */
   private static final Integer MAXIMUM_NUMBER_OF_TAGS_PER_QUERY = 900;
 
+  /**
+   * The maximum number of tag ids bound as one array. The requests with more
+   * tags are split into several queries.
+   */
+  private static final int MAXIMUM_NUMBER_OF_TAGS_PER_ARRAY = TagIdArrayTypeHandler.MAXIMUM_ARRAY_LENGTH;
+
+  /**
+   * The vendor error codes which tells that the database doesn't support a
+   * query, for the drivers which report them without a standard exception:
+   * ORA-00902 invalid datatype, ORA-22905 cannot access rows from a
+   * non-nested table item, the Oracle driver errors 17060 fail to construct
+   * descriptor and 17074 invalid name pattern, given when the collection type
+   * of the tag id array doesn't exist, and the MySQL errors 1064 syntax error
+   * and 1235 not supported yet, given by the old drivers for the window
+   * functions.
+   */
+  private static final Set<Integer> NOT_SUPPORTED_ERROR_CODES =
+      new HashSet<Integer>(Arrays.asList(902, 22905, 17060, 17074, 1064, 1235));
+
   /** iBatis mapper for history DB access */
   private HistoryMapper historyMapper;
 
+  /**
+   * <code>false</code> if the database doesn't support the query which gets
+   * the initial records of many tags at once, in which case one query per tag
+   * is used
+   */
+  private volatile boolean initialRecordsQuerySupported = true;
+
+  /**
+   * <code>false</code> if the database doesn't support the query which gets
+   * the initial supervision events of many ids at once, in which case one
+   * query per id is used
+   */
+  private volatile boolean initialSupervisionEventsQuerySupported = true;
+
+  /**
+   * <code>false</code> if the database doesn't support the query which gets
+   * the latest records of many tags at once, in which case one query per tag
+   * is used
+   */
+  private volatile boolean recordsPerTagQuerySupported = true;
+
+  /**
+   * <code>false</code> if the database doesn't support binding the tag ids as
+   * one array parameter, in which case the tag ids are listed in the
+   * queries, {@link #MAXIMUM_NUMBER_OF_TAGS_PER_QUERY} at a time
+   */
+  private volatile boolean tagIdArraySupported = true;
+
+  /**
+   * <code>true</code> if the database can compute the aggregates of
+   * {@link #getAggregatedHistory(Long[], Timestamp, Timestamp, long)}. Set to
+   * <code>false</code> if the database doesn't support the query, the
+   * aggregates are then computed from the records instead.
+   */
+  private volatile boolean aggregatedRecordsQuerySupported = true;
+
   /**
    * Callback to get access to attributes in the {@link Tag}.
    * Like for example the {@link Tag#getType()}
    */
   private ClientDataTagRequestCallback clientDataTagRequestCallback;
 
+  /**
+   * Executes the queries of a request in parallel when it is split into
+   * several queries. <code>null</code> if they are done on the calling thread.
+   */
+  private final ExecutorService queryExecutor;
+
   /**
    * 
    * @param historyMapper iBatis mapper for history DB access
@@ -88,9 +173,30 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
    */
   public SqlHistoryProviderDAO(final HistoryMapper historyMapper, 
       final ClientDataTagRequestCallback clientDataTagRequestCallback) {
+    this(historyMapper, clientDataTagRequestCallback, null);
+  }
+
+  /**
+   * 
+   * @param historyMapper iBatis mapper for history DB access
+   * @param clientDataTagRequestCallback
+   *          Callback to get access to attributes in the
+   *          {@link Tag}. Like for example the
+   *          {@link Tag#getType()}
+   * @param queryExecutor
+   *          Executes the queries of a request in parallel when it is split
+   *          into several queries. Should not have more threads than the
+   *          connection pool have connections. Can be <code>null</code> to do
+   *          all queries on the calling thread.
+   */
+  public SqlHistoryProviderDAO(final HistoryMapper historyMapper, 
+      final ClientDataTagRequestCallback clientDataTagRequestCallback,
+      final ExecutorService queryExecutor) {
 
-    this.historyMapper = historyMapper;
+    // The statements of the mapper are cancelled when the provider is disabled
+    this.historyMapper = getStatementRegistry().bindToMapper(HistoryMapper.class, historyMapper);
     this.clientDataTagRequestCallback = clientDataTagRequestCallback;
+    this.queryExecutor = queryExecutor;
   }
 
   @Override
@@ -119,6 +225,101 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
     return getHistory(new ShortTermLogHistoryRequestBean(tagIds, from, to));
   }
 
+  /**
+   * Streams the records to the <code>handler</code> while they are read from
+   * the database. The queries are done one after another on the calling
+   * thread, so the handler is always called from that thread.
+   * 
+   * @param tagIds
+   *          The tag ids to get the historical data for
+   * @param from
+   *          The start time
+   * @param to
+   *          The end time
+   * @param handler
+   *          Receives each of the records that is found for the given tag ids
+   *          in the given time periode
+   */
+  @Override
+  public void getHistory(final Long[] tagIds, final Timestamp from, final Timestamp to, final HistoryTagValueUpdateHandler handler) {
+    if (isProviderDisabled() || tagIds == null || tagIds.length == 0) {
+      return;
+    }
+
+    // Tells the listeners that the query is starting
+    final Object queryId = fireQueryStarting();
+
+    final ResultHandler resultHandler = new ResultHandler() {
+      @Override
+      public void handleResult(final ResultContext context) {
+        if (isProviderDisabled()) {
+          context.stop();
+          return;
+        }
+        try {
+          final HistoryTagValueUpdate tagValueUpdate = 
+            BeanConverterUtil.toTagValueUpdate((HistoryRecordBean) context.getResultObject(), clientDataTagRequestCallback);
+          if (tagValueUpdate != null) {
+            handler.handle(tagValueUpdate);
+          }
+        }
+        catch (Exception e) {
+          LOG.warn(
+              String.format("Failed to convert a bean into a %s", TagValueUpdate.class.getSimpleName()), e);
+        }
+      }
+    };
+
+    try {
+      final HistoryMapper historyMapper = getHistoryMapper();
+      int fromIndex = 0;
+      if (tagIdArraySupported) {
+        final AtomicInteger streamedRecords = new AtomicInteger(0);
+        final ResultHandler countingHandler = new ResultHandler() {
+          @Override
+          public void handleResult(final ResultContext context) {
+            streamedRecords.incrementAndGet();
+            resultHandler.handleResult(context);
+          }
+        };
+        try {
+          while (fromIndex < tagIds.length && !isProviderDisabled()) {
+            final int toIndex = Math.min(fromIndex + MAXIMUM_NUMBER_OF_TAGS_PER_ARRAY, tagIds.length);
+            final ShortTermLogHistoryRequestBean request =
+                new ShortTermLogHistoryRequestBean(Arrays.copyOfRange(tagIds, fromIndex, toIndex), from, to);
+            request.setTagIdsAsArray(true);
+            historyMapper.getRecords(request, countingHandler);
+            fromIndex = toIndex;
+            fireQueryProgressChanged(queryId, toIndex / (double) tagIds.length);
+          }
+          return;
+        }
+        catch (RuntimeException e) {
+          if (streamedRecords.get() > 0 || !isNotSupported(e)) {
+            // The query were supported, but failed
+            throw e;
+          }
+          LOG.warn("The tag ids could not be bound as an array, listing them in the queries from now on", e);
+          tagIdArraySupported = false;
+        }
+      }
+      // Continues with the tags which are not requested yet
+      for (; fromIndex < tagIds.length && !isProviderDisabled(); fromIndex += MAXIMUM_NUMBER_OF_TAGS_PER_QUERY) {
+        final int toIndex = Math.min(fromIndex + MAXIMUM_NUMBER_OF_TAGS_PER_QUERY, tagIds.length);
+        historyMapper.getRecords(
+            new ShortTermLogHistoryRequestBean(Arrays.copyOfRange(tagIds, fromIndex, toIndex), from, to), 
+            resultHandler);
+        fireQueryProgressChanged(queryId, toIndex / (double) tagIds.length);
+      }
+    }
+    finally {
+      fireQueryProgressChanged(queryId, 1.0);
+
+      // Tells the listeners that the query is finished
+      fireQueryFinished(queryId);
+    }
+  }
+
   /**
    * 
    * @param tagIds
@@ -221,9 +422,19 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
       return new ArrayList<HistoryTagValueUpdate>();
     }
 
-    // Oracle database can have a maximum of 1000 expressions in a query
+    // When the max records is per tag, the records are requested per tag
+    final boolean recordsPerTag = maxRecordsIsPerTag && providerRequest.getMaxRecords() != null;
+
+    // When the maximum records is in total every query depends on the
+    // number of records retrieved by the ones before it
+    final boolean dependentQueries = !maxRecordsIsPerTag && providerRequest.getMaxRecords() != null;
+
+    // Oracle database can have a maximum of 1000 expressions in a query. When
+    // the tag ids are bound as one array there is no such limit, and the
+    // request is only split to run the queries in parallel.
     final int maximumNumberOfTags;
-    if (MAXIMUM_NUMBER_OF_TAGS_PER_QUERY == null) {
+    if (MAXIMUM_NUMBER_OF_TAGS_PER_QUERY == null 
+        || (tagIdArraySupported && !recordsPerTag && (queryExecutor == null || dependentQueries))) {
       maximumNumberOfTags = providerRequest.getTagIds().length;
     }
     else {
@@ -234,9 +445,9 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
     // which tags will be retrieved in the same query
     final List<Integer> queryPlan = new ArrayList<Integer>();
 
-    if (maxRecordsIsPerTag && providerRequest.getMaxRecords() != null) {
-      // If the max records is per tag, it will have to get only one tag at a
-      // time
+    if (recordsPerTag && !recordsPerTagQuerySupported) {
+      // If the database cannot limit the records of many tags in one query,
+      // it will have to get only one tag at a time
       // That is, one query per tag
       for (int i = 0; i <= providerRequest.getTagIds().length; i++) {
         queryPlan.add(i);
@@ -257,60 +468,332 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
     // List for the result
     final ArrayList<HistoryTagValueUpdate> result = new ArrayList<HistoryTagValueUpdate>(providerRequest.getTagIds().length);
 
-    // The list which will be filled with the values to return
-    final List<HistoryRecordBean> records = new ArrayList<HistoryRecordBean>();
-
     try {
-      final HistoryMapper historyMapper = getHistoryMapper();
+      if (queryExecutor == null || dependentQueries || queryPlan.size() <= 2) {
+        getHistorySerially(queryId, providerRequest, maxRecordsIsPerTag, queryPlan, result);
+      }
+      else {
+        getHistoryInParallel(queryId, providerRequest, recordsPerTag, queryPlan, result);
+      }
+    }
+    finally {
+      fireQueryProgressChanged(queryId, 1.0);
 
-      // Does the query / queries to the database
-      for (int i = 0; i < queryPlan.size() - 1; i++) {
+      // Tells the listeners that the query is finished
+      fireQueryFinished(queryId);
+    }
+    return result;
+  }
 
-        // Gets the list of tags to query
-        final Long[] tagIdsToQuery = Arrays.asList(providerRequest.getTagIds()).subList(queryPlan.get(i), queryPlan.get(i + 1)).toArray(new Long[0]);
+  /**
+   * Does the queries of the query plan one after another on the calling
+   * thread.
+   * 
+   * @param queryId
+   *          The id of the query, for the progress
+   * @param providerRequest
+   *          The request to request from the database
+   * @param maxRecordsIsPerTag
+   *          <code>true</code> if the
+   *          <code>providerRequest.getMaxRecords()</code> is per tag,
+   *          <code>false</code> if it is max records in total
+   * @param queryPlan
+   *          The indexes of <code>providerRequest.getTagIds()</code> where each
+   *          query starts
+   * @param result
+   *          The list which the records are added to
+   */
+  private void getHistorySerially(final Object queryId, final ShortTermLogHistoryRequestBean providerRequest, 
+      final boolean maxRecordsIsPerTag, final List<Integer> queryPlan, final List<HistoryTagValueUpdate> result) {
 
-        // Creates the actual request
-        final ShortTermLogHistoryRequestBean request = new ShortTermLogHistoryRequestBean(providerRequest);
-        request.setTagIds(tagIdsToQuery);
+    // The number of records which have been retrieved so far
+    int numberOfRecords = 0;
 
-        // If the maximum records variable is for the total amount of records
-        // it must decrease the "max records" increasingly by how many
-        // records that have been retrieved so far
-        if (!maxRecordsIsPerTag && providerRequest.getMaxRecords() != null) {
-          request.setMaxRecords(providerRequest.getMaxRecords() - records.size());
-        }
+    // Does the query / queries to the database
+    for (int i = 0; i < queryPlan.size() - 1 && !isProviderDisabled(); i++) {
 
-        // Does the call to the sql mapper
-        // and adds the values to the list which will be returned
+      final ShortTermLogHistoryRequestBean request = createRequest(providerRequest, queryPlan, i);
 
-        final Collection<HistoryRecordBean> queryResult = historyMapper.getRecords(request);
-        
-        if (queryResult != null) {
-          records.addAll(queryResult);
-          for (HistoryRecordBean record : queryResult) {
-            try {
-              final HistoryTagValueUpdate tagValueUpdate = BeanConverterUtil.toTagValueUpdate(record, this.clientDataTagRequestCallback);
-              result.add(tagValueUpdate);
-            }
-            catch (Exception e) {
-              LOG.warn(
-                  String.format("Failed to convert a bean into a %s", TagValueUpdate.class.getSimpleName()), e);
-            }
-            if (isProviderDisabled()) {
-              break;
-            }
+      // If the maximum records variable is for the total amount of records
+      // it must decrease the "max records" increasingly by how many
+      // records that have been retrieved so far
+      if (!maxRecordsIsPerTag && providerRequest.getMaxRecords() != null) {
+        request.setMaxRecords(providerRequest.getMaxRecords() - numberOfRecords);
+      }
+
+      numberOfRecords += queryRecords(request, maxRecordsIsPerTag && request.getMaxRecords() != null, result);
+
+      fireQueryProgressChanged(queryId, queryPlan.get(i + 1) / (double) providerRequest.getTagIds().length);
+    }
+  }
+
+  /**
+   * Does the queries of the query plan on the {@link #queryExecutor}, and adds
+   * the records to the result in the order of the query plan.
+   * 
+   * @param queryId
+   *          The id of the query, for the progress
+   * @param providerRequest
+   *          The request to request from the database
+   * @param recordsPerTag
+   *          <code>true</code> if <code>providerRequest.getMaxRecords()</code>
+   *          is the maximum records per tag
+   * @param queryPlan
+   *          The indexes of <code>providerRequest.getTagIds()</code> where each
+   *          query starts
+   * @param result
+   *          The list which the records are added to
+   */
+  private void getHistoryInParallel(final Object queryId, final ShortTermLogHistoryRequestBean providerRequest, 
+      final boolean recordsPerTag, final List<Integer> queryPlan, final List<HistoryTagValueUpdate> result) {
+
+    final List<Future<List<HistoryTagValueUpdate>>> futures = new ArrayList<Future<List<HistoryTagValueUpdate>>>(queryPlan.size() - 1);
+    for (int i = 0; i < queryPlan.size() - 1; i++) {
+      final ShortTermLogHistoryRequestBean request = createRequest(providerRequest, queryPlan, i);
+      futures.add(queryExecutor.submit(new Callable<List<HistoryTagValueUpdate>>() {
+        @Override
+        public List<HistoryTagValueUpdate> call() {
+          final List<HistoryTagValueUpdate> records = new ArrayList<HistoryTagValueUpdate>();
+          if (!isProviderDisabled()) {
+            queryRecords(request, recordsPerTag, records);
           }
+          return records;
+        }
+      }));
+    }
+
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        if (isProviderDisabled()) {
+          break;
+        }
+        try {
+          result.addAll(futures.get(i).get());
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        catch (ExecutionException e) {
+          if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw new RuntimeException("Failed to retrieve the history records", e.getCause());
         }
         fireQueryProgressChanged(queryId, queryPlan.get(i + 1) / (double) providerRequest.getTagIds().length);
       }
     }
     finally {
-      fireQueryProgressChanged(queryId, 1.0);
+      // The queries which are not started yet are not needed anymore
+      for (final Future<List<HistoryTagValueUpdate>> future : futures) {
+        future.cancel(false);
+      }
+    }
+  }
 
-      // Tells the listeners that the query is finished
-      fireQueryFinished(queryId);
+  /**
+   * @param providerRequest
+   *          The request to request from the database
+   * @param queryPlan
+   *          The indexes of <code>providerRequest.getTagIds()</code> where each
+   *          query starts
+   * @param index
+   *          The index in the query plan of the query to create
+   * @return A copy of the <code>providerRequest</code> with only the tag ids of
+   *         the query at <code>index</code>
+   */
+  private static ShortTermLogHistoryRequestBean createRequest(final ShortTermLogHistoryRequestBean providerRequest, 
+      final List<Integer> queryPlan, final int index) {
+    // Gets the list of tags to query
+    final Long[] tagIdsToQuery = Arrays.asList(providerRequest.getTagIds()).subList(queryPlan.get(index), queryPlan.get(index + 1)).toArray(new Long[0]);
+
+    // Creates the actual request
+    final ShortTermLogHistoryRequestBean request = new ShortTermLogHistoryRequestBean(providerRequest);
+    request.setTagIds(tagIdsToQuery);
+    return request;
+  }
+
+  /**
+   * Does the call to the sql mapper and adds the converted values to the
+   * <code>result</code>
+   * 
+   * @param request
+   *          The request to do
+   * @param recordsPerTag
+   *          <code>true</code> if <code>request.getMaxRecords()</code> is the
+   *          maximum records per tag
+   * @param result
+   *          The list which the records are added to
+   * @return The number of records which were returned by the database
+   */
+  private int queryRecords(final ShortTermLogHistoryRequestBean request, final boolean recordsPerTag, 
+      final List<HistoryTagValueUpdate> result) {
+    final Collection<HistoryRecordBean> queryResult;
+    if (recordsPerTag) {
+      queryResult = getRecordsPerTag(request);
     }
-    return result;
+    else {
+      queryResult = getRecords(request);
+    }
+    if (queryResult == null) {
+      return 0;
+    }
+    for (HistoryRecordBean record : queryResult) {
+      try {
+        final HistoryTagValueUpdate tagValueUpdate = BeanConverterUtil.toTagValueUpdate(record, this.clientDataTagRequestCallback);
+        result.add(tagValueUpdate);
+      }
+      catch (Exception e) {
+        LOG.warn(
+            String.format("Failed to convert a bean into a %s", TagValueUpdate.class.getSimpleName()), e);
+      }
+      if (isProviderDisabled()) {
+        break;
+      }
+    }
+    return queryResult.size();
+  }
+
+  /**
+   * Requests the records with the tag ids bound as arrays of at most
+   * {@link #MAXIMUM_NUMBER_OF_TAGS_PER_ARRAY} tags. Falls back to listing the
+   * tag ids in the queries if the database doesn't support it, and remembers
+   * it for the next requests.
+   * 
+   * @param request
+   *          The request to do
+   * @return The records of the request
+   */
+  private List<HistoryRecordBean> getRecords(final ShortTermLogHistoryRequestBean request) {
+    final HistoryMapper historyMapper = getHistoryMapper();
+    final int numberOfTags = request.getTagIds().length;
+    final List<HistoryRecordBean> records = new ArrayList<HistoryRecordBean>();
+    int fromIndex = 0;
+    if (tagIdArraySupported) {
+      try {
+        while (fromIndex < numberOfTags && !isProviderDisabled()) {
+          final int toIndex = Math.min(fromIndex + MAXIMUM_NUMBER_OF_TAGS_PER_ARRAY, numberOfTags);
+          if (!addRecords(historyMapper, request, fromIndex, toIndex, true, records)) {
+            break;
+          }
+          fromIndex = toIndex;
+        }
+        return records;
+      }
+      catch (RuntimeException e) {
+        if (!isNotSupported(e)) {
+          throw e;
+        }
+        LOG.warn("The tag ids could not be bound as an array, listing them in the queries from now on", e);
+        tagIdArraySupported = false;
+      }
+    }
+
+    // Continues with the tags which are not requested yet
+    while (fromIndex < numberOfTags && !isProviderDisabled()) {
+      final int toIndex = Math.min(fromIndex + MAXIMUM_NUMBER_OF_TAGS_PER_QUERY, numberOfTags);
+      if (!addRecords(historyMapper, request, fromIndex, toIndex, false, records)) {
+        break;
+      }
+      fromIndex = toIndex;
+    }
+    return records;
+  }
+
+  /**
+   * Requests the records of a part of the tags of a request
+   * 
+   * @param historyMapper
+   *          The mapper to request the records from
+   * @param request
+   *          The request to do
+   * @param fromIndex
+   *          The index of the first tag to request
+   * @param toIndex
+   *          The index after the last tag to request
+   * @param tagIdsAsArray
+   *          <code>true</code> to bind the tag ids as one array
+   * @param records
+   *          The records of the request retrieved so far, the new records are
+   *          added to it. The maximum records of the request is for all the
+   *          records together.
+   * @return <code>false</code> if the maximum records of the request is
+   *         already reached, in which case nothing is requested
+   */
+  private static boolean addRecords(final HistoryMapper historyMapper, final ShortTermLogHistoryRequestBean request, 
+      final int fromIndex, final int toIndex, final boolean tagIdsAsArray, final List<HistoryRecordBean> records) {
+    final ShortTermLogHistoryRequestBean partRequest = new ShortTermLogHistoryRequestBean(request);
+    partRequest.setTagIds(Arrays.copyOfRange(request.getTagIds(), fromIndex, toIndex));
+    partRequest.setTagIdsAsArray(tagIdsAsArray);
+    if (request.getMaxRecords() != null) {
+      final int remainingRecords = request.getMaxRecords() - records.size();
+      if (remainingRecords <= 0) {
+        return false;
+      }
+      partRequest.setMaxRecords(remainingRecords);
+    }
+    final List<HistoryRecordBean> partRecords = historyMapper.getRecords(partRequest);
+    if (partRecords != null) {
+      records.addAll(partRecords);
+    }
+    return true;
+  }
+
+  /**
+   * Requests the latest records of the tags of the request in one query, with
+   * <code>request.getMaxRecords()</code> being the maximum per tag. Falls back
+   * to one query per tag if the database doesn't support the query, and
+   * remembers it for the next requests.
+   * 
+   * @param request
+   *          The request to do, with maximum
+   *          {@link #MAXIMUM_NUMBER_OF_TAGS_PER_QUERY} tags
+   * @return The latest records of each of the tags
+   */
+  private Collection<HistoryRecordBean> getRecordsPerTag(final ShortTermLogHistoryRequestBean request) {
+    if (request.getTagIds().length == 1 || !recordsPerTagQuerySupported) {
+      return getRecordsOneTagAtATime(request);
+    }
+
+    try {
+      // The records are ordered by tag, and the latest ones comes first
+      return getHistoryMapper().getRecordsPerTag(request);
+    }
+    catch (RuntimeException e) {
+      if (!isNotSupported(e)) {
+        throw e;
+      }
+      LOG.warn("The latest records of many tags could not be requested in one query, "
+          + "requesting them one tag at a time from now on", e);
+      recordsPerTagQuerySupported = false;
+      return getRecordsOneTagAtATime(request);
+    }
+  }
+
+  /**
+   * Requests the latest records of the tags of the request with one query per
+   * tag.
+   * 
+   * @param request
+   *          The request to do, with <code>request.getMaxRecords()</code>
+   *          being the maximum per tag
+   * @return The latest records of each of the tags
+   */
+  private Collection<HistoryRecordBean> getRecordsOneTagAtATime(final ShortTermLogHistoryRequestBean request) {
+    final List<HistoryRecordBean> records = new ArrayList<HistoryRecordBean>();
+    final HistoryMapper historyMapper = getHistoryMapper();
+    for (final Long tagId : request.getTagIds()) {
+      if (isProviderDisabled()) {
+        break;
+      }
+      final ShortTermLogHistoryRequestBean tagRequest = new ShortTermLogHistoryRequestBean(request);
+      tagRequest.setTagIds(new Long[] { tagId });
+      final List<HistoryRecordBean> tagRecords = historyMapper.getRecords(tagRequest);
+      if (tagRecords != null) {
+        records.addAll(tagRecords);
+      }
+    }
+    return records;
   }
 
   /**
@@ -347,12 +830,25 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
     final long startTimeTotal = System.currentTimeMillis();
 
     try {
-      final HistoryMapper historyMapper = getHistoryMapper();
-      for (int i = 0; i < tagIds.length; i++) {
-        final Long tagId = tagIds[i];
+      final List<Long> requests = new ArrayList<Long>(Arrays.asList(tagIds));
+      while (requests.size() > 0 && !isProviderDisabled()) {
+        int toIndex = MAXIMUM_NUMBER_OF_TAGS_PER_QUERY;
+        if (toIndex > requests.size()) {
+          toIndex = requests.size();
+        }
+        final List<Long> currentRequest = requests.subList(0, toIndex);
+        final Long[] currentTagIds = currentRequest.toArray(new Long[0]);
         final long startTime = System.currentTimeMillis();
-        final HistoryRecordBean record = historyMapper.getInitialRecord(new InitialRecordHistoryRequestBean(tagId, before));
-        if (record != null) {
+
+        final Collection<HistoryRecordBean> records;
+        if (initialRecordsQuerySupported) {
+          records = getInitialRecords(currentTagIds, before);
+        }
+        else {
+          records = getInitialRecordsOneByOne(currentTagIds, before);
+        }
+
+        for (final HistoryRecordBean record : records) {
           try {
             final HistoryTagValueUpdate dataTagValue = BeanConverterUtil.toTagValueUpdate(record, this.clientDataTagRequestCallback);
             if (dataTagValue != null) {
@@ -363,13 +859,17 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
             LOG.warn(
                 String.format("Failed to convert a bean into a %s", TagValueUpdate.class.getSimpleName()), e);
           }
-          if (LOG.isDebugEnabled()) {
-            LOG.debug(String.format("Initial record for tag id %d took %.3f seconds", 
-                tagId, 
-                (System.currentTimeMillis() - startTime) / 1000.0 ));
-          }
         }
-        fireQueryProgressChanged(queryId, i / (double) tagIds.length);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(String.format("Initial records for %d tags took %.3f seconds", 
+              currentTagIds.length, 
+              (System.currentTimeMillis() - startTime) / 1000.0 ));
+        }
+
+        // Removes the requested elements from the list. (Also from the "requests" lists)
+        currentRequest.clear();
+
+        fireQueryProgressChanged(queryId, 1.0 - (requests.size() / (double) tagIds.length));
       }
     }
     finally {
@@ -389,6 +889,70 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
     return result;
   }
 
+  /**
+   * Requests the initial records of the given tags in one query. Falls back
+   * to {@link #getInitialRecordsOneByOne(Long[], Timestamp)} if the database
+   * doesn't support the query, and remembers it for the next requests.
+   * 
+   * @param tagIds
+   *          The tag ids to get the initial record for, maximum
+   *          {@link #MAXIMUM_NUMBER_OF_TAGS_PER_QUERY}
+   * @param before
+   *          The requested records will be having the value that they had on
+   *          this time
+   * @return The latest record of each of the tags which have one
+   */
+  private Collection<HistoryRecordBean> getInitialRecords(final Long[] tagIds, final Timestamp before) {
+    final List<HistoryRecordBean> records;
+    try {
+      records = getHistoryMapper().getInitialRecords(new InitialRecordsHistoryRequestBean(tagIds, before));
+    }
+    catch (RuntimeException e) {
+      if (!isNotSupported(e)) {
+        throw e;
+      }
+      LOG.warn("The initial records could not be requested in one query, "
+          + "requesting them one tag at a time from now on", e);
+      initialRecordsQuerySupported = false;
+      return getInitialRecordsOneByOne(tagIds, before);
+    }
+
+    // The latest record of each tag comes first, the other ones are
+    // records with the same server time
+    final Map<Long, HistoryRecordBean> latestRecords = new LinkedHashMap<Long, HistoryRecordBean>();
+    for (final HistoryRecordBean record : records) {
+      if (!latestRecords.containsKey(record.getTagId())) {
+        latestRecords.put(record.getTagId(), record);
+      }
+    }
+    return latestRecords.values();
+  }
+
+  /**
+   * Requests the initial records of the given tags with one query per tag.
+   * 
+   * @param tagIds
+   *          The tag ids to get the initial record for
+   * @param before
+   *          The requested records will be having the value that they had on
+   *          this time
+   * @return The latest record of each of the tags which have one
+   */
+  private Collection<HistoryRecordBean> getInitialRecordsOneByOne(final Long[] tagIds, final Timestamp before) {
+    final List<HistoryRecordBean> records = new ArrayList<HistoryRecordBean>(tagIds.length);
+    final HistoryMapper historyMapper = getHistoryMapper();
+    for (final Long tagId : tagIds) {
+      if (isProviderDisabled()) {
+        break;
+      }
+      final HistoryRecordBean record = historyMapper.getInitialRecord(new InitialRecordHistoryRequestBean(tagId, before));
+      if (record != null) {
+        records.add(record);
+      }
+    }
+    return records;
+  }
+
   @Override
   public Collection<HistoryTagValueUpdate> getDailySnapshotRecords(final Long[] tagIds, final Timestamp from, final Timestamp to) {
     // List for the result
@@ -407,23 +971,35 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
         return result;
       }
 
-      final List<Long> requests = new ArrayList<Long>(Arrays.asList(tagIds));
-
       final List<HistoryRecordBean> allRecords = new ArrayList<HistoryRecordBean>();
-      while (requests.size() > 0 && !isProviderDisabled()) {
-        final HistoryMapper historyMapper = getHistoryMapper();
-        int toIndex = MAXIMUM_NUMBER_OF_TAGS_PER_QUERY;
-        if (toIndex > requests.size()) {
-          toIndex = requests.size();
+      int fromIndex = 0;
+      if (tagIdArraySupported) {
+        try {
+          while (fromIndex < tagIds.length && !isProviderDisabled()) {
+            final int toIndex = Math.min(fromIndex + MAXIMUM_NUMBER_OF_TAGS_PER_ARRAY, tagIds.length);
+            final DailySnapshotRequestBean request = new DailySnapshotRequestBean(Arrays.copyOfRange(tagIds, fromIndex, toIndex), from, to);
+            request.setTagIdsAsArray(true);
+            allRecords.addAll(getHistoryMapper().getDailySnapshotRecords(request));
+            fromIndex = toIndex;
+            fireQueryProgressChanged(queryId, toIndex / (double) tagIds.length);
+          }
         }
-        final List<Long> currentRequest = requests.subList(0, toIndex);
-        final List<HistoryRecordBean> records = historyMapper.getDailySnapshotRecords(new DailySnapshotRequestBean(currentRequest.toArray(new Long[0]), from, to));
+        catch (RuntimeException e) {
+          if (!isNotSupported(e)) {
+            throw e;
+          }
+          LOG.warn("The tag ids could not be bound as an array, listing them in the queries from now on", e);
+          tagIdArraySupported = false;
+        }
+      }
+      // Continues with the tags which are not requested yet
+      while (fromIndex < tagIds.length && !isProviderDisabled()) {
+        final int toIndex = Math.min(fromIndex + MAXIMUM_NUMBER_OF_TAGS_PER_QUERY, tagIds.length);
+        final List<HistoryRecordBean> records = getHistoryMapper().getDailySnapshotRecords(
+            new DailySnapshotRequestBean(Arrays.copyOfRange(tagIds, fromIndex, toIndex), from, to));
         allRecords.addAll(records);
-
-        // Removes the requested elements from the list. (Also from the "requests" lists)
-        currentRequest.clear();
-
-        fireQueryProgressChanged(queryId, 1.0 - (requests.size() / (double) tagIds.length));
+        fromIndex = toIndex;
+        fireQueryProgressChanged(queryId, toIndex / (double) tagIds.length);
       }
 
       // Converts the tags into TagValueUpdates
@@ -453,6 +1029,77 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
     return result;
   }
 
+  /**
+   * The aggregates are computed by the database, with one query per
+   * {@link #MAXIMUM_NUMBER_OF_TAGS_PER_QUERY} tags. If the database cannot do
+   * it, the aggregates of the tags which are not done yet are computed from
+   * their records instead, one chunk of tags at a time.
+   */
+  @Override
+  public Collection<HistoryAggregate> getAggregatedHistory(final Long[] tagIds, final Timestamp from, final Timestamp to, final long bucketMillis) {
+    checkBucketLength(bucketMillis);
+    if (!aggregatedRecordsQuerySupported) {
+      return super.getAggregatedHistory(tagIds, from, to, bucketMillis);
+    }
+
+    final List<HistoryAggregate> result = new ArrayList<HistoryAggregate>();
+    if (tagIds.length == 0 || isProviderDisabled()) {
+      return result;
+    }
+
+    // Tells the listener that a query is starting
+    final Object queryId = fireQueryStarting();
+
+    try {
+      final List<Long> requests = new ArrayList<Long>(Arrays.asList(tagIds));
+      while (requests.size() > 0 && !isProviderDisabled()) {
+        int toIndex = MAXIMUM_NUMBER_OF_TAGS_PER_QUERY;
+        if (toIndex > requests.size()) {
+          toIndex = requests.size();
+        }
+        final List<Long> currentRequest = requests.subList(0, toIndex);
+        final Long[] currentTagIds = currentRequest.toArray(new Long[0]);
+        List<AggregatedHistoryRecordBean> records = null;
+        if (aggregatedRecordsQuerySupported) {
+          try {
+            records = getHistoryMapper().getAggregatedRecords(
+                new AggregatedHistoryRequestBean(currentTagIds, from, to, bucketMillis));
+          }
+          catch (RuntimeException e) {
+            if (!isNotSupported(e)) {
+              throw e;
+            }
+            LOG.warn("The database could not compute the aggregates, computing them from the records from now on", e);
+            aggregatedRecordsQuerySupported = false;
+          }
+        }
+        if (records != null) {
+          for (final AggregatedHistoryRecordBean record : records) {
+            result.add(createAggregate(record.getTagId(), from, to, bucketMillis, record.getBucket(), record.getValueCount(), 
+                record.getMinValue(), record.getMaxValue(), record.getAvgValue(), record.getFirstValue(), record.getLastValue()));
+          }
+        }
+        else {
+          // Only the records of the current chunk are in memory at a time
+          result.addAll(aggregate(getHistory(currentTagIds, from, to), from, to, bucketMillis));
+        }
+
+        // Removes the requested elements from the list. (Also from the "requests" lists)
+        currentRequest.clear();
+
+        fireQueryProgressChanged(queryId, 1.0 - (requests.size() / (double) tagIds.length));
+      }
+    }
+    finally {
+      fireQueryProgressChanged(queryId, 1.0);
+
+      // Tells the listener that the query is finished
+      fireQueryFinished(queryId);
+    }
+
+    return result;
+  }
+
   @Override
   public Collection<HistorySupervisionEvent> getInitialSupervisionEvents(final Timestamp initializationTime, final Collection<SupervisionEventRequest> requests) {
     final List<HistorySupervisionEvent> result = new ArrayList<HistorySupervisionEvent>();
@@ -465,37 +1112,55 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
     final Object queryId = fireQueryStarting();
 
     try {
-      final HistoryMapper historyMapper = getHistoryMapper();
-
-      int progress = 0;
-
+      // Groups the requested ids by their entity
+      final Map<SupervisionEntity, Set<Long>> idsPerEntity = new EnumMap<SupervisionEntity, Set<Long>>(SupervisionEntity.class);
       for (final SupervisionEventRequest request : requests) {
-        if (isProviderDisabled()) {
-          break;
+        Set<Long> ids = idsPerEntity.get(request.getEntity());
+        if (ids == null) {
+          ids = new LinkedHashSet<Long>();
+          idsPerEntity.put(request.getEntity(), ids);
         }
+        ids.add(request.getId());
+      }
 
-        final Collection<SupervisionRecordBean> records = 
-          historyMapper.getInitialSupervisionEvents(
-              new SupervisionEventRequestBean(
-                  request.getId(), 
-                  request.getEntity(),
-                  initializationTime,
-                  null));
+      int progress = 0;
 
-        // Adds the records from the query to the result, converted into
-        // SupervisionEvent
-        for (final SupervisionRecordBean record : records) {
-          record.setInitialValue(true);
-          try {
-            result.add(BeanConverterUtil.toSupervisionEvent(record));
+      for (final Map.Entry<SupervisionEntity, Set<Long>> entry : idsPerEntity.entrySet()) {
+        final List<Long> ids = new ArrayList<Long>(entry.getValue());
+        while (ids.size() > 0 && !isProviderDisabled()) {
+          int toIndex = MAXIMUM_NUMBER_OF_TAGS_PER_QUERY;
+          if (toIndex > ids.size()) {
+            toIndex = ids.size();
           }
-          catch (Exception e) {
-            LOG.warn(String.format("Failed to convert a bean into a %s", SupervisionEvent.class.getSimpleName()), e);
+          final List<Long> currentIds = ids.subList(0, toIndex);
+
+          final Collection<SupervisionRecordBean> records;
+          if (initialSupervisionEventsQuerySupported) {
+            records = getInitialSupervisionEvents(entry.getKey(), currentIds.toArray(new Long[0]), initializationTime);
+          }
+          else {
+            records = getInitialSupervisionEventsOneByOne(entry.getKey(), currentIds.toArray(new Long[0]), initializationTime);
           }
-        }
 
-        progress++;
-        fireQueryProgressChanged(queryId, progress / (double) requests.size());
+          // Adds the records from the query to the result, converted into
+          // SupervisionEvent
+          for (final SupervisionRecordBean record : records) {
+            record.setInitialValue(true);
+            try {
+              result.add(BeanConverterUtil.toSupervisionEvent(record));
+            }
+            catch (Exception e) {
+              LOG.warn(String.format("Failed to convert a bean into a %s", SupervisionEvent.class.getSimpleName()), e);
+            }
+          }
+
+          progress += currentIds.size();
+
+          // Removes the requested elements from the list
+          currentIds.clear();
+
+          fireQueryProgressChanged(queryId, progress / (double) requests.size());
+        }
       }
 
     }
@@ -509,6 +1174,78 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
     return result;
   }
 
+  /**
+   * Requests the initial supervision events of the given ids in one query.
+   * Falls back to
+   * {@link #getInitialSupervisionEventsOneByOne(SupervisionEntity, Long[], Timestamp)}
+   * if the database doesn't support the query, and remembers it for the next
+   * requests.
+   * 
+   * @param entity
+   *          The entity of the ids
+   * @param ids
+   *          The ids to get the initial event for, maximum
+   *          {@link #MAXIMUM_NUMBER_OF_TAGS_PER_QUERY}
+   * @param initializationTime
+   *          The time which the events must be before
+   * @return The latest event of each of the ids which have one
+   */
+  private Collection<SupervisionRecordBean> getInitialSupervisionEvents(final SupervisionEntity entity, final Long[] ids, final Timestamp initializationTime) {
+    final List<SupervisionRecordBean> records;
+    try {
+      records = getHistoryMapper().getInitialSupervisionEventsOfIds(
+          new InitialSupervisionEventsRequestBean(entity, ids, initializationTime));
+    }
+    catch (RuntimeException e) {
+      if (!isNotSupported(e)) {
+        throw e;
+      }
+      LOG.warn("The initial supervision events could not be requested in one query, "
+          + "requesting them one id at a time from now on", e);
+      initialSupervisionEventsQuerySupported = false;
+      return getInitialSupervisionEventsOneByOne(entity, ids, initializationTime);
+    }
+
+    // Keeps only the first event of each id, the other ones have the same date
+    final Map<Long, SupervisionRecordBean> latestRecords = new LinkedHashMap<Long, SupervisionRecordBean>();
+    for (final SupervisionRecordBean record : records) {
+      if (!latestRecords.containsKey(record.getId())) {
+        latestRecords.put(record.getId(), record);
+      }
+    }
+    return latestRecords.values();
+  }
+
+  /**
+   * Requests the initial supervision events of the given ids with one query
+   * per id.
+   * 
+   * @param entity
+   *          The entity of the ids
+   * @param ids
+   *          The ids to get the initial event for
+   * @param initializationTime
+   *          The time which the events must be before
+   * @return The latest event of each of the ids which have one
+   */
+  private Collection<SupervisionRecordBean> getInitialSupervisionEventsOneByOne(final SupervisionEntity entity, final Long[] ids, final Timestamp initializationTime) {
+    final List<SupervisionRecordBean> records = new ArrayList<SupervisionRecordBean>();
+    final HistoryMapper historyMapper = getHistoryMapper();
+    for (final Long id : ids) {
+      if (isProviderDisabled()) {
+        break;
+      }
+      records.addAll(
+          historyMapper.getInitialSupervisionEvents(
+              new SupervisionEventRequestBean(
+                  id, 
+                  entity,
+                  initializationTime,
+                  null)));
+    }
+    return records;
+  }
+
   /**
    * 
    * @param from
@@ -589,4 +1326,43 @@ class SqlHistoryProviderDAO extends HistoryProviderAbs {
   protected ClientDataTagRequestCallback getClientDataTagRequestCallback() {
     return clientDataTagRequestCallback;
   }
+
+  /**
+   * Tells whether a query failed because the database doesn't support it, in
+   * which case the other way of doing it can be used from then on. Only a
+   * syntax error, a feature which is not supported, or one of the
+   * {@link #NOT_SUPPORTED_ERROR_CODES} counts. Any other failure, like a lost
+   * connection, a timeout or a missing privilege, is a failure of that call
+   * only. The exception is usually wrapped by MyBatis, so the whole chain of
+   * causes is checked.
+   * 
+   * @param e
+   *          The exception thrown by the query
+   * @return <code>true</code> if the query is not supported by the database
+   */
+  static boolean isNotSupported(final Throwable e) {
+    Throwable cause = e;
+    for (int depth = 0; cause != null && depth < 16; depth++) {
+      if (cause instanceof SQLSyntaxErrorException
+          || cause instanceof SQLFeatureNotSupportedException) {
+        return true;
+      }
+      if (cause instanceof SQLException) {
+        final SQLException sqlException = (SQLException) cause;
+        final String sqlState = sqlException.getSQLState();
+        // 0A: feature not supported, from the drivers without the JDBC 4 exceptions
+        if (sqlState != null && sqlState.startsWith("0A")) {
+          return true;
+        }
+        if (NOT_SUPPORTED_ERROR_CODES.contains(sqlException.getErrorCode())) {
+          return true;
+        }
+      }
+      if (cause.getCause() == cause) {
+        break;
+      }
+      cause = cause.getCause();
+    }
+    return false;
+  }
 }
@@ -0,0 +1,176 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess.beans;
+
+/**
+ * When the statistics of a time bucket are retrieved from the database, they
+ * are converted into this object.
+ * 
+ * @see AggregatedHistoryRequestBean
+ */
+public class AggregatedHistoryRecordBean {
+
+  /** The tag id */
+  private final Long tagId;
+
+  /** The index of the bucket, counted from the start time of the request */
+  private long bucket;
+
+  /** The number of records in the bucket */
+  private long valueCount;
+
+  /** The lowest value */
+  private double minValue;
+
+  /** The highest value */
+  private double maxValue;
+
+  /** The average value */
+  private double avgValue;
+
+  /** The value of the earliest record */
+  private double firstValue;
+
+  /** The value of the latest record */
+  private double lastValue;
+
+  /**
+   * @param tagId
+   *          The tag id this record will be registered for
+   */
+  public AggregatedHistoryRecordBean(final Long tagId) {
+    this.tagId = tagId;
+  }
+
+  /**
+   * @return the tag id
+   */
+  public Long getTagId() {
+    return tagId;
+  }
+
+  /**
+   * @return the index of the bucket, counted from the start time of the
+   *         request
+   */
+  public long getBucket() {
+    return bucket;
+  }
+
+  /**
+   * @param bucket
+   *          the index of the bucket to set
+   */
+  public void setBucket(final long bucket) {
+    this.bucket = bucket;
+  }
+
+  /**
+   * @return the number of records in the bucket
+   */
+  public long getValueCount() {
+    return valueCount;
+  }
+
+  /**
+   * @param valueCount
+   *          the number of records to set
+   */
+  public void setValueCount(final long valueCount) {
+    this.valueCount = valueCount;
+  }
+
+  /**
+   * @return the lowest value
+   */
+  public double getMinValue() {
+    return minValue;
+  }
+
+  /**
+   * @param minValue
+   *          the lowest value to set
+   */
+  public void setMinValue(final double minValue) {
+    this.minValue = minValue;
+  }
+
+  /**
+   * @return the highest value
+   */
+  public double getMaxValue() {
+    return maxValue;
+  }
+
+  /**
+   * @param maxValue
+   *          the highest value to set
+   */
+  public void setMaxValue(final double maxValue) {
+    this.maxValue = maxValue;
+  }
+
+  /**
+   * @return the average value
+   */
+  public double getAvgValue() {
+    return avgValue;
+  }
+
+  /**
+   * @param avgValue
+   *          the average value to set
+   */
+  public void setAvgValue(final double avgValue) {
+    this.avgValue = avgValue;
+  }
+
+  /**
+   * @return the value of the earliest record
+   */
+  public double getFirstValue() {
+    return firstValue;
+  }
+
+  /**
+   * @param firstValue
+   *          the value of the earliest record to set
+   */
+  public void setFirstValue(final double firstValue) {
+    this.firstValue = firstValue;
+  }
+
+  /**
+   * @return the value of the latest record
+   */
+  public double getLastValue() {
+    return lastValue;
+  }
+
+  /**
+   * @param lastValue
+   *          the value of the latest record to set
+   */
+  public void setLastValue(final double lastValue) {
+    this.lastValue = lastValue;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("TagId: %s, bucket: %d, count: %d", tagId, bucket, valueCount);
+  }
+}
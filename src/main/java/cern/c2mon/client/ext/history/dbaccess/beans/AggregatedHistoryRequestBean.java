@@ -0,0 +1,84 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess.beans;
+
+import java.sql.Timestamp;
+
+/**
+ * This class is passed as an parameter when requesting the statistics of the
+ * numeric values of a set of tags, per time bucket.
+ */
+public class AggregatedHistoryRequestBean {
+
+  /** The tag ids to request */
+  private final Long[] tagIds;
+
+  /** The start time, also the start of the first bucket */
+  private final Timestamp fromTime;
+
+  /** The end time */
+  private final Timestamp toTime;
+
+  /** The length of each bucket in milliseconds */
+  private final long bucketMillis;
+
+  /**
+   * @param tagIds
+   *          The tag ids to request
+   * @param fromTime
+   *          The start time, also the start of the first bucket
+   * @param toTime
+   *          The end time
+   * @param bucketMillis
+   *          The length of each bucket in milliseconds
+   */
+  public AggregatedHistoryRequestBean(final Long[] tagIds, final Timestamp fromTime, final Timestamp toTime, final long bucketMillis) {
+    this.tagIds = tagIds;
+    this.fromTime = fromTime;
+    this.toTime = toTime;
+    this.bucketMillis = bucketMillis;
+  }
+
+  /**
+   * @return The tag ids to request
+   */
+  public Long[] getTagIds() {
+    return tagIds;
+  }
+
+  /**
+   * @return The start time, also the start of the first bucket
+   */
+  public Timestamp getFromTime() {
+    return fromTime;
+  }
+
+  /**
+   * @return The end time
+   */
+  public Timestamp getToTime() {
+    return toTime;
+  }
+
+  /**
+   * @return The length of each bucket in milliseconds
+   */
+  public long getBucketMillis() {
+    return bucketMillis;
+  }
+
+}
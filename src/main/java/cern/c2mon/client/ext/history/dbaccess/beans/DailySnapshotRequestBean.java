@@ -36,6 +36,12 @@ public class DailySnapshotRequestBean {
   /** To which date to have the daily snapshot data (the time is ignored) */
   private Timestamp toTime = null;
 
+  /**
+   * <code>true</code> if the tag ids are bound as one array parameter instead
+   * of being listed in the query
+   */
+  private boolean tagIdsAsArray = false;
+
   /**
    * 
    * @param tagIds
@@ -75,4 +81,21 @@ public class DailySnapshotRequestBean {
     return toTime;
   }
 
+  /**
+   * @return <code>true</code> if the tag ids are bound as one array parameter
+   *         instead of being listed in the query
+   */
+  public boolean isTagIdsAsArray() {
+    return tagIdsAsArray;
+  }
+
+  /**
+   * @param tagIdsAsArray
+   *          <code>true</code> to bind the tag ids as one array parameter
+   *          instead of listing them in the query
+   */
+  public void setTagIdsAsArray(final boolean tagIdsAsArray) {
+    this.tagIdsAsArray = tagIdsAsArray;
+  }
+
 }
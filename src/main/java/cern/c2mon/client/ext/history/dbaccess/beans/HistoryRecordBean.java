@@ -32,6 +32,9 @@ import cern.c2mon.shared.common.datatag.DataTagQuality;
  */
 public class HistoryRecordBean {
 
+  /** The value used for the times which are not set */
+  public static final long NO_TIME = Long.MIN_VALUE;
+
   /** The tag id */
   private final Long tagId;
   
@@ -52,14 +55,23 @@ public class HistoryRecordBean {
   /** The timestamp of when the equipment registered the event */
   private Timestamp tagTime;
   
-  /** The timestamp of when the DAQ registered the event */
-  private Timestamp daqTime;
+  /**
+   * The time of when the DAQ registered the event, in milliseconds since
+   * epoch. {@link #NO_TIME} if not set.
+   */
+  private long daqTime = NO_TIME;
   
-  /** The timestamp of when the server registered the event */
-  private Timestamp serverTime;
+  /**
+   * The time of when the server registered the event, in milliseconds since
+   * epoch. {@link #NO_TIME} if not set.
+   */
+  private long serverTime = NO_TIME;
   
-  /** The date of when the record was written into the database */
-  private Date logDate;
+  /**
+   * The time of when the record was written into the database, in
+   * milliseconds since epoch. {@link #NO_TIME} if not set.
+   */
+  private long logDate = NO_TIME;
   
   /** The quality descriptor */
   private DataTagQuality dataTagQuality;
@@ -102,18 +114,18 @@ public class HistoryRecordBean {
     if (this.timeZone.equals(newTimeZone)) {
       return;
     }
-    if (this.logDate != null) {
-      this.logDate = TimeZoneUtil.convertDateTimezone(newTimeZone, this.logDate, timeZone);
+    if (this.logDate != NO_TIME) {
+      this.logDate = TimeZoneUtil.convertTimeZone(this.logDate, timeZone, newTimeZone);
     }
     // source time always have unknown time zone 
 //    if (this.tagTime != null) {
 //      this.tagTime = TimeZoneUtil.convertDateTimezone(newTimeZone, this.tagTime, timeZone);
 //    }
-    if (this.daqTime != null) {
-      this.daqTime = TimeZoneUtil.convertDateTimezone(newTimeZone, this.daqTime, timeZone);
+    if (this.daqTime != NO_TIME) {
+      this.daqTime = TimeZoneUtil.convertTimeZone(this.daqTime, timeZone, newTimeZone);
     }
-    if (this.serverTime != null) {
-      this.serverTime = TimeZoneUtil.convertDateTimezone(newTimeZone, this.serverTime, timeZone);
+    if (this.serverTime != NO_TIME) {
+      this.serverTime = TimeZoneUtil.convertTimeZone(this.serverTime, timeZone, newTimeZone);
     }
     this.timeZone = newTimeZone;
   }
@@ -182,6 +194,13 @@ public class HistoryRecordBean {
    * @return the logDate
    */
   public Date getLogDate() {
+    return toTimestamp(logDate);
+  }
+
+  /**
+   * @return the logDate in milliseconds since epoch, or {@link #NO_TIME}
+   */
+  public long getLogDateMillis() {
     return logDate;
   }
 
@@ -189,7 +208,7 @@ public class HistoryRecordBean {
    * @param logDate the logDate to set
    */
   public void setLogDate(final Date logDate) {
-    this.logDate = logDate;
+    this.logDate = toMillis(logDate);
   }
 
   /**
@@ -316,6 +335,14 @@ public class HistoryRecordBean {
    * @return the timestamp of when the DAQ registered the event
    */
   public Timestamp getDaqTime() {
+    return toTimestamp(daqTime);
+  }
+
+  /**
+   * @return the time in milliseconds since epoch of when the DAQ registered
+   *         the event, or {@link #NO_TIME}
+   */
+  public long getDaqTimeMillis() {
     return daqTime;
   }
 
@@ -323,13 +350,21 @@ public class HistoryRecordBean {
    * @param daqTime the timestamp to set of when the DAQ registered the event
    */
   public void setDaqTime(final Timestamp daqTime) {
-    this.daqTime = daqTime;
+    this.daqTime = toMillis(daqTime);
   }
 
   /**
    * @return the timestamp of when the server registered the event
    */
   public Timestamp getServerTime() {
+    return toTimestamp(serverTime);
+  }
+
+  /**
+   * @return the time in milliseconds since epoch of when the server
+   *         registered the event, or {@link #NO_TIME}
+   */
+  public long getServerTimeMillis() {
     return serverTime;
   }
 
@@ -337,6 +372,30 @@ public class HistoryRecordBean {
    * @param serverTime the timestamp to set of when the server registered the event
    */
   public void setServerTime(final Timestamp serverTime) {
-    this.serverTime = serverTime;
+    this.serverTime = toMillis(serverTime);
+  }
+
+  /**
+   * @param date the date to convert, can be <code>null</code>
+   * @return the date in milliseconds since epoch, or {@link #NO_TIME} if
+   *         <code>date</code> is <code>null</code>
+   */
+  private static long toMillis(final Date date) {
+    if (date == null) {
+      return NO_TIME;
+    }
+    return date.getTime();
+  }
+
+  /**
+   * @param time the time in milliseconds since epoch, or {@link #NO_TIME}
+   * @return a new timestamp of the time, or <code>null</code> if the time is
+   *         {@link #NO_TIME}
+   */
+  private static Timestamp toTimestamp(final long time) {
+    if (time == NO_TIME) {
+      return null;
+    }
+    return new Timestamp(time);
   }
 }
@@ -0,0 +1,60 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess.beans;
+
+import java.sql.Timestamp;
+
+/**
+ * This class is passed as an parameter when requesting the initial records of
+ * a set of tags in one query.
+ * 
+ * @see InitialRecordHistoryRequestBean
+ */
+public class InitialRecordsHistoryRequestBean {
+
+  /** The tag ids to request */
+  private final Long[] tagIds;
+
+  /** The time which the initial records must be before */
+  private final Timestamp beforeTime;
+
+  /**
+   * @param tagIds
+   *          The tag ids to request
+   * @param beforeTime
+   *          The time which the initial records must be before
+   */
+  public InitialRecordsHistoryRequestBean(final Long[] tagIds, final Timestamp beforeTime) {
+    this.tagIds = tagIds;
+    this.beforeTime = beforeTime;
+  }
+
+  /**
+   * @return The tag ids to request
+   */
+  public Long[] getTagIds() {
+    return tagIds;
+  }
+
+  /**
+   * @return The time which the initial records must be before
+   */
+  public Timestamp getBeforeTime() {
+    return beforeTime;
+  }
+
+}
@@ -0,0 +1,77 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess.beans;
+
+import java.sql.Timestamp;
+
+import cern.c2mon.client.ext.history.dbaccess.HistoryMapper;
+import cern.c2mon.shared.common.supervision.SupervisionConstants.SupervisionEntity;
+
+/**
+ * This class is passed as an argument when requesting the initial supervision
+ * events of several ids of the same entity through the {@link HistoryMapper}
+ * 
+ * @see SupervisionEventRequestBean
+ */
+public class InitialSupervisionEventsRequestBean {
+
+  /** The entity of the ids */
+  private final SupervisionEntity entity;
+
+  /** The ids to request */
+  private final Long[] ids;
+
+  /** The time which the initial events must be before */
+  private final Timestamp fromTime;
+
+  /**
+   * 
+   * @param entity
+   *          The entity of the ids
+   * @param ids
+   *          The ids to request
+   * @param fromTime
+   *          The time which the initial events must be before
+   */
+  public InitialSupervisionEventsRequestBean(final SupervisionEntity entity, final Long[] ids, final Timestamp fromTime) {
+    this.entity = entity;
+    this.ids = ids;
+    this.fromTime = fromTime;
+  }
+
+  /**
+   * @return the entity of the ids
+   */
+  public SupervisionEntity getEntity() {
+    return entity;
+  }
+
+  /**
+   * @return the ids to request
+   */
+  public Long[] getIds() {
+    return ids;
+  }
+
+  /**
+   * 
+   * @return the time which the initial events must be before
+   */
+  public Timestamp getFromTime() {
+    return fromTime;
+  }
+}
@@ -34,6 +34,12 @@ public class SavedHistoryRequestBean {
   /** the tag ids which is requested */
   private final Collection<Long> tagIds;
 
+  /**
+   * <code>true</code> if the tag ids are bound as one array parameter instead
+   * of being listed in the query
+   */
+  private boolean tagIdsAsArray = false;
+
   /**
    * 
    * @param eventId
@@ -53,6 +59,31 @@ public class SavedHistoryRequestBean {
     return tagIds;
   }
 
+  /**
+   * @return the tag ids which is requested, as an array to bind as one
+   *         parameter
+   */
+  public Long[] getTagIdArray() {
+    return tagIds.toArray(new Long[0]);
+  }
+
+  /**
+   * @return <code>true</code> if the tag ids are bound as one array parameter
+   *         instead of being listed in the query
+   */
+  public boolean isTagIdsAsArray() {
+    return tagIdsAsArray;
+  }
+
+  /**
+   * @param tagIdsAsArray
+   *          <code>true</code> to bind the tag ids as one array parameter
+   *          instead of listing them in the query
+   */
+  public void setTagIdsAsArray(final boolean tagIdsAsArray) {
+    this.tagIdsAsArray = tagIdsAsArray;
+  }
+
   /**
    * @return the event id of the data to get
    */
@@ -44,6 +44,12 @@ public class ShortTermLogHistoryRequestBean {
   /** The total maximum amount of records that can be retrieved */
   private Integer maxRecords = null;
 
+  /**
+   * <code>true</code> if the tag ids are bound as one array parameter instead
+   * of being listed in the query
+   */
+  private boolean tagIdsAsArray = false;
+
   /**
    * @param tagIds
    *          The tag ids to request
@@ -92,6 +98,7 @@ public class ShortTermLogHistoryRequestBean {
    */
   public ShortTermLogHistoryRequestBean(final ShortTermLogHistoryRequestBean request) {
     this(request.tagIds, request.fromTime, request.toTime, request.maxRecords);
+    this.tagIdsAsArray = request.tagIdsAsArray;
   }
 
   /**
@@ -158,4 +165,21 @@ public class ShortTermLogHistoryRequestBean {
     this.maxRecords = maxRecords;
   }
 
+  /**
+   * @return <code>true</code> if the tag ids are bound as one array parameter
+   *         instead of being listed in the query
+   */
+  public boolean isTagIdsAsArray() {
+    return tagIdsAsArray;
+  }
+
+  /**
+   * @param tagIdsAsArray
+   *          <code>true</code> to bind the tag ids as one array parameter
+   *          instead of listing them in the query
+   */
+  public void setTagIdsAsArray(final boolean tagIdsAsArray) {
+    this.tagIdsAsArray = tagIdsAsArray;
+  }
+
 }
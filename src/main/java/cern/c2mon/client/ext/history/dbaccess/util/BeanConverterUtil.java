@@ -18,7 +18,6 @@ package cern.c2mon.client.ext.history.dbaccess.util;
 
 import java.sql.Timestamp;
 
-import cern.c2mon.shared.client.serializer.TransferTagSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,11 +27,10 @@ import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
 import cern.c2mon.client.ext.history.dbaccess.beans.HistoryRecordBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionRecordBean;
 import cern.c2mon.client.ext.history.updates.HistorySupervisionEventImpl;
-import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
+import cern.c2mon.client.ext.history.updates.LazyHistoryTagValueUpdate;
 import cern.c2mon.shared.client.supervision.SupervisionEvent;
 import cern.c2mon.shared.client.tag.TagMode;
 import cern.c2mon.shared.client.tag.TagValueUpdate;
-import cern.c2mon.shared.common.type.TypeConverter;
 
 /**
  * Converts beans into common interfaces
@@ -72,14 +70,13 @@ public final class BeanConverterUtil {
             LOG.warn(String.format("Invalid tag mode, \"%d\", for tag %d!", bean.getTagMode(), bean.getTagId()), e);
         }
 
-        final HistoryTagValueUpdateImpl value = new HistoryTagValueUpdateImpl(bean.getTagId(),
-                bean.getDataTagQuality(), TypeConverter.cast(bean.getTagValue(), bean.getTagDataType()),
-                bean.getTagTime(), bean.getDaqTime(), bean.getServerTime(), new Timestamp(bean.getLogDate().getTime()),
+        // The value is only decoded when it is requested
+        final LazyHistoryTagValueUpdate value = new LazyHistoryTagValueUpdate(bean.getTagId(),
+                bean.getDataTagQuality(), bean.getTagValue(), bean.getTagDataType(),
+                bean.getTagTime(), toTimestamp(bean.getDaqTimeMillis()), toTimestamp(bean.getServerTimeMillis()),
+                toTimestamp(bean.getLogDateMillis()),
                 bean.getTagValueDesc() == null ? "" : bean.getTagValueDesc(), mode);
-        value.setValueClassName(bean.getTagDataType());
-        value.setDaqTimestamp(bean.getDaqTime());
         value.setInitialValue(bean.isFromInitialSnapshot());
-        value.setValue(TransferTagSerializer.convertTagValue(value));
 
         return value;
     }
@@ -98,6 +95,20 @@ public final class BeanConverterUtil {
         return result;
     }
 
+    /**
+     * The bean keeps its times in milliseconds, only the record needs them
+     * as timestamps
+     *
+     * @param time the time in milliseconds since epoch, or {@link HistoryRecordBean#NO_TIME}
+     * @return a timestamp of the time, or <code>null</code> if there is no time
+     */
+    private static Timestamp toTimestamp(final long time) {
+        if (time == HistoryRecordBean.NO_TIME) {
+            return null;
+        }
+        return new Timestamp(time);
+    }
+
     /** hidden constructor, utility class */
     private BeanConverterUtil() {
     }
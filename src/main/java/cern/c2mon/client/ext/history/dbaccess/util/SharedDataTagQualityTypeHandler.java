@@ -0,0 +1,128 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess.util;
+
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.ibatis.type.JdbcType;
+import org.apache.ibatis.type.TypeHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.c2mon.shared.client.tag.ibatis.DataTagQualityTypeHandler;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+
+/**
+ * Reads the {@link DataTagQuality} the same way as the
+ * {@link DataTagQualityTypeHandler}, but only parses each distinct quality
+ * description once. Each record gets its own copy of the parsed quality, as
+ * the receivers of the records are free to modify it.
+ */
+public class SharedDataTagQualityTypeHandler implements TypeHandler<DataTagQuality> {
+
+  /** Log4j logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(SharedDataTagQualityTypeHandler.class);
+
+  /** Parses the qualities which are not yet shared */
+  private final TypeHandler<DataTagQuality> parser = new DataTagQualityTypeHandler();
+
+  /** The qualities by their description as stored in the database */
+  private final SharedValueCache<DataTagQuality> qualities = new SharedValueCache<DataTagQuality>();
+
+  @Override
+  public void setParameter(final PreparedStatement ps, final int i, final DataTagQuality parameter, final JdbcType jdbcType) throws SQLException {
+    this.parser.setParameter(ps, i, parameter, jdbcType);
+  }
+
+  @Override
+  public DataTagQuality getResult(final ResultSet rs, final String columnName) throws SQLException {
+    final String description = rs.getString(columnName);
+    DataTagQuality quality = getShared(description);
+    if (quality == null) {
+      quality = share(description, this.parser.getResult(rs, columnName));
+    }
+    return copyOf(quality);
+  }
+
+  @Override
+  public DataTagQuality getResult(final ResultSet rs, final int columnIndex) throws SQLException {
+    final String description = rs.getString(columnIndex);
+    DataTagQuality quality = getShared(description);
+    if (quality == null) {
+      quality = share(description, this.parser.getResult(rs, columnIndex));
+    }
+    return copyOf(quality);
+  }
+
+  @Override
+  public DataTagQuality getResult(final CallableStatement cs, final int columnIndex) throws SQLException {
+    final String description = cs.getString(columnIndex);
+    DataTagQuality quality = getShared(description);
+    if (quality == null) {
+      quality = share(description, this.parser.getResult(cs, columnIndex));
+    }
+    return copyOf(quality);
+  }
+
+  /**
+   * @param description
+   *          the quality description read from the database
+   * @return the shared quality, or <code>null</code> if it is not yet parsed
+   */
+  private DataTagQuality getShared(final String description) {
+    if (description == null) {
+      return null;
+    }
+    return this.qualities.get(description);
+  }
+
+  /**
+   * @param description
+   *          the quality description read from the database
+   * @param quality
+   *          the quality parsed from the <code>description</code>
+   * @return the quality to use for the <code>description</code>
+   */
+  private DataTagQuality share(final String description, final DataTagQuality quality) {
+    if (description == null || quality == null) {
+      // A missing description is left to the parser every time
+      return quality;
+    }
+    return this.qualities.share(description, quality);
+  }
+
+  /**
+   * @param quality
+   *          the shared quality
+   * @return a copy of the quality which the record can keep
+   */
+  private static DataTagQuality copyOf(final DataTagQuality quality) {
+    if (quality == null) {
+      return null;
+    }
+    try {
+      return quality.clone();
+    }
+    catch (CloneNotSupportedException e) {
+      LOG.debug("Could not clone the data tag quality, the instance is shared.", e);
+      return quality;
+    }
+  }
+}
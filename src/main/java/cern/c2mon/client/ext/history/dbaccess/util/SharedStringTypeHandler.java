@@ -0,0 +1,72 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess.util;
+
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.ibatis.type.BaseTypeHandler;
+import org.apache.ibatis.type.JdbcType;
+
+/**
+ * Reads strings the same way as the default string type handler, but returns
+ * the same instance for equal strings. Meant for columns like the tag name and
+ * data type which have the same value for all the records of a tag.
+ */
+public class SharedStringTypeHandler extends BaseTypeHandler<String> {
+
+  /** The strings which are shared */
+  private final SharedValueCache<String> strings = new SharedValueCache<String>();
+
+  @Override
+  public void setNonNullParameter(final PreparedStatement ps, final int i, final String parameter, final JdbcType jdbcType) throws SQLException {
+    ps.setString(i, parameter);
+  }
+
+  @Override
+  public String getNullableResult(final ResultSet rs, final String columnName) throws SQLException {
+    return share(rs.getString(columnName));
+  }
+
+  @Override
+  public String getNullableResult(final ResultSet rs, final int columnIndex) throws SQLException {
+    return share(rs.getString(columnIndex));
+  }
+
+  @Override
+  public String getNullableResult(final CallableStatement cs, final int columnIndex) throws SQLException {
+    return share(cs.getString(columnIndex));
+  }
+
+  /**
+   * @param value
+   *          the string read from the database
+   * @return the shared instance of the string
+   */
+  private String share(final String value) {
+    if (value == null) {
+      return null;
+    }
+    final String shared = this.strings.get(value);
+    if (shared != null) {
+      return shared;
+    }
+    return this.strings.share(value, value);
+  }
+}
@@ -0,0 +1,88 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps one instance of each value read from the database, keyed by the
+ * string it were read from. Used by the type handlers so that the many
+ * records of a tag refers to the same name, data type and quality instead of
+ * each having their own copy.
+ * <p>
+ * The cache is cleared when it reaches its maximum size, so that columns with
+ * many distinct values cannot make it grow without limit.
+ *
+ * @param <T>
+ *          the type of values
+ */
+final class SharedValueCache<T> {
+
+  /** The maximum number of values to keep, if nothing else is specified */
+  static final int DEFAULT_MAXIMUM_SIZE = 4096;
+
+  /** The shared values by the string they were read from */
+  private final ConcurrentMap<String, T> values = new ConcurrentHashMap<String, T>();
+
+  /** The maximum number of values to keep */
+  private final int maximumSize;
+
+  /**
+   * Creates a cache with the {@link #DEFAULT_MAXIMUM_SIZE}
+   */
+  SharedValueCache() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  /**
+   * @param maximumSize
+   *          the maximum number of values to keep
+   */
+  SharedValueCache(final int maximumSize) {
+    this.maximumSize = maximumSize;
+  }
+
+  /**
+   * @param key
+   *          the string the value were read from
+   * @return the shared value, or <code>null</code> if there is no value for the
+   *         <code>key</code>
+   */
+  T get(final String key) {
+    return this.values.get(key);
+  }
+
+  /**
+   * @param key
+   *          the string the value were read from
+   * @param value
+   *          the value to share
+   * @return the value which is shared for the <code>key</code>, which is
+   *         <code>value</code> unless another thread shared a value first
+   */
+  T share(final String key, final T value) {
+    if (this.values.size() >= this.maximumSize) {
+      this.values.clear();
+    }
+    final T previous = this.values.putIfAbsent(key, value);
+    if (previous != null) {
+      return previous;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,72 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess.util;
+
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.apache.ibatis.executor.statement.StatementHandler;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Plugin;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.ResultHandler;
+
+/**
+ * Registers the statements of the queries with the {@link StatementRegistry}
+ * bound to the executing thread, so that they can be cancelled while they
+ * are running. Also sets the query timeout and the fetch size of the registry
+ * on the statements.
+ * Queries done without a registry are not affected.
+ */
+@Intercepts(@Signature(type = StatementHandler.class, method = "query", args = { Statement.class, ResultHandler.class }))
+public class StatementCancellingInterceptor implements Interceptor {
+
+  @Override
+  public Object intercept(final Invocation invocation) throws Throwable {
+    final StatementRegistry registry = StatementRegistry.getCurrent();
+    if (registry == null) {
+      return invocation.proceed();
+    }
+
+    final Statement statement = (Statement) invocation.getArgs()[0];
+    if (registry.getQueryTimeout() > 0) {
+      statement.setQueryTimeout(registry.getQueryTimeout());
+    }
+    if (registry.getFetchSize() > 0) {
+      statement.setFetchSize(registry.getFetchSize());
+    }
+    registry.register(statement);
+    try {
+      return invocation.proceed();
+    }
+    finally {
+      registry.unregister(statement);
+    }
+  }
+
+  @Override
+  public Object plugin(final Object target) {
+    return Plugin.wrap(target, this);
+  }
+
+  @Override
+  public void setProperties(final Properties properties) {
+    // No properties
+  }
+}
@@ -0,0 +1,243 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the JDBC statements which are being executed for a history
+ * provider, so that they can be cancelled when the provider is disabled. The
+ * statements are registered by the {@link StatementCancellingInterceptor}
+ * with the registry bound to the executing thread, which is done by the
+ * mappers returned by {@link #bindToMapper(Class, Object)}.
+ */
+public final class StatementRegistry {
+
+  /** Log4j logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(StatementRegistry.class);
+
+  /** The registry of the query being executed by the current thread */
+  private static final ThreadLocal<StatementRegistry> CURRENT = new ThreadLocal<StatementRegistry>();
+
+  /** The statements which are being executed */
+  private final Set<Statement> statements = Collections.newSetFromMap(new ConcurrentHashMap<Statement, Boolean>());
+
+  /** The query timeout of the statements in seconds, zero for no timeout */
+  private volatile int queryTimeout = 0;
+
+  /**
+   * The number of rows the driver reads at a time for the statements, zero
+   * to leave it to the driver
+   */
+  private volatile int fetchSize = 0;
+
+  /**
+   * <code>true</code> if {@link #cancelAll()} have been called without
+   * {@link #reset()} have been called afterwards
+   */
+  private volatile boolean cancelled = false;
+
+  /**
+   * @return the registry of the query being executed by the current thread,
+   *         or <code>null</code> if there is none
+   */
+  public static StatementRegistry getCurrent() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Registers a statement which is about to be executed. It is cancelled
+   * immediately if {@link #cancelAll()} have been called.
+   * 
+   * @param statement
+   *          the statement
+   */
+  public void register(final Statement statement) {
+    statements.add(statement);
+    if (cancelled) {
+      cancel(statement);
+    }
+  }
+
+  /**
+   * @param statement
+   *          a statement which have finished executing
+   */
+  public void unregister(final Statement statement) {
+    statements.remove(statement);
+  }
+
+  /**
+   * Cancels all the statements being executed, and every statement which is
+   * registered until {@link #reset()} is called. The queries of the cancelled
+   * statements returns no records.
+   */
+  public void cancelAll() {
+    cancelled = true;
+    for (final Statement statement : statements) {
+      cancel(statement);
+    }
+  }
+
+  /**
+   * Allows statements to be executed again after {@link #cancelAll()}
+   */
+  public void reset() {
+    cancelled = false;
+  }
+
+  /**
+   * @return <code>true</code> if the statements are being cancelled
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * @return the number of statements being executed
+   */
+  public int getNumberOfStatements() {
+    return statements.size();
+  }
+
+  /**
+   * @return the query timeout of the statements in seconds, zero for no
+   *         timeout
+   */
+  public int getQueryTimeout() {
+    return queryTimeout;
+  }
+
+  /**
+   * @param queryTimeout
+   *          the query timeout of the statements in seconds, zero for no
+   *          timeout
+   */
+  public void setQueryTimeout(final int queryTimeout) {
+    if (queryTimeout < 0) {
+      throw new IllegalArgumentException("The query timeout cannot be negative");
+    }
+    this.queryTimeout = queryTimeout;
+  }
+
+  /**
+   * @return the number of rows the driver reads at a time for the
+   *         statements, zero if it is left to the driver
+   */
+  public int getFetchSize() {
+    return fetchSize;
+  }
+
+  /**
+   * @param fetchSize
+   *          the number of rows the driver reads at a time for the
+   *          statements, zero to leave it to the driver
+   */
+  public void setFetchSize(final int fetchSize) {
+    if (fetchSize < 0) {
+      throw new IllegalArgumentException("The fetch size cannot be negative");
+    }
+    this.fetchSize = fetchSize;
+  }
+
+  /**
+   * Wraps a mapper so that this registry is bound to the thread during every
+   * call to it. If a call fails because its statement were cancelled, it
+   * returns an empty list (or <code>null</code> if the method does not
+   * return a list) instead of throwing an exception.
+   * 
+   * @param <T>
+   *          the type of the mapper
+   * @param mapperInterface
+   *          the interface of the mapper
+   * @param mapper
+   *          the mapper to wrap
+   * @return the wrapped mapper
+   */
+  public <T> T bindToMapper(final Class<T> mapperInterface, final T mapper) {
+    if (mapper == null) {
+      return null;
+    }
+    final Object proxy = Proxy.newProxyInstance(
+        mapperInterface.getClassLoader(),
+        new Class< ? >[] { mapperInterface },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(final Object target, final Method method, final Object[] args) throws Throwable {
+            final StatementRegistry previous = CURRENT.get();
+            CURRENT.set(StatementRegistry.this);
+            try {
+              return method.invoke(mapper, args);
+            }
+            catch (InvocationTargetException e) {
+              if (cancelled) {
+                LOG.debug("The query were cancelled", e.getCause());
+                return createEmptyResult(method.getReturnType());
+              }
+              throw e.getCause();
+            }
+            finally {
+              if (previous == null) {
+                CURRENT.remove();
+              }
+              else {
+                CURRENT.set(previous);
+              }
+            }
+          }
+        });
+    return mapperInterface.cast(proxy);
+  }
+
+  /**
+   * @param returnType
+   *          the return type of the mapper method
+   * @return the result of a cancelled query
+   */
+  private static Object createEmptyResult(final Class< ? > returnType) {
+    if (returnType.isAssignableFrom(List.class)) {
+      return new ArrayList<Object>();
+    }
+    return null;
+  }
+
+  /**
+   * @param statement
+   *          the statement to cancel
+   */
+  private static void cancel(final Statement statement) {
+    try {
+      statement.cancel();
+    }
+    catch (SQLException e) {
+      LOG.debug("The statement could not be cancelled", e);
+    }
+  }
+}
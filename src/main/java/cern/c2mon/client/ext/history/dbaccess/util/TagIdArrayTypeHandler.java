@@ -0,0 +1,147 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Array;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import org.apache.ibatis.type.BaseTypeHandler;
+import org.apache.ibatis.type.JdbcType;
+
+import cern.c2mon.client.ext.history.dbaccess.HistorySystemProperties;
+
+/**
+ * Binds a list of tag ids as one array parameter, so that the query text is
+ * the same whatever the number of tags. On Oracle the array is created as the
+ * collection type given by {@link HistorySystemProperties#JDBC_TAG_ID_ARRAY_TYPE},
+ * and is meant to be used with <code>TABLE(?)</code>. Other databases gets a
+ * standard <code>BIGINT</code> array, which HSQLDB can use with
+ * <code>UNNEST(?)</code>.
+ * <p>
+ * Throws a {@link SQLFeatureNotSupportedException} if the driver cannot
+ * create the array, in which case the tag ids must be listed in the query
+ * instead. The callers must split the tag ids into arrays of at most
+ * {@link #MAXIMUM_ARRAY_LENGTH} ids.
+ */
+public class TagIdArrayTypeHandler extends BaseTypeHandler<Long[]> {
+
+  /**
+   * The maximum number of tag ids bound as one array. The default Oracle
+   * collection type, <code>SYS.ODCINUMBERLIST</code>, is a
+   * <code>VARRAY(32767)</code>.
+   */
+  public static final int MAXIMUM_ARRAY_LENGTH = 32000;
+
+  /** The Oracle collection type used if nothing else is specified */
+  private static final String DEFAULT_ORACLE_ARRAY_TYPE = "SYS.ODCINUMBERLIST";
+
+  /** The Oracle connection interface, <code>null</code> without the Oracle driver */
+  private static final Class< ? > ORACLE_CONNECTION_CLASS = findOracleConnectionClass();
+
+  @Override
+  public void setNonNullParameter(final PreparedStatement ps, final int i, final Long[] parameter, final JdbcType jdbcType) throws SQLException {
+    if (parameter.length > MAXIMUM_ARRAY_LENGTH) {
+      // Not a missing feature, the request must be split
+      throw new SQLException(String.format("Cannot bind %d tag ids as one array, the maximum is %d",
+          parameter.length, MAXIMUM_ARRAY_LENGTH));
+    }
+    ps.setArray(i, createArray(ps.getConnection(), parameter));
+  }
+
+  @Override
+  public Long[] getNullableResult(final ResultSet rs, final String columnName) throws SQLException {
+    return toTagIds(rs.getArray(columnName));
+  }
+
+  @Override
+  public Long[] getNullableResult(final ResultSet rs, final int columnIndex) throws SQLException {
+    return toTagIds(rs.getArray(columnIndex));
+  }
+
+  @Override
+  public Long[] getNullableResult(final CallableStatement cs, final int columnIndex) throws SQLException {
+    return toTagIds(cs.getArray(columnIndex));
+  }
+
+  /**
+   * @param connection
+   *          the connection the statement is executed on
+   * @param tagIds
+   *          the tag ids
+   * @return an array of the tag ids which can be bound to the statement
+   * @throws SQLException
+   *           if the driver cannot create the array
+   */
+  private static Array createArray(final Connection connection, final Long[] tagIds) throws SQLException {
+    final Class< ? > oracleConnectionClass = ORACLE_CONNECTION_CLASS;
+    if (oracleConnectionClass != null && connection.isWrapperFor(oracleConnectionClass)) {
+      final Object oracleConnection = connection.unwrap(oracleConnectionClass);
+      final String arrayType = System.getProperty(HistorySystemProperties.JDBC_TAG_ID_ARRAY_TYPE, DEFAULT_ORACLE_ARRAY_TYPE);
+      try {
+        final Method createOracleArray = oracleConnectionClass.getMethod("createOracleArray", String.class, Object.class);
+        return (Array) createOracleArray.invoke(oracleConnection, arrayType, tagIds);
+      }
+      catch (InvocationTargetException e) {
+        if (e.getCause() instanceof SQLException) {
+          throw (SQLException) e.getCause();
+        }
+        throw new SQLFeatureNotSupportedException("Could not create an array of type " + arrayType, e.getCause());
+      }
+      catch (ReflectiveOperationException e) {
+        throw new SQLFeatureNotSupportedException("The Oracle driver cannot create arrays", e);
+      }
+    }
+    return connection.createArrayOf("BIGINT", tagIds);
+  }
+
+  /**
+   * @return the Oracle connection interface, or <code>null</code> if the
+   *         Oracle driver is not on the classpath
+   */
+  private static Class< ? > findOracleConnectionClass() {
+    try {
+      return Class.forName("oracle.jdbc.OracleConnection");
+    }
+    catch (ClassNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param array
+   *          the array read from the database
+   * @return the tag ids of the array
+   */
+  private static Long[] toTagIds(final Array array) throws SQLException {
+    if (array == null) {
+      return null;
+    }
+    final Object[] values = (Object[]) array.getArray();
+    final Long[] tagIds = new Long[values.length];
+    for (int i = 0; i < values.length; i++) {
+      tagIds[i] = values[i] == null ? null : Long.valueOf(((Number) values[i]).longValue());
+    }
+    return tagIds;
+  }
+}
@@ -17,10 +17,14 @@
 package cern.c2mon.client.ext.history.dbaccess.util;
 
 import java.sql.Timestamp;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Methods for managing time zones
@@ -30,6 +34,25 @@ import java.util.TimeZone;
  */
 public final class TimeZoneUtil {
 
+  /** The UTC time zone */
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  /** The number of milliseconds in a second */
+  private static final long MILLIS_PER_SECOND = 1000L;
+
+  /** The number of offset windows kept for each time zone */
+  private static final int WINDOWS_PER_TIME_ZONE = 4;
+
+  /**
+   * The last offset windows looked up for each time zone id, the most recent
+   * first. As long as the dates converted stays within these windows the
+   * offset is found without any allocation. A window lasts until the next
+   * daylight saving transition, so keeping a few of them avoids looking up
+   * the rules again for each record when the records alternates between both
+   * sides of a transition, like when a day with a transition is loaded.
+   */
+  private static final ConcurrentMap<String, OffsetWindow[]> OFFSET_WINDOWS = new ConcurrentHashMap<String, OffsetWindow[]>();
+
   /**
    * Converts a date into another timezone
    *
@@ -40,16 +63,16 @@ public final class TimeZoneUtil {
    * @return The converted date
    */
   public static Date convertDateFromLocalToTimezone(final TimeZone timeZone, final Date date) {
-    final String dateTimeFormat = "dd.MM.yyyy HH:mm:ss";
-    final SimpleDateFormat dateWithTimezone = new SimpleDateFormat(dateTimeFormat);
-    dateWithTimezone.setTimeZone(timeZone);
-    try {
-      final Date gmtDate = new SimpleDateFormat(dateTimeFormat).parse(dateWithTimezone.format(date));
-      return gmtDate;
-    }
-    catch (ParseException e) {
-      throw new RuntimeException("Error occured while converting a date into another timezone.", e);
-    }
+    final TimeZone localTimeZone = TimeZone.getDefault();
+    final long time = date.getTime();
+
+    // The wall clock time in the time zone, without the milliseconds
+    final long wallTime = time + getOffset(timeZone, time);
+    final long wallSeconds = Math.floorDiv(wallTime, MILLIS_PER_SECOND) * MILLIS_PER_SECOND;
+
+    // Interprets the wall clock time as a local time
+    final long estimate = wallSeconds - getOffset(localTimeZone, wallSeconds);
+    return new Date(wallSeconds - getOffset(localTimeZone, estimate));
   }
 
   /**
@@ -59,8 +82,7 @@ public final class TimeZoneUtil {
    * @return the date in the local time zone
    */
   public static Timestamp convertDateFromUtcToLocalTimezone(final Date date) {
-    final TimeZone localTimezone = TimeZone.getDefault();
-    final long newTime = date.getTime() + localTimezone.getOffset(date.getTime());
+    final long newTime = date.getTime() + getOffset(TimeZone.getDefault(), date.getTime());
     return new Timestamp(newTime);
   }
 
@@ -77,11 +99,28 @@ public final class TimeZoneUtil {
    * @return the converted date
    */
   public static Timestamp convertDateTimezone(final TimeZone newTimezone, final Date date, final TimeZone dateTimezone) {
-    long newTime =
-      date.getTime()
-      - dateTimezone.getOffset(date.getTime())
-      + newTimezone.getOffset(date.getTime());
-    return new Timestamp(newTime);
+    return new Timestamp(convertTimeZone(date.getTime(), dateTimezone, newTimezone));
+  }
+
+  /**
+   * Converts a time from one timezone to another. Does the same as
+   * {@link #convertDateTimezone(TimeZone, Date, TimeZone)}, but without
+   * creating any objects.
+   *
+   * @param time
+   *          the time in milliseconds since epoch, assumed to be in the
+   *          <code>timeZone</code>
+   * @param timeZone
+   *          the timezone of the <code>time</code>
+   * @param newTimeZone
+   *          the new timezone that is wanted for the time
+   * @return the converted time
+   */
+  public static long convertTimeZone(final long time, final TimeZone timeZone, final TimeZone newTimeZone) {
+    if (timeZone == newTimeZone) {
+      return time;
+    }
+    return time - getOffset(timeZone, time) + getOffset(newTimeZone, time);
   }
 
   /**
@@ -92,7 +131,117 @@ public final class TimeZoneUtil {
    * @return the converted date
    */
   public static Timestamp convertDateTimezoneToUtc(final Date date) {
-    return convertDateTimezone(TimeZone.getTimeZone("UTC"), date, TimeZone.getDefault());
+    return convertDateTimezone(UTC, date, TimeZone.getDefault());
+  }
+
+  /**
+   * Gets the offset of a time zone at the given time. The {@link ZoneRules}
+   * of the time zone are only consulted when the time is outside of the
+   * period the previous lookup was valid for.
+   *
+   * @param timeZone
+   *          the time zone
+   * @param time
+   *          the time in milliseconds since epoch
+   * @return the offset in milliseconds to add to UTC to get the time in the
+   *         time zone
+   */
+  public static int getOffset(final TimeZone timeZone, final long time) {
+    final String id = timeZone.getID();
+    final OffsetWindow[] windows = OFFSET_WINDOWS.get(id);
+    if (windows != null) {
+      for (final OffsetWindow window : windows) {
+        if (window.contains(time)) {
+          return window.offset;
+        }
+      }
+    }
+
+    // The arrays are never modified once they are in the map
+    final OffsetWindow window = OffsetWindow.create(timeZone.toZoneId().getRules(), time);
+    final int kept = windows == null ? 0 : Math.min(windows.length, WINDOWS_PER_TIME_ZONE - 1);
+    final OffsetWindow[] newWindows = new OffsetWindow[kept + 1];
+    newWindows[0] = window;
+    if (kept > 0) {
+      System.arraycopy(windows, 0, newWindows, 1, kept);
+    }
+    OFFSET_WINDOWS.put(id, newWindows);
+    return window.offset;
+  }
+
+  /**
+   * A period of time where the offset of a time zone stays the same
+   */
+  private static final class OffsetWindow {
+
+    /** The first millisecond the offset is valid for */
+    private final long validFrom;
+
+    /** The first millisecond the offset is no longer valid for */
+    private final long validUntil;
+
+    /** The offset in milliseconds */
+    private final int offset;
+
+    /**
+     * @param validFrom
+     *          the first millisecond the offset is valid for
+     * @param validUntil
+     *          the first millisecond the offset is no longer valid for
+     * @param offset
+     *          the offset in milliseconds
+     */
+    private OffsetWindow(final long validFrom, final long validUntil, final int offset) {
+      this.validFrom = validFrom;
+      this.validUntil = validUntil;
+      this.offset = offset;
+    }
+
+    /**
+     * @param time
+     *          the time in milliseconds since epoch
+     * @return <code>true</code> if the offset is valid for the time
+     */
+    private boolean contains(final long time) {
+      return time >= validFrom && time < validUntil;
+    }
+
+    /**
+     * Creates the window of the offset which is valid at the given time
+     *
+     * @param rules
+     *          the rules of the time zone
+     * @param time
+     *          the time in milliseconds since epoch
+     * @return the window containing the time
+     */
+    private static OffsetWindow create(final ZoneRules rules, final long time) {
+      final Instant instant = Instant.ofEpochMilli(time);
+      final ZoneOffset zoneOffset = rules.getOffset(instant);
+      final int offset = zoneOffset.getTotalSeconds() * (int) MILLIS_PER_SECOND;
+      if (rules.isFixedOffset()) {
+        return new OffsetWindow(Long.MIN_VALUE, Long.MAX_VALUE, offset);
+      }
+
+      long validFrom = Long.MIN_VALUE;
+      final ZoneOffsetTransition previous = rules.previousTransition(instant.plusMillis(1));
+      if (previous != null) {
+        validFrom = previous.toEpochSecond() * MILLIS_PER_SECOND;
+        if (!previous.getOffsetAfter().equals(zoneOffset)) {
+          validFrom = time;
+        }
+      }
+      long validUntil = Long.MAX_VALUE;
+      final ZoneOffsetTransition next = rules.nextTransition(instant);
+      if (next != null) {
+        validUntil = next.toEpochSecond() * MILLIS_PER_SECOND;
+      }
+      if (validFrom > time || validUntil <= time) {
+        // Should never happen, but the offset is still valid for this time
+        return new OffsetWindow(time, time + 1, offset);
+      }
+      return new OffsetWindow(validFrom, validUntil, offset);
+    }
   }
 
   /**
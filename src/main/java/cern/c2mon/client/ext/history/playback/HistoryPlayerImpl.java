@@ -134,6 +134,7 @@ public class HistoryPlayerImpl
     this.historyLoader = new HistoryLoader();
     this.publisher = new HistoryPublisher();
     this.playbackControl = new PlaybackControlImpl();
+    this.historyLoader.setPlaybackControl(this.playbackControl);
     this.clockSynchronizer = new ClockSynchronizer(this.playbackControl);
     this.historyScheduler = new HistoryScheduler(this);
 
@@ -158,7 +159,9 @@ public class HistoryPlayerImpl
 
       @Override
       public void onDataCollectionChanged(final Collection<HistoryUpdateId> historyUpdateIds) {
-        historyScheduler.rescheduleEvents();
+        // Only the new records of the changed data is scheduled, a full
+        // reschedule is done when the clock time is changed
+        historyScheduler.scheduleNewRecords(historyUpdateIds);
       }
 
       @Override
@@ -173,6 +176,7 @@ public class HistoryPlayerImpl
       @Override
       public void onDataInitialized(final Collection<HistoryUpdateId> historyUpdateIds) {
         onDataCollectionChanged(historyUpdateIds);
+        historyScheduler.updateDataTagsWithValueAtCurrentTime(historyUpdateIds);
       }
     });
   }
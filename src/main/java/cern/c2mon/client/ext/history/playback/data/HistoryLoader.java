@@ -21,12 +21,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -36,18 +38,26 @@ import org.slf4j.LoggerFactory;
 import cern.c2mon.client.ext.history.common.HistoryProvider;
 import cern.c2mon.client.ext.history.common.HistorySupervisionEvent;
 import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdateHandler;
 import cern.c2mon.client.ext.history.common.HistoryUpdate;
+import cern.c2mon.client.ext.history.common.PlaybackControl;
 import cern.c2mon.client.ext.history.common.SupervisionEventRequest;
 import cern.c2mon.client.ext.history.common.Timespan;
+import cern.c2mon.client.ext.history.common.event.PlaybackControlAdapter;
 import cern.c2mon.client.ext.history.common.id.HistoryUpdateId;
 import cern.c2mon.client.ext.history.common.id.SupervisionEventId;
 import cern.c2mon.client.ext.history.common.id.TagValueUpdateId;
 import cern.c2mon.client.ext.history.data.event.HistoryLoaderListener;
 import cern.c2mon.client.ext.history.data.filter.DailySnapshotSmartFilter;
+import cern.c2mon.client.ext.history.data.utilities.AdaptiveWorkerCount;
 import cern.c2mon.client.ext.history.data.utilities.MemoryConsumptionAdviser;
+import cern.c2mon.client.ext.history.data.utilities.MemoryConsumptionAdviserListener;
+import cern.c2mon.client.ext.history.data.utilities.PlaybackWindow;
 import cern.c2mon.client.ext.history.data.utilities.SpeedEstimate;
 import cern.c2mon.client.ext.history.data.utilities.StopWatch;
 import cern.c2mon.client.ext.history.data.utilities.WorkManager;
+import cern.c2mon.client.ext.history.data.utilities.WorkStealingQueue;
+import cern.c2mon.client.ext.history.dbaccess.HistorySystemProperties;
 import cern.c2mon.client.ext.history.playback.HistoryConfiguration;
 import cern.c2mon.client.ext.history.playback.exceptions.NoHistoryProviderAvailableException;
 import cern.c2mon.client.ext.history.util.DataIdUtil;
@@ -78,11 +88,29 @@ public class HistoryLoader {
   private static final double STARTING_SPEED = 24.0 * 60.0 * 60.0 * 1000.0 / (1000.0);
   
   /**
-   * The number of threads to use when loading history from the STL (Short Term
-   * Log)
+   * Before anything is loaded, it uses this to estimate how much memory the
+   * loaded records will use. The unit is milliseconds of history of one tag
+   * per byte of memory. Is high, so that the first frames are not limited.
+   * <br/><code>history milliseconds / byte</code>
+   */
+  private static final double STARTING_HISTORY_MS_PER_BYTE = 1000.0;
+  
+  /**
+   * The default maximum number of threads to use when loading history from
+   * the STL (Short Term Log). Can be changed with
+   * {@link HistorySystemProperties#HISTORY_BUFFERING_WORKERS}.
    */
   private static final int THREAD_COUNT_ON_LOADING_HISTORY = 1;
   
+  /**
+   * The number of units of work the tags are split into per worker, when
+   * loading with more than one worker
+   */
+  private static final int WORK_UNITS_PER_WORKER = 4;
+  
+  /** The maximum number of tags in one unit of work */
+  private static final int MAXIMUM_TAGS_PER_WORK_UNIT = 900;
+  
   /**
    * The amount of time that should be targeted when loading the first data
    * frame
@@ -129,6 +157,25 @@ public class HistoryLoader {
    * <code>startBufferingProcess</code> method
    */
   private static final int LOAD_HISTORY_ACCEPTED_FAILS_IN_A_ROW = 2;
+
+  /**
+   * The number of streamed records which is added to the history store at a
+   * time, while the query is still running
+   */
+  private static final int STREAMED_RECORDS_PER_BATCH = 10000;
+  
+  /**
+   * When only a window around the playback clock is buffered, how long to
+   * wait (milliseconds) before checking the clock again when the buffer is far
+   * enough in front of it
+   */
+  private static final long PLAYBACK_WINDOW_WAIT_TIME = 500;
+  
+  /**
+   * How far (milliseconds) the playback clock must have moved before the
+   * records behind it is evicted again
+   */
+  private static final long PLAYBACK_WINDOW_EVICTION_STEP = 1000 * 60;
   
   /** A list of action listeners */
   private final List<HistoryLoaderListener> historyLoaderListeners;
@@ -155,6 +202,12 @@ public class HistoryLoader {
    */
   private final SpeedEstimate tagLoadingSpeedEstimate;
   
+  /**
+   * Estimates how much history is loaded per byte of memory, used to keep the
+   * frames within the memory budget
+   */
+  private final SpeedEstimate historyMsPerByteEstimate;
+  
   /** The manager creating all threads */
   private final ThreadManager threadManager;
   
@@ -191,20 +244,54 @@ public class HistoryLoader {
   /** <code>true</code> if all loading should be stopped */
   private final AtomicBoolean stopAllLoading;
   
+  /** The number of workers loading the history in parallel */
+  private final AdaptiveWorkerCount loadingWorkerCount;
+  
+  /** The window around the playback clock which is buffered, if enabled */
+  private final PlaybackWindow playbackWindow;
+  
+  /** The playback control which clock the {@link #playbackWindow} follows */
+  private volatile PlaybackControl playbackControl = null;
+  
+  /** The time the records were last evicted before */
+  private volatile long lastEvictionTime = PlaybackWindow.NO_TIME;
+  
   /**
    * Constructor
    */
   public HistoryLoader() {
     this.threadManager = new ThreadManager();
     this.stopAllLoading = new AtomicBoolean(false);
+    this.loadingWorkerCount = new AdaptiveWorkerCount(
+        Integer.getInteger(HistorySystemProperties.HISTORY_BUFFERING_WORKERS, THREAD_COUNT_ON_LOADING_HISTORY));
+    final long windowLookAhead = Long.getLong(HistorySystemProperties.HISTORY_WINDOW_LOOKAHEAD, 0L);
+    this.playbackWindow = new PlaybackWindow(windowLookAhead,
+        Long.getLong(HistorySystemProperties.HISTORY_WINDOW_RETENTION, windowLookAhead));
     this.dailySnapshotFilter = new DailySnapshotSmartFilter();
     this.tagLoadingSpeedEstimate = new SpeedEstimate(STARTING_SPEED);
     this.tagLoadingSpeedEstimate.setNewMeasurementsRatio(3);
+    this.historyMsPerByteEstimate = new SpeedEstimate(STARTING_HISTORY_MS_PER_BYTE);
+    this.historyMsPerByteEstimate.setNewMeasurementsRatio(3);
+    
+    this.historyStore = new HistoryStore();
     
     this.memoryConsumptionAdviser = new MemoryConsumptionAdviser();
     this.memoryConsumptionAdviser.setMaximumMemoryConsumption(MAXIMUM_MEMORY_CONSUMPTION_PERCENT);
+    this.memoryConsumptionAdviser.setMemoryBudget(Long.getLong(HistorySystemProperties.HISTORY_MEMORY_BUDGET, 0L));
+    this.memoryConsumptionAdviser.setMemoryUsageSource(this.historyStore);
+    this.memoryConsumptionAdviser.addMemoryConsumptionAdviserListener(new MemoryConsumptionAdviserListener() {
+      @Override
+      public void cleanUpObjects() {
+        // Evicts all that the window allows, even if the clock have barely moved
+        evictBehindPlaybackClock(true);
+      }
+
+      @Override
+      public void onMemoryUsageUpdated(final long estimatedMemoryUsage, final long memoryBudget) {
+        // Nothing to do
+      }
+    });
     
-    this.historyStore = new HistoryStore();
     this.tagsLoading = new WorkManager<Long>();
     this.historyLoaderListenersLock = new ReentrantReadWriteLock();
     this.historyLoaderListeners = new ArrayList<HistoryLoaderListener>();
@@ -221,6 +308,8 @@ public class HistoryLoader {
     this.dailySnapshotFilter.clear();
     this.dailySnapshotFilterIsLoadedUntil.clear();
     this.historyStore.clear();
+    this.playbackWindow.clear();
+    this.lastEvictionTime = PlaybackWindow.NO_TIME;
     this.threadManager.clean();
   }
   
@@ -469,7 +558,10 @@ public class HistoryLoader {
   }
   
   /**
-   * Loads the history data of the specified time
+   * Loads the history data of the specified time. The tags are split into
+   * units of work which the loading workers takes from a
+   * {@link WorkStealingQueue}, so that a worker finishing early helps the
+   * others. With one worker all the tags are loaded in one unit.
    * 
    * @param dataTagIds
    *          The tags to load
@@ -484,11 +576,14 @@ public class HistoryLoader {
     // Measures the time it takes to load the data
     final StopWatch stopWatch = StopWatch.start();
     
-    // Keeps a count of how many threads is left
-    final CountDownLatch countDownLatch = new CountDownLatch(THREAD_COUNT_ON_LOADING_HISTORY);
+    // Measures the memory the loaded records uses
+    final long memoryUsageBefore = historyStore.getEstimatedMemoryUsage();
+    
+    final int numberOfWorkers = Math.max(1, Math.min(loadingWorkerCount.getWorkers(), dataTagIds.size()));
+    final WorkStealingQueue<List<Long>> workUnits = createWorkUnits(dataTagIds, numberOfWorkers);
     
-    final ArrayList<Long> dataTagArrayList = new ArrayList<Long>(dataTagIds);
-    int numberOfTagsTaken = 0;
+    // Keeps a count of how many workers is left
+    final CountDownLatch countDownLatch = new CountDownLatch(numberOfWorkers);
     
     // Holds a count of how many errors that have occurred
     final AtomicInteger errorCount = new AtomicInteger();
@@ -496,34 +591,13 @@ public class HistoryLoader {
     // Holds a count of how many records have been retrieved
     final AtomicInteger recordRetrievedCount = new AtomicInteger();
     
-    // Divides the data tag ids between the threads, and starts them to load asynchronously
-    for (int threadCount = 0; 
-        threadCount < THREAD_COUNT_ON_LOADING_HISTORY; 
-        threadCount++) {
-      
-      if (dataTagArrayList.size() > numberOfTagsTaken) {
-        // As long as it is more tags to load
-        int threadNumbersOfTags = (int) (dataTagArrayList.size() / (double) THREAD_COUNT_ON_LOADING_HISTORY);
-        if (threadNumbersOfTags == 0) {
-          threadNumbersOfTags = 1;
-        }
-        if (threadCount + 1 == THREAD_COUNT_ON_LOADING_HISTORY) {
-          // If it is the last thread to be started, it must take the rest of the tags
-          threadNumbersOfTags = dataTagArrayList.size() - numberOfTagsTaken;
-        }
-        
-        final List<Long> threadDataTags = new ArrayList<Long>(dataTagArrayList.subList(numberOfTagsTaken, numberOfTagsTaken + threadNumbersOfTags));
-        
-        // Loads the history asynchronously
-        loadHistoryAsync(threadDataTags, startTime, endTime, countDownLatch, errorCount, recordRetrievedCount);
-        
-        numberOfTagsTaken += threadNumbersOfTags;
-      }
-      else {
-        // If it is no more data tags to get we don't need to run another thread
-        // Usually the thread counts down 
-        countDownLatch.countDown();
-      }
+    // Holds the number of units loaded, and the total time it took to load them
+    final AtomicInteger unitsLoaded = new AtomicInteger();
+    final AtomicLong unitsLoadingTime = new AtomicLong();
+    
+    // Starts the workers, which loads the units asynchronously
+    for (int worker = 0; worker < numberOfWorkers; worker++) {
+      loadHistoryAsync(workUnits, worker, startTime, endTime, countDownLatch, errorCount, recordRetrievedCount, unitsLoaded, unitsLoadingTime);
     }
 
     // Waiting for the threads to finish
@@ -535,8 +609,16 @@ public class HistoryLoader {
       return false; 
     }
     
+    if (unitsLoaded.get() > 0) {
+      loadingWorkerCount.addMeasurement(numberOfWorkers, unitsLoadingTime.get() / (double) unitsLoaded.get());
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(String.format("Loaded %d units with %d workers, %d units stolen. Now using %s",
+            unitsLoaded.get(), numberOfWorkers, workUnits.getStolenCount(), loadingWorkerCount.toString()));
+      }
+    }
+    
     if (errorCount.get() == 0) {
-      if (numberOfTagsTaken > 0) {
+      if (!dataTagIds.isEmpty()) {
         if (recordRetrievedCount.get() / (double) dataTagIds.size() < dataTagIds.size() * 10.0) {
           // If the average number of records per tag is less than 10,
           // the measurement will not be correct as it then is faster to 
@@ -550,11 +632,16 @@ public class HistoryLoader {
           // Is added to the mesaurement only if zero errors.
           this.tagLoadingSpeedEstimate.addMeasurement(this.calculateMsLoaded(dataTagIds.size(), startTime, endTime), stopWatch.stop());
         }
+        
+        final long memoryUsed = historyStore.getEstimatedMemoryUsage() - memoryUsageBefore;
+        if (memoryUsed >= 0) {
+          this.historyMsPerByteEstimate.addMeasurement(this.calculateMsLoaded(dataTagIds.size(), startTime, endTime), memoryUsed);
+        }
       }
     }
     else {
-      if (errorCount.get() >= THREAD_COUNT_ON_LOADING_HISTORY) {
-        // Returns false only if error occurred on all threads
+      if (errorCount.get() >= numberOfWorkers) {
+        // Returns false only if error occurred on all workers
         return false;
       }
     }
@@ -562,10 +649,43 @@ public class HistoryLoader {
   }
   
   /**
-   * Loads history in an asynchronous thread.
+   * Splits the tags into units of work. With one worker all the tags goes
+   * into one unit, with more workers each worker gets
+   * {@link #WORK_UNITS_PER_WORKER} units, of at most
+   * {@link #MAXIMUM_TAGS_PER_WORK_UNIT} tags.
    * 
-   * @param dataTags
+   * @param dataTagIds
    *          The tags to load
+   * @param numberOfWorkers
+   *          The number of workers which will load the units
+   * @return The queue of units the workers takes from
+   */
+  private static WorkStealingQueue<List<Long>> createWorkUnits(final Collection<Long> dataTagIds, final int numberOfWorkers) {
+    final WorkStealingQueue<List<Long>> workUnits = new WorkStealingQueue<List<Long>>(numberOfWorkers);
+    if (dataTagIds.isEmpty()) {
+      return workUnits;
+    }
+    final List<Long> dataTagList = new ArrayList<Long>(dataTagIds);
+    if (numberOfWorkers == 1) {
+      workUnits.add(dataTagList);
+      return workUnits;
+    }
+    final int numberOfUnits = numberOfWorkers * WORK_UNITS_PER_WORKER;
+    final int unitSize = Math.max(1, Math.min(MAXIMUM_TAGS_PER_WORK_UNIT, (dataTagList.size() + numberOfUnits - 1) / numberOfUnits));
+    for (int i = 0; i < dataTagList.size(); i += unitSize) {
+      workUnits.add(new ArrayList<Long>(dataTagList.subList(i, Math.min(dataTagList.size(), i + unitSize))));
+    }
+    return workUnits;
+  }
+  
+  /**
+   * Starts a worker which loads units from the queue in an asynchronous
+   * thread, until there are no more units or the loading is stopped.
+   * 
+   * @param workUnits
+   *          The units of tags to load
+   * @param worker
+   *          The number of this worker in the <code>workUnits</code>
    * @param startTime
    *          The start time from where to start to load
    * @param endTime
@@ -576,9 +696,14 @@ public class HistoryLoader {
    *          If something goes wrong it increments one.
    * @param recordsRetrieved
    *          Adds the number of records that is retrieved to this count
+   * @param unitsLoaded
+   *          Incremented for each unit loaded
+   * @param unitsLoadingTime
+   *          Adds the time in milliseconds each unit took to load
    */
-  private void loadHistoryAsync(final List<Long> dataTags, final Timestamp startTime, final Timestamp endTime, final CountDownLatch countDownLatch,
-      final AtomicInteger errorCount, final AtomicInteger recordsRetrieved) {
+  private void loadHistoryAsync(final WorkStealingQueue<List<Long>> workUnits, final int worker, final Timestamp startTime, final Timestamp endTime,
+      final CountDownLatch countDownLatch, final AtomicInteger errorCount, final AtomicInteger recordsRetrieved,
+      final AtomicInteger unitsLoaded, final AtomicLong unitsLoadingTime) {
     
     threadManager.start("TIM-History-Loader-Buffer-Loading-Thread", new Runnable() {
       @Override
@@ -594,30 +719,74 @@ public class HistoryLoader {
             return;
           }
           
-          final Collection<HistoryTagValueUpdate> tagValues = historyProvider.getHistory(
-              dataTags.toArray(new Long[0]), 
-              startTime, 
-              endTime);
-          
-          historyProvider.resetProgress();
-          
-          if (!stopAllLoading.get()) {
-            // Add the collection to the list of records
-            recordsRetrieved.addAndGet(historyStore.addHistoryValues(
-                DataIdUtil.convertTagIdsToDataIdCollection(dataTags),
-                Arrays.asList(tagValues.toArray(new HistoryUpdate[0])),
-                endTime));
+          List<Long> dataTags;
+          while (!stopAllLoading.get() && !isStopBufferingThread() && (dataTags = workUnits.claim(worker)) != null) {
+            final StopWatch unitStopWatch = StopWatch.start();
+            try {
+              loadWorkUnit(historyProvider, dataTags, startTime, endTime, recordsRetrieved);
+              unitsLoadingTime.addAndGet(unitStopWatch.stop());
+              unitsLoaded.incrementAndGet();
+            }
+            catch (Exception e) {
+              LOG.error("Error occured while trying to retrieve history data.", e);
+            }
           }
         }
-        catch (Exception e) {
-          LOG.error("Error occured while trying to retrieve history data.", e);
-        }
         finally {
           countDownLatch.countDown();
         }
       }
     });
   }
+  
+  /**
+   * Loads the history of one unit of tags into the {@link #historyStore}
+   * 
+   * @param historyProvider
+   *          The provider to load the history from
+   * @param dataTags
+   *          The tags to load
+   * @param startTime
+   *          The start time from where to start to load
+   * @param endTime
+   *          The end time of where to load to.
+   * @param recordsRetrieved
+   *          Adds the number of records that is retrieved to this count
+   */
+  private void loadWorkUnit(final HistoryProvider historyProvider, final List<Long> dataTags, final Timestamp startTime, final Timestamp endTime,
+      final AtomicInteger recordsRetrieved) {
+    
+    // The records are added to the store in batches while the query is
+    // still running. The loaded time is only set with the last batch.
+    final List<HistoryUpdate> batch = new ArrayList<HistoryUpdate>();
+    historyProvider.getHistory(
+        dataTags.toArray(new Long[0]), 
+        startTime, 
+        endTime,
+        new HistoryTagValueUpdateHandler() {
+          @Override
+          public void handle(final HistoryTagValueUpdate update) {
+            batch.add(update);
+            if (batch.size() >= STREAMED_RECORDS_PER_BATCH && !stopAllLoading.get()) {
+              recordsRetrieved.addAndGet(historyStore.addHistoryValues(
+                  Collections.<HistoryUpdateId>emptyList(),
+                  new ArrayList<HistoryUpdate>(batch),
+                  endTime));
+              batch.clear();
+            }
+          }
+        });
+    
+    historyProvider.resetProgress();
+    
+    if (!stopAllLoading.get()) {
+      // Add the rest of the records
+      recordsRetrieved.addAndGet(historyStore.addHistoryValues(
+          DataIdUtil.convertTagIdsToDataIdCollection(dataTags),
+          batch,
+          endTime));
+    }
+  }
 
   /**
    * 
@@ -633,6 +802,178 @@ public class HistoryLoader {
     return (endTime.getTime() - startTime.getTime()) * numberOfTags;
   }
   
+  /**
+   * Shortens the time to load if the records are estimated to use more memory
+   * than what is left of the memory budget
+   * 
+   * @param numberOfTags The number of tags to load
+   * @param startTime The start time you will be loading from
+   * @param endTime The estimated end time to load to
+   * @return The end {@link Timestamp} to load to, no earlier than the minimum
+   *         amount to load per tag after the <code>startTime</code>
+   */
+  protected Timestamp limitToMemoryBudget(final int numberOfTags, final Timestamp startTime, final Timestamp endTime) {
+    final double maximumHistoryTime = memoryConsumptionAdviser.getRemainingMemory() * historyMsPerByteEstimate.getSpeed() / numberOfTags;
+    final long historyTime = endTime.getTime() - startTime.getTime();
+    final long limitedHistoryTime = Math.max(MINIMUM_MS_OF_LOADING_PER_TAG, (long) Math.min(maximumHistoryTime, Long.MAX_VALUE));
+    if (limitedHistoryTime >= historyTime) {
+      return endTime;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(String.format("Loading %.2f hours instead of %.2f hours of history to stay within the memory budget",
+          limitedHistoryTime / (60.0 * 60.0 * 1000.0), historyTime / (60.0 * 60.0 * 1000.0)));
+    }
+    return new Timestamp(startTime.getTime() + limitedHistoryTime);
+  }
+  
+  /**
+   * Shortens the time to load so that no more than the look-ahead of the
+   * {@link PlaybackWindow} in front of the playback clock is loaded
+   * 
+   * @param startTime The start time you will be loading from
+   * @param endTime The estimated end time to load to
+   * @return The end {@link Timestamp} to load to, no earlier than the minimum
+   *         amount to load per tag after the <code>startTime</code>
+   */
+  protected Timestamp limitToPlaybackWindow(final Timestamp startTime, final Timestamp endTime) {
+    final PlaybackControl control = this.playbackControl;
+    if (control == null || !playbackWindow.isEnabled()) {
+      return endTime;
+    }
+    final long windowEnd = Math.max(
+        control.getClockTime() + playbackWindow.getLookAhead(), 
+        startTime.getTime() + MINIMUM_MS_OF_LOADING_PER_TAG);
+    if (windowEnd >= endTime.getTime()) {
+      return endTime;
+    }
+    return new Timestamp(windowEnd);
+  }
+  
+  /**
+   * Is invoked when the playback clock is moved. If the records at the new
+   * time have been evicted, they are marked to be restored by the buffering
+   * thread, which is started if needed.
+   * 
+   * @param time The new time of the playback clock
+   */
+  private void onPlaybackClockMoved(final long time) {
+    if (!playbackWindow.isEnabled() || getHistoryConfiguration() == null) {
+      return;
+    }
+    if (playbackWindow.seek(time, getHistoryConfiguration().getTimespan().getStart().getTime())) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(String.format("The records at '%s' have been evicted, restoring them (%s)", 
+            new Timestamp(time).toString(), playbackWindow.toString()));
+      }
+      // The restored records is evicted again as the clock moves forward
+      this.lastEvictionTime = PlaybackWindow.NO_TIME;
+      if (!isStopBufferingThread()) {
+        startBufferingProcess();
+      }
+    }
+  }
+  
+  /**
+   * Evicts the records which are further behind the playback clock than the
+   * retention of the {@link PlaybackWindow}. Does nothing if the window is
+   * disabled, or if the clock have not moved enough since the last time.
+   * 
+   * @param lowOnMemory
+   *          <code>true</code> to evict even if the clock have moved less than
+   *          {@link #PLAYBACK_WINDOW_EVICTION_STEP} since the last time
+   */
+  private void evictBehindPlaybackClock(final boolean lowOnMemory) {
+    final PlaybackControl control = this.playbackControl;
+    if (control == null || !playbackWindow.isEnabled()) {
+      return;
+    }
+    final long evictionTime = playbackWindow.getEvictionTime(control.getClockTime());
+    if (evictionTime <= getHistoryConfiguration().getTimespan().getStart().getTime()
+        || lastEvictionTime != PlaybackWindow.NO_TIME && evictionTime <= lastEvictionTime
+        || !lowOnMemory && lastEvictionTime != PlaybackWindow.NO_TIME && evictionTime < lastEvictionTime + PLAYBACK_WINDOW_EVICTION_STEP) {
+      return;
+    }
+    final int recordsRemoved = historyStore.evictRecordsBefore(new Timestamp(evictionTime));
+    playbackWindow.evicted(evictionTime);
+    lastEvictionTime = evictionTime;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(String.format("Evicted %d records from before '%s', %d bytes of records left", 
+          recordsRemoved, new Timestamp(evictionTime).toString(), historyStore.getEstimatedMemoryUsage()));
+    }
+  }
+  
+  /**
+   * Restores the next part of the records which were evicted before the
+   * playback clock were moved back to them. The initial values at the start
+   * of the gap is restored first, then one frame of the gap at a time, never
+   * further than the look-ahead in front of the clock.
+   * 
+   * @return <code>true</code> if anything was restored, <code>false</code> if
+   *         nothing needs to be restored yet
+   */
+  private boolean restoreEvictedHistory() {
+    final PlaybackControl control = this.playbackControl;
+    final long gapStart = playbackWindow.getGapStart();
+    if (control == null || gapStart == PlaybackWindow.NO_TIME
+        || playbackWindow.isAheadOfClock(gapStart, control.getClockTime())) {
+      return false;
+    }
+    final long gapEnd = playbackWindow.getGapEnd();
+    
+    final List<Long> tagIds = new ArrayList<Long>();
+    for (final TagValueUpdateId tagValueUpdateId : historyStore.getRegisteredTagValueUpdateIds()) {
+      if (historyStore.isTagInitialized(tagValueUpdateId)) {
+        tagIds.add(tagValueUpdateId.getTagId());
+      }
+    }
+    if (tagIds.isEmpty()) {
+      playbackWindow.initialValuesRestored(gapStart);
+      playbackWindow.restored(gapStart, gapEnd);
+      return true;
+    }
+    
+    final Timestamp startTimestamp = new Timestamp(gapStart);
+    try {
+      final HistoryProvider historyProvider = getHistoryConfiguration().getHistoryProvider();
+      if (playbackWindow.isInitialValuesNeeded()) {
+        final Collection<HistoryTagValueUpdate> values = 
+            historyProvider.getInitialValuesForTags(tagIds.toArray(new Long[0]), startTimestamp);
+        final int recordsRestored = historyStore.restoreEvictedRecords(new ArrayList<HistoryUpdate>(values), true);
+        playbackWindow.initialValuesRestored(gapStart);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(String.format("Restored %d initial values at '%s'", recordsRestored, startTimestamp.toString()));
+        }
+        return true;
+      }
+      
+      Timestamp endTimestamp = estimateEndTimestamp(tagIds.size(), startTimestamp, TARGET_MS_OF_LOADING_PER_BUNCH);
+      endTimestamp = limitToMemoryBudget(tagIds.size(), startTimestamp, endTimestamp);
+      if (endTimestamp.getTime() >= gapEnd) {
+        endTimestamp = new Timestamp(gapEnd - 1);
+      }
+      final Collection<HistoryTagValueUpdate> values = 
+          historyProvider.getHistory(tagIds.toArray(new Long[0]), startTimestamp, endTimestamp);
+      final int recordsRestored = historyStore.restoreEvictedRecords(new ArrayList<HistoryUpdate>(values), false);
+      playbackWindow.restored(gapStart, endTimestamp.getTime());
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(String.format("Restored %d evicted records from '%s' until '%s'", 
+            recordsRestored, startTimestamp.toString(), endTimestamp.toString()));
+      }
+    }
+    catch (NoHistoryProviderAvailableException e) {
+      LOG.error("Unable to restore the evicted records, because no History Provider is available.", e);
+      return false;
+    }
+    catch (Exception e) {
+      LOG.warn("Restoring the evicted records have failed, trying again", e);
+      try {
+        Thread.sleep(LOAD_HISTORY_SLEEP_TIME_ON_FAIL);
+      }
+      catch (InterruptedException e1) { }
+    }
+    return true;
+  }
+  
   /**
    * Estimates the end {@link Timestamp} when loading data, based on the given start time,
    * number of tags, and the desired loading time
@@ -1070,6 +1411,40 @@ public class HistoryLoader {
     return historyStore;
   }
   
+  /**
+   * @return the adviser which keeps the loaded history within the memory
+   *         budget. Listeners can be added to it to follow the memory usage.
+   */
+  public MemoryConsumptionAdviser getMemoryConsumptionAdviser() {
+    return memoryConsumptionAdviser;
+  }
+  
+  /**
+   * Lets the buffering follow the clock of the playback, which is needed to
+   * buffer only a window around the clock.
+   * 
+   * @see HistorySystemProperties#HISTORY_WINDOW_LOOKAHEAD
+   * 
+   * @param playbackControl
+   *          the playback control of the history player
+   */
+  public void setPlaybackControl(final PlaybackControl playbackControl) {
+    this.playbackControl = playbackControl;
+    playbackControl.addPlaybackControlListener(new PlaybackControlAdapter() {
+      @Override
+      public void onClockTimeChanged(final long newTime) {
+        onPlaybackClockMoved(newTime);
+      }
+    });
+  }
+  
+  /**
+   * @return the window around the playback clock which is buffered
+   */
+  public PlaybackWindow getPlaybackWindow() {
+    return playbackWindow;
+  }
+  
   /**
    * 
    * @param calendar
@@ -1121,12 +1496,15 @@ public class HistoryLoader {
       boolean fireMemoryWarning = false;
       
       while (true) {
+        // Frees the records the playback clock have passed before checking the memory
+        evictBehindPlaybackClock(false);
+        
         fireMemoryWarning = !memoryConsumptionAdviser.haveEnoughMemory();
         // While the buffering thread should not stop and loading is not complete
         if (stopLoading
             || isStopBufferingThread() 
-            || historyStore.isLoadingComplete()
-            || fireMemoryWarning
+            || historyStore.isLoadingComplete() && !playbackWindow.hasGap()
+            || fireMemoryWarning && !playbackWindow.isEnabled()
             || stopAllLoading.get()) {
           try {
             historyBufferingThreadLock.writeLock().lock();
@@ -1138,23 +1516,52 @@ public class HistoryLoader {
           break;
         }
         
-        // Skips days that doesn't need to be loaded
+        // Waits for the playback clock to move on, which evicts the records
+        // behind it and frees memory, instead of stopping the loading for good
+        if (fireMemoryWarning) {
+          try {
+            Thread.sleep(PLAYBACK_WINDOW_WAIT_TIME);
+          }
+          catch (InterruptedException e) { }
+          continue;
+        }
+        
+        // Restores the records evicted at the time the playback clock were moved back to
+        if (restoreEvictedHistory()) {
+          continue;
+        }
+        
+        // Skips days that doesn't need to be loaded. Only the tags which is
+        // loaded the shortest are checked, as those are the ones to load next.
         long totalSkippedTime = 0;
-        for (final HistoryUpdateId historyUpdateId : historyStore.getRegisteredDataIds()) {
-          if (historyUpdateId.isTagValueUpdateIdType() && historyStore.isTagInitialized(historyUpdateId)) {
-            // Don't load the tag if it is not accepted
+        Timestamp oldestTimestamp = historyStore.getOldestTagHaveRecordsUntilTime();
+        Collection<HistoryUpdateId> idsWithOldestTime = Collections.emptyList();
+        boolean skippedAny = true;
+        while (oldestTimestamp != null && skippedAny) {
+          skippedAny = false;
+          idsWithOldestTime = historyStore.getTagsHaveRecordsUntilTime(oldestTimestamp);
+          for (final HistoryUpdateId historyUpdateId : idsWithOldestTime) {
             final Timestamp tagIsLoadedUntil = historyStore.getTagHaveRecordsUntilTime(historyUpdateId);
+            if (tagIsLoadedUntil == null) {
+              // Removed while buffering
+              continue;
+            }
             
             final Timespan skipTimespan = dailySnapshotFilter.getTimespan(historyUpdateId.toTagValueUpdateId().getTagId(), tagIsLoadedUntil);
             
-            if (skipTimespan != null) {
+            if (skipTimespan != null && skipTimespan.getEnd().after(tagIsLoadedUntil)) {
               historyStore.addHistoryValues(
                     new ArrayList<HistoryUpdateId>(Arrays.asList(historyUpdateId)), 
                     new ArrayList<HistoryUpdate>(),
                     skipTimespan.getEnd());
               totalSkippedTime += skipTimespan.getEnd().getTime() - tagIsLoadedUntil.getTime();
+              skippedAny = true;
             }
           }
+          if (skippedAny) {
+            // Some of the tags moved forward, finds the oldest tags again
+            oldestTimestamp = historyStore.getOldestTagHaveRecordsUntilTime();
+          }
         }
         
         if (totalSkippedTime > 0 && LOG.isDebugEnabled()) {
@@ -1167,79 +1574,49 @@ public class HistoryLoader {
         // List of tags which should be loaded
         final List<Long> tagsWithOldestTime = new ArrayList<Long>();
         
-        // Finds also the oldest timestamp
-        Timestamp oldestTimestamp = getHistoryConfiguration().getTimespan().getEnd();
-        
-        for (int tryCount = 0; tryCount <= 1 && tagsWithOldestTime.size() <= 0; tryCount++) {
-          
-          if (tryCount == 1) {
-            // If it doesn't find any tags the first time
-            // it uses the oldest timestamp
-            if (oldestTimestamp.before(getHistoryConfiguration().getTimespan().getEnd())) {
-              loadedUntilTime = oldestTimestamp;
-              if (LOG.isDebugEnabled()) {
-                LOG.debug("Buffering: Didn't find any matching dates, using the oldest timestamp");
-              }
+        if (oldestTimestamp != null) {
+          if (oldestTimestamp.equals(loadedUntilTime) 
+              || oldestTimestamp.before(getHistoryConfiguration().getTimespan().getEnd())) {
+            if (!oldestTimestamp.equals(loadedUntilTime) && LOG.isDebugEnabled()) {
+              LOG.debug("Buffering: Didn't find any matching dates, using the oldest timestamp");
             }
-            else {
-              if (LOG.isDebugEnabled()) {
-                LOG.debug("Buffering: The oldest timestamp is the end timestamp.");
-              }
+            loadedUntilTime = oldestTimestamp;
+            for (final HistoryUpdateId historyUpdateId : idsWithOldestTime) {
+              tagsWithOldestTime.add(historyUpdateId.toTagValueUpdateId().getTagId());
             }
           }
-          
-          // Keeps a list of supervision event ids which are not fully loaded.
-          // This can happen if the user expand the time span for the history playback
-          final List<SupervisionEventId> supervisionIds = new ArrayList<SupervisionEventId>();
-          
-          // Finds the tags to load
-          for (final HistoryUpdateId historyUpdateId : historyStore.getRegisteredDataIds()) {
-            if (historyUpdateId.isTagValueUpdateIdType() && historyStore.isTagInitialized(historyUpdateId)) {
-              // Don't load the tag if it is not accepted
-              final Timestamp tagIsLoadedUntil = historyStore.getTagHaveRecordsUntilTime(historyUpdateId);
-              
-              if (tagIsLoadedUntil.before(oldestTimestamp)) {
-                oldestTimestamp = tagIsLoadedUntil;
-              }
-              
-              if (tagIsLoadedUntil.equals(loadedUntilTime)) {
-                tagsWithOldestTime.add(historyUpdateId.toTagValueUpdateId().getTagId());
-              }
-            }
-            else if (historyUpdateId.isSupervisionEventIdType()) {
-              final Timestamp tagIsLoadedUntil = historyStore.getTagHaveRecordsUntilTime(historyUpdateId);
-              if (tagIsLoadedUntil == null || tagIsLoadedUntil.compareTo(historyStore.getEnd()) < 0) {
-                supervisionIds.add(historyUpdateId.toSupervisionEventId());
-              }
-            }
+          else if (LOG.isDebugEnabled()) {
+            LOG.debug("Buffering: The oldest timestamp is the end timestamp.");
           }
-          
-          if (!supervisionIds.isEmpty()) {
-            // This can happen if the user expand the time span for the history playback
-            
-            if (LOG.isDebugEnabled()) {
-              LOG.debug(String.format("Loading %d supervision events", supervisionIds.size()));
-            }
-            fireInitializingHistoryStarting();
-            fireInitializingHistoryProgress(String.format(
-                "Loading %d supervision events", supervisionIds.size()));
-            try {
-              loadInitialSupervisionEvents(supervisionIds);
-            }
-            catch (Exception e) {
-              LOG.error(
-                  String.format(
-                      "Something went wrong trying to load %s supervision events",
-                      supervisionIds.size()), 
-                  e);
-              throw new RuntimeException("Something went wrong when trying to load supervision events, no more data will be loaded..");
-            }
-            finally {
-              fireInitializingHistoryFinished();
-            }
-            if (LOG.isDebugEnabled()) {
-              LOG.debug(String.format("Loaded %d supervision events successfully", supervisionIds.size()));
-            }
+        }
+        
+        // The supervision events which are not fully loaded.
+        // This can happen if the user expand the time span for the history playback
+        final Collection<SupervisionEventId> supervisionIds = historyStore.getSupervisionEventsHaveRecordsBefore(historyStore.getEnd());
+        
+        if (!supervisionIds.isEmpty()) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Loading %d supervision events", supervisionIds.size()));
+          }
+          fireInitializingHistoryStarting();
+          fireInitializingHistoryProgress(String.format(
+              "Loading %d supervision events", supervisionIds.size()));
+          try {
+            loadInitialSupervisionEvents(supervisionIds);
+          }
+          catch (Exception e) {
+            LOG.error(
+                String.format(
+                    "Something went wrong trying to load %s supervision events",
+                    supervisionIds.size()), 
+                e);
+            throw new RuntimeException("Something went wrong when trying to load supervision events, no more data will be loaded..");
+          }
+          finally {
+            fireInitializingHistoryFinished();
+          }
+          if (LOG.isDebugEnabled()) {
+            LOG.debug(String.format("Loaded %d supervision events successfully", supervisionIds.size()));
           }
         }
         
@@ -1250,6 +1627,17 @@ public class HistoryLoader {
           continue;
         }
         
+        // Waits for the playback clock if the buffer is far enough in front of it
+        final PlaybackControl control = playbackControl;
+        if (oldestTimestamp != null && control != null 
+            && playbackWindow.isAheadOfClock(oldestTimestamp.getTime(), control.getClockTime())) {
+          try {
+            Thread.sleep(PLAYBACK_WINDOW_WAIT_TIME);
+          }
+          catch (InterruptedException e) { }
+          continue;
+        }
+        
         // Registers that we want to load the given tags.
         // The returned tags is the tags which is not already being worked on.
         final Collection<Long> tagsToLoad = tagsLoading.registerWork(tagsWithOldestTime);
@@ -1276,21 +1664,26 @@ public class HistoryLoader {
           
           // Gets the start time and estimates the ending time
           final Timestamp startTimestamp = new Timestamp(loadedUntilTime.getTime() + 1);
-          final Timestamp endTimestamp;
+          final Timestamp estimatedEndTimestamp;
           
           // Estimates the ending time given how long it wants to load
           if (currentDataFrame == 0) {
             // If it is the first frame, it targets a lower time for the retrieval. Choosing shorter time periode
-            endTimestamp = estimateEndTimestamp(tagsToLoad.size(), startTimestamp, TARGET_MS_OF_LOADING_FIRST_BUNCH);
+            estimatedEndTimestamp = estimateEndTimestamp(tagsToLoad.size(), startTimestamp, TARGET_MS_OF_LOADING_FIRST_BUNCH);
           }
           else {
-            endTimestamp = estimateEndTimestamp(tagsToLoad.size(), startTimestamp, TARGET_MS_OF_LOADING_PER_BUNCH);
+            estimatedEndTimestamp = estimateEndTimestamp(tagsToLoad.size(), startTimestamp, TARGET_MS_OF_LOADING_PER_BUNCH);
             
             if (LOG.isDebugEnabled()) {
               LOG.debug(String.format("Loading history at speed: %.2f hours of data per second", tagLoadingSpeedEstimate.getSpeed() / (60.0*60.0)));
             }
           }
           
+          // Loads less if the records would not fit within the memory budget,
+          // or would be further in front of the playback clock than needed
+          final Timestamp endTimestamp = limitToPlaybackWindow(startTimestamp, 
+              limitToMemoryBudget(tagsToLoad.size(), startTimestamp, estimatedEndTimestamp));
+          
           // Loads the history
           final boolean result = loadHistory(tagsToLoad, startTimestamp, endTimestamp);
           
@@ -20,22 +20,27 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import cern.c2mon.client.ext.history.common.HistoryUpdate;
 import cern.c2mon.client.ext.history.common.id.HistoryUpdateId;
+import cern.c2mon.client.ext.history.common.id.SupervisionEventId;
 import cern.c2mon.client.ext.history.common.id.TagValueUpdateId;
+import cern.c2mon.client.ext.history.dbaccess.HistorySystemProperties;
 import cern.c2mon.client.ext.history.data.event.HistoryStoreListener;
 import cern.c2mon.client.ext.history.data.utilities.HistoryDataUtil;
+import cern.c2mon.client.ext.history.data.utilities.MemoryUsageSource;
 import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
+import cern.c2mon.client.ext.history.util.CompactHistoryGroup;
 import cern.c2mon.client.ext.history.util.HistoryGroup;
+import cern.c2mon.client.ext.history.util.IndexedLongMinHeap;
 import cern.c2mon.shared.client.tag.TagValueUpdate;
 
 /**
@@ -45,17 +50,24 @@ import cern.c2mon.shared.client.tag.TagValueUpdate;
  * 
  * @author vdeila
  */
-public class HistoryStore {
+public class HistoryStore implements MemoryUsageSource {
 
   /** A list of data ids which will be filtered out */
   private static final HistoryUpdateId[] ILLEGAL_IDS = new HistoryUpdateId[] { 
     new TagValueUpdateId(-1L), new TagValueUpdateId(0L) };
   
-  /** A map containing all history for all the objects */
-  private Map<HistoryUpdateId, HistoryGroup> dataHistories;
+  /**
+   * The history, initialization state and loaded until time of each data id.
+   * The state can be read without any locking.
+   */
+  private final ConcurrentMap<HistoryUpdateId, IdState> idStates;
 
-  /** A lock for dataTagHistories map */
-  private ReentrantReadWriteLock dataTagHistoriesLock;
+  /**
+   * The estimated memory used by the records in {@link #idStates}, in bytes.
+   * The sum of the estimates of the states, see
+   * {@link #addEstimatedMemoryUsage(IdState, long)}.
+   */
+  private final AtomicLong estimatedMemoryUsage;
 
   /** The history player's start date */
   private Timestamp start;
@@ -70,26 +82,31 @@ public class HistoryStore {
   private ReentrantReadWriteLock historyStoreListenersLock;
 
   /**
-   * A map with the dataIds, each containing the ending time for how far the
-   * records have been retrieved. All data which can be loaded will be in this
-   * list, even just with the start time as timestamp.
+   * A lock for changing the loaded until time or the initialization state of
+   * the {@link #idStates}, and for the heaps ordering them by the loaded until
+   * time. Reading the state of an id doesn't need this lock.
    */
-  private Map<HistoryUpdateId, Timestamp> tagsHaveRecordsUntilTime;
+  private final ReentrantReadWriteLock loadedUntilLock;
 
   /**
-   * A lock for tagsHaveRecordsUntilTime list. The {@link #initializedTagsLock}
-   * must be held before locking this lock if used at the same time.
+   * The registered ids ordered by their loaded until time, to find how far
+   * everything is loaded without going through all the ids. Guarded by
+   * {@link #loadedUntilLock}.
    */
-  private ReentrantReadWriteLock tagsHaveRecordsUntilTimeLock;
+  private final IndexedLongMinHeap<HistoryUpdateId> recordsUntilTimeHeap;
 
-  /** 
-   * Data that have been initialized, i.e. first value is loaded.
-   * A tag will not be loaded before it is initialized.
+  /**
+   * The initialized tag value update ids of {@link #recordsUntilTimeHeap},
+   * which are the ones the buffering loads. Guarded by
+   * {@link #loadedUntilLock}.
    */
-  private Set<HistoryUpdateId> initializedTags;
+  private final IndexedLongMinHeap<HistoryUpdateId> loadableTagsUntilTimeHeap;
 
-  /** Lock for {@link #initializedTags} */
-  private ReentrantReadWriteLock initializedTagsLock;
+  /**
+   * The supervision event ids of {@link #recordsUntilTimeHeap}. Guarded by
+   * {@link #loadedUntilLock}.
+   */
+  private final IndexedLongMinHeap<HistoryUpdateId> supervisionEventsUntilTimeHeap;
 
   /**
    * <code>true</code> if any records or DataTagHistorys have been added or
@@ -119,6 +136,12 @@ public class HistoryStore {
    */
   private ReentrantReadWriteLock batchesGoingOnLock;
   
+  /**
+   * <code>true</code> to keep the tag records in {@link CompactHistoryGroup}s
+   * instead of as a list of objects
+   */
+  private volatile boolean compactStorage;
+
   /** Postponed callbacks to {@link #fireOnObjectsInitialized(Collection)}} because it is batching */
   private final List<HistoryUpdateId> postponedFireOnObjectsInitialized;
 
@@ -131,10 +154,8 @@ public class HistoryStore {
   public HistoryStore() {
     this.postponedFireOnObjectsInitialized = new ArrayList<HistoryUpdateId>();
     this.postponedFireOnObjectCollectionChanged = new ArrayList<HistoryUpdateId>();
-    this.dataTagHistoriesLock = new ReentrantReadWriteLock();
     this.historyStoreListenersLock = new ReentrantReadWriteLock();
-    this.tagsHaveRecordsUntilTimeLock = new ReentrantReadWriteLock();
-    this.initializedTagsLock = new ReentrantReadWriteLock();
+    this.loadedUntilLock = new ReentrantReadWriteLock();
     this.recordsLoadedUntilTimeLock = new ReentrantReadWriteLock();
     this.batchesGoingOnLock = new ReentrantReadWriteLock();
 
@@ -142,13 +163,16 @@ public class HistoryStore {
     this.start = new Timestamp(theTime);
     this.end = new Timestamp(theTime);
 
-    this.dataHistories = new Hashtable<HistoryUpdateId, HistoryGroup>();
+    this.idStates = new ConcurrentHashMap<HistoryUpdateId, IdState>();
+    this.estimatedMemoryUsage = new AtomicLong(0);
     this.historyStoreListeners = new ArrayList<HistoryStoreListener>();
-    this.tagsHaveRecordsUntilTime = new HashMap<HistoryUpdateId, Timestamp>();
-    this.initializedTags = new HashSet<HistoryUpdateId>();
+    this.recordsUntilTimeHeap = new IndexedLongMinHeap<HistoryUpdateId>();
+    this.loadableTagsUntilTimeHeap = new IndexedLongMinHeap<HistoryUpdateId>();
+    this.supervisionEventsUntilTimeHeap = new IndexedLongMinHeap<HistoryUpdateId>();
     this.recordsLoadedUntilTime = null;
     this.recordsLoadedUntilTimeIsDirty = false;
     this.batchesGoingOn = 0;
+    this.compactStorage = Boolean.getBoolean(HistorySystemProperties.HISTORY_COMPACT_STORAGE);
   }
 
   /**
@@ -156,31 +180,17 @@ public class HistoryStore {
    */
   public void clear() {
 
-    // Clears the dataTagHistories
-    try {
-      this.dataTagHistoriesLock.writeLock().lock();
-      this.dataHistories.clear();
-    }
-    finally {
-      this.dataTagHistoriesLock.writeLock().unlock();
-    }
-
-    // Clears the tagsHaveRecordsUntilTime
+    // Clears the state of all the data
     try {
-      this.tagsHaveRecordsUntilTimeLock.writeLock().lock();
-      this.tagsHaveRecordsUntilTime.clear();
+      this.loadedUntilLock.writeLock().lock();
+      this.idStates.clear();
+      this.estimatedMemoryUsage.set(0);
+      this.recordsUntilTimeHeap.clear();
+      this.loadableTagsUntilTimeHeap.clear();
+      this.supervisionEventsUntilTimeHeap.clear();
     }
     finally {
-      this.tagsHaveRecordsUntilTimeLock.writeLock().unlock();
-    }
-
-    // Clears the initializedTags
-    try {
-      this.initializedTagsLock.writeLock().lock();
-      this.initializedTags.clear();
-    }
-    finally {
-      this.initializedTagsLock.writeLock().unlock();
+      this.loadedUntilLock.writeLock().unlock();
     }
 
     // Clears the recordsLoadedUntilTime, recordsLoadedUntilTimeIsDirty
@@ -223,40 +233,24 @@ public class HistoryStore {
         // after updating the values
         final Timestamp recordsLoadedUntilTimeOldValue = this.recordsLoadedUntilTime;
 
-        boolean haveAllValues = true;
         Timestamp leastLoadedTimestamp = this.getEnd();
-        final HistoryUpdateId[] dataIds;
         try {
-          this.tagsHaveRecordsUntilTimeLock.readLock().lock();
-          dataIds = this.tagsHaveRecordsUntilTime.keySet().toArray(new HistoryUpdateId[0]);
+          this.loadedUntilLock.readLock().lock();
+          // The data which is loaded the shortest is first in the heap
+          final HistoryUpdateId leastLoadedId = this.recordsUntilTimeHeap.peek();
+          if (leastLoadedId != null) {
+            final Timestamp registeredEndTime = this.idStates.get(leastLoadedId).loadedUntil;
+            if (registeredEndTime.before(leastLoadedTimestamp)) {
+              leastLoadedTimestamp = registeredEndTime;
+            }
+          }
         }
         finally {
-          this.tagsHaveRecordsUntilTimeLock.readLock().unlock();
+          this.loadedUntilLock.readLock().unlock();
         }
 
-        for (HistoryUpdateId historyUpdateId : dataIds) {
-          final Timestamp registeredEndTime = getTagHaveRecordsUntilTime(historyUpdateId);
-          if (registeredEndTime == null) {
-            // If there isn't any registered time, it have not been loaded at
-            // all.
-            haveAllValues = false;
-            break;
-          }
-          else if (registeredEndTime.before(leastLoadedTimestamp)) {
-            // If the timestamp is less than all the other timestamps so far
-            // we can only say everything is only fully loaded until this time.
-            leastLoadedTimestamp = registeredEndTime;
-          }
-        }
-
-        if (!haveAllValues) {
-          // If we don't have all the values, something is not loaded at all
-          this.recordsLoadedUntilTime = getStart();
-        }
-        else {
-          // Everything is fully loaded until this timestamp
-          this.recordsLoadedUntilTime = leastLoadedTimestamp;
-        }
+        // Everything is fully loaded until this timestamp
+        this.recordsLoadedUntilTime = leastLoadedTimestamp;
 
         if (recordsLoadedUntilTimeOldValue == null || !recordsLoadedUntilTimeOldValue.equals(this.recordsLoadedUntilTime)) {
           newTimestamp = this.recordsLoadedUntilTime;
@@ -373,53 +367,140 @@ public class HistoryStore {
   }
 
   /**
-   * Removes the value from
+   * The value is only set if <code>time</code> is after the value already there
+   * (if any)
    * 
    * @param historyUpdateId
-   *          The id of the data to remove
+   *          The data id to set the new time for
+   * @param time
+   *          The time to set
    */
-  private void removeTagHaveRecordsUntilTime(final HistoryUpdateId historyUpdateId) {
-    setTagHaveRecordsUntilTime(historyUpdateId, null);
+  private void setTagHaveRecordsUntilTime(final HistoryUpdateId historyUpdateId, final Timestamp time) {
+    boolean changed = false;
+    try {
+      this.loadedUntilLock.writeLock().lock();
+      final IdState state = getOrCreateState(historyUpdateId);
+      // Don't update the value if it already exists a later time for the dataId
+      if (state.loadedUntil == null || time.after(state.loadedUntil)) {
+        state.loadedUntil = time;
+        putIntoHeaps(state);
+        changed = true;
+      }
+    }
+    finally {
+      this.loadedUntilLock.writeLock().unlock();
+    }
+    if (changed) {
+      this.setRecordsLoadedUntilTimeIsDirty(true);
+    }
   }
 
   /**
-   * The value is only set if <code>time</code> is after the value already there
-   * (if any)
+   * Puts the loaded until time of the state into the heaps. The write lock of
+   * {@link #loadedUntilLock} must be held.
+   * 
+   * @param state
+   *          The state of a registered data id
+   */
+  private void putIntoHeaps(final IdState state) {
+    final HistoryUpdateId historyUpdateId = state.id;
+    final long time = state.loadedUntil.getTime();
+    this.recordsUntilTimeHeap.put(historyUpdateId, time);
+    if (historyUpdateId.isSupervisionEventIdType()) {
+      this.supervisionEventsUntilTimeHeap.put(historyUpdateId, time);
+    }
+    else if (state.initialized && historyUpdateId.isTagValueUpdateIdType()) {
+      this.loadableTagsUntilTimeHeap.put(historyUpdateId, time);
+    }
+  }
+
+  /**
+   * Removes the data id from the heaps. The write lock of
+   * {@link #loadedUntilLock} must be held.
    * 
    * @param historyUpdateId
-   *          The data id to set the new time for
-   * @param time
-   *          The time to set, or <code>null</code> to remove
+   *          The data id to remove
    */
-  private void setTagHaveRecordsUntilTime(final HistoryUpdateId historyUpdateId, final Timestamp time) {
-    Boolean add = null;
-    if (time == null) {
-      add = false;
+  private void removeFromHeaps(final HistoryUpdateId historyUpdateId) {
+    this.recordsUntilTimeHeap.remove(historyUpdateId);
+    this.loadableTagsUntilTimeHeap.remove(historyUpdateId);
+    this.supervisionEventsUntilTimeHeap.remove(historyUpdateId);
+  }
+
+  /**
+   * @param historyUpdateId
+   *          The data id
+   * @return The state of the data id, created if it doesn't exist
+   */
+  private IdState getOrCreateState(final HistoryUpdateId historyUpdateId) {
+    final IdState state = this.idStates.get(historyUpdateId);
+    if (state != null) {
+      return state;
     }
-    else {
-      final Timestamp oldTimestamp = getTagHaveRecordsUntilTime(historyUpdateId);
-      add = oldTimestamp == null || time.after(oldTimestamp);
-      if (!add) {
-        add = null;
+    final IdState newState = new IdState(historyUpdateId);
+    final IdState existingState = this.idStates.putIfAbsent(historyUpdateId, newState);
+    return existingState != null ? existingState : newState;
+  }
+
+  /**
+   * 
+   * @return The earliest time the initialized tags have records until, or
+   *         <code>null</code> if there are no initialized tags
+   */
+  public Timestamp getOldestTagHaveRecordsUntilTime() {
+    try {
+      this.loadedUntilLock.readLock().lock();
+      final HistoryUpdateId oldestId = this.loadableTagsUntilTimeHeap.peek();
+      if (oldestId == null) {
+        return null;
       }
+      return this.idStates.get(oldestId).loadedUntil;
+    }
+    finally {
+      this.loadedUntilLock.readLock().unlock();
     }
+  }
 
-    // Don't update the value if it already exists a later time for the dataId
-    if (add != null) {
-      try {
-        this.tagsHaveRecordsUntilTimeLock.writeLock().lock();
-        if (add) {
-          this.tagsHaveRecordsUntilTime.put(historyUpdateId, time);
-        }
-        else {
-          this.tagsHaveRecordsUntilTime.remove(historyUpdateId);
-        }
-      }
-      finally {
-        this.tagsHaveRecordsUntilTimeLock.writeLock().unlock();
-      }
-      this.setRecordsLoadedUntilTimeIsDirty(true);
+  /**
+   * 
+   * @param time
+   *          The time to compare with
+   * @return The initialized tags which have records until the time, or an
+   *         earlier time. Only the tags found are visited, not all the tags.
+   */
+  public Collection<HistoryUpdateId> getTagsHaveRecordsUntilTime(final Timestamp time) {
+    final List<HistoryUpdateId> result = new ArrayList<HistoryUpdateId>();
+    try {
+      this.loadedUntilLock.readLock().lock();
+      this.loadableTagsUntilTimeHeap.collect(time.getTime(), result);
+    }
+    finally {
+      this.loadedUntilLock.readLock().unlock();
+    }
+    return result;
+  }
+
+  /**
+   * 
+   * @param time
+   *          The time to compare with
+   * @return The supervision events which have records until a time before the
+   *         given time
+   */
+  public Collection<SupervisionEventId> getSupervisionEventsHaveRecordsBefore(final Timestamp time) {
+    final List<HistoryUpdateId> ids = new ArrayList<HistoryUpdateId>();
+    try {
+      this.loadedUntilLock.readLock().lock();
+      this.supervisionEventsUntilTimeHeap.collect(time.getTime() - 1, ids);
+    }
+    finally {
+      this.loadedUntilLock.readLock().unlock();
+    }
+    final List<SupervisionEventId> result = new ArrayList<SupervisionEventId>(ids.size());
+    for (final HistoryUpdateId id : ids) {
+      result.add(id.toSupervisionEventId());
     }
+    return result;
   }
 
   /**
@@ -430,13 +511,11 @@ public class HistoryStore {
    *         tag Id
    */
   public Timestamp getTagHaveRecordsUntilTime(final HistoryUpdateId historyUpdateId) {
-    try {
-      this.tagsHaveRecordsUntilTimeLock.readLock().lock();
-      return this.tagsHaveRecordsUntilTime.get(historyUpdateId);
-    }
-    finally {
-      this.tagsHaveRecordsUntilTimeLock.readLock().unlock();
+    final IdState state = this.idStates.get(historyUpdateId);
+    if (state == null) {
+      return null;
     }
+    return state.loadedUntil;
   }
 
   /**
@@ -494,26 +573,15 @@ public class HistoryStore {
         // it means no updates have been made in the periode to today.
         // It therefore doesn't need to be fetched from the server.
         if (tag.getServerTimestamp() != null && tag.getServerTimestamp().before(this.getStart())) {
-          boolean wasRegistered = false;
-
-          // Puts the TagHistory into the dataTagHistories map
-          try {
-            this.dataTagHistoriesLock.writeLock().lock();
-            wasRegistered = !this.dataHistories.containsKey(tagDataId);
-            if (wasRegistered) {
-              final HistoryGroup historyGroup = new HistoryGroup(tagDataId);
-              
-              // Adds the record to the histories
-              historyGroup.add(new HistoryTagValueUpdateImpl(tag));
-
-              this.dataHistories.put(tagDataId, historyGroup);
-            }
-          }
-          finally {
-            this.dataTagHistoriesLock.writeLock().unlock();
-          }
+          // Puts the TagHistory into the state of the tag
+          final HistoryGroup historyGroup = createHistoryGroup(tagDataId);
+          historyGroup.add(new HistoryTagValueUpdateImpl(tag));
+          final IdState state = getOrCreateState(tagDataId);
+          final boolean wasRegistered = state.history.compareAndSet(null, historyGroup);
 
           if (wasRegistered) {
+            addEstimatedMemoryUsage(state, historyGroup.getEstimatedMemoryUsage());
+
             // Adds the tag to the list of registered data as it is not added to
             // the result
             registeredTags.add(tagDataId);
@@ -558,30 +626,11 @@ public class HistoryStore {
   public HistoryUpdate getTagValue(final HistoryUpdateId historyUpdateId, final long time) {
     final HistoryGroup history = this.getHistory(historyUpdateId);
 
+    // If there is no history for this data tag, the latest value is null
+    // which results in invalidating the data tag later on.
     HistoryUpdate latestValue = null;
     if (history != null) {
-      final HistoryUpdate[] logRecords = history.getHistory();
-
-      // check if there is any history for this data tag, if none is found
-      // we set the latest value to null which results in invalidating the
-      // data tag later on.
-
-      if (logRecords != null && logRecords.length > 0) {
-        // init latest value with first log record
-
-        for (HistoryUpdate record : logRecords) {
-          // look for the first timestamp that is over the current time,
-          // then take the value just before
-
-          if (record != null && record.getExecutionTimestamp() != null) {
-            // If record is null or the timestamp is null, it is useless..
-            if (record.getExecutionTimestamp().getTime() > time) {
-              break;
-            }
-            latestValue = record;
-          }
-        }
-      }
+      latestValue = history.getLatestUpdate(time);
     }
     return latestValue;
   }
@@ -629,7 +678,12 @@ public class HistoryStore {
   /**
    * Adds the history records to the store, except the data which are not
    * initialized. Call the {@link #addInitialHistoryData(Collection, Timestamp)}
-   * with the initial data for the data you want to initialize.
+   * with the initial data for the data you want to initialize.<br/>
+   * <br/>
+   * Records which are already in the store, with the same timestamps and
+   * value, are not added again, so the batches streamed by a query which
+   * failed can be loaded again when the query is retried. See
+   * {@link HistoryGroup#addMissing(HistoryUpdate[])}.
    * 
    * @param historyUpdateIds
    *          The data ids which is loaded. The loaded end time will be set for
@@ -656,50 +710,40 @@ public class HistoryStore {
 
     // Loops through the tagHistoryCollection. Adds all the valid ones.
     for (final HistoryGroup newHistory : tagHistories) {
-      if (newHistory.getHistory() != null && newHistory.getHistory().length > 0) {
+      final HistoryUpdate[] historyValues = newHistory.getHistory();
+      if (historyValues == null || historyValues.length == 0) {
+        continue;
+      }
 
-        // The data is not added if the tag is not registered
-        if (!isTagInitialized(newHistory.getTagId())) {
+      // The data is not added if the tag is not registered
+      final IdState state = this.idStates.get(newHistory.getTagId());
+      if (state == null || !state.initialized) {
+        continue;
+      }
+
+      HistoryGroup historyGroup = state.history.get();
+      if (historyGroup == null) {
+        // The records is added before the new group is made visible to others
+        final HistoryGroup createdGroup = createHistoryGroup(newHistory.getTagId());
+        final int createdRecords = createdGroup.addSorted(historyValues);
+        if (state.history.compareAndSet(null, createdGroup)) {
+          initializedIds.add(createdGroup.getTagId());
+          recordsAdded += createdRecords;
+          addEstimatedMemoryUsage(state, createdGroup.getEstimatedMemoryUsage());
           continue;
         }
+        historyGroup = state.history.get();
+      }
 
-        addedIds.add(newHistory.getTagId());
-
-        // Checks if a DataTagHistory already exists for the tag,
-        // if not it this new history object will be added.
-        try {
-          this.dataTagHistoriesLock.writeLock().lock();
-          HistoryGroup historyGroup = this.dataHistories.get(newHistory.getTagId());
-
-          final HistoryUpdate[] historyValues = newHistory.getHistory();
-          
-          if (historyValues != null && historyValues.length > 0) {
-            // If tagHistory not already exists it it created and added to the
-            // dataTagHistories map
-            if (historyGroup == null) {
-              historyGroup = new HistoryGroup(newHistory.getTagId());
-              this.dataHistories.put(historyGroup.getTagId(), historyGroup);
-              initializedIds.add(historyGroup.getTagId());
-              addedIds.remove(historyGroup.getTagId());
-            }
-  
-            // Adds all the records of class TagValueUpdate which is not null
-            // and does have a Timestamp.
-            for (final HistoryUpdate tagValueUpdate : historyValues) {
-              if (tagValueUpdate.getExecutionTimestamp() != null) {
-                historyGroup.add(tagValueUpdate);
-                recordsAdded++;
-              }
-            }
-  
-            // Sorts the records
-            this.sortRecordsInDataTagHistory(historyGroup);
-          }
-        }
-        finally {
-          this.dataTagHistoriesLock.writeLock().unlock();
-        }
+      // Adds the records to the existing group, which keeps them sorted by
+      // execution time. Only the group itself is locked while doing so.
+      final int addedRecords = historyGroup.addMissing(historyValues);
+      if (addedRecords == 0) {
+        continue;
       }
+      addedIds.add(historyGroup.getTagId());
+      recordsAdded += addedRecords;
+      addEstimatedMemoryUsage(state, addedRecords * historyGroup.getEstimatedBytesPerRecord());
     }
     
     for (final HistoryUpdateId historyUpdateId : historyUpdateIds) {
@@ -724,49 +768,96 @@ public class HistoryStore {
   }
 
   /**
-   * Sorts the records by {@link TagValueUpdate#getServerTimestamp()} ascending
-   * 
-   * @param history
-   *          The history containing the records to sort
-   */
-  private void sortRecordsInDataTagHistory(final HistoryGroup history) {
-    history.sortHistory(new Comparator<HistoryUpdate>() {
-      /**
-       * Sort by {@link TagValueUpdate#getServerTimestamp()}
-       */
-      @Override
-      public int compare(final HistoryUpdate tagValueUpdate1, final HistoryUpdate tagValueUpdate2) {
-        if (tagValueUpdate1 == null || tagValueUpdate2 == null) {
-          return whichIsNull(tagValueUpdate1, tagValueUpdate2);
-        }
-
-        return tagValueUpdate1.getExecutionTimestamp().compareTo(tagValueUpdate2.getExecutionTimestamp());
+   * Removes the tag records which executes before the given time, to free the
+   * memory when only a window around the playback clock is kept. The latest
+   * record before the time is kept for each tag, so the values at the time
+   * and later can still be found. The supervision events are kept.
+   *
+   * @see #restoreEvictedRecords(Collection, boolean)
+   *
+   * @param time
+   *          The time to remove the records before
+   * @return the number of records removed
+   */
+  public int evictRecordsBefore(final Timestamp time) {
+    int recordsRemoved = 0;
+    for (final IdState state : this.idStates.values()) {
+      final HistoryGroup historyGroup = state.history.get();
+      if (historyGroup == null || !state.id.isTagValueUpdateIdType()) {
+        continue;
+      }
+      final int removed = historyGroup.evictBefore(time.getTime());
+      if (removed > 0) {
+        recordsRemoved += removed;
+        addEstimatedMemoryUsage(state, -removed * historyGroup.getEstimatedBytesPerRecord());
       }
-    });
+    }
+    return recordsRemoved;
   }
 
   /**
-   * Tells you which one of the objects is null. At least one of them MUST be
-   * <code>null</code> for it to succeed
-   * 
-   * @param obj1
-   *          HistoryUpdateId to compare
-   * @param obj2
-   *          HistoryUpdateId to compare
-   * @return <code>0</code> (zero) if both is null, -1 if obj1 is null, 1 if
-   *         obj2 is null
+   * Adds records which have been evicted by
+   * {@link #evictRecordsBefore(Timestamp)} back into the store. Records which
+   * are already in the store, with the same timestamps and value, are not
+   * added again. The loaded until time of the data is not changed.
+   *
+   * @param historyUpdates
+   *          The records to restore
+   * @param reinitialize
+   *          <code>true</code> if the records are the initial values of the
+   *          data, the listeners are then notified as when the data is
+   *          initialized, so that the values at the clock's time is published
+   *          again
+   * @return the number of records added
    */
-  private int whichIsNull(final Object obj1, final Object obj2) {
-    if (obj1 == obj2) {
-      // Both is null
-      return 0;
+  public int restoreEvictedRecords(final Collection<HistoryUpdate> historyUpdates, final boolean reinitialize) {
+    final List<HistoryUpdateId> restoredIds = new ArrayList<HistoryUpdateId>();
+    int recordsAdded = 0;
+    for (final HistoryGroup restoredHistory : HistoryDataUtil.toTagHistoryCollection(historyUpdates)) {
+      final IdState state = this.idStates.get(restoredHistory.getTagId());
+      if (state == null || !state.initialized) {
+        continue;
+      }
+      HistoryGroup historyGroup = state.history.get();
+      if (historyGroup == null) {
+        final HistoryGroup createdGroup = createHistoryGroup(restoredHistory.getTagId());
+        if (state.history.compareAndSet(null, createdGroup)) {
+          addEstimatedMemoryUsage(state, createdGroup.getEstimatedMemoryUsage());
+        }
+        historyGroup = state.history.get();
+      }
+
+      final int addedRecords = historyGroup.addMissing(restoredHistory.getHistory());
+      if (addedRecords == 0) {
+        continue;
+      }
+      recordsAdded += addedRecords;
+      addEstimatedMemoryUsage(state, addedRecords * historyGroup.getEstimatedBytesPerRecord());
+      restoredIds.add(historyGroup.getTagId());
     }
-    else if (obj1 == null) {
-      return -1;
+
+    if (restoredIds.size() > 0) {
+      if (reinitialize) {
+        fireOnObjectsInitialized(restoredIds);
+      }
+      else {
+        fireOnObjectCollectionChanged(restoredIds);
+      }
     }
-    else {
-      return 1;
+    return recordsAdded;
+  }
+
+  /**
+   * @param historyUpdateId
+   *          the id the group will keep records for
+   * @return a new, empty, group for the id. A {@link CompactHistoryGroup} if
+   *         {@link #isCompactStorage()} is set and the id is a tag id.
+   */
+  private HistoryGroup createHistoryGroup(final HistoryUpdateId historyUpdateId) {
+    if (this.compactStorage && historyUpdateId instanceof TagValueUpdateId) {
+      return new CompactHistoryGroup(historyUpdateId);
     }
+    return new HistoryGroup(historyUpdateId);
   }
 
   /**
@@ -776,13 +867,11 @@ public class HistoryStore {
    * @return The {@link HistoryGroup} associated with the dataId
    */
   public HistoryGroup getHistory(final HistoryUpdateId id) {
-    try {
-      this.dataTagHistoriesLock.readLock().lock();
-      return this.dataHistories.get(id);
-    }
-    finally {
-      this.dataTagHistoriesLock.readLock().unlock();
+    final IdState state = this.idStates.get(id);
+    if (state == null) {
+      return null;
     }
+    return state.history.get();
   }
 
   /**
@@ -790,13 +879,13 @@ public class HistoryStore {
    * @return An array of all the data ids registered
    */
   public HistoryUpdateId[] getRegisteredDataIds() {
-    try {
-      this.tagsHaveRecordsUntilTimeLock.readLock().lock();
-      return this.tagsHaveRecordsUntilTime.keySet().toArray(new HistoryUpdateId[0]);
-    }
-    finally {
-      this.tagsHaveRecordsUntilTimeLock.readLock().unlock();
+    final List<HistoryUpdateId> result = new ArrayList<HistoryUpdateId>(this.idStates.size());
+    for (final IdState state : this.idStates.values()) {
+      if (state.loadedUntil != null) {
+        result.add(state.id);
+      }
     }
+    return result.toArray(new HistoryUpdateId[0]);
   }
   
   /**
@@ -823,13 +912,7 @@ public class HistoryStore {
    *         <code>false</code> otherwise
    */
   public boolean isRegistered(final HistoryUpdateId historyUpdateId) {
-    try {
-      this.tagsHaveRecordsUntilTimeLock.readLock().lock();
-      return this.tagsHaveRecordsUntilTime.containsKey(historyUpdateId);
-    }
-    finally {
-      this.tagsHaveRecordsUntilTimeLock.readLock().unlock();
-    }
+    return getTagHaveRecordsUntilTime(historyUpdateId) != null;
   }
 
   /**
@@ -839,24 +922,15 @@ public class HistoryStore {
    */
   public HistoryGroup removeDataTagHistory(final HistoryUpdateId historyUpdateId) {
 
-    // Sets the tag to not initialized
-    setTagInitialized(false, historyUpdateId);
-
-    // Removes tag from tagsHaveRecordsUntilTime
-    removeTagHaveRecordsUntilTime(historyUpdateId);
+    // Removes the state of the tag, which also sets it to not initialized
+    final IdState removedState = removeState(historyUpdateId);
 
-    HistoryGroup removedElement = null;
-    // Removes the tag from dataTagHistories
-    try {
-      this.dataTagHistoriesLock.writeLock().lock();
-      removedElement = this.dataHistories.remove(historyUpdateId);
-    }
-    finally {
-      this.dataTagHistoriesLock.writeLock().unlock();
-    }
     // Notifies that the history is changed
     this.historyChanged();
-    return removedElement;
+    if (removedState == null) {
+      return null;
+    }
+    return removedState.history.get();
   }
 
   /**
@@ -1037,13 +1111,7 @@ public class HistoryStore {
    * @return <code>true</code> if the tag have been registered
    */
   public boolean isTagRegistered(final HistoryUpdateId historyUpdateId) {
-    try {
-      this.tagsHaveRecordsUntilTimeLock.readLock().lock();
-      return tagsHaveRecordsUntilTime.containsKey(historyUpdateId);
-    }
-    finally {
-      this.tagsHaveRecordsUntilTimeLock.readLock().unlock();
-    }
+    return isRegistered(historyUpdateId);
   }
 
   /**
@@ -1115,18 +1183,20 @@ public class HistoryStore {
     this.setBatching(true);
     try {
       // Initializes the data
-      this.tagsHaveRecordsUntilTimeLock.writeLock().lock();
+      this.loadedUntilLock.writeLock().lock();
       try {
         for (HistoryUpdateId historyUpdateId : ids) {
           if (HistoryStore.isTagIdAcceptable(historyUpdateId)) {
-            if (this.tagsHaveRecordsUntilTime.get(historyUpdateId) == null) {
-              this.tagsHaveRecordsUntilTime.put(historyUpdateId, getStart());
+            final IdState state = getOrCreateState(historyUpdateId);
+            if (state.loadedUntil == null) {
+              state.loadedUntil = getStart();
+              putIntoHeaps(state);
             }
           }
         }
       }
       finally {
-        this.tagsHaveRecordsUntilTimeLock.writeLock().unlock();
+        this.loadedUntilLock.writeLock().unlock();
       }
 
       // Notifies that the history is changed
@@ -1150,35 +1220,9 @@ public class HistoryStore {
     
     this.setBatching(true);
     try {
-      // Removes the data from dataTagHistories
-      try {
-        this.dataTagHistoriesLock.writeLock().lock();
-        for (HistoryUpdateId historyUpdateId : historyUpdateIds) {
-          this.dataHistories.remove(historyUpdateId);
-        }
-      }
-      finally {
-        this.dataTagHistoriesLock.writeLock().unlock();
-      }
-
-      try {
-        this.initializedTagsLock.writeLock().lock();
-        this.initializedTags.removeAll(historyUpdateIds);
-        
-        // Removes the data from the tagsHaveRecordsUntilTime
-        try {
-          this.tagsHaveRecordsUntilTimeLock.writeLock().lock();
-          for (HistoryUpdateId historyUpdateId : historyUpdateIds) {
-            this.tagsHaveRecordsUntilTime.remove(historyUpdateId);
-          }
-        }
-        finally {
-          this.tagsHaveRecordsUntilTimeLock.writeLock().unlock();
-        }
-        
-      }
-      finally {
-        this.initializedTagsLock.writeLock().unlock();
+      // Removes all the state of the data
+      for (HistoryUpdateId historyUpdateId : historyUpdateIds) {
+        removeState(historyUpdateId);
       }
       
       // Notifies that the history is changed
@@ -1197,13 +1241,8 @@ public class HistoryStore {
    *         value have been loaded
    */
   public boolean isTagInitialized(final HistoryUpdateId id) {
-    this.initializedTagsLock.readLock().lock();
-    try {
-      return this.initializedTags.contains(id);
-    }
-    finally {
-      this.initializedTagsLock.readLock().unlock();
-    }
+    final IdState state = this.idStates.get(id);
+    return state != null && state.initialized;
   }
 
   /**
@@ -1211,8 +1250,8 @@ public class HistoryStore {
    * @return <code>true</code> if there exist uninitialized data
    */
   public boolean isUninitializedTags() {
-    for (final HistoryUpdateId historyUpdateId : this.getRegisteredDataIds()) {
-      if (!isTagInitialized(historyUpdateId)) {
+    for (final IdState state : this.idStates.values()) {
+      if (state.loadedUntil != null && !state.initialized) {
         return true;
       }
     }
@@ -1226,9 +1265,9 @@ public class HistoryStore {
   public Collection<HistoryUpdateId> getUninitializedTags() {
     final Set<HistoryUpdateId> result = new HashSet<HistoryUpdateId>();
 
-    for (final HistoryUpdateId historyUpdateId : this.getRegisteredDataIds()) {
-      if (!isTagInitialized(historyUpdateId)) {
-        result.add(historyUpdateId);
+    for (final IdState state : this.idStates.values()) {
+      if (state.loadedUntil != null && !state.initialized) {
+        result.add(state.id);
       }
     }
 
@@ -1270,17 +1309,81 @@ public class HistoryStore {
       filteredDataIds = null;
     }
     
-    this.initializedTagsLock.writeLock().lock();
+    this.loadedUntilLock.writeLock().lock();
     try {
       if (initialized) {
-        this.initializedTags.addAll(filteredDataIds);
+        for (final HistoryUpdateId historyUpdateId : filteredDataIds) {
+          final IdState state = getOrCreateState(historyUpdateId);
+          state.initialized = true;
+          // Only the initialized tags are in the heap of the tags to load
+          if (state.loadedUntil != null) {
+            putIntoHeaps(state);
+          }
+        }
       }
       else {
-        this.initializedTags.removeAll(historyUpdateIds);
+        for (final HistoryUpdateId historyUpdateId : historyUpdateIds) {
+          final IdState state = this.idStates.get(historyUpdateId);
+          if (state != null) {
+            state.initialized = false;
+            this.loadableTagsUntilTimeHeap.remove(historyUpdateId);
+          }
+        }
       }
     }
     finally {
-      this.initializedTagsLock.writeLock().unlock();
+      this.loadedUntilLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Adds to the estimated memory usage of the state, and of the store, as
+   * long as the state is still in {@link #idStates}. Holds the read lock of
+   * {@link #loadedUntilLock}, so that {@link #removeState(HistoryUpdateId)}
+   * removes exactly what were added to the estimate for the state, even when
+   * records are added to its group at the same time.
+   * 
+   * @param state
+   *          the state which records were added to or removed from
+   * @param bytes
+   *          the change of the estimated memory usage, in bytes
+   */
+  private void addEstimatedMemoryUsage(final IdState state, final long bytes) {
+    this.loadedUntilLock.readLock().lock();
+    try {
+      if (this.idStates.get(state.id) == state) {
+        state.estimatedMemoryUsage.addAndGet(bytes);
+        this.estimatedMemoryUsage.addAndGet(bytes);
+      }
+    }
+    finally {
+      this.loadedUntilLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Removes all the state of the data id
+   * 
+   * @param historyUpdateId
+   *          The data id to remove
+   * @return The removed state, or <code>null</code> if the data id had none
+   */
+  private IdState removeState(final HistoryUpdateId historyUpdateId) {
+    this.loadedUntilLock.writeLock().lock();
+    try {
+      final IdState state = this.idStates.remove(historyUpdateId);
+      if (state != null) {
+        // Only what were added to the estimate while the state were mapped,
+        // records still being added to its group are not counted
+        this.estimatedMemoryUsage.addAndGet(-state.estimatedMemoryUsage.get());
+        state.initialized = false;
+        state.loadedUntil = null;
+        removeFromHeaps(historyUpdateId);
+      }
+      return state;
+    }
+    finally {
+      this.loadedUntilLock.writeLock().unlock();
     }
   }
 
@@ -1365,4 +1468,69 @@ public class HistoryStore {
     this.end = end;
   }
 
+  /**
+   * @return the estimated memory used by the records in the store, in bytes
+   */
+  @Override
+  public long getEstimatedMemoryUsage() {
+    return this.estimatedMemoryUsage.get();
+  }
+
+  /**
+   * @return <code>true</code> if the tag records is kept in
+   *         {@link CompactHistoryGroup}s
+   */
+  public boolean isCompactStorage() {
+    return compactStorage;
+  }
+
+  /**
+   * Only affects the tags which are added after the call. Is by default set
+   * from the {@link HistorySystemProperties#HISTORY_COMPACT_STORAGE} property.
+   * 
+   * @param compactStorage
+   *          <code>true</code> to keep the tag records in
+   *          {@link CompactHistoryGroup}s, which uses a fraction of the memory
+   *          but creates the record objects each time they are requested
+   */
+  public void setCompactStorage(final boolean compactStorage) {
+    this.compactStorage = compactStorage;
+  }
+
+  /**
+   * The state of one data id. The fields can be read at any time, the
+   * <code>initialized</code> and <code>loadedUntil</code> fields are only
+   * changed while holding the write lock of {@link HistoryStore#loadedUntilLock}.
+   */
+  private static final class IdState {
+
+    /** The data id */
+    private final HistoryUpdateId id;
+
+    /** The records of the data id, <code>null</code> until the first is added */
+    private final AtomicReference<HistoryGroup> history = new AtomicReference<HistoryGroup>();
+
+    /**
+     * The part of {@link HistoryStore#estimatedMemoryUsage} which is for the
+     * records of this data id, in bytes
+     */
+    private final AtomicLong estimatedMemoryUsage = new AtomicLong(0);
+
+    /** <code>true</code> if the first value of the data is loaded */
+    private volatile boolean initialized = false;
+
+    /**
+     * The ending time for how far the records have been retrieved, or
+     * <code>null</code> if the data id is not registered
+     */
+    private volatile Timestamp loadedUntil = null;
+
+    /**
+     * @param id
+     *          The data id
+     */
+    private IdState(final HistoryUpdateId id) {
+      this.id = id;
+    }
+  }
 }
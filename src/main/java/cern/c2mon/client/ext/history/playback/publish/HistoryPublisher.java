@@ -18,6 +18,9 @@ package cern.c2mon.client.ext.history.playback.publish;
 
 import java.sql.Timestamp;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +61,9 @@ public class HistoryPublisher {
   /** Manages the listeners for the supervision */
   private final SupervisionListenersManager[] supervisionManagers;
 
+  /** Timing of the batches given to {@link #publishBatch(Collection)} */
+  private final PublishStatistics statistics = new PublishStatistics();
+
   /**
    * Constructor
    */
@@ -89,6 +95,14 @@ public class HistoryPublisher {
     return tagListenersManager;
   }
   
+  /**
+   * @return the timing of the batches published with
+   *         {@link #publishBatch(Collection)}
+   */
+  public PublishStatistics getStatistics() {
+    return statistics;
+  }
+
   /**
    * Rmoves all listeners from all the managers
    */
@@ -155,6 +169,54 @@ public class HistoryPublisher {
     publish(newValue, false);
   }
   
+  /**
+   * Notifies the listeners about several updates which is due at the same
+   * time, in the order of the collection. The listeners of each tag and
+   * supervision entity is only looked up once per batch.
+   * 
+   * @param newValues
+   *          The new values, sorted by execution time
+   */
+  public void publishBatch(final Collection<HistoryUpdate> newValues) {
+    final long startTime = System.nanoTime();
+
+    final Map<Long, Collection<TagUpdateListener>> tagListeners = new HashMap<Long, Collection<TagUpdateListener>>();
+    final Map<SupervisionEventId, Collection<SupervisionListener>> supervisionListeners =
+        new HashMap<SupervisionEventId, Collection<SupervisionListener>>();
+
+    for (final HistoryUpdate newValue : newValues) {
+      if (newValue instanceof TagValueUpdate) {
+        final TagValueUpdate tagValueUpdate = (TagValueUpdate) newValue;
+        Collection<TagUpdateListener> listeners = tagListeners.get(tagValueUpdate.getId());
+        if (listeners == null) {
+          listeners = this.tagListenersManager.getValues(tagValueUpdate.getId());
+          tagListeners.put(tagValueUpdate.getId(), listeners);
+        }
+        publish(tagValueUpdate, listeners, false);
+      }
+      else if (newValue instanceof SupervisionEvent) {
+        final SupervisionEvent event = (SupervisionEvent) newValue;
+        final SupervisionEventId id = new SupervisionEventId(event.getEntity(), event.getEntityId());
+        Collection<SupervisionListener> listeners = supervisionListeners.get(id);
+        if (listeners == null) {
+          listeners = getSupervisionManager(event.getEntity()).getValues(event.getEntityId());
+          supervisionListeners.put(id, listeners);
+        }
+        publish(event, listeners);
+      }
+      else {
+        publish(newValue, false);
+      }
+    }
+
+    final long usedNanos = System.nanoTime() - startTime;
+    this.statistics.addBatch(newValues.size(), usedNanos);
+    if (LOG.isTraceEnabled()) {
+      LOG.trace(String.format("Published %d records (%d tags, %d supervision entities) in %d us",
+          newValues.size(), tagListeners.size(), supervisionListeners.size(), TimeUnit.NANOSECONDS.toMicros(usedNanos)));
+    }
+  }
+
   /**
    * Notifies the listeners about a new update
    * 
@@ -215,7 +277,23 @@ public class HistoryPublisher {
    *          be called first
    */
   private void publish(final TagValueUpdate newValue, final boolean doClean) {
-    for (final TagUpdateListener listener : this.tagListenersManager.getValues(newValue.getId())) {
+    publish(newValue, this.tagListenersManager.getValues(newValue.getId()), doClean);
+  }
+
+  /**
+   * Gives the update to the listeners. Does only call the
+   * {@link TagController#clean()} if <code>doClean</code> is <code>true</code>
+   * 
+   * @param newValue
+   *          The new value which is given
+   * @param listeners
+   *          The listeners of the tag
+   * @param doClean
+   *          <code>true</code> if the the {@link TagController#clean()} should
+   *          be called first
+   */
+  private void publish(final TagValueUpdate newValue, final Collection<TagUpdateListener> listeners, final boolean doClean) {
+    for (final TagUpdateListener listener : listeners) {
       try {
         if (doClean
             && listener instanceof TagController) {
@@ -235,7 +313,18 @@ public class HistoryPublisher {
    * @param event the event to give to the listeners
    */
   public void publish(final SupervisionEvent event) {
-    final Collection<SupervisionListener> listeners = getSupervisionManager(event.getEntity()).getValues(event.getEntityId());
+    publish(event, getSupervisionManager(event.getEntity()).getValues(event.getEntityId()));
+  }
+
+  /**
+   * Gives the event to the listeners
+   * 
+   * @param event
+   *          the event to give to the listeners
+   * @param listeners
+   *          the listeners of the supervision entity
+   */
+  private void publish(final SupervisionEvent event, final Collection<SupervisionListener> listeners) {
     for (final SupervisionListener listener : listeners) {
       try {
         listener.onSupervisionUpdate(event);
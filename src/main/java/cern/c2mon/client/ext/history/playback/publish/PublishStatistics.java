@@ -0,0 +1,122 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.playback.publish;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of how much time the {@link HistoryPublisher} uses on
+ * delivering batches of records to the listeners. Is thread safe.
+ * 
+ * @see HistoryPublisher#publishBatch(java.util.Collection)
+ */
+public class PublishStatistics {
+
+  /** The number of batches published */
+  private final AtomicLong batches = new AtomicLong();
+
+  /** The number of records published in batches */
+  private final AtomicLong records = new AtomicLong();
+
+  /** The total time used publishing batches, in nanoseconds */
+  private final AtomicLong totalNanos = new AtomicLong();
+
+  /** The longest time used on one batch, in nanoseconds */
+  private final AtomicLong maximumNanos = new AtomicLong();
+
+  /** The time used on the latest batch, in nanoseconds */
+  private final AtomicLong lastNanos = new AtomicLong();
+
+  /**
+   * Adds a published batch to the statistics
+   * 
+   * @param recordCount
+   *          the number of records in the batch
+   * @param nanos
+   *          the time used publishing the batch, in nanoseconds
+   */
+  void addBatch(final int recordCount, final long nanos) {
+    this.batches.incrementAndGet();
+    this.records.addAndGet(recordCount);
+    this.totalNanos.addAndGet(nanos);
+    this.lastNanos.set(nanos);
+    long maximum = this.maximumNanos.get();
+    while (nanos > maximum && !this.maximumNanos.compareAndSet(maximum, nanos)) {
+      maximum = this.maximumNanos.get();
+    }
+  }
+
+  /**
+   * Resets all the statistics
+   */
+  public void reset() {
+    this.batches.set(0);
+    this.records.set(0);
+    this.totalNanos.set(0);
+    this.maximumNanos.set(0);
+    this.lastNanos.set(0);
+  }
+
+  /**
+   * @return the number of batches published
+   */
+  public long getBatchCount() {
+    return this.batches.get();
+  }
+
+  /**
+   * @return the number of records published in batches
+   */
+  public long getRecordCount() {
+    return this.records.get();
+  }
+
+  /**
+   * @param unit
+   *          the unit of the returned time
+   * @return the total time used publishing batches
+   */
+  public long getTotalTime(final TimeUnit unit) {
+    return unit.convert(this.totalNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param unit
+   *          the unit of the returned time
+   * @return the longest time used on one batch
+   */
+  public long getMaximumBatchTime(final TimeUnit unit) {
+    return unit.convert(this.maximumNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param unit
+   *          the unit of the returned time
+   * @return the time used on the latest batch
+   */
+  public long getLastBatchTime(final TimeUnit unit) {
+    return unit.convert(this.lastNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Batches: %d, records: %d, total: %d ms, longest batch: %d us, latest batch: %d us",
+        getBatchCount(), getRecordCount(), getTotalTime(TimeUnit.MILLISECONDS),
+        getMaximumBatchTime(TimeUnit.MICROSECONDS), getLastBatchTime(TimeUnit.MICROSECONDS));
+  }
+}
@@ -16,7 +16,7 @@
  *****************************************************************************/
 package cern.c2mon.client.ext.history.playback.publish;
 
-import cern.c2mon.client.ext.history.util.KeyForValuesMap;
+import cern.c2mon.client.ext.history.util.CopyOnWriteKeyForValuesMap;
 import cern.c2mon.client.core.jms.SupervisionListener;
 
 /**
@@ -26,7 +26,7 @@ import cern.c2mon.client.core.jms.SupervisionListener;
  * @author vdeila
  * 
  */
-public class SupervisionListenersManager extends KeyForValuesMap<Long, SupervisionListener> {
+public class SupervisionListenersManager extends CopyOnWriteKeyForValuesMap<Long, SupervisionListener> {
 
   /**
    * Constructor
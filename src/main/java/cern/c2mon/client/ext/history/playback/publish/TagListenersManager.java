@@ -19,7 +19,7 @@ package cern.c2mon.client.ext.history.playback.publish;
 import java.util.Collection;
 
 import cern.c2mon.client.core.listener.TagUpdateListener;
-import cern.c2mon.client.ext.history.util.KeyForValuesMap;
+import cern.c2mon.client.ext.history.util.CopyOnWriteKeyForValuesMap;
 
 /**
  * This class keeps lists of which listeners is listening on which tag.
@@ -27,7 +27,7 @@ import cern.c2mon.client.ext.history.util.KeyForValuesMap;
  * @author vdeila
  * 
  */
-public class TagListenersManager extends KeyForValuesMap<Long, TagUpdateListener> {
+public class TagListenersManager extends CopyOnWriteKeyForValuesMap<Long, TagUpdateListener> {
 
   /**
    * Constructor
@@ -21,6 +21,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
@@ -62,6 +63,12 @@ public class HistoryScheduler {
   
   /** For sorting a list of HistoryUpdateIds, making the supervision events come last */
   private HistoryUpdateIdSorter historyUpdateIdSorter;
+
+  /** Points at the next record to publish for each data id */
+  private final PlaybackCursors playbackCursors;
+
+  /** The task which is scheduled to publish the next records, guarded by <code>this</code> */
+  private PublishDueRecordsTask nextTask = null;
   
   /**
    * 
@@ -71,6 +78,7 @@ public class HistoryScheduler {
   public HistoryScheduler(final HistoryPlayerInternal historyPlayer) {
     this.historyPlayer = historyPlayer;
     this.timerQueueClock = new TimTimerClockDelegate();
+    this.playbackCursors = new PlaybackCursors(historyPlayer.getHistoryLoader().getHistoryStore());
     createTimTimer();
 
     this.historyUpdateIdSorter = new HistoryUpdateIdSorter();
@@ -166,7 +174,9 @@ public class HistoryScheduler {
   }
   
   /**
-   * Schedule future events for the provided collection of data ids
+   * Schedule future events for all the registered data ids. Places one cursor
+   * per data id at the current time of the clock, instead of scheduling each
+   * record.
    */
   private synchronized void scheduleEvents() {
     LOG.debug("Schedules history events");
@@ -174,46 +184,70 @@ public class HistoryScheduler {
     final long currentTime = historyPlayer.getPlaybackControl().getClockTime();
 
     final TimerQueue timerQueue = createTimTimer();
-    
-    // iterate over the data
-    for (final HistoryUpdateId historyUpdateId : historyPlayer.getHistoryLoader().getHistoryStore().getRegisteredDataIds()) {
-      final HistoryGroup dataTagHistory = historyPlayer.getHistoryLoader().getHistoryStore().getHistory(historyUpdateId);
-
-      // schedule update tasks for all the records
-      if (dataTagHistory != null) {
-        Timestamp lastTimestamp = null;
-
-        for (final HistoryUpdate value : dataTagHistory.getHistory()) {
-          if (value != null && value.getExecutionTimestamp() != null && value.getExecutionTimestamp().getTime() >= currentTime) {
-            Timestamp timestamp = null;
-            if (lastTimestamp != null && value.getExecutionTimestamp().getTime() < lastTimestamp.getTime()) {
-              timestamp = new Timestamp(lastTimestamp.getTime() + 1);
-            }
-            else {
-              timestamp = value.getExecutionTimestamp();
-            }
-            if (timestamp != null) {
-              try {
-                timerQueue.schedule(new UpdateHistoryTagTask(value) {
-                  @Override
-                  public void update(final HistoryUpdate value) {
-                    historyPlayer.getPublisher().publish(value);
-                  }
-                }, timestamp);
-              }
-              catch (IllegalStateException e) {
-                // If another thread is calling the cancelAllScheduledEvents()
-                // it doesn't need to do this anymore, as this function is soon
-                // to be called again.
-                LOG.debug("Canceling event scheduling");
-                return;
-              }
-            }
-            lastTimestamp = timestamp;
-          }
+
+    this.nextTask = null;
+    this.playbackCursors.reset(Arrays.asList(historyPlayer.getHistoryLoader().getHistoryStore().getRegisteredDataIds()), currentTime);
+    scheduleNextTask(timerQueue);
+  }
+
+  /**
+   * Lets the records which have been added for the given ids join the
+   * schedule, without rescheduling all the events. Records from before the
+   * current time of the clock is not published. If the events are cancelled,
+   * waiting for a new time to be set, everything is rescheduled as with
+   * {@link #rescheduleEvents()}.
+   * 
+   * @param historyUpdateIds
+   *          the ids which have new records
+   */
+  public void scheduleNewRecords(final Collection<HistoryUpdateId> historyUpdateIds) {
+    synchronized (this) {
+      if (this.timer != null && !this.needsRescheduling.get()) {
+        // The records of a task which is due but have not run yet must still
+        // be published
+        long fromTime = historyPlayer.getPlaybackControl().getClockTime();
+        if (this.nextTask != null) {
+          fromTime = Math.min(fromTime, this.nextTask.getExecutionTime());
         }
+        this.playbackCursors.refresh(historyUpdateIds, fromTime);
+        scheduleNextTask(this.timer);
+        return;
       }
     }
+    rescheduleEvents();
+  }
+
+  /**
+   * Schedules a task at the time of the next record to publish, unless a task
+   * is already scheduled at or before that time. Must be called while
+   * holding the lock of this scheduler.
+   * 
+   * @param timerQueue
+   *          the timer to schedule the task on
+   */
+  private void scheduleNextTask(final TimerQueue timerQueue) {
+    final long nextTime = this.playbackCursors.getNextExecutionTime();
+    if (nextTime == HistoryGroup.NO_EXECUTION_TIME) {
+      return;
+    }
+    if (this.nextTask != null) {
+      if (this.nextTask.getExecutionTime() <= nextTime) {
+        return;
+      }
+      this.nextTask.cancel();
+      this.nextTask = null;
+    }
+    final PublishDueRecordsTask task = new PublishDueRecordsTask(timerQueue, nextTime);
+    try {
+      timerQueue.schedule(task, new Timestamp(nextTime));
+      this.nextTask = task;
+    }
+    catch (IllegalStateException e) {
+      // If another thread is calling the cancelAllScheduledEvents()
+      // it doesn't need to do this anymore, as this function is soon
+      // to be called again.
+      LOG.debug("Canceling event scheduling");
+    }
   }
 
   /**
@@ -289,6 +323,62 @@ public class HistoryScheduler {
     }
   }
   
+  /**
+   * Publishes all the records which is due at its execution time, and
+   * schedules the next task.
+   */
+  private class PublishDueRecordsTask extends TimerTask {
+
+    /** The timer the task is scheduled on */
+    private final TimerQueue timerQueue;
+
+    /** The time the task is scheduled at */
+    private final long executionTime;
+
+    /**
+     * @param timerQueue
+     *          The timer the task is scheduled on
+     * @param executionTime
+     *          The time the task is scheduled at
+     */
+    public PublishDueRecordsTask(final TimerQueue timerQueue, final long executionTime) {
+      this.timerQueue = timerQueue;
+      this.executionTime = executionTime;
+    }
+
+    /**
+     * @return the time the task is scheduled at
+     */
+    public long getExecutionTime() {
+      return this.executionTime;
+    }
+
+    @Override
+    public void run() {
+      final List<HistoryUpdate> dueRecords;
+      synchronized (HistoryScheduler.this) {
+        if (nextTask == this) {
+          nextTask = null;
+        }
+        if (timer != this.timerQueue) {
+          // The events have been cancelled or rescheduled
+          return;
+        }
+        dueRecords = playbackCursors.pollDue(this.executionTime);
+      }
+
+      if (!dueRecords.isEmpty()) {
+        historyPlayer.getPublisher().publishBatch(dueRecords);
+      }
+
+      synchronized (HistoryScheduler.this) {
+        if (timer == this.timerQueue) {
+          scheduleNextTask(this.timerQueue);
+        }
+      }
+    }
+  }
+
   /**
    * Callback for the {@link HistoryPlayerImpl#timer} to get the time, etc.
    */
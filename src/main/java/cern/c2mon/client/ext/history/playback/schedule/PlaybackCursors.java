@@ -0,0 +1,207 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.playback.schedule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cern.c2mon.client.ext.history.common.HistoryUpdate;
+import cern.c2mon.client.ext.history.common.id.HistoryUpdateId;
+import cern.c2mon.client.ext.history.playback.data.HistoryStore;
+import cern.c2mon.client.ext.history.util.HistoryGroup;
+import cern.c2mon.client.ext.history.util.IndexedLongMinHeap;
+
+/**
+ * Keeps one cursor per data id, pointing at the next record to publish in its
+ * sorted {@link HistoryGroup}. The cursors are kept in a min heap by the
+ * execution time of their next record, so finding what is due next does not
+ * depend on the number of records loaded.<br/>
+ * <br/>
+ * A cursor only remembers the time it has published until, so records merged
+ * into a group later on is picked up when the cursor is refreshed. Records
+ * merged in before the time the cursors are refreshed at is not published.
+ * 
+ * @see HistoryScheduler
+ */
+class PlaybackCursors {
+
+  /**
+   * Orders records by execution time. At the same time the tag values comes
+   * before the supervision events, so that a value is published before the
+   * event which may invalidate it.
+   */
+  private static final Comparator<HistoryUpdate> PUBLISHING_ORDER = new Comparator<HistoryUpdate>() {
+    @Override
+    public int compare(final HistoryUpdate o1, final HistoryUpdate o2) {
+      final int result = o1.getExecutionTimestamp().compareTo(o2.getExecutionTimestamp());
+      if (result != 0) {
+        return result;
+      }
+      return Boolean.compare(isSupervisionEvent(o1), isSupervisionEvent(o2));
+    }
+  };
+
+  /** The history store which have the records */
+  private final HistoryStore historyStore;
+
+  /** The ids, by the execution time of their next record */
+  private final IndexedLongMinHeap<HistoryUpdateId> cursors = new IndexedLongMinHeap<HistoryUpdateId>();
+
+  /**
+   * For each id, the earliest execution time which have not yet been
+   * published. Includes the ids which currently have no next record.
+   */
+  private final Map<HistoryUpdateId, Long> publishedUntil = new HashMap<HistoryUpdateId, Long>();
+
+  /**
+   * @param historyStore
+   *          the history store which have the records
+   */
+  public PlaybackCursors(final HistoryStore historyStore) {
+    this.historyStore = historyStore;
+  }
+
+  /**
+   * Removes all cursors, and places new ones at the given time
+   * 
+   * @param historyUpdateIds
+   *          the ids to create cursors for
+   * @param time
+   *          the time to start from, records at this time is included
+   */
+  public synchronized void reset(final Collection<HistoryUpdateId> historyUpdateIds, final long time) {
+    this.cursors.clear();
+    this.publishedUntil.clear();
+    for (final HistoryUpdateId historyUpdateId : historyUpdateIds) {
+      this.publishedUntil.put(historyUpdateId, time);
+      refresh(historyUpdateId, time);
+    }
+  }
+
+  /**
+   * Looks up the next record of the ids again, after new records have been
+   * added. The cursors which have published until before the given time is
+   * moved forward to it, and ids without a cursor gets one placed at it.
+   * 
+   * @param historyUpdateIds
+   *          the ids which have new records
+   * @param time
+   *          the time to start from, records before this time is not
+   *          published
+   */
+  public synchronized void refresh(final Collection<HistoryUpdateId> historyUpdateIds, final long time) {
+    for (final HistoryUpdateId historyUpdateId : historyUpdateIds) {
+      final Long publishedUntilTime = this.publishedUntil.get(historyUpdateId);
+      final long fromTime;
+      if (publishedUntilTime == null || publishedUntilTime < time) {
+        fromTime = time;
+        this.publishedUntil.put(historyUpdateId, fromTime);
+      }
+      else {
+        fromTime = publishedUntilTime;
+      }
+      refresh(historyUpdateId, fromTime);
+    }
+  }
+
+  /**
+   * @return the execution time of the next record to publish, or
+   *         {@link HistoryGroup#NO_EXECUTION_TIME} if there is none
+   */
+  public synchronized long getNextExecutionTime() {
+    if (this.cursors.isEmpty()) {
+      return HistoryGroup.NO_EXECUTION_TIME;
+    }
+    return this.cursors.peekPriority();
+  }
+
+  /**
+   * Takes all records which executes at or before <code>time</code>, and
+   * moves the cursors past them.
+   * 
+   * @param time
+   *          the time to take the records until, inclusive
+   * @return the records which is due, sorted by execution time. Tag values
+   *         comes before supervision events of the same time.
+   */
+  public synchronized List<HistoryUpdate> pollDue(final long time) {
+    final List<HistoryUpdate> result = new ArrayList<HistoryUpdate>();
+    final List<HistoryUpdateId> dueIds = new ArrayList<HistoryUpdateId>();
+    while (!this.cursors.isEmpty() && this.cursors.peekPriority() <= time) {
+      dueIds.add(this.cursors.poll());
+    }
+    for (final HistoryUpdateId historyUpdateId : dueIds) {
+      final HistoryGroup historyGroup = this.historyStore.getHistory(historyUpdateId);
+      if (historyGroup != null) {
+        result.addAll(historyGroup.getHistory(this.publishedUntil.get(historyUpdateId), time));
+      }
+      this.publishedUntil.put(historyUpdateId, time + 1);
+      refresh(historyUpdateId, time + 1);
+    }
+    if (dueIds.size() > 1) {
+      Collections.sort(result, PUBLISHING_ORDER);
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of ids which have a next record
+   */
+  public synchronized int size() {
+    return this.cursors.size();
+  }
+
+  /**
+   * Places the cursor of the id at its first record at or after
+   * <code>fromTime</code>, or removes it if there is no such record
+   * 
+   * @param historyUpdateId
+   *          the id
+   * @param fromTime
+   *          the earliest execution time which have not yet been published
+   */
+  private void refresh(final HistoryUpdateId historyUpdateId, final long fromTime) {
+    final HistoryGroup historyGroup = this.historyStore.getHistory(historyUpdateId);
+    final long next;
+    if (historyGroup == null) {
+      next = HistoryGroup.NO_EXECUTION_TIME;
+    }
+    else {
+      next = historyGroup.getNextExecutionTime(fromTime);
+    }
+    if (next == HistoryGroup.NO_EXECUTION_TIME) {
+      this.cursors.remove(historyUpdateId);
+    }
+    else {
+      this.cursors.put(historyUpdateId, next);
+    }
+  }
+
+  /**
+   * @param record
+   *          the record
+   * @return <code>true</code> if the record is a supervision event
+   */
+  private static boolean isSupervisionEvent(final HistoryUpdate record) {
+    return record.getUpdateId() != null && record.getUpdateId().isSupervisionEventIdType();
+  }
+}
@@ -0,0 +1,138 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.updates;
+
+import java.sql.Timestamp;
+
+import cern.c2mon.client.ext.history.common.HistoryAggregate;
+
+/**
+ * Implementation of the {@link HistoryAggregate}
+ */
+public class HistoryAggregateImpl implements HistoryAggregate {
+
+  /** The tag id */
+  private final Long tagId;
+
+  /** The start of the bucket */
+  private final Timestamp startTime;
+
+  /** The end of the bucket */
+  private final Timestamp endTime;
+
+  /** The number of records in the bucket */
+  private final long count;
+
+  /** The lowest value */
+  private final double minimum;
+
+  /** The highest value */
+  private final double maximum;
+
+  /** The average value */
+  private final double average;
+
+  /** The value of the earliest record */
+  private final double first;
+
+  /** The value of the latest record */
+  private final double last;
+
+  /**
+   * @param tagId
+   *          the tag id
+   * @param startTime
+   *          the start of the bucket (inclusive)
+   * @param endTime
+   *          the end of the bucket (exclusive)
+   * @param count
+   *          the number of records in the bucket
+   * @param minimum
+   *          the lowest value
+   * @param maximum
+   *          the highest value
+   * @param average
+   *          the average value
+   * @param first
+   *          the value of the earliest record
+   * @param last
+   *          the value of the latest record
+   */
+  public HistoryAggregateImpl(final Long tagId, final Timestamp startTime, final Timestamp endTime, final long count,
+      final double minimum, final double maximum, final double average, final double first, final double last) {
+    this.tagId = tagId;
+    this.startTime = startTime;
+    this.endTime = endTime;
+    this.count = count;
+    this.minimum = minimum;
+    this.maximum = maximum;
+    this.average = average;
+    this.first = first;
+    this.last = last;
+  }
+
+  @Override
+  public Long getTagId() {
+    return tagId;
+  }
+
+  @Override
+  public Timestamp getStartTime() {
+    return startTime;
+  }
+
+  @Override
+  public Timestamp getEndTime() {
+    return endTime;
+  }
+
+  @Override
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public double getMinimum() {
+    return minimum;
+  }
+
+  @Override
+  public double getMaximum() {
+    return maximum;
+  }
+
+  @Override
+  public double getAverage() {
+    return average;
+  }
+
+  @Override
+  public double getFirst() {
+    return first;
+  }
+
+  @Override
+  public double getLast() {
+    return last;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("TagId: %d, %s - %s, count: %d, min: %s, max: %s, avg: %s, first: %s, last: %s",
+        tagId, startTime, endTime, count, minimum, maximum, average, first, last);
+  }
+}
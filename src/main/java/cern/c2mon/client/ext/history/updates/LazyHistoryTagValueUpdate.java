@@ -0,0 +1,126 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.updates;
+
+import java.sql.Timestamp;
+
+import cern.c2mon.shared.client.tag.TagMode;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+
+/**
+ * A {@link HistoryTagValueUpdateImpl} which keeps the value as the string it
+ * is stored as in the database, and only decodes it the first time the value
+ * is requested. Most of the loaded records are never published, so most of
+ * the values never need to be decoded. The string is dropped once the value
+ * is decoded, so a decoded record doesn't keep both.
+ */
+public class LazyHistoryTagValueUpdate extends HistoryTagValueUpdateImpl {
+
+  /**
+   * The value as it is stored in the database, <code>null</code> when the
+   * value is decoded
+   */
+  private String rawValue;
+
+  /** <code>true</code> when the value is decoded, or set */
+  private volatile boolean decoded = false;
+
+  /**
+   * 
+   * @param tagId
+   *          the tag identifier
+   * @param dataTagQuality
+   *          the DataTagQuality object for this data tag.
+   * @param rawValue
+   *          the tag value as it is stored in the database
+   * @param dataType
+   *          the data type name of the value, is also used as the value
+   *          class name
+   * @param sourceTimestamp
+   *          This timestamp indicates when the tag value event was generated by
+   *          the source.
+   * @param daqTimestamp
+   *          The daq time
+   * @param serverTimestamp
+   *          This timestamp indicates when the tag value passed the server.
+   * @param logTimestamp
+   *          The time the record were put into the database
+   * @param description
+   *          the tag value description
+   * @param mode
+   *          the current mode of the tag.
+   */
+  public LazyHistoryTagValueUpdate(final Long tagId, final DataTagQuality dataTagQuality, 
+      final String rawValue, final String dataType,
+      final Timestamp sourceTimestamp, final Timestamp daqTimestamp,
+      final Timestamp serverTimestamp, final Timestamp logTimestamp, 
+      final String description, final TagMode mode) {
+    super(tagId, dataTagQuality, null, sourceTimestamp, daqTimestamp, serverTimestamp, logTimestamp, description, mode);
+    this.rawValue = rawValue;
+    setValueClassName(dataType);
+  }
+
+  /**
+   * @return the tag value, decoded the first time it is requested
+   */
+  @Override
+  public Object getValue() {
+    if (!this.decoded) {
+      synchronized (this) {
+        if (!this.decoded) {
+          super.setValue(TagValueDecoders.decode(this.rawValue, getValueClassName()));
+          this.rawValue = null;
+          this.decoded = true;
+        }
+      }
+    }
+    return super.getValue();
+  }
+
+  @Override
+  public void setValue(final Object value) {
+    synchronized (this) {
+      super.setValue(value);
+      this.rawValue = null;
+      this.decoded = true;
+    }
+  }
+
+  /**
+   * Decodes the value first, as the serializer reads the fields directly
+   */
+  @Override
+  public String getXml() {
+    getValue();
+    return super.getXml();
+  }
+
+  /**
+   * @return the value as it is stored in the database, or <code>null</code>
+   *         if the value have been decoded or set
+   */
+  public synchronized String getRawValue() {
+    return this.rawValue;
+  }
+
+  /**
+   * @return <code>true</code> if the value have been decoded
+   */
+  public boolean isDecoded() {
+    return this.decoded;
+  }
+}
@@ -0,0 +1,167 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.updates;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cern.c2mon.shared.client.serializer.TransferTagSerializer;
+import cern.c2mon.shared.common.type.TypeConverter;
+
+/**
+ * Decodes the values of the history records from the string they are stored
+ * as in the database. Keeps one decoder per data type name, so the data type
+ * is only looked up once. The common types are parsed directly, any other
+ * type, and any value the direct parsing doesn't accept, goes through
+ * {@link TypeConverter#cast(String, String)} and
+ * {@link TransferTagSerializer#convertTagValue(cern.c2mon.shared.client.tag.TagValueUpdate)}
+ * as before.
+ */
+final class TagValueDecoders {
+
+  /** Decodes a value of one data type */
+  private interface Decoder {
+
+    /**
+     * @param rawValue
+     *          the value as it is stored in the database, never
+     *          <code>null</code>
+     * @param dataType
+     *          the data type name of the value
+     * @return the decoded value
+     */
+    Object decode(final String rawValue, final String dataType);
+  }
+
+  /** Decodes the values the same way as before the decoders were added */
+  private static final Decoder GENERIC_DECODER = new Decoder() {
+    @Override
+    public Object decode(final String rawValue, final String dataType) {
+      final HistoryTagValueUpdateImpl update = new HistoryTagValueUpdateImpl(Long.valueOf(0));
+      update.setValue(TypeConverter.cast(rawValue, dataType));
+      update.setValueClassName(dataType);
+      return TransferTagSerializer.convertTagValue(update);
+    }
+  };
+
+  /** The decoders of the data types, by data type name */
+  private static final Map<String, Decoder> DECODERS = new ConcurrentHashMap<String, Decoder>();
+
+  static {
+    register(new Decoder() {
+      @Override
+      public Object decode(final String rawValue, final String dataType) {
+        return Float.valueOf(rawValue);
+      }
+    }, Float.class);
+    register(new Decoder() {
+      @Override
+      public Object decode(final String rawValue, final String dataType) {
+        return Double.valueOf(rawValue);
+      }
+    }, Double.class);
+    register(new Decoder() {
+      @Override
+      public Object decode(final String rawValue, final String dataType) {
+        return Integer.valueOf(rawValue);
+      }
+    }, Integer.class);
+    register(new Decoder() {
+      @Override
+      public Object decode(final String rawValue, final String dataType) {
+        return Long.valueOf(rawValue);
+      }
+    }, Long.class);
+    register(new Decoder() {
+      @Override
+      public Object decode(final String rawValue, final String dataType) {
+        return Short.valueOf(rawValue);
+      }
+    }, Short.class);
+    register(new Decoder() {
+      @Override
+      public Object decode(final String rawValue, final String dataType) {
+        return Byte.valueOf(rawValue);
+      }
+    }, Byte.class);
+    register(new Decoder() {
+      @Override
+      public Object decode(final String rawValue, final String dataType) {
+        if ("true".equalsIgnoreCase(rawValue)) {
+          return Boolean.TRUE;
+        }
+        if ("false".equalsIgnoreCase(rawValue)) {
+          return Boolean.FALSE;
+        }
+        return GENERIC_DECODER.decode(rawValue, dataType);
+      }
+    }, Boolean.class);
+    register(new Decoder() {
+      @Override
+      public Object decode(final String rawValue, final String dataType) {
+        return rawValue;
+      }
+    }, String.class);
+  }
+
+  /**
+   * Registers a decoder for both the simple and the full name of a type
+   * 
+   * @param decoder
+   *          the decoder
+   * @param type
+   *          the type the decoder decodes
+   */
+  private static void register(final Decoder decoder, final Class< ? > type) {
+    DECODERS.put(type.getSimpleName(), decoder);
+    DECODERS.put(type.getName(), decoder);
+  }
+
+  /**
+   * @param rawValue
+   *          the value as it is stored in the database
+   * @param dataType
+   *          the data type name of the value
+   * @return the decoded value, or <code>null</code> if the
+   *         <code>rawValue</code> is <code>null</code>
+   */
+  static Object decode(final String rawValue, final String dataType) {
+    if (rawValue == null) {
+      return null;
+    }
+    if (dataType == null) {
+      return GENERIC_DECODER.decode(rawValue, dataType);
+    }
+    Decoder decoder = DECODERS.get(dataType);
+    if (decoder == null) {
+      // Unknown types are remembered, so they are only looked up once
+      decoder = GENERIC_DECODER;
+      DECODERS.put(dataType, decoder);
+    }
+    try {
+      return decoder.decode(rawValue, dataType);
+    }
+    catch (NumberFormatException e) {
+      // Lets the generic conversion decide what to do with the value
+      return GENERIC_DECODER.decode(rawValue, dataType);
+    }
+  }
+
+  /** Static methods only */
+  private TagValueDecoders() {
+  }
+}
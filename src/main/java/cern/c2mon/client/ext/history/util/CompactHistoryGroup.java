@@ -0,0 +1,1037 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.util;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.c2mon.client.ext.history.common.HistoryUpdate;
+import cern.c2mon.client.ext.history.common.id.HistoryUpdateId;
+import cern.c2mon.client.ext.history.playback.data.HistoryStore;
+import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
+import cern.c2mon.client.ext.history.updates.LazyHistoryTagValueUpdate;
+import cern.c2mon.shared.client.tag.TagMode;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+
+/**
+ * A {@link HistoryGroup} which keeps the records of a tag in a column
+ * oriented, primitive form instead of as a list of objects. The timestamps are
+ * kept as <code>long</code>s, numeric values as their raw bits and the
+ * quality, mode, description, value class name and any non numeric value are
+ * dictionary encoded. The {@link HistoryUpdate} objects are only created when
+ * they are requested.<br/>
+ * <br/>
+ * Only records of the exact type {@link HistoryTagValueUpdateImpl} or
+ * {@link LazyHistoryTagValueUpdate} without alarms are encoded, any other
+ * record is kept as it is. Encoding a lazy record decodes its value.
+ * 
+ * @see HistoryStore#setCompactStorage(boolean)
+ */
+public class CompactHistoryGroup extends HistoryGroup {
+
+  /** Log4j logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(CompactHistoryGroup.class);
+
+  /** The initial number of rows to allocate space for */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   * The estimated memory used by one row of the columns, including the spare
+   * capacity of the arrays, in bytes
+   */
+  private static final long ESTIMATED_BYTES_PER_ROW = 72;
+
+  /** Marks a <code>null</code> timestamp in the time columns */
+  private static final long NULL_TIME = Long.MIN_VALUE;
+
+  /** Number of nanoseconds in a millisecond */
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  /** Value kind: the value is <code>null</code> */
+  private static final byte KIND_NULL = 0;
+
+  /** Value kind: {@link Double} stored as raw long bits */
+  private static final byte KIND_DOUBLE = 1;
+
+  /** Value kind: {@link Float} stored as raw long bits */
+  private static final byte KIND_FLOAT = 2;
+
+  /** Value kind: {@link Long} */
+  private static final byte KIND_LONG = 3;
+
+  /** Value kind: {@link Integer} */
+  private static final byte KIND_INTEGER = 4;
+
+  /** Value kind: {@link Short} */
+  private static final byte KIND_SHORT = 5;
+
+  /** Value kind: {@link Byte} */
+  private static final byte KIND_BYTE = 6;
+
+  /** Value kind: {@link Boolean}, 1 for <code>true</code> */
+  private static final byte KIND_BOOLEAN = 7;
+
+  /** Value kind: any other value, stored as an index in the value dictionary */
+  private static final byte KIND_DICTIONARY = 8;
+
+  /** Value kind: the row is not encoded, see {@link #fallbackRecords} */
+  private static final byte KIND_FALLBACK = 9;
+
+  /** Row flag: the record is an initial value */
+  private static final byte FLAG_INITIAL_VALUE = 1;
+
+  /**
+   * Lock for all the columns, dictionaries and the row count. The lock of the
+   * {@link HistoryGroup}, so that its methods calling the ones overridden here
+   * are guarded by it as well.
+   */
+  private final ReentrantReadWriteLock columnsLock;
+
+  /** The number of rows in use */
+  private int size = 0;
+
+  /**
+   * <code>true</code> when the rows are known to be sorted by execution time
+   * ascending
+   */
+  private boolean sortedByExecutionTime = true;
+
+  /** The execution (server) time of each row, in nanoseconds since epoch */
+  private long[] executionTimes;
+
+  /** The source time of each row, in nanoseconds since epoch */
+  private long[] sourceTimes;
+
+  /** The daq time of each row, in nanoseconds since epoch */
+  private long[] daqTimes;
+
+  /** The log time of each row, in nanoseconds since epoch */
+  private long[] logTimes;
+
+  /** The value of each row, interpreted depending on {@link #valueKinds} */
+  private long[] values;
+
+  /** The kind of value of each row */
+  private byte[] valueKinds;
+
+  /** Flags of each row */
+  private byte[] flags;
+
+  /** Index into {@link #qualityDictionary} */
+  private int[] qualities;
+
+  /** Index into {@link #modeDictionary} */
+  private int[] modes;
+
+  /** Index into {@link #descriptionDictionary} */
+  private int[] descriptions;
+
+  /** Index into {@link #valueClassNameDictionary} */
+  private int[] valueClassNames;
+
+  /** The distinct qualities */
+  private Dictionary<DataTagQuality> qualityDictionary = new Dictionary<DataTagQuality>();
+
+  /** The distinct modes */
+  private Dictionary<TagMode> modeDictionary = new Dictionary<TagMode>();
+
+  /** The distinct descriptions */
+  private Dictionary<String> descriptionDictionary = new Dictionary<String>();
+
+  /** The distinct value class names */
+  private Dictionary<String> valueClassNameDictionary = new Dictionary<String>();
+
+  /** The distinct non numeric values */
+  private Dictionary<Object> valueDictionary = new Dictionary<Object>();
+
+  /**
+   * The rows of the records which could not be encoded, sorted ascending.
+   * Only the first {@link #fallbackCount} are in use.
+   */
+  private int[] fallbackRows = new int[0];
+
+  /** The records which could not be encoded, in the order of {@link #fallbackRows} */
+  private HistoryUpdate[] fallbackRecords = new HistoryUpdate[0];
+
+  /** The number of records which could not be encoded */
+  private int fallbackCount = 0;
+
+  /**
+   * 
+   * @param historyUpdateId
+   *          The data id which the records will be associated with
+   */
+  public CompactHistoryGroup(final HistoryUpdateId historyUpdateId) {
+    super(historyUpdateId, false);
+    this.columnsLock = getHistoryLock();
+    allocate(INITIAL_CAPACITY);
+  }
+
+  @Override
+  public HistoryUpdate[] getHistory() {
+    try {
+      this.columnsLock.readLock().lock();
+      final HistoryUpdate[] result = new HistoryUpdate[this.size];
+      for (int row = 0; row < this.size; row++) {
+        result[row] = materialize(row);
+      }
+      return result;
+    }
+    finally {
+      this.columnsLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void add(final HistoryUpdate dataTagValue) {
+    try {
+      this.columnsLock.writeLock().lock();
+      append(dataTagValue);
+    }
+    finally {
+      this.columnsLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Only the rows overlapping with the new records are decoded and merged, any
+   * other row is left untouched.
+   * 
+   * @param records
+   *          The records to add. Records without execution timestamp are
+   *          ignored.
+   * @return the number of records added
+   */
+  @Override
+  public int addSorted(final HistoryUpdate[] records) {
+    final List<HistoryUpdate> newRecords = toSortedList(records);
+    if (newRecords.isEmpty()) {
+      return 0;
+    }
+    try {
+      this.columnsLock.writeLock().lock();
+      if (!this.sortedByExecutionTime) {
+        for (final HistoryUpdate record : newRecords) {
+          append(record);
+        }
+        sortHistory(EXECUTION_TIME_ORDER);
+        return newRecords.size();
+      }
+
+      final int position = findFirstAfter(toNanos(newRecords.get(0).getExecutionTimestamp()));
+      final List<HistoryUpdate> tail = new ArrayList<HistoryUpdate>(this.size - position);
+      for (int row = position; row < this.size; row++) {
+        tail.add(materialize(row));
+      }
+      this.size = position;
+      truncateFallbacks(position);
+
+      final List<HistoryUpdate> merged = new ArrayList<HistoryUpdate>(tail.size() + newRecords.size());
+      merge(tail, newRecords, merged);
+      for (final HistoryUpdate record : merged) {
+        append(record);
+      }
+      return newRecords.size();
+    }
+    finally {
+      this.columnsLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Must be called while holding the write lock of <code>columnsLock</code>
+   * 
+   * @param record
+   *          the record to add as a new row
+   */
+  private void append(final HistoryUpdate record) {
+    if (this.size == this.executionTimes.length) {
+      allocate(this.size + (this.size >> 1) + 1);
+    }
+    final int row = this.size++;
+    truncateFallbacks(row);
+    encode(row, record);
+    if (this.executionTimes[row] == NULL_TIME
+        || row > 0 && this.executionTimes[row - 1] > this.executionTimes[row]) {
+      this.sortedByExecutionTime = false;
+    }
+  }
+
+  /**
+   * Must be called while holding the <code>columnsLock</code>, and the rows
+   * must be sorted
+   * 
+   * @param nanos
+   *          the execution time in nanoseconds since epoch
+   * @return the first row which executes after <code>nanos</code>, or the
+   *         number of rows if there is none
+   */
+  private int findFirstAfter(final long nanos) {
+    int low = 0;
+    int high = this.size;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (this.executionTimes[middle] <= nanos) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Sorts the rows by the given comparator. The records are created
+   * temporarily to be compared, the columns are then reordered without
+   * encoding the records again.
+   * 
+   * @param comparator
+   *          The comparator to use to sort the list
+   */
+  @Override
+  public void sortHistory(final Comparator<HistoryUpdate> comparator) {
+    try {
+      this.columnsLock.writeLock().lock();
+      final HistoryUpdate[] records = new HistoryUpdate[this.size];
+      final Integer[] sortedRows = new Integer[this.size];
+      for (int row = 0; row < this.size; row++) {
+        records[row] = materialize(row);
+        sortedRows[row] = row;
+      }
+      Arrays.sort(sortedRows, new Comparator<Integer>() {
+        @Override
+        public int compare(final Integer row1, final Integer row2) {
+          return comparator.compare(records[row1], records[row2]);
+        }
+      });
+      final int[] order = new int[this.size];
+      for (int row = 0; row < this.size; row++) {
+        order[row] = sortedRows[row];
+      }
+      reorder(order);
+      this.sortedByExecutionTime = isSortedByExecutionTime();
+    }
+    finally {
+      this.columnsLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public HistoryUpdate getLatestUpdate(final long time) {
+    try {
+      this.columnsLock.readLock().lock();
+      final int row = findLatestRow(time);
+      if (row < 0) {
+        return null;
+      }
+      return materialize(row);
+    }
+    finally {
+      this.columnsLock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public List<HistoryUpdate> getHistory(final long fromTime, final long toTime) {
+    final long fromNanos = toLowerNanos(fromTime);
+    final long toNanos = toUpperNanos(toTime);
+    final List<HistoryUpdate> result = new ArrayList<HistoryUpdate>();
+    try {
+      this.columnsLock.readLock().lock();
+      if (this.sortedByExecutionTime) {
+        for (int row = findFirstAfter(fromNanos - 1); row < this.size && this.executionTimes[row] <= toNanos; row++) {
+          result.add(materialize(row));
+        }
+      }
+      else {
+        for (int row = 0; row < this.size; row++) {
+          if (this.executionTimes[row] != NULL_TIME
+              && this.executionTimes[row] >= fromNanos && this.executionTimes[row] <= toNanos) {
+            result.add(materialize(row));
+          }
+        }
+        Collections.sort(result, EXECUTION_TIME_ORDER);
+      }
+    }
+    finally {
+      this.columnsLock.readLock().unlock();
+    }
+    return result;
+  }
+
+  @Override
+  public long getNextExecutionTime(final long time) {
+    final long fromNanos = toLowerNanos(time);
+    try {
+      this.columnsLock.readLock().lock();
+      long next = NULL_TIME;
+      if (this.sortedByExecutionTime) {
+        final int row = findFirstAfter(fromNanos - 1);
+        if (row < this.size) {
+          next = this.executionTimes[row];
+        }
+      }
+      else {
+        for (int row = 0; row < this.size; row++) {
+          if (this.executionTimes[row] != NULL_TIME && this.executionTimes[row] >= fromNanos
+              && (next == NULL_TIME || this.executionTimes[row] < next)) {
+            next = this.executionTimes[row];
+          }
+        }
+      }
+      if (next == NULL_TIME) {
+        return NO_EXECUTION_TIME;
+      }
+      return Math.floorDiv(next, NANOS_PER_MILLI);
+    }
+    finally {
+      this.columnsLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * The remaining rows are moved to the start of the columns, and the columns
+   * are shrunk if less than half of them is in use. The values which are no
+   * longer used by any row are removed from the dictionaries.
+   *
+   * @param time
+   *          the time in milliseconds
+   * @return the number of records removed
+   */
+  @Override
+  public int evictBefore(final long time) {
+    try {
+      this.columnsLock.writeLock().lock();
+      if (!this.sortedByExecutionTime) {
+        return 0;
+      }
+      // Keeps the latest row at or before the time
+      final int removed = findLatestRow(time);
+      if (removed <= 0) {
+        return 0;
+      }
+      final int[] order = new int[this.size - removed];
+      for (int row = 0; row < order.length; row++) {
+        order[row] = row + removed;
+      }
+      reorder(order);
+      this.size = order.length;
+      pruneDictionaries();
+      if (this.size < this.executionTimes.length / 2) {
+        allocate(Math.max(INITIAL_CAPACITY, this.size + (this.size >> 1)));
+      }
+      return removed;
+    }
+    finally {
+      this.columnsLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the estimated memory used by each row of the columns. The values
+   *         shared in the dictionaries are not included.
+   */
+  @Override
+  public long getEstimatedBytesPerRecord() {
+    return ESTIMATED_BYTES_PER_ROW;
+  }
+
+  /**
+   * @return the number of records in the group
+   */
+  @Override
+  public int size() {
+    try {
+      this.columnsLock.readLock().lock();
+      return this.size;
+    }
+    finally {
+      this.columnsLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Must be called while holding the <code>columnsLock</code>
+   * 
+   * @param time
+   *          the time in milliseconds
+   * @return the last row with an execution time less than or equal to
+   *         <code>time</code>, or <code>-1</code> if there is none
+   */
+  private int findLatestRow(final long time) {
+    if (time <= Long.MIN_VALUE / NANOS_PER_MILLI) {
+      return -1;
+    }
+    final long limit = toUpperNanos(time);
+    int latest = -1;
+    if (this.sortedByExecutionTime) {
+      int low = 0;
+      int high = this.size - 1;
+      while (low <= high) {
+        final int middle = (low + high) >>> 1;
+        if (this.executionTimes[middle] <= limit) {
+          latest = middle;
+          low = middle + 1;
+        }
+        else {
+          high = middle - 1;
+        }
+      }
+    }
+    else {
+      for (int row = 0; row < this.size; row++) {
+        if (this.executionTimes[row] != NULL_TIME) {
+          if (this.executionTimes[row] > limit) {
+            break;
+          }
+          latest = row;
+        }
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Must be called while holding the write lock of <code>columnsLock</code>
+   * 
+   * @param row
+   *          the row to write to
+   * @param record
+   *          the record to encode into the row
+   */
+  private void encode(final int row, final HistoryUpdate record) {
+    if (record == null 
+        || record.getClass() != HistoryTagValueUpdateImpl.class && record.getClass() != LazyHistoryTagValueUpdate.class
+        || !getTagId().equals(record.getUpdateId())) {
+      encodeFallback(row, record);
+      return;
+    }
+    final HistoryTagValueUpdateImpl update = (HistoryTagValueUpdateImpl) record;
+    if (update.isSimulated() || update.getAlarms() != null && !update.getAlarms().isEmpty()) {
+      encodeFallback(row, record);
+      return;
+    }
+    setValue(row, update.getValue());
+    this.executionTimes[row] = toNanos(update.getServerTimestamp());
+    this.sourceTimes[row] = toNanos(update.getSourceTimestamp());
+    this.daqTimes[row] = toNanos(update.getDaqTimestamp());
+    this.logTimes[row] = toNanos(update.getLogTimestamp());
+    this.flags[row] = update.isInitialValue() ? FLAG_INITIAL_VALUE : 0;
+    // The quality is mutable, so the dictionary keeps its own copy
+    final DataTagQuality quality = update.getDataTagQuality();
+    int qualityIndex = this.qualityDictionary.indexOf(quality);
+    if (qualityIndex == Dictionary.NOT_FOUND) {
+      qualityIndex = this.qualityDictionary.encode(copyOf(quality));
+    }
+    this.qualities[row] = qualityIndex;
+    this.modes[row] = this.modeDictionary.encode(update.getMode());
+    this.descriptions[row] = this.descriptionDictionary.encode(update.getDescription());
+    this.valueClassNames[row] = this.valueClassNameDictionary.encode(update.getValueClassName());
+  }
+
+  /**
+   * Keeps the record as it is
+   * 
+   * @param row
+   *          the row to write to
+   * @param record
+   *          the record
+   */
+  private void encodeFallback(final int row, final HistoryUpdate record) {
+    this.valueKinds[row] = KIND_FALLBACK;
+    this.values[row] = 0;
+    if (record == null) {
+      this.executionTimes[row] = NULL_TIME;
+    }
+    else {
+      this.executionTimes[row] = toNanos(record.getExecutionTimestamp());
+    }
+    if (this.fallbackCount == this.fallbackRows.length) {
+      final int capacity = this.fallbackCount + (this.fallbackCount >> 1) + 1;
+      this.fallbackRows = Arrays.copyOf(this.fallbackRows, capacity);
+      this.fallbackRecords = Arrays.copyOf(this.fallbackRecords, capacity);
+    }
+    // The rows are always added after the existing ones, which keeps them sorted
+    this.fallbackRows[this.fallbackCount] = row;
+    this.fallbackRecords[this.fallbackCount] = record;
+    this.fallbackCount++;
+  }
+
+  /**
+   * Must be called while holding the <code>columnsLock</code>
+   * 
+   * @param row
+   *          the row
+   * @return the record which could not be encoded at the row
+   */
+  private HistoryUpdate getFallbackRecord(final int row) {
+    final int index = Arrays.binarySearch(this.fallbackRows, 0, this.fallbackCount, row);
+    if (index < 0) {
+      return null;
+    }
+    return this.fallbackRecords[index];
+  }
+
+  /**
+   * Removes the records which could not be encoded from the given row and
+   * onwards. Must be called while holding the write lock of
+   * <code>columnsLock</code>
+   * 
+   * @param fromRow
+   *          the first row to remove
+   */
+  private void truncateFallbacks(final int fromRow) {
+    if (this.fallbackCount == 0 || this.fallbackRows[this.fallbackCount - 1] < fromRow) {
+      return;
+    }
+    int index = Arrays.binarySearch(this.fallbackRows, 0, this.fallbackCount, fromRow);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    Arrays.fill(this.fallbackRecords, index, this.fallbackCount, null);
+    this.fallbackCount = index;
+  }
+
+  /**
+   * Sets the value and value kind of the row
+   * 
+   * @param row
+   *          the row to write to
+   * @param value
+   *          the value
+   */
+  private void setValue(final int row, final Object value) {
+    final byte kind;
+    final long bits;
+    if (value == null) {
+      kind = KIND_NULL;
+      bits = 0;
+    }
+    else if (value.getClass() == Double.class) {
+      kind = KIND_DOUBLE;
+      bits = Double.doubleToRawLongBits((Double) value);
+    }
+    else if (value.getClass() == Float.class) {
+      kind = KIND_FLOAT;
+      bits = Double.doubleToRawLongBits((Float) value);
+    }
+    else if (value.getClass() == Long.class) {
+      kind = KIND_LONG;
+      bits = (Long) value;
+    }
+    else if (value.getClass() == Integer.class) {
+      kind = KIND_INTEGER;
+      bits = (Integer) value;
+    }
+    else if (value.getClass() == Short.class) {
+      kind = KIND_SHORT;
+      bits = (Short) value;
+    }
+    else if (value.getClass() == Byte.class) {
+      kind = KIND_BYTE;
+      bits = (Byte) value;
+    }
+    else if (value.getClass() == Boolean.class) {
+      kind = KIND_BOOLEAN;
+      bits = ((Boolean) value) ? 1 : 0;
+    }
+    else {
+      kind = KIND_DICTIONARY;
+      bits = this.valueDictionary.encode(value);
+    }
+    this.valueKinds[row] = kind;
+    this.values[row] = bits;
+  }
+
+  /**
+   * Must be called while holding the <code>columnsLock</code>
+   * 
+   * @param row
+   *          the row
+   * @return the value of the row
+   */
+  private Object getValue(final int row) {
+    final long bits = this.values[row];
+    switch (this.valueKinds[row]) {
+    case KIND_DOUBLE:
+      return Double.longBitsToDouble(bits);
+    case KIND_FLOAT:
+      return (float) Double.longBitsToDouble(bits);
+    case KIND_LONG:
+      return bits;
+    case KIND_INTEGER:
+      return (int) bits;
+    case KIND_SHORT:
+      return (short) bits;
+    case KIND_BYTE:
+      return (byte) bits;
+    case KIND_BOOLEAN:
+      return bits != 0;
+    case KIND_DICTIONARY:
+      return this.valueDictionary.decode((int) bits);
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Must be called while holding the <code>columnsLock</code>
+   * 
+   * @param row
+   *          the row
+   * @return a new record with the data of the row
+   */
+  private HistoryUpdate materialize(final int row) {
+    if (this.valueKinds[row] == KIND_FALLBACK) {
+      return getFallbackRecord(row);
+    }
+    final HistoryTagValueUpdateImpl update = new HistoryTagValueUpdateImpl(
+        getTagId().toTagValueUpdateId().getTagId(),
+        copyOf(this.qualityDictionary.decode(this.qualities[row])),
+        getValue(row),
+        toTimestamp(this.sourceTimes[row]),
+        toTimestamp(this.daqTimes[row]),
+        toTimestamp(this.executionTimes[row]),
+        toTimestamp(this.logTimes[row]),
+        this.descriptionDictionary.decode(this.descriptions[row]),
+        null,
+        this.modeDictionary.decode(this.modes[row]));
+    update.setValueClassName(this.valueClassNameDictionary.decode(this.valueClassNames[row]));
+    update.setInitialValue((this.flags[row] & FLAG_INITIAL_VALUE) != 0);
+    return update;
+  }
+
+  /**
+   * Must be called while holding the write lock of <code>columnsLock</code>
+   * 
+   * @param order
+   *          the old row index for each new row
+   */
+  private void reorder(final int[] order) {
+    final long[] newExecutionTimes = new long[this.executionTimes.length];
+    final long[] newSourceTimes = new long[this.executionTimes.length];
+    final long[] newDaqTimes = new long[this.executionTimes.length];
+    final long[] newLogTimes = new long[this.executionTimes.length];
+    final long[] newValues = new long[this.executionTimes.length];
+    final byte[] newValueKinds = new byte[this.executionTimes.length];
+    final byte[] newFlags = new byte[this.executionTimes.length];
+    final int[] newQualities = new int[this.executionTimes.length];
+    final int[] newModes = new int[this.executionTimes.length];
+    final int[] newDescriptions = new int[this.executionTimes.length];
+    final int[] newValueClassNames = new int[this.executionTimes.length];
+    final int[] newFallbackRows = new int[this.fallbackCount];
+    final HistoryUpdate[] newFallbackRecords = new HistoryUpdate[this.fallbackCount];
+    int newFallbackCount = 0;
+
+    for (int row = 0; row < order.length; row++) {
+      final int oldRow = order[row];
+      newExecutionTimes[row] = this.executionTimes[oldRow];
+      newSourceTimes[row] = this.sourceTimes[oldRow];
+      newDaqTimes[row] = this.daqTimes[oldRow];
+      newLogTimes[row] = this.logTimes[oldRow];
+      newValues[row] = this.values[oldRow];
+      newValueKinds[row] = this.valueKinds[oldRow];
+      newFlags[row] = this.flags[oldRow];
+      newQualities[row] = this.qualities[oldRow];
+      newModes[row] = this.modes[oldRow];
+      newDescriptions[row] = this.descriptions[oldRow];
+      newValueClassNames[row] = this.valueClassNames[oldRow];
+      if (this.valueKinds[oldRow] == KIND_FALLBACK) {
+        // The new rows are visited in order, so they are added sorted
+        newFallbackRows[newFallbackCount] = row;
+        newFallbackRecords[newFallbackCount] = getFallbackRecord(oldRow);
+        newFallbackCount++;
+      }
+    }
+
+    this.executionTimes = newExecutionTimes;
+    this.sourceTimes = newSourceTimes;
+    this.daqTimes = newDaqTimes;
+    this.logTimes = newLogTimes;
+    this.values = newValues;
+    this.valueKinds = newValueKinds;
+    this.flags = newFlags;
+    this.qualities = newQualities;
+    this.modes = newModes;
+    this.descriptions = newDescriptions;
+    this.valueClassNames = newValueClassNames;
+    this.fallbackRows = newFallbackRows;
+    this.fallbackRecords = newFallbackRecords;
+    this.fallbackCount = newFallbackCount;
+  }
+
+  /**
+   * Replaces the dictionaries with ones which only contains the values used
+   * by the rows. Must be called while holding the write lock of
+   * <code>columnsLock</code>
+   */
+  private void pruneDictionaries() {
+    final Dictionary<DataTagQuality> newQualityDictionary = new Dictionary<DataTagQuality>();
+    final Dictionary<TagMode> newModeDictionary = new Dictionary<TagMode>();
+    final Dictionary<String> newDescriptionDictionary = new Dictionary<String>();
+    final Dictionary<String> newValueClassNameDictionary = new Dictionary<String>();
+    final Dictionary<Object> newValueDictionary = new Dictionary<Object>();
+
+    for (int row = 0; row < this.size; row++) {
+      if (this.valueKinds[row] == KIND_FALLBACK) {
+        // The other columns are not written for these rows
+        continue;
+      }
+      if (this.valueKinds[row] == KIND_DICTIONARY) {
+        this.values[row] = newValueDictionary.encode(this.valueDictionary.decode((int) this.values[row]));
+      }
+      this.qualities[row] = newQualityDictionary.encode(this.qualityDictionary.decode(this.qualities[row]));
+      this.modes[row] = newModeDictionary.encode(this.modeDictionary.decode(this.modes[row]));
+      this.descriptions[row] = newDescriptionDictionary.encode(
+          this.descriptionDictionary.decode(this.descriptions[row]));
+      this.valueClassNames[row] = newValueClassNameDictionary.encode(
+          this.valueClassNameDictionary.decode(this.valueClassNames[row]));
+    }
+
+    this.qualityDictionary = newQualityDictionary;
+    this.modeDictionary = newModeDictionary;
+    this.descriptionDictionary = newDescriptionDictionary;
+    this.valueClassNameDictionary = newValueClassNameDictionary;
+    this.valueDictionary = newValueDictionary;
+  }
+
+  /**
+   * Only used by the tests
+   * 
+   * @return the number of distinct values kept in the dictionaries
+   */
+  int getDictionarySize() {
+    try {
+      this.columnsLock.readLock().lock();
+      return this.qualityDictionary.size() + this.modeDictionary.size() + this.descriptionDictionary.size()
+          + this.valueClassNameDictionary.size() + this.valueDictionary.size();
+    }
+    finally {
+      this.columnsLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Must be called while holding the <code>columnsLock</code>
+   * 
+   * @return <code>true</code> if the rows are sorted by execution time and
+   *         none of them is missing the execution time
+   */
+  private boolean isSortedByExecutionTime() {
+    for (int row = 0; row < this.size; row++) {
+      if (this.executionTimes[row] == NULL_TIME
+          || row > 0 && this.executionTimes[row - 1] > this.executionTimes[row]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Resizes all the columns
+   * 
+   * @param capacity
+   *          the number of rows to have space for
+   */
+  private void allocate(final int capacity) {
+    if (this.executionTimes == null) {
+      this.executionTimes = new long[capacity];
+      this.sourceTimes = new long[capacity];
+      this.daqTimes = new long[capacity];
+      this.logTimes = new long[capacity];
+      this.values = new long[capacity];
+      this.valueKinds = new byte[capacity];
+      this.flags = new byte[capacity];
+      this.qualities = new int[capacity];
+      this.modes = new int[capacity];
+      this.descriptions = new int[capacity];
+      this.valueClassNames = new int[capacity];
+    }
+    else {
+      this.executionTimes = Arrays.copyOf(this.executionTimes, capacity);
+      this.sourceTimes = Arrays.copyOf(this.sourceTimes, capacity);
+      this.daqTimes = Arrays.copyOf(this.daqTimes, capacity);
+      this.logTimes = Arrays.copyOf(this.logTimes, capacity);
+      this.values = Arrays.copyOf(this.values, capacity);
+      this.valueKinds = Arrays.copyOf(this.valueKinds, capacity);
+      this.flags = Arrays.copyOf(this.flags, capacity);
+      this.qualities = Arrays.copyOf(this.qualities, capacity);
+      this.modes = Arrays.copyOf(this.modes, capacity);
+      this.descriptions = Arrays.copyOf(this.descriptions, capacity);
+      this.valueClassNames = Arrays.copyOf(this.valueClassNames, capacity);
+    }
+  }
+
+  /**
+   * @param quality
+   *          the shared quality from the dictionary
+   * @return a copy of the quality, so that the receiver of the record can
+   *         modify it without affecting the other records
+   */
+  private static DataTagQuality copyOf(final DataTagQuality quality) {
+    if (quality == null) {
+      return null;
+    }
+    try {
+      return quality.clone();
+    }
+    catch (CloneNotSupportedException e) {
+      LOG.debug("Could not clone the data tag quality, the instance is shared.", e);
+      return quality;
+    }
+  }
+
+  /**
+   * @param timestamp
+   *          the timestamp, can be <code>null</code>
+   * @return the timestamp in nanoseconds since epoch, or {@link #NULL_TIME}
+   */
+  private static long toNanos(final Timestamp timestamp) {
+    if (timestamp == null) {
+      return NULL_TIME;
+    }
+    return Math.floorDiv(timestamp.getTime(), 1000L) * 1000L * NANOS_PER_MILLI + timestamp.getNanos();
+  }
+
+  /**
+   * @param time
+   *          a time in milliseconds
+   * @return the first nanosecond of the millisecond
+   */
+  private static long toLowerNanos(final long time) {
+    if (time <= Long.MIN_VALUE / NANOS_PER_MILLI) {
+      return NULL_TIME + 1;
+    }
+    if (time >= Long.MAX_VALUE / NANOS_PER_MILLI) {
+      return Long.MAX_VALUE;
+    }
+    return time * NANOS_PER_MILLI;
+  }
+
+  /**
+   * @param time
+   *          a time in milliseconds
+   * @return the last nanosecond of the millisecond
+   */
+  private static long toUpperNanos(final long time) {
+    if (time <= Long.MIN_VALUE / NANOS_PER_MILLI) {
+      return NULL_TIME + 1;
+    }
+    if (time >= Long.MAX_VALUE / NANOS_PER_MILLI - 1) {
+      return Long.MAX_VALUE;
+    }
+    return (time + 1) * NANOS_PER_MILLI - 1;
+  }
+
+  /**
+   * @param nanos
+   *          the time in nanoseconds since epoch, or {@link #NULL_TIME}
+   * @return the timestamp, or <code>null</code>
+   */
+  private static Timestamp toTimestamp(final long nanos) {
+    if (nanos == NULL_TIME) {
+      return null;
+    }
+    final long nanosPerSecond = 1000L * NANOS_PER_MILLI;
+    final Timestamp timestamp = new Timestamp(Math.floorDiv(nanos, nanosPerSecond) * 1000L);
+    timestamp.setNanos((int) Math.floorMod(nanos, nanosPerSecond));
+    return timestamp;
+  }
+
+  /**
+   * Keeps each distinct value once, and refers to them by index
+   * 
+   * @param <T>
+   *          the type of values
+   */
+  private static final class Dictionary<T> {
+
+    /** Returned by {@link #indexOf(Object)} for the values which are not in the dictionary */
+    public static final int NOT_FOUND = -2;
+
+    /** The values by index */
+    private final List<T> values = new ArrayList<T>();
+
+    /** The index of each value */
+    private final Map<T, Integer> indexes = new HashMap<T, Integer>();
+
+    /**
+     * @param value
+     *          the value to encode
+     * @return the index of the value, or <code>-1</code> for <code>null</code>
+     */
+    public int encode(final T value) {
+      if (value == null) {
+        return -1;
+      }
+      Integer index = this.indexes.get(value);
+      if (index == null) {
+        index = this.values.size();
+        this.values.add(value);
+        this.indexes.put(value, index);
+      }
+      return index;
+    }
+
+    /**
+     * @param value
+     *          the value to look up
+     * @return the index of the value, <code>-1</code> for <code>null</code>,
+     *         or {@link #NOT_FOUND} if the value is not in the dictionary
+     */
+    public int indexOf(final T value) {
+      if (value == null) {
+        return -1;
+      }
+      final Integer index = this.indexes.get(value);
+      if (index == null) {
+        return NOT_FOUND;
+      }
+      return index;
+    }
+
+    /**
+     * @return the number of distinct values
+     */
+    public int size() {
+      return this.values.size();
+    }
+
+    /**
+     * @param index
+     *          the index of the value
+     * @return the value, or <code>null</code> if the index is <code>-1</code>
+     */
+    public T decode(final int index) {
+      if (index < 0) {
+        return null;
+      }
+      return this.values.get(index);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cern.c2mon.client.ext.history.playback.publish.SupervisionListenersManager;
+import cern.c2mon.client.ext.history.playback.publish.TagListenersManager;
+
+/**
+ * A {@link KeyForValuesMap} for maps which is read much more often than it is
+ * changed. The values of a key is kept as an immutable set which is replaced
+ * on each change, so {@link #getValues(Object)} and {@link #haveKey(Object)}
+ * neither locks nor copies anything. Changes is synchronized.<br/>
+ * <br/>
+ * It also keeps a reverse index from each value to its keys, so that
+ * {@link #removeValue(Object)} only visits the keys of the value.
+ * 
+ * @see TagListenersManager
+ * @see SupervisionListenersManager
+ * 
+ * @param <K>
+ *          The type of key which all the values will be referenced by
+ * @param <V>
+ *          The type of value
+ */
+public class CopyOnWriteKeyForValuesMap<K, V> extends KeyForValuesMap<K, V> {
+
+  /** The keys with an immutable set of values. Keys without values is removed. */
+  private final Map<K, Set<V>> keysWithValues;
+
+  /** The keys of each value, guarded by <code>this</code> */
+  private final Map<V, Set<K>> valuesWithKeys;
+
+  /**
+   * Constructor
+   */
+  public CopyOnWriteKeyForValuesMap() {
+    super();
+    this.keysWithValues = new ConcurrentHashMap<K, Set<V>>();
+    this.valuesWithKeys = new HashMap<V, Set<K>>();
+  }
+
+  /**
+   * Removes all keys and values
+   */
+  @Override
+  public synchronized void clear() {
+    this.keysWithValues.clear();
+    this.valuesWithKeys.clear();
+  }
+
+  /**
+   *
+   * @param key
+   *          The key to add the value to
+   * @param value
+   *          The value to add
+   * @return <code>true</code> if this is the first value registered on the key
+   */
+  @Override
+  public synchronized boolean add(final K key, final V value) {
+    final Set<V> oldValues = this.keysWithValues.get(key);
+    final boolean result = oldValues == null;
+    if (oldValues == null || !oldValues.contains(value)) {
+      final Set<V> newValues;
+      if (oldValues == null) {
+        newValues = Collections.singleton(value);
+      }
+      else {
+        final Set<V> values = new HashSet<V>(oldValues);
+        values.add(value);
+        newValues = Collections.unmodifiableSet(values);
+      }
+      this.keysWithValues.put(key, newValues);
+
+      Set<K> keys = this.valuesWithKeys.get(value);
+      if (keys == null) {
+        keys = new HashSet<K>();
+        this.valuesWithKeys.put(value, keys);
+      }
+      keys.add(key);
+    }
+    return result;
+  }
+
+  /**
+   * Removes the value from all the keys it is registered on
+   * 
+   * @param value
+   *          The value to remove
+   * @return a list of keys which doesn't have any values after the removal of
+   *         this key
+   */
+  @Override
+  public synchronized Collection<K> removeValue(final V value) {
+    final Set<K> removedKeys = new HashSet<K>();
+    final Set<K> keys = this.valuesWithKeys.remove(value);
+    if (keys == null) {
+      return removedKeys;
+    }
+    for (final K key : keys) {
+      final Set<V> oldValues = this.keysWithValues.get(key);
+      if (oldValues == null) {
+        continue;
+      }
+      if (oldValues.size() <= 1) {
+        this.keysWithValues.remove(key);
+        removedKeys.add(key);
+      }
+      else {
+        final Set<V> values = new HashSet<V>(oldValues);
+        values.remove(value);
+        this.keysWithValues.put(key, Collections.unmodifiableSet(values));
+      }
+    }
+    return removedKeys;
+  }
+
+  /**
+   * All values with the given key will be removed.
+   * 
+   * @param key the key to remove. 
+   */
+  @Override
+  public synchronized void removeKey(final K key) {
+    final Set<V> values = this.keysWithValues.remove(key);
+    if (values == null) {
+      return;
+    }
+    for (final V value : values) {
+      final Set<K> keys = this.valuesWithKeys.get(value);
+      if (keys != null) {
+        keys.remove(key);
+        if (keys.isEmpty()) {
+          this.valuesWithKeys.remove(value);
+        }
+      }
+    }
+  }
+
+  /**
+   * 
+   * @param key
+   *          the key to check
+   * @return <code>true</code> if the key have any values
+   */
+  @Override
+  public boolean haveKey(final K key) {
+    return this.keysWithValues.containsKey(key);
+  }
+
+  /**
+   * 
+   * @param key
+   *          the key to get the values for
+   * @return an unmodifiable snapshot of the values registered on the key, or
+   *         an empty set if there is no values. Later changes to the map is
+   *         not reflected in the returned set.
+   */
+  @Override
+  public Collection<V> getValues(final K key) {
+    final Set<V> result = this.keysWithValues.get(key);
+    if (result == null) {
+      return Collections.emptySet();
+    }
+    return result;
+  }
+}
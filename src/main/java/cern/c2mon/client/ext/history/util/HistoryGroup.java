@@ -16,12 +16,15 @@
  *****************************************************************************/
 package cern.c2mon.client.ext.history.util;
 
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import cern.c2mon.client.ext.history.common.HistorySupervisionEvent;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
 import cern.c2mon.client.ext.history.common.HistoryUpdate;
 import cern.c2mon.client.ext.history.common.id.HistoryUpdateId;
 import cern.c2mon.client.ext.history.playback.data.HistoryStore;
@@ -36,20 +39,59 @@ import cern.c2mon.client.ext.history.playback.data.HistoryStore;
  */
 public class HistoryGroup {
 
+  /** Returned by {@link #getNextExecutionTime(long)} when there is no record */
+  public static final long NO_EXECUTION_TIME = Long.MIN_VALUE;
+
+  /** The estimated memory used by an empty group, in bytes */
+  public static final long ESTIMATED_BYTES_PER_GROUP = 160;
+
+  /**
+   * The estimated memory used by a record kept as an object, with its
+   * timestamps and value, in bytes
+   */
+  private static final long ESTIMATED_BYTES_PER_RECORD = 240;
+
+  /**
+   * Orders records by execution timestamp ascending. <code>null</code> records
+   * and records without execution timestamp, which can be added with
+   * {@link #add(HistoryUpdate)}, are put last.
+   */
+  protected static final Comparator<HistoryUpdate> EXECUTION_TIME_ORDER = new Comparator<HistoryUpdate>() {
+    @Override
+    public int compare(final HistoryUpdate o1, final HistoryUpdate o2) {
+      final Timestamp time1 = o1 == null ? null : o1.getExecutionTimestamp();
+      final Timestamp time2 = o2 == null ? null : o2.getExecutionTimestamp();
+      if (time1 == null || time2 == null) {
+        if (time1 == time2) {
+          return 0;
+        }
+        return time1 == null ? 1 : -1;
+      }
+      return time1.compareTo(time2);
+    }
+  };
+
   /**
    * The data id which is associated with the records
    */
   private HistoryUpdateId historyUpdateId;
 
   /**
-   * The records of the id
+   * The records of the id, <code>null</code> for subclasses which keeps the
+   * records themselves
    */
   private final List<HistoryUpdate> history;
 
   /**
-   * Lock for <code>history</code>
+   * Lock for <code>history</code>, or for the records of the subclass
+   */
+  private final ReentrantReadWriteLock historyLock = new ReentrantReadWriteLock();
+
+  /**
+   * <code>true</code> when <code>history</code> is known to be sorted by
+   * execution timestamp ascending. Guarded by <code>historyLock</code>
    */
-  private ReentrantReadWriteLock historyLock = new ReentrantReadWriteLock();
+  private boolean sortedByExecutionTime = true;
 
   /**
    * 
@@ -57,8 +99,35 @@ public class HistoryGroup {
    *          The data id which the records will be associated with
    */
   public HistoryGroup(final HistoryUpdateId historyUpdateId) {
+    this(historyUpdateId, true);
+  }
+
+  /**
+   * For subclasses which keeps the records in another form. Those must
+   * override all methods which access the records.
+   * 
+   * @param historyUpdateId
+   *          The data id which the records will be associated with
+   * @param keepRecords
+   *          <code>false</code> to not allocate the list of records
+   */
+  protected HistoryGroup(final HistoryUpdateId historyUpdateId, final boolean keepRecords) {
     this.historyUpdateId = historyUpdateId;
-    this.history = new ArrayList<HistoryUpdate>();
+    if (keepRecords) {
+      this.history = new ArrayList<HistoryUpdate>();
+    }
+    else {
+      this.history = null;
+    }
+  }
+
+  /**
+   * @return the lock of the records of the group. Subclasses keeping the
+   *         records themselves uses it as well, so that the methods of this
+   *         class which calls the overridden ones are guarded by the same lock.
+   */
+  protected final ReentrantReadWriteLock getHistoryLock() {
+    return this.historyLock;
   }
 
   /**
@@ -74,6 +143,101 @@ public class HistoryGroup {
     }
   }
 
+  /**
+   * @param fromTime
+   *          the earliest execution time to include, in milliseconds
+   * @param toTime
+   *          the latest execution time to include, in milliseconds
+   * @return the records with an execution time within the interval, sorted by
+   *         execution time
+   */
+  public List<HistoryUpdate> getHistory(final long fromTime, final long toTime) {
+    final List<HistoryUpdate> result = new ArrayList<HistoryUpdate>();
+    try {
+      this.historyLock.readLock().lock();
+      if (this.sortedByExecutionTime) {
+        for (int index = findFirstAtOrAfter(fromTime); index < this.history.size(); index++) {
+          final HistoryUpdate record = this.history.get(index);
+          if (record.getExecutionTimestamp().getTime() > toTime) {
+            break;
+          }
+          result.add(record);
+        }
+      }
+      else {
+        for (final HistoryUpdate record : this.history) {
+          if (record != null && record.getExecutionTimestamp() != null
+              && record.getExecutionTimestamp().getTime() >= fromTime
+              && record.getExecutionTimestamp().getTime() <= toTime) {
+            result.add(record);
+          }
+        }
+        Collections.sort(result, EXECUTION_TIME_ORDER);
+      }
+    }
+    finally {
+      this.historyLock.readLock().unlock();
+    }
+    return result;
+  }
+
+  /**
+   * @param time
+   *          the time in milliseconds
+   * @return the earliest execution time which is at or after
+   *         <code>time</code>, or {@link #NO_EXECUTION_TIME} if there is no
+   *         such record
+   */
+  public long getNextExecutionTime(final long time) {
+    try {
+      this.historyLock.readLock().lock();
+      if (this.sortedByExecutionTime) {
+        final int index = findFirstAtOrAfter(time);
+        if (index < this.history.size()) {
+          return this.history.get(index).getExecutionTimestamp().getTime();
+        }
+        return NO_EXECUTION_TIME;
+      }
+      long next = NO_EXECUTION_TIME;
+      for (final HistoryUpdate record : this.history) {
+        if (record != null && record.getExecutionTimestamp() != null) {
+          final long recordTime = record.getExecutionTimestamp().getTime();
+          if (recordTime >= time && (next == NO_EXECUTION_TIME || recordTime < next)) {
+            next = recordTime;
+          }
+        }
+      }
+      return next;
+    }
+    finally {
+      this.historyLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Must be called while holding the <code>historyLock</code>, and the
+   * records must be sorted
+   * 
+   * @param time
+   *          the time in milliseconds
+   * @return the index of the first record which executes at or after
+   *         <code>time</code>, or the size of the list if there is none
+   */
+  private int findFirstAtOrAfter(final long time) {
+    int low = 0;
+    int high = this.history.size();
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (this.history.get(middle).getExecutionTimestamp().getTime() < time) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
   /**
    * 
    * @param dataTagValue
@@ -82,6 +246,16 @@ public class HistoryGroup {
   public void add(final HistoryUpdate dataTagValue) {
     try {
       this.historyLock.writeLock().lock();
+      if (this.sortedByExecutionTime) {
+        if (dataTagValue == null || dataTagValue.getExecutionTimestamp() == null) {
+          // Also when the group is empty, as the binary searches needs the time
+          this.sortedByExecutionTime = false;
+        }
+        else if (!this.history.isEmpty()) {
+          final HistoryUpdate last = this.history.get(this.history.size() - 1);
+          this.sortedByExecutionTime = compareExecutionTime(last, dataTagValue) <= 0;
+        }
+      }
       this.history.add(dataTagValue);
     }
     finally {
@@ -89,6 +263,278 @@ public class HistoryGroup {
     }
   }
 
+  /**
+   * Adds the records and keeps the list sorted by execution time. When the
+   * records are later than the ones already in the group, which is the case
+   * when buffering forward in time, they are simply appended. Otherwise only
+   * the overlapping part of the list is merged with the new records. Records
+   * with equal execution time keeps the order they were added in.
+   * 
+   * @param records
+   *          The records to add. Records without execution timestamp are
+   *          ignored.
+   * @return the number of records added
+   */
+  public int addSorted(final HistoryUpdate[] records) {
+    final List<HistoryUpdate> newRecords = toSortedList(records);
+    if (newRecords.isEmpty()) {
+      return 0;
+    }
+    try {
+      this.historyLock.writeLock().lock();
+      if (!this.sortedByExecutionTime) {
+        this.history.addAll(newRecords);
+        Collections.sort(this.history, EXECUTION_TIME_ORDER);
+        this.sortedByExecutionTime = isSortedByExecutionTime();
+        return newRecords.size();
+      }
+
+      final int position = findFirstAfter(newRecords.get(0).getExecutionTimestamp());
+      if (position == this.history.size()) {
+        this.history.addAll(newRecords);
+      }
+      else {
+        final List<HistoryUpdate> overlapping = this.history.subList(position, this.history.size());
+        final List<HistoryUpdate> tail = new ArrayList<HistoryUpdate>(overlapping);
+        overlapping.clear();
+        merge(tail, newRecords, this.history);
+      }
+      return newRecords.size();
+    }
+    finally {
+      this.historyLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Adds the records which are not in the group already, and keeps the list
+   * sorted by execution time. A record is in the group already when a record
+   * with the same execution time also has the same timestamps and value, so
+   * that records loaded again by a retried query are not added twice, while
+   * different records of the same millisecond are all kept. The records are
+   * compared and added holding the lock of the group.
+   *
+   * @param records
+   *          The records to add. Records without execution timestamp are
+   *          ignored.
+   * @return the number of records added
+   */
+  public int addMissing(final HistoryUpdate[] records) {
+    try {
+      this.historyLock.writeLock().lock();
+      return addSorted(getMissingRecords(records));
+    }
+    finally {
+      this.historyLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Must be called while holding the write lock of the group
+   *
+   * @param records
+   *          the records to add
+   * @return the records which have an execution timestamp, and which are not
+   *         in the group already
+   */
+  protected HistoryUpdate[] getMissingRecords(final HistoryUpdate[] records) {
+    final List<HistoryUpdate> missingRecords = new ArrayList<HistoryUpdate>(records.length);
+    for (final HistoryUpdate record : records) {
+      if (record == null || record.getExecutionTimestamp() == null) {
+        continue;
+      }
+      final long time = record.getExecutionTimestamp().getTime();
+      if (getNextExecutionTime(time) != time || !containsSameRecord(getHistory(time, time), record)) {
+        missingRecords.add(record);
+      }
+    }
+    return missingRecords.toArray(new HistoryUpdate[0]);
+  }
+
+  /**
+   * @param records
+   *          the records to search
+   * @param record
+   *          the record to find
+   * @return <code>true</code> if one of the <code>records</code> has the same
+   *         timestamps and value as <code>record</code>
+   */
+  private static boolean containsSameRecord(final List<HistoryUpdate> records, final HistoryUpdate record) {
+    for (final HistoryUpdate other : records) {
+      if (isSameRecord(other, record)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param first
+   *          a record
+   * @param second
+   *          another record
+   * @return <code>true</code> if the records are of the same id, and have the
+   *         same timestamps and value. Supervision events are compared by
+   *         their time, status and message.
+   */
+  private static boolean isSameRecord(final HistoryUpdate first, final HistoryUpdate second) {
+    if (!equal(first.getUpdateId(), second.getUpdateId())) {
+      return false;
+    }
+    if (first instanceof HistoryTagValueUpdate && second instanceof HistoryTagValueUpdate) {
+      final HistoryTagValueUpdate firstUpdate = (HistoryTagValueUpdate) first;
+      final HistoryTagValueUpdate secondUpdate = (HistoryTagValueUpdate) second;
+      return equal(firstUpdate.getServerTimestamp(), secondUpdate.getServerTimestamp())
+          && equal(firstUpdate.getSourceTimestamp(), secondUpdate.getSourceTimestamp())
+          && equal(firstUpdate.getDaqTimestamp(), secondUpdate.getDaqTimestamp())
+          && equal(firstUpdate.getLogTimestamp(), secondUpdate.getLogTimestamp())
+          && equal(firstUpdate.getValue(), secondUpdate.getValue());
+    }
+    if (first instanceof HistorySupervisionEvent && second instanceof HistorySupervisionEvent) {
+      final HistorySupervisionEvent firstEvent = (HistorySupervisionEvent) first;
+      final HistorySupervisionEvent secondEvent = (HistorySupervisionEvent) second;
+      return equal(firstEvent.getEventTime(), secondEvent.getEventTime())
+          && equal(firstEvent.getStatus(), secondEvent.getStatus())
+          && equal(firstEvent.getMessage(), secondEvent.getMessage());
+    }
+    return first.equals(second);
+  }
+
+  /**
+   * @return <code>true</code> if both are <code>null</code> or equal
+   */
+  private static boolean equal(final Object first, final Object second) {
+    return first == null ? second == null : first.equals(second);
+  }
+
+  /**
+   * Must be called while holding the <code>historyLock</code>, and the
+   * records must be sorted
+   * 
+   * @param time
+   *          the execution time
+   * @return the index of the first record which executes after
+   *         <code>time</code>, or the size of the list if there is none
+   */
+  private int findFirstAfter(final Timestamp time) {
+    int low = 0;
+    int high = this.history.size();
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (this.history.get(middle).getExecutionTimestamp().compareTo(time) <= 0) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @param records
+   *          the records
+   * @return the records which have an execution timestamp, sorted by it
+   */
+  protected static List<HistoryUpdate> toSortedList(final HistoryUpdate[] records) {
+    final List<HistoryUpdate> result = new ArrayList<HistoryUpdate>(records.length);
+    boolean sorted = true;
+    for (final HistoryUpdate record : records) {
+      if (record != null && record.getExecutionTimestamp() != null) {
+        if (sorted && !result.isEmpty()
+            && EXECUTION_TIME_ORDER.compare(result.get(result.size() - 1), record) > 0) {
+          sorted = false;
+        }
+        result.add(record);
+      }
+    }
+    if (!sorted) {
+      Collections.sort(result, EXECUTION_TIME_ORDER);
+    }
+    return result;
+  }
+
+  /**
+   * Merges two sorted lists by execution time. On equal execution time the
+   * record from <code>first</code> is taken first.
+   * 
+   * @param first
+   *          sorted records
+   * @param second
+   *          sorted records
+   * @param target
+   *          the list to add the merged records to
+   */
+  protected static void merge(final List<HistoryUpdate> first, final List<HistoryUpdate> second, final List<HistoryUpdate> target) {
+    int firstIndex = 0;
+    int secondIndex = 0;
+    while (firstIndex < first.size() && secondIndex < second.size()) {
+      if (EXECUTION_TIME_ORDER.compare(first.get(firstIndex), second.get(secondIndex)) <= 0) {
+        target.add(first.get(firstIndex++));
+      }
+      else {
+        target.add(second.get(secondIndex++));
+      }
+    }
+    target.addAll(first.subList(firstIndex, first.size()));
+    target.addAll(second.subList(secondIndex, second.size()));
+  }
+
+  /**
+   * Removes the records which executes before the given time, except the
+   * latest of them, so that the value at the time can still be found. Nothing
+   * is removed if the records are not sorted by execution time.
+   *
+   * @param time
+   *          the time in milliseconds
+   * @return the number of records removed
+   */
+  public int evictBefore(final long time) {
+    try {
+      this.historyLock.writeLock().lock();
+      if (!this.sortedByExecutionTime) {
+        return 0;
+      }
+      // Keeps the latest record at or before the time
+      final int removed = findFirstAfter(new Timestamp(time)) - 1;
+      if (removed <= 0) {
+        return 0;
+      }
+      this.history.subList(0, removed).clear();
+      return removed;
+    }
+    finally {
+      this.historyLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of records in the group
+   */
+  public int size() {
+    try {
+      this.historyLock.readLock().lock();
+      return this.history.size();
+    }
+    finally {
+      this.historyLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the estimated memory used by each record in the group, in bytes
+   */
+  public long getEstimatedBytesPerRecord() {
+    return ESTIMATED_BYTES_PER_RECORD;
+  }
+
+  /**
+   * @return the estimated memory used by the group and its records, in bytes
+   */
+  public long getEstimatedMemoryUsage() {
+    return ESTIMATED_BYTES_PER_GROUP + size() * getEstimatedBytesPerRecord();
+  }
+
   /**
    * @return The id which is associated with the records
    */
@@ -106,10 +552,106 @@ public class HistoryGroup {
     try {
       this.historyLock.writeLock().lock();
       Collections.sort(this.history, comparator);
+      this.sortedByExecutionTime = isSortedByExecutionTime();
     }
     finally {
       this.historyLock.writeLock().unlock();
     }
   }
 
+  /**
+   * Finds the latest record which were executed at, or before, the given time.
+   * Runs in O(log n) without copying the records, as long as the records are
+   * sorted by execution time (the {@link HistoryStore} sorts them after each
+   * load). Falls back to a linear scan otherwise.
+   * 
+   * @param time
+   *          the time in milliseconds
+   * @return the latest record with an execution timestamp less than or equal
+   *         to <code>time</code>, or <code>null</code> if there is none
+   */
+  public HistoryUpdate getLatestUpdate(final long time) {
+    try {
+      this.historyLock.readLock().lock();
+      if (!this.sortedByExecutionTime) {
+        return findLatestUpdateLinear(time);
+      }
+      int low = 0;
+      int high = this.history.size() - 1;
+      HistoryUpdate latest = null;
+      while (low <= high) {
+        final int middle = (low + high) >>> 1;
+        final HistoryUpdate record = this.history.get(middle);
+        if (record.getExecutionTimestamp().getTime() <= time) {
+          latest = record;
+          low = middle + 1;
+        }
+        else {
+          high = middle - 1;
+        }
+      }
+      return latest;
+    }
+    finally {
+      this.historyLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Must be called while holding the <code>historyLock</code>
+   * 
+   * @param time
+   *          the time in milliseconds
+   * @return the latest record with an execution timestamp less than or equal
+   *         to <code>time</code>, found by going through the records in order
+   */
+  private HistoryUpdate findLatestUpdateLinear(final long time) {
+    HistoryUpdate latest = null;
+    for (final HistoryUpdate record : this.history) {
+      if (record != null && record.getExecutionTimestamp() != null) {
+        if (record.getExecutionTimestamp().getTime() > time) {
+          break;
+        }
+        latest = record;
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Must be called while holding the <code>historyLock</code>
+   * 
+   * @return <code>true</code> if the records are sorted by execution timestamp
+   *         ascending, and none of them is missing an execution timestamp
+   */
+  private boolean isSortedByExecutionTime() {
+    HistoryUpdate previous = null;
+    for (final HistoryUpdate record : this.history) {
+      if (record == null || record.getExecutionTimestamp() == null) {
+        return false;
+      }
+      if (previous != null && compareExecutionTime(previous, record) > 0) {
+        return false;
+      }
+      previous = record;
+    }
+    return true;
+  }
+
+  /**
+   * @param first
+   *          a record
+   * @param second
+   *          another record
+   * @return the comparison of the execution timestamps. Records without
+   *         execution timestamp are treated as out of order.
+   */
+  private static int compareExecutionTime(final HistoryUpdate first, final HistoryUpdate second) {
+    if (first == null || second == null
+        || first.getExecutionTimestamp() == null || second.getExecutionTimestamp() == null) {
+      return 1;
+    }
+    return first.getExecutionTimestamp().compareTo(second.getExecutionTimestamp());
+  }
+
 }
@@ -0,0 +1,307 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A binary min heap of keys ordered by a <code>long</code> priority, which
+ * keeps track of where each key is in the heap. This makes it possible to
+ * change the priority of, or remove, any key in O(log n) and to look up the
+ * priority of a key in O(1).<br/>
+ * <br/>
+ * Each key can only be in the heap once. The class is not thread safe.
+ * 
+ * @param <K>
+ *          The type of key
+ */
+public class IndexedLongMinHeap<K> {
+
+  /** The initial capacity of the heap */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** The keys, in heap order */
+  private Object[] keys;
+
+  /** The priority of each key in {@link #keys} */
+  private long[] priorities;
+
+  /** The number of keys in the heap */
+  private int size;
+
+  /** The position of each key in {@link #keys} */
+  private final Map<K, Integer> positions;
+
+  /**
+   * Constructor
+   */
+  public IndexedLongMinHeap() {
+    this.keys = new Object[INITIAL_CAPACITY];
+    this.priorities = new long[INITIAL_CAPACITY];
+    this.size = 0;
+    this.positions = new HashMap<K, Integer>();
+  }
+
+  /**
+   * Adds the key, or changes its priority if it is already in the heap
+   * 
+   * @param key
+   *          the key
+   * @param priority
+   *          the priority of the key, the lowest is first
+   */
+  public void put(final K key, final long priority) {
+    final Integer position = this.positions.get(key);
+    if (position == null) {
+      if (this.size == this.keys.length) {
+        this.keys = Arrays.copyOf(this.keys, this.size * 2);
+        this.priorities = Arrays.copyOf(this.priorities, this.size * 2);
+      }
+      set(this.size, key, priority);
+      siftUp(this.size++);
+    }
+    else {
+      final long oldPriority = this.priorities[position];
+      this.priorities[position] = priority;
+      if (priority < oldPriority) {
+        siftUp(position);
+      }
+      else {
+        siftDown(position);
+      }
+    }
+  }
+
+  /**
+   * @param key
+   *          the key to remove
+   * @return <code>true</code> if the key was in the heap
+   */
+  public boolean remove(final K key) {
+    final Integer position = this.positions.remove(key);
+    if (position == null) {
+      return false;
+    }
+    removeAt(position);
+    return true;
+  }
+
+  /**
+   * @param key
+   *          the key
+   * @return <code>true</code> if the key is in the heap
+   */
+  public boolean contains(final K key) {
+    return this.positions.containsKey(key);
+  }
+
+  /**
+   * @param key
+   *          the key
+   * @param defaultValue
+   *          the value to return if the key is not in the heap
+   * @return the priority of the key
+   */
+  public long getPriority(final K key, final long defaultValue) {
+    final Integer position = this.positions.get(key);
+    if (position == null) {
+      return defaultValue;
+    }
+    return this.priorities[position];
+  }
+
+  /**
+   * @return the key with the lowest priority, or <code>null</code> if the heap
+   *         is empty
+   */
+  @SuppressWarnings("unchecked")
+  public K peek() {
+    if (this.size == 0) {
+      return null;
+    }
+    return (K) this.keys[0];
+  }
+
+  /**
+   * @return the lowest priority in the heap
+   * @throws IllegalStateException
+   *           if the heap is empty
+   */
+  public long peekPriority() {
+    if (this.size == 0) {
+      throw new IllegalStateException("The heap is empty");
+    }
+    return this.priorities[0];
+  }
+
+  /**
+   * Adds all the keys with a priority lower than or equal to the given
+   * priority to the result, in no particular order. Only visits the part of
+   * the heap which is lower than the priority, O(k) for k keys found.
+   * 
+   * @param maximumPriority
+   *          the highest priority to include
+   * @param result
+   *          the collection the keys are added to
+   */
+  @SuppressWarnings("unchecked")
+  public void collect(final long maximumPriority, final Collection<? super K> result) {
+    if (this.size == 0 || this.priorities[0] > maximumPriority) {
+      return;
+    }
+    final Deque<Integer> positionsToVisit = new ArrayDeque<Integer>();
+    positionsToVisit.push(0);
+    while (!positionsToVisit.isEmpty()) {
+      final int position = positionsToVisit.pop();
+      result.add((K) this.keys[position]);
+      for (int child = 2 * position + 1; child <= 2 * position + 2 && child < this.size; child++) {
+        if (this.priorities[child] <= maximumPriority) {
+          positionsToVisit.push(child);
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the key with the lowest priority
+   * 
+   * @return the removed key, or <code>null</code> if the heap is empty
+   */
+  public K poll() {
+    final K key = peek();
+    if (key != null) {
+      this.positions.remove(key);
+      removeAt(0);
+    }
+    return key;
+  }
+
+  /**
+   * @return the number of keys in the heap
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * @return <code>true</code> if the heap is empty
+   */
+  public boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  /**
+   * Removes all the keys
+   */
+  public void clear() {
+    Arrays.fill(this.keys, 0, this.size, null);
+    this.size = 0;
+    this.positions.clear();
+  }
+
+  /**
+   * Removes the key at the position. The key must already be removed from
+   * {@link #positions}.
+   * 
+   * @param position
+   *          the position in the heap
+   */
+  @SuppressWarnings("unchecked")
+  private void removeAt(final int position) {
+    final int last = --this.size;
+    if (position != last) {
+      set(position, (K) this.keys[last], this.priorities[last]);
+      this.keys[last] = null;
+      siftDown(position);
+      siftUp(position);
+    }
+    else {
+      this.keys[last] = null;
+    }
+  }
+
+  /**
+   * Moves the key at the position up until the heap is in order
+   * 
+   * @param position
+   *          the position in the heap
+   */
+  @SuppressWarnings("unchecked")
+  private void siftUp(final int position) {
+    final K key = (K) this.keys[position];
+    final long priority = this.priorities[position];
+    int child = position;
+    while (child > 0) {
+      final int parent = (child - 1) >>> 1;
+      if (this.priorities[parent] <= priority) {
+        break;
+      }
+      set(child, (K) this.keys[parent], this.priorities[parent]);
+      child = parent;
+    }
+    set(child, key, priority);
+  }
+
+  /**
+   * Moves the key at the position down until the heap is in order
+   * 
+   * @param position
+   *          the position in the heap
+   */
+  @SuppressWarnings("unchecked")
+  private void siftDown(final int position) {
+    final K key = (K) this.keys[position];
+    final long priority = this.priorities[position];
+    int parent = position;
+    while (true) {
+      int child = 2 * parent + 1;
+      if (child >= this.size) {
+        break;
+      }
+      if (child + 1 < this.size && this.priorities[child + 1] < this.priorities[child]) {
+        child++;
+      }
+      if (priority <= this.priorities[child]) {
+        break;
+      }
+      set(parent, (K) this.keys[child], this.priorities[child]);
+      parent = child;
+    }
+    set(parent, key, priority);
+  }
+
+  /**
+   * Puts the key at the position and remembers the position
+   * 
+   * @param position
+   *          the position in the heap
+   * @param key
+   *          the key
+   * @param priority
+   *          the priority of the key
+   */
+  private void set(final int position, final K key, final long priority) {
+    this.keys[position] = key;
+    this.priorities[position] = priority;
+    this.positions.put(key, position);
+  }
+}
@@ -20,6 +20,9 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 import cern.c2mon.client.ext.history.data.filter.DailySnapshotSmartFilterTest;
+import cern.c2mon.client.ext.history.data.utilities.MemoryConsumptionAdviserTest;
+import cern.c2mon.client.ext.history.data.utilities.PlaybackWindowTest;
+import cern.c2mon.client.ext.history.data.utilities.WorkStealingQueueTest;
 import cern.c2mon.client.ext.history.dbaccess.AllDbAccessTests;
 import cern.c2mon.client.ext.history.playback.HistoryPlayerImplTest;
 import cern.c2mon.client.ext.history.playback.HistoryPlayerImplTest2;
@@ -37,7 +40,10 @@ import cern.c2mon.client.ext.history.playback.components.ClockTest;
   HistoryPlayerImplTest.class,
   HistoryPlayerImplTest2.class,
   ClockTest.class,
-  DailySnapshotSmartFilterTest.class
+  DailySnapshotSmartFilterTest.class,
+  WorkStealingQueueTest.class,
+  MemoryConsumptionAdviserTest.class,
+  PlaybackWindowTest.class
 })
 public class AllHistoryTests {
 }
@@ -19,9 +19,11 @@ package cern.c2mon.client.ext.history;
 import java.sql.Timestamp;
 import java.util.Collection;
 
+import cern.c2mon.client.ext.history.common.HistoryAggregate;
 import cern.c2mon.client.ext.history.common.HistoryProvider;
 import cern.c2mon.client.ext.history.common.HistorySupervisionEvent;
 import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdateHandler;
 import cern.c2mon.client.ext.history.common.SupervisionEventRequest;
 import cern.c2mon.client.ext.history.common.Timespan;
 import cern.c2mon.client.ext.history.common.event.HistoryProviderListener;
@@ -45,6 +47,11 @@ public class HistoryProviderDummy implements HistoryProvider {
     return null;
   }
 
+  @Override
+  public void getHistory(Long[] tagIds, Timestamp from, Timestamp to, HistoryTagValueUpdateHandler handler) {
+
+  }
+
   @Override
   public Collection<HistoryTagValueUpdate> getHistory(Long[] tagIds, Timestamp from, Timestamp to, int maximumTotalRecords) {
     return null;
@@ -65,6 +72,11 @@ public class HistoryProviderDummy implements HistoryProvider {
     return null;
   }
 
+  @Override
+  public Collection<HistoryAggregate> getAggregatedHistory(Long[] tagIds, Timestamp from, Timestamp to, long bucketMillis) {
+    return null;
+  }
+
   @Override
   public Collection<HistoryTagValueUpdate> getInitialValuesForTags(Long[] tagIds, Timestamp before) {
     return null;
@@ -0,0 +1,143 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.data.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the {@link MemoryConsumptionAdviser} compares the estimated
+ * memory usage with the budget, and lets the listeners clean up before giving
+ * up.
+ */
+public class MemoryConsumptionAdviserTest {
+
+  /** The memory budget used in the tests */
+  private static final long BUDGET = 1000L;
+
+  /** The memory usage given to the adviser */
+  private final AtomicLong usage = new AtomicLong();
+
+  /** The heap left after the last garbage collection given to the adviser */
+  private final AtomicLong heapUsage = new AtomicLong();
+
+  /** The adviser under test */
+  private MemoryConsumptionAdviser adviser;
+
+  @Before
+  public void setUp() {
+    usage.set(0);
+    heapUsage.set(0);
+    adviser = new MemoryConsumptionAdviser() {
+      @Override
+      protected long getHeapUsage() {
+        return heapUsage.get();
+      }
+    };
+    adviser.setMemoryBudget(BUDGET);
+    adviser.setMemoryUsageSource(new MemoryUsageSource() {
+      @Override
+      public long getEstimatedMemoryUsage() {
+        return usage.get();
+      }
+    });
+  }
+
+  @Test
+  public void testWithinBudget() {
+    usage.set(BUDGET);
+    assertTrue(adviser.haveEnoughMemory());
+    assertEquals(0L, adviser.getRemainingMemory());
+
+    usage.set(400L);
+    assertEquals(600L, adviser.getRemainingMemory());
+  }
+
+  @Test
+  public void testCleanUpFreesMemory() {
+    final AtomicLong reportedUsage = new AtomicLong(-1);
+    adviser.addMemoryConsumptionAdviserListener(new MemoryConsumptionAdviserListener() {
+      @Override
+      public void cleanUpObjects() {
+        usage.set(BUDGET / 2);
+      }
+
+      @Override
+      public void onMemoryUsageUpdated(final long estimatedMemoryUsage, final long memoryBudget) {
+        reportedUsage.set(estimatedMemoryUsage);
+        assertEquals(BUDGET, memoryBudget);
+      }
+    });
+
+    usage.set(BUDGET + 1);
+    assertTrue(adviser.haveEnoughMemory());
+    assertEquals(BUDGET / 2, reportedUsage.get());
+  }
+
+  @Test
+  public void testHeapIsCheckedBesideTheEstimate() {
+    final AtomicInteger cleanUps = new AtomicInteger(0);
+    adviser.addMemoryConsumptionAdviserListener(new MemoryConsumptionAdviserListener() {
+      @Override
+      public void cleanUpObjects() {
+        cleanUps.incrementAndGet();
+      }
+
+      @Override
+      public void onMemoryUsageUpdated(final long estimatedMemoryUsage, final long memoryBudget) {
+        // Not used
+      }
+    });
+
+    // The estimate is within the budget, but no heap at all may be used
+    adviser.setMaximumMemoryConsumption(0.0);
+    usage.set(0L);
+    heapUsage.set(1L);
+    assertFalse(adviser.haveEnoughMemory());
+    assertEquals(1, cleanUps.get());
+
+    adviser.setMaximumMemoryConsumption(1.0);
+    assertTrue(adviser.haveEnoughMemory());
+    assertEquals(1, cleanUps.get());
+  }
+
+  @Test
+  public void testCollectedHeapIsEnoughAgain() {
+    adviser.setMaximumMemoryConsumption(0.5);
+    usage.set(0L);
+    heapUsage.set(Runtime.getRuntime().maxMemory());
+    assertFalse(adviser.haveEnoughMemory());
+
+    // The garbage collector have run since, and freed the heap
+    heapUsage.set(0L);
+    assertTrue(adviser.haveEnoughMemory());
+  }
+
+  @Test
+  public void testOverBudget() {
+    usage.set(BUDGET + 1);
+    assertFalse(adviser.haveEnoughMemory());
+    assertEquals(0L, adviser.getRemainingMemory());
+  }
+}
@@ -0,0 +1,107 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.data.utilities;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link PlaybackWindow} used when buffering only a window around
+ * the playback clock
+ */
+public class PlaybackWindowTest {
+
+  /** One minute in milliseconds */
+  private static final long MINUTE = 60L * 1000L;
+
+  @Test
+  public void testDisabledWithoutLookAhead() {
+    final PlaybackWindow window = new PlaybackWindow(0, 0);
+    Assert.assertFalse(window.isEnabled());
+    Assert.assertFalse(window.isAheadOfClock(Long.MAX_VALUE, 0));
+    Assert.assertFalse(window.seek(0, 0));
+  }
+
+  @Test
+  public void testEvictionFollowsTheClock() {
+    final PlaybackWindow window = new PlaybackWindow(30 * MINUTE, 10 * MINUTE);
+    Assert.assertTrue(window.isEnabled());
+    Assert.assertTrue(window.isAheadOfClock(100 * MINUTE, 60 * MINUTE));
+    Assert.assertFalse(window.isAheadOfClock(90 * MINUTE, 60 * MINUTE));
+
+    Assert.assertEquals(50 * MINUTE, window.getEvictionTime(60 * MINUTE));
+    window.evicted(50 * MINUTE);
+    Assert.assertTrue(window.isMissing(50 * MINUTE - 1));
+    Assert.assertFalse(window.isMissing(50 * MINUTE));
+
+    // Moving forward doesn't need anything to be restored
+    Assert.assertFalse(window.seek(80 * MINUTE, 0));
+    Assert.assertFalse(window.hasGap());
+  }
+
+  @Test
+  public void testBackwardSeekIsRestoredUntilTheEvictedTime() {
+    final PlaybackWindow window = new PlaybackWindow(30 * MINUTE, 10 * MINUTE);
+    window.evicted(50 * MINUTE);
+
+    Assert.assertTrue(window.seek(20 * MINUTE, 0));
+    Assert.assertTrue(window.hasGap());
+    Assert.assertTrue(window.isInitialValuesNeeded());
+    Assert.assertEquals(10 * MINUTE, window.getGapStart());
+    Assert.assertEquals(50 * MINUTE, window.getGapEnd());
+    Assert.assertTrue(window.isMissing(30 * MINUTE));
+    Assert.assertFalse(window.isMissing(50 * MINUTE));
+
+    // Nothing is evicted after the start of the gap
+    Assert.assertEquals(10 * MINUTE, window.getEvictionTime(40 * MINUTE));
+
+    // The gap is not restored before the initial values
+    window.restored(10 * MINUTE, 20 * MINUTE);
+    Assert.assertEquals(10 * MINUTE, window.getGapStart());
+    window.initialValuesRestored(10 * MINUTE);
+    Assert.assertFalse(window.isInitialValuesNeeded());
+
+    window.restored(10 * MINUTE, 20 * MINUTE);
+    Assert.assertEquals(20 * MINUTE + 1, window.getGapStart());
+    Assert.assertFalse(window.isMissing(20 * MINUTE));
+
+    window.restored(20 * MINUTE + 1, 50 * MINUTE - 1);
+    Assert.assertFalse(window.hasGap());
+    Assert.assertFalse(window.isMissing(30 * MINUTE));
+  }
+
+  @Test
+  public void testSeekWhileRestoringIgnoresTheOldRestoring() {
+    final PlaybackWindow window = new PlaybackWindow(30 * MINUTE, 10 * MINUTE);
+    window.evicted(50 * MINUTE);
+    window.seek(30 * MINUTE, 0);
+    window.initialValuesRestored(20 * MINUTE);
+
+    // Moves further back before the restoring have finished
+    Assert.assertTrue(window.seek(5 * MINUTE, 0));
+    Assert.assertEquals(0, window.getGapStart());
+    Assert.assertEquals(50 * MINUTE, window.getGapEnd());
+    window.restored(20 * MINUTE, 40 * MINUTE);
+    Assert.assertEquals(0, window.getGapStart());
+    Assert.assertTrue(window.isInitialValuesNeeded());
+
+    window.clear();
+    Assert.assertFalse(window.hasGap());
+    Assert.assertFalse(window.isMissing(0));
+  }
+}
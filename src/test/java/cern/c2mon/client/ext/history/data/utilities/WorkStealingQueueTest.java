@@ -0,0 +1,161 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.data.utilities;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link WorkStealingQueue} and the {@link AdaptiveWorkerCount}
+ * used when loading the history in parallel
+ */
+public class WorkStealingQueueTest {
+
+  @Test
+  public void testWorkerTakesOwnUnitsFirstThenSteals() {
+    final WorkStealingQueue<Integer> queue = new WorkStealingQueue<Integer>(2);
+    for (int i = 0; i < 4; i++) {
+      queue.add(i);
+    }
+    // Units 0 and 2 goes to worker 0, 1 and 3 to worker 1
+    Assert.assertEquals(Integer.valueOf(0), queue.claim(0));
+    Assert.assertEquals(Integer.valueOf(2), queue.claim(0));
+    Assert.assertEquals(0, queue.getStolenCount());
+    
+    // Steals from the end of the queue of worker 1
+    Assert.assertEquals(Integer.valueOf(3), queue.claim(0));
+    Assert.assertEquals(1, queue.getStolenCount());
+    Assert.assertEquals(Integer.valueOf(1), queue.claim(1));
+    Assert.assertNull(queue.claim(0));
+    Assert.assertNull(queue.claim(1));
+  }
+
+  @Test
+  public void testAllUnitsAreClaimedOnce() throws InterruptedException {
+    final int numberOfWorkers = 4;
+    final int numberOfUnits = 10000;
+    final WorkStealingQueue<Integer> queue = new WorkStealingQueue<Integer>(numberOfWorkers);
+    for (int i = 0; i < numberOfUnits; i++) {
+      queue.add(i);
+    }
+    final Set<Integer> claimed = new HashSet<Integer>();
+    final Thread[] threads = new Thread[numberOfWorkers];
+    for (int i = 0; i < numberOfWorkers; i++) {
+      final int worker = i;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Integer unit;
+          while ((unit = queue.claim(worker)) != null) {
+            synchronized (claimed) {
+              Assert.assertTrue(claimed.add(unit));
+            }
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(numberOfUnits, claimed.size());
+  }
+
+  @Test
+  public void testAdaptiveWorkerCount() {
+    final AdaptiveWorkerCount workerCount = new AdaptiveWorkerCount(3);
+    Assert.assertEquals(1, workerCount.getWorkers());
+    
+    // Stays as fast, adds workers up to the maximum
+    workerCount.addMeasurement(1, 100);
+    Assert.assertEquals(2, workerCount.getWorkers());
+    workerCount.addMeasurement(2, 110);
+    Assert.assertEquals(3, workerCount.getWorkers());
+    workerCount.addMeasurement(3, 120);
+    Assert.assertEquals(3, workerCount.getWorkers());
+    
+    // The database is saturated
+    workerCount.addMeasurement(3, 1000);
+    Assert.assertEquals(2, workerCount.getWorkers());
+  }
+
+  @Test
+  public void testAdaptiveWorkerCountThresholds() {
+    final AdaptiveWorkerCount workerCount = new AdaptiveWorkerCount(5);
+    workerCount.addMeasurement(1, 100);
+    Assert.assertEquals(2, workerCount.getWorkers());
+
+    // Between 1.5 and 2.5 times the baseline, the workers are kept
+    workerCount.addMeasurement(2, 170);
+    Assert.assertEquals(2, workerCount.getWorkers());
+
+    // Faster, but not all the workers were used
+    workerCount.addMeasurement(1, 100);
+    Assert.assertEquals(2, workerCount.getWorkers());
+
+    // Just below 1.5 times the risen baseline of 106.25
+    workerCount.addMeasurement(2, 150);
+    Assert.assertEquals(3, workerCount.getWorkers());
+    workerCount.addMeasurement(3, 100);
+    Assert.assertEquals(4, workerCount.getWorkers());
+
+    // Above 2.5 times the risen baseline of 130
+    workerCount.addMeasurement(4, 340);
+    Assert.assertEquals(3, workerCount.getWorkers());
+
+    // Removes a worker from the number of workers which were used
+    workerCount.addMeasurement(2, 1000);
+    Assert.assertEquals(1, workerCount.getWorkers());
+
+    // Never less than one worker, and measurements without latency are ignored
+    workerCount.addMeasurement(1, 1000);
+    Assert.assertEquals(1, workerCount.getWorkers());
+    workerCount.addMeasurement(1, 0);
+    Assert.assertEquals(1, workerCount.getWorkers());
+  }
+
+  @Test
+  public void testAdaptiveWorkerCountBaselineFollowsSlowerQueries() {
+    final AdaptiveWorkerCount workerCount = new AdaptiveWorkerCount(4);
+    for (int workers = 1; workers < 4; workers++) {
+      workerCount.addMeasurement(workers, 100);
+    }
+    Assert.assertEquals(4, workerCount.getWorkers());
+
+    // All the queries becomes four times slower, which first looks like saturation
+    workerCount.addMeasurement(4, 400);
+    Assert.assertEquals(3, workerCount.getWorkers());
+
+    // The baseline rises by an eighth of the difference per measurement, and
+    // is above 400 / 1.5 after the seventh
+    for (int i = 2; i <= 6; i++) {
+      workerCount.addMeasurement(3, 400);
+      Assert.assertEquals(3, workerCount.getWorkers());
+    }
+    workerCount.addMeasurement(3, 400);
+    Assert.assertEquals(4, workerCount.getWorkers());
+
+    // A faster query is the new baseline straight away
+    workerCount.addMeasurement(4, 100);
+    workerCount.addMeasurement(4, 400);
+    Assert.assertEquals(3, workerCount.getWorkers());
+  }
+}
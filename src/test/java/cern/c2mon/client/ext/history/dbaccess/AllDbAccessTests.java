@@ -19,7 +19,9 @@ package cern.c2mon.client.ext.history.dbaccess;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
+import cern.c2mon.client.ext.history.dbaccess.spring.HistoryMapperHsqldbTest;
 import cern.c2mon.client.ext.history.dbaccess.spring.HistorySessionFactoryTest;
+import cern.c2mon.client.ext.history.dbaccess.util.TimeZoneUtilTest;
 
 /**
  * All the tests in the package
@@ -30,6 +32,11 @@ import cern.c2mon.client.ext.history.dbaccess.spring.HistorySessionFactoryTest;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
   HistoryRecordBeanTest.class,
+  TimeZoneUtilTest.class,
+  HistoryMapperHsqldbTest.class,
+  SqlHistoryProviderDAOTest.class,
+  CachingHistoryProviderTest.class,
+  DiskHistoryBucketCacheTest.class,
   HistorySessionFactoryTest.class
 })
 public class AllDbAccessTests {
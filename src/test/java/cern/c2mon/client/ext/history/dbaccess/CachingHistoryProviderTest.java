@@ -0,0 +1,242 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistorySupervisionEvent;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdateHandler;
+import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
+import cern.c2mon.shared.client.tag.TagMode;
+import cern.c2mon.shared.common.datatag.DataTagQualityImpl;
+
+/**
+ * Tests that the {@link CachingHistoryProvider} gives the same records as the
+ * provider it wraps, while requesting each day only once
+ */
+public class CachingHistoryProviderTest {
+
+  /** The length of a day */
+  private static final long DAY = HistoryBucketCache.BUCKET_LENGTH;
+
+  /** The time between each record of a tag */
+  private static final long RECORD_INTERVAL = 60L * 60L * 1000L;
+
+  /** The tags which have records */
+  private static final Long[] TAG_IDS = new Long[] { 1L, 2L, 3L };
+
+  /** The start of the first day with records, ten days ago */
+  private static final long FIRST_DAY = (System.currentTimeMillis() / DAY - 10) * DAY;
+
+  /** The number of days with records, up to now */
+  private static final int NUMBER_OF_DAYS = 11;
+
+  /** The requests done to the wrapped provider */
+  private List<Timestamp[]> requests;
+
+  /** The wrapped provider */
+  private HistoryProviderSimpleImpl historyProvider;
+
+  @Before
+  public void setUp() {
+    final List<HistoryTagValueUpdate> records = new ArrayList<HistoryTagValueUpdate>();
+    for (final Long tagId : TAG_IDS) {
+      // The records are never on the border between two days
+      for (long time = FIRST_DAY + RECORD_INTERVAL / 2; time < FIRST_DAY + NUMBER_OF_DAYS * DAY; time += RECORD_INTERVAL) {
+        final Timestamp timestamp = new Timestamp(time);
+        records.add(new HistoryTagValueUpdateImpl(tagId, new DataTagQualityImpl(), Long.valueOf(time),
+            timestamp, timestamp, timestamp, timestamp, "", null, TagMode.OPERATIONAL));
+      }
+    }
+
+    requests = new ArrayList<Timestamp[]>();
+    historyProvider = new HistoryProviderSimpleImpl(
+        new ArrayList<HistoryTagValueUpdate>(), records,
+        new ArrayList<HistorySupervisionEvent>(), new ArrayList<HistorySupervisionEvent>()) {
+      @Override
+      public Collection<HistoryTagValueUpdate> getHistory(final Long[] tagIds, final Timestamp from, final Timestamp to) {
+        requests.add(new Timestamp[] { from, to });
+        return super.getHistory(tagIds, from, to);
+      }
+    };
+  }
+
+  @Test
+  public void testRepeatedRequestIsServedFromCache() {
+    final CachingHistoryProvider provider = new CachingHistoryProvider(historyProvider, new HistoryBucketCache(Long.MAX_VALUE));
+    final Timestamp from = new Timestamp(FIRST_DAY);
+    final Timestamp to = new Timestamp(FIRST_DAY + 4 * DAY);
+
+    final Collection<HistoryTagValueUpdate> expected = historyProvider.getHistory(TAG_IDS, from, to);
+    requests.clear();
+
+    assertSameRecords(expected, provider.getHistory(TAG_IDS, from, to));
+    // All the days are requested at once
+    assertEquals(1, requests.size());
+    assertEquals(FIRST_DAY, requests.get(0)[0].getTime());
+    assertEquals(FIRST_DAY + 4 * DAY, requests.get(0)[1].getTime());
+
+    requests.clear();
+    assertSameRecords(expected, provider.getHistory(TAG_IDS, from, to));
+    assertEquals(0, requests.size());
+    assertEquals(4 * TAG_IDS.length, provider.getCache().getHitCount());
+    assertEquals(4 * TAG_IDS.length, provider.getCache().getMissCount());
+  }
+
+  @Test
+  public void testPartlyRequestedDaysAreNotCached() {
+    final CachingHistoryProvider provider = new CachingHistoryProvider(historyProvider, new HistoryBucketCache(Long.MAX_VALUE));
+    final Timestamp from = new Timestamp(FIRST_DAY + DAY / 2);
+    final Timestamp to = new Timestamp(FIRST_DAY + 3 * DAY + DAY / 2);
+
+    final Collection<HistoryTagValueUpdate> expected = historyProvider.getHistory(TAG_IDS, from, to);
+    requests.clear();
+
+    // Only the requested time is requested
+    assertSameRecords(expected, provider.getHistory(TAG_IDS, from, to));
+    assertEquals(1, requests.size());
+    assertEquals(from, requests.get(0)[0]);
+    assertEquals(to, requests.get(0)[1]);
+    assertEquals(2 * TAG_IDS.length, provider.getCache().getNumberOfBuckets());
+
+    // The two days in the middle are cached
+    requests.clear();
+    assertSameRecords(expected, provider.getHistory(TAG_IDS, from, to));
+    assertEquals(2, requests.size());
+    assertEquals(from, requests.get(0)[0]);
+    assertEquals(FIRST_DAY + DAY, requests.get(0)[1].getTime());
+    assertEquals(FIRST_DAY + 3 * DAY, requests.get(1)[0].getTime());
+    assertEquals(to, requests.get(1)[1]);
+    assertEquals(2 * TAG_IDS.length, provider.getCache().getHitCount());
+  }
+
+  @Test
+  public void testStreamedRequestIsServedFromCache() {
+    final CachingHistoryProvider provider = new CachingHistoryProvider(historyProvider, new HistoryBucketCache(Long.MAX_VALUE));
+    final Timestamp from = new Timestamp(FIRST_DAY + DAY / 2);
+    final Timestamp to = new Timestamp(FIRST_DAY + 3 * DAY);
+    final Collection<HistoryTagValueUpdate> expected = historyProvider.getHistory(TAG_IDS, from, to);
+
+    for (int i = 0; i < 2; i++) {
+      final List<HistoryTagValueUpdate> streamed = new ArrayList<HistoryTagValueUpdate>();
+      provider.getHistory(TAG_IDS, from, to, new HistoryTagValueUpdateHandler() {
+        @Override
+        public void handle(final HistoryTagValueUpdate update) {
+          streamed.add(update);
+        }
+      });
+      assertSameRecords(expected, streamed);
+    }
+    assertEquals(2 * TAG_IDS.length, provider.getCache().getHitCount());
+  }
+
+  @Test
+  public void testOnlyMissingDaysAreRequested() {
+    final CachingHistoryProvider provider = new CachingHistoryProvider(historyProvider, new HistoryBucketCache(Long.MAX_VALUE));
+    provider.getHistory(TAG_IDS, new Timestamp(FIRST_DAY + 2 * DAY), new Timestamp(FIRST_DAY + 3 * DAY));
+    requests.clear();
+
+    final Timestamp from = new Timestamp(FIRST_DAY);
+    final Timestamp to = new Timestamp(FIRST_DAY + 5 * DAY);
+    assertSameRecords(historyProvider.getHistory(TAG_IDS, from, to), provider.getHistory(TAG_IDS, from, to));
+
+    // The days before and after the cached day (and the direct request above)
+    assertEquals(3, requests.size());
+    assertEquals(FIRST_DAY, requests.get(1)[0].getTime());
+    assertEquals(FIRST_DAY + 2 * DAY, requests.get(1)[1].getTime());
+    assertEquals(FIRST_DAY + 3 * DAY, requests.get(2)[0].getTime());
+    assertEquals(FIRST_DAY + 5 * DAY, requests.get(2)[1].getTime());
+  }
+
+  @Test
+  public void testRecentRecordsAreNotCached() {
+    final CachingHistoryProvider provider = new CachingHistoryProvider(historyProvider, new HistoryBucketCache(Long.MAX_VALUE));
+    final Timestamp from = new Timestamp(FIRST_DAY + 9 * DAY);
+    final Timestamp to = new Timestamp(System.currentTimeMillis());
+
+    provider.getHistory(TAG_IDS, from, to);
+    final Collection<HistoryTagValueUpdate> expected = historyProvider.getHistory(TAG_IDS, from, to);
+    requests.clear();
+    assertSameRecords(expected, provider.getHistory(TAG_IDS, from, to));
+
+    // Today is always requested, and yesterday too until it have settled
+    final long todayStart = FIRST_DAY + 10 * DAY;
+    assertEquals(1, requests.size());
+    final long requestedFrom = requests.get(0)[0].getTime();
+    assertTrue(requestedFrom == todayStart || requestedFrom == from.getTime());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedDaysAreEvicted() {
+    // Room for two days of one tag
+    final long bucketSize = 2 * estimateBucketSize(DAY / RECORD_INTERVAL);
+    final CachingHistoryProvider provider = new CachingHistoryProvider(historyProvider, new HistoryBucketCache(bucketSize));
+    final Long[] tagIds = new Long[] { TAG_IDS[0] };
+
+    provider.getHistory(tagIds, new Timestamp(FIRST_DAY), new Timestamp(FIRST_DAY + DAY));
+    provider.getHistory(tagIds, new Timestamp(FIRST_DAY + DAY), new Timestamp(FIRST_DAY + 2 * DAY));
+    provider.getHistory(tagIds, new Timestamp(FIRST_DAY), new Timestamp(FIRST_DAY + DAY));
+    assertEquals(2, requests.size());
+
+    // The second day is the least recently used one
+    provider.getHistory(tagIds, new Timestamp(FIRST_DAY + 2 * DAY), new Timestamp(FIRST_DAY + 3 * DAY));
+    assertEquals(1, provider.getCache().getEvictionCount());
+    assertEquals(2, provider.getCache().getNumberOfBuckets());
+    assertTrue(provider.getCache().getSize() <= bucketSize);
+
+    requests.clear();
+    provider.getHistory(tagIds, new Timestamp(FIRST_DAY), new Timestamp(FIRST_DAY + DAY));
+    assertEquals(0, requests.size());
+    provider.getHistory(tagIds, new Timestamp(FIRST_DAY + DAY), new Timestamp(FIRST_DAY + 2 * DAY));
+    assertEquals(1, requests.size());
+  }
+
+  /**
+   * @param numberOfRecords
+   *          the number of records in a bucket
+   * @return the size the cache estimates for the bucket
+   */
+  private static long estimateBucketSize(final long numberOfRecords) {
+    final HistoryBucketCache cache = new HistoryBucketCache(Long.MAX_VALUE);
+    cache.put(TAG_IDS[0], 0, new HistoryTagValueUpdate[(int) numberOfRecords]);
+    return cache.getSize();
+  }
+
+  /**
+   * Asserts that the two collections have the same records, in any order
+   */
+  private static void assertSameRecords(final Collection<HistoryTagValueUpdate> expected, final Collection<HistoryTagValueUpdate> actual) {
+    assertTrue(expected.size() > 0);
+    assertEquals(expected.size(), actual.size());
+    final Set<HistoryTagValueUpdate> expectedSet = new HashSet<HistoryTagValueUpdate>(expected);
+    for (final HistoryTagValueUpdate record : actual) {
+      assertTrue(expectedSet.contains(record));
+    }
+  }
+}
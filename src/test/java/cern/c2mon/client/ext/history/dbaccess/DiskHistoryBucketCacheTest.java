@@ -0,0 +1,353 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cern.c2mon.client.ext.history.common.HistoryProvider;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
+import cern.c2mon.shared.client.tag.TagMode;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+import cern.c2mon.shared.common.datatag.DataTagQualityImpl;
+import cern.c2mon.shared.common.datatag.TagQualityStatus;
+
+/**
+ * Tests the {@link DiskHistoryBucketCache} behind a
+ * {@link CachingHistoryProvider}, with the records requested from an
+ * in-memory HSQLDB database
+ */
+public class DiskHistoryBucketCacheTest {
+
+  /** The tags which have records */
+  private static final Long[] TAG_IDS = new Long[] { 1L, 2L, 3L };
+
+  /** The first day with records */
+  private static final long FIRST_DAY = Timestamp.valueOf("2014-03-10 00:00:00").getTime();
+
+  /** The number of days with records */
+  private static final int NUMBER_OF_DAYS = 3;
+
+  /** The length of a day */
+  private static final long DAY = HistoryBucketCache.BUCKET_LENGTH;
+
+  /** The maximum size of the caches in the tests */
+  private static final long CACHE_SIZE = 10L * 1024L * 1024L;
+
+  /** The database the records are read from */
+  private static final String SOURCE = "jdbc:hsqldb:mem:diskcache sa";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /** The time zone before the test, the records are read in UTC */
+  private TimeZone defaultTimeZone;
+
+  private DataSource dataSource;
+
+  private SqlSession session;
+
+  /** The number of queries done to the database */
+  private final AtomicInteger numberOfQueries = new AtomicInteger(0);
+
+  /** Counts the queries done to the database */
+  private HistoryMapper countingMapper;
+
+  @Before
+  public void setUp() throws Exception {
+    defaultTimeZone = TimeZone.getDefault();
+    TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+
+    dataSource = new UnpooledDataSource("org.hsqldb.jdbc.JDBCDriver", "jdbc:hsqldb:mem:diskcache", "sa", "");
+    final Connection connection = dataSource.getConnection();
+    try {
+      final Statement statement = connection.createStatement();
+      statement.execute("CREATE TABLE SHORTTERMLOG (LOGDATE TIMESTAMP, TAGID BIGINT, TAGNAME VARCHAR(100), "
+          + "TAGVALUE VARCHAR(100), TAGVALUEDESC VARCHAR(100), TAGDATATYPE VARCHAR(100), TAGTIME TIMESTAMP, "
+          + "TAGDAQTIME TIMESTAMP, TAGSERVERTIME TIMESTAMP, TAGSTATUSDESC VARCHAR(100), TAGMODE SMALLINT)");
+      statement.close();
+
+      final PreparedStatement insert = connection.prepareStatement("INSERT INTO SHORTTERMLOG "
+          + "(LOGDATE, TAGID, TAGNAME, TAGVALUE, TAGVALUEDESC, TAGDATATYPE, TAGTIME, TAGDAQTIME, TAGSERVERTIME, TAGMODE)"
+          + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+      for (final Long tagId : TAG_IDS) {
+        // One record per hour, never on the border between two days
+        for (long time = FIRST_DAY + 30 * 60 * 1000L; time < FIRST_DAY + NUMBER_OF_DAYS * DAY; time += 60 * 60 * 1000L) {
+          final Timestamp timestamp = new Timestamp(time);
+          insert.setTimestamp(1, timestamp);
+          insert.setLong(2, tagId);
+          insert.setString(3, "TagName" + tagId);
+          insert.setString(4, Float.toString(time % 1000000 / 10f));
+          insert.setString(5, "Description " + tagId);
+          insert.setString(6, "Float");
+          insert.setTimestamp(7, timestamp);
+          insert.setTimestamp(8, timestamp);
+          insert.setTimestamp(9, timestamp);
+          insert.setShort(10, (short) TagMode.OPERATIONAL.ordinal());
+          insert.addBatch();
+        }
+      }
+      insert.executeBatch();
+      insert.close();
+    }
+    finally {
+      connection.close();
+    }
+
+    final SqlSessionFactory sessionFactory = HistoryTestSessionFactory.create(dataSource);
+    session = sessionFactory.openSession(true);
+
+    final HistoryMapper mapper = session.getMapper(HistoryMapper.class);
+    countingMapper = (HistoryMapper) Proxy.newProxyInstance(HistoryMapper.class.getClassLoader(),
+        new Class< ? >[] { HistoryMapper.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            numberOfQueries.incrementAndGet();
+            try {
+              return method.invoke(mapper, args);
+            }
+            catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        });
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    session.close();
+    final Connection connection = dataSource.getConnection();
+    try {
+      final Statement statement = connection.createStatement();
+      statement.execute("DROP TABLE SHORTTERMLOG");
+      statement.close();
+    }
+    finally {
+      connection.close();
+      TimeZone.setDefault(defaultTimeZone);
+    }
+  }
+
+  @Test
+  public void testWarmCacheReplayDoesNoQueries() throws Exception {
+    final File directory = folder.newFolder("cache");
+    final Timestamp from = new Timestamp(FIRST_DAY);
+    final Timestamp to = new Timestamp(FIRST_DAY + NUMBER_OF_DAYS * DAY);
+
+    DiskHistoryBucketCache diskCache = new DiskHistoryBucketCache(directory, CACHE_SIZE, SOURCE);
+    final List<HistoryTagValueUpdate> first = sort(createProvider(diskCache).getHistory(TAG_IDS, from, to));
+    diskCache.close();
+    assertTrue(numberOfQueries.get() > 0);
+    assertEquals(NUMBER_OF_DAYS * TAG_IDS.length, diskCache.getNumberOfBlocks());
+
+    // The client is restarted, with nothing in memory
+    numberOfQueries.set(0);
+    diskCache = new DiskHistoryBucketCache(directory, CACHE_SIZE, SOURCE);
+    final List<HistoryTagValueUpdate> second = sort(createProvider(diskCache).getHistory(TAG_IDS, from, to));
+
+    assertEquals(0, numberOfQueries.get());
+    assertEquals(NUMBER_OF_DAYS * TAG_IDS.length, diskCache.getHitCount());
+    assertEquals(NUMBER_OF_DAYS * 24 * TAG_IDS.length, first.size());
+    assertEquals(first.size(), second.size());
+    for (int i = 0; i < first.size(); i++) {
+      assertSameRecord(first.get(i), second.get(i));
+    }
+  }
+
+  @Test
+  public void testCorruptedBlockIsRequestedAgain() throws Exception {
+    final File directory = folder.newFolder("cache");
+    final Timestamp from = new Timestamp(FIRST_DAY);
+    final Timestamp to = new Timestamp(FIRST_DAY + DAY);
+
+    DiskHistoryBucketCache diskCache = new DiskHistoryBucketCache(directory, CACHE_SIZE, SOURCE);
+    final Collection<HistoryTagValueUpdate> first = createProvider(diskCache).getHistory(TAG_IDS, from, to);
+    diskCache.close();
+
+    // Changes one byte in the middle of a block
+    final File block = new File(directory, TAG_IDS[0] + "_" + HistoryBucketCache.getBucket(FIRST_DAY) + ".blk");
+    final RandomAccessFile file = new RandomAccessFile(block, "rw");
+    try {
+      file.seek(file.length() / 2);
+      final int value = file.read();
+      file.seek(file.length() / 2);
+      file.write(value ^ 0xFF);
+    }
+    finally {
+      file.close();
+    }
+
+    numberOfQueries.set(0);
+    diskCache = new DiskHistoryBucketCache(directory, CACHE_SIZE, SOURCE);
+    final Collection<HistoryTagValueUpdate> second = createProvider(diskCache).getHistory(TAG_IDS, from, to);
+
+    assertEquals(1, numberOfQueries.get());
+    assertEquals(1, diskCache.getCorruptedCount());
+    assertEquals(TAG_IDS.length - 1, diskCache.getHitCount());
+    assertEquals(first.size(), second.size());
+  }
+
+  @Test
+  public void testCacheOfAnotherSourceIsEmptied() throws Exception {
+    final File directory = folder.newFolder("cache");
+    final Timestamp from = new Timestamp(FIRST_DAY);
+    final Timestamp to = new Timestamp(FIRST_DAY + DAY);
+
+    DiskHistoryBucketCache diskCache = new DiskHistoryBucketCache(directory, CACHE_SIZE, SOURCE);
+    createProvider(diskCache).getHistory(TAG_IDS, from, to);
+    diskCache.close();
+    assertEquals(TAG_IDS.length, diskCache.getNumberOfBlocks());
+
+    // The client is restarted against another database
+    diskCache = new DiskHistoryBucketCache(directory, CACHE_SIZE, "jdbc:hsqldb:mem:other sa");
+    assertEquals(0, diskCache.getNumberOfBlocks());
+    assertEquals(0, diskCache.getSize());
+    for (final File file : directory.listFiles()) {
+      assertFalse(file.getName().endsWith(".blk"));
+    }
+
+    numberOfQueries.set(0);
+    createProvider(diskCache).getHistory(TAG_IDS, from, to);
+    assertTrue(numberOfQueries.get() > 0);
+    assertEquals(0, diskCache.getHitCount());
+  }
+
+  @Test
+  public void testSizeIsBounded() throws Exception {
+    // Room for only a few of the blocks
+    final long maximumSize = 5000;
+    final File directory = folder.newFolder("cache");
+    final DiskHistoryBucketCache diskCache = new DiskHistoryBucketCache(directory, maximumSize, SOURCE);
+    createProvider(diskCache).getHistory(TAG_IDS, new Timestamp(FIRST_DAY), new Timestamp(FIRST_DAY + NUMBER_OF_DAYS * DAY));
+
+    assertTrue(diskCache.getEvictionCount() > 0);
+    assertTrue(diskCache.getSize() <= maximumSize);
+    int numberOfBlockFiles = 0;
+    long sizeOfBlockFiles = 0;
+    for (final File file : directory.listFiles()) {
+      if (file.getName().endsWith(".blk")) {
+        numberOfBlockFiles++;
+        sizeOfBlockFiles += file.length();
+      }
+    }
+    assertEquals(diskCache.getNumberOfBlocks(), numberOfBlockFiles);
+    assertEquals(diskCache.getSize(), sizeOfBlockFiles);
+  }
+
+  @Test
+  public void testRecordsAreTheSameWhenReadBack() throws Exception {
+    final DataTagQuality quality = new DataTagQualityImpl();
+    quality.validate();
+    quality.addInvalidStatus(TagQualityStatus.VALUE_OUT_OF_BOUNDS, "Out of bounds");
+    final Timestamp time = new Timestamp(FIRST_DAY + 1000);
+    final HistoryTagValueUpdateImpl record = new HistoryTagValueUpdateImpl(TAG_IDS[0], quality, Integer.valueOf(42),
+        time, time, time, time, "The answer", null, TagMode.TEST);
+    record.setValueClassName(Integer.class.getName());
+    record.setInitialValue(true);
+
+    final File directory = folder.newFolder("cache");
+    final long bucket = HistoryBucketCache.getBucket(time.getTime());
+    final DiskHistoryBucketCache diskCache = new DiskHistoryBucketCache(directory, CACHE_SIZE, SOURCE);
+    diskCache.put(TAG_IDS[0], bucket, new HistoryTagValueUpdate[] { record });
+    diskCache.close();
+
+    final HistoryTagValueUpdate[] records = new DiskHistoryBucketCache(directory, CACHE_SIZE, SOURCE).get(TAG_IDS[0], bucket);
+    assertNotNull(records);
+    assertEquals(1, records.length);
+    assertSameRecord(record, records[0]);
+    assertEquals(Integer.valueOf(42), records[0].getValue());
+    assertEquals(TagMode.TEST, records[0].getMode());
+    assertTrue(records[0].isInitialValue());
+    assertTrue(records[0].getDataTagQuality().isInvalidStatusSet(TagQualityStatus.VALUE_OUT_OF_BOUNDS));
+  }
+
+  /**
+   * @param diskCache
+   *          the cache on disk
+   * @return a provider requesting the records from the database, with an
+   *         empty memory cache in front
+   */
+  private HistoryProvider createProvider(final DiskHistoryBucketCache diskCache) {
+    return new CachingHistoryProvider(new SqlHistoryProviderDAO(countingMapper, null), new HistoryBucketCache(CACHE_SIZE, diskCache));
+  }
+
+  /**
+   * @return the records sorted by tag id and server time
+   */
+  private static List<HistoryTagValueUpdate> sort(final Collection<HistoryTagValueUpdate> records) {
+    final List<HistoryTagValueUpdate> list = new ArrayList<HistoryTagValueUpdate>(records);
+    Collections.sort(list, new Comparator<HistoryTagValueUpdate>() {
+      @Override
+      public int compare(final HistoryTagValueUpdate o1, final HistoryTagValueUpdate o2) {
+        final int result = o1.getId().compareTo(o2.getId());
+        if (result != 0) {
+          return result;
+        }
+        return o1.getServerTimestamp().compareTo(o2.getServerTimestamp());
+      }
+    });
+    return list;
+  }
+
+  /**
+   * Asserts that the records have the same values
+   */
+  private static void assertSameRecord(final HistoryTagValueUpdate expected, final HistoryTagValueUpdate actual) {
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getValue(), actual.getValue());
+    assertEquals(expected.getValueClassName(), actual.getValueClassName());
+    assertEquals(expected.getDescription(), actual.getDescription());
+    assertEquals(expected.getServerTimestamp(), actual.getServerTimestamp());
+    assertEquals(expected.getSourceTimestamp(), actual.getSourceTimestamp());
+    assertEquals(expected.getDaqTimestamp(), actual.getDaqTimestamp());
+    assertEquals(expected.getLogTimestamp(), actual.getLogTimestamp());
+    assertEquals(expected.getMode(), actual.getMode());
+  }
+}
@@ -16,21 +16,31 @@
  *****************************************************************************/
 package cern.c2mon.client.ext.history.dbaccess;
 
+import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
+import org.apache.ibatis.executor.result.DefaultResultContext;
+import org.apache.ibatis.session.ResultHandler;
+
 import cern.c2mon.client.ext.history.dbaccess.HistoryMapper;
+import cern.c2mon.client.ext.history.dbaccess.beans.AggregatedHistoryRecordBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.AggregatedHistoryRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.DailySnapshotRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.HistoryRecordBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.InitialRecordHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialRecordsHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialSupervisionEventsRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.ShortTermLogHistoryRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionEventRequestBean;
 import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionRecordBean;
 import cern.c2mon.shared.common.datatag.DataTagQuality;
 import cern.c2mon.shared.common.datatag.DataTagQualityImpl;
 import cern.c2mon.shared.common.datatag.TagQualityStatus;
+import cern.c2mon.shared.common.supervision.SupervisionConstants.SupervisionEntity;
+import cern.c2mon.shared.common.supervision.SupervisionConstants.SupervisionStatus;
 
 /**
  * Used for testing purposes
@@ -48,9 +58,21 @@ public class FakeHistoryMapperImpl implements HistoryMapper {
   private static final long TAG_TIME_MINUS_LOG_TIME = 1000*60*60*2;
   
   private static final Random random = new Random();
+
+  /** The time each query for short term log records takes, in milliseconds */
+  private final long queryLatency;
   
   public FakeHistoryMapperImpl() {
-    
+    this(0);
+  }
+
+  /**
+   * @param queryLatency
+   *          The time each query for short term log records takes, in
+   *          milliseconds
+   */
+  public FakeHistoryMapperImpl(final long queryLatency) {
+    this.queryLatency = queryLatency;
   }
   
   /**
@@ -106,12 +128,44 @@ public class FakeHistoryMapperImpl implements HistoryMapper {
     return result;
   }
 
+  @Override
+  public List<HistoryRecordBean> getInitialRecords(final InitialRecordsHistoryRequestBean request) {
+    final List<HistoryRecordBean> result = new ArrayList<HistoryRecordBean>();
+    for (final Long tagId : request.getTagIds()) {
+      result.add(getInitialRecord(new InitialRecordHistoryRequestBean(tagId, request.getBeforeTime())));
+    }
+    return result;
+  }
+
   @Override
   public List<HistoryRecordBean> getRecords(final ShortTermLogHistoryRequestBean request) {
     if (request.getFromTime() == null && request.getMaxRecords() == null) {
       throw new RuntimeException("Either fromTime or maxRecords must be set!");
     }
-    
+    waitQueryLatency();
+    return createRecords(request);
+  }
+
+  /**
+   * Sleeps for the query latency
+   */
+  private void waitQueryLatency() {
+    if (queryLatency > 0) {
+      try {
+        Thread.sleep(queryLatency);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * @param request
+   *          the request
+   * @return the records of the request, with the max records being in total
+   */
+  private List<HistoryRecordBean> createRecords(final ShortTermLogHistoryRequestBean request) {
     final Timestamp fromTime = request.getFromTime();
     Timestamp toTime = request.getToTime();
     if (toTime == null) {
@@ -139,6 +193,30 @@ public class FakeHistoryMapperImpl implements HistoryMapper {
     return result;
   }
 
+  @Override
+  public void getRecords(final ShortTermLogHistoryRequestBean request, final ResultHandler handler) {
+    final DefaultResultContext context = new DefaultResultContext();
+    for (final HistoryRecordBean record : getRecords(request)) {
+      if (context.isStopped()) {
+        break;
+      }
+      context.nextResultObject(record);
+      handler.handleResult(context);
+    }
+  }
+
+  @Override
+  public List<HistoryRecordBean> getRecordsPerTag(final ShortTermLogHistoryRequestBean request) {
+    waitQueryLatency();
+    final List<HistoryRecordBean> result = new ArrayList<HistoryRecordBean>();
+    for (final Long tagId : request.getTagIds()) {
+      final ShortTermLogHistoryRequestBean tagRequest = new ShortTermLogHistoryRequestBean(request);
+      tagRequest.setTagIds(new Long[] { tagId });
+      result.addAll(createRecords(tagRequest));
+    }
+    return result;
+  }
+
   @Override
   public List<SupervisionRecordBean> getSupervisionEvents(SupervisionEventRequestBean request) {
     throw new UnsupportedOperationException("This test function is not yet implemented");
@@ -146,9 +224,39 @@ public class FakeHistoryMapperImpl implements HistoryMapper {
   }
 
   @Override
-  public List<SupervisionRecordBean> getInitialSupervisionEvents(SupervisionEventRequestBean request) {
-    throw new UnsupportedOperationException("This test function is not yet implemented");
- // Todo implement to test
+  public List<SupervisionRecordBean> getInitialSupervisionEvents(final SupervisionEventRequestBean request) {
+    waitQueryLatency();
+    final List<SupervisionRecordBean> result = new ArrayList<SupervisionRecordBean>();
+    result.add(createSupervisionRecordBean(request.getEntity(), request.getId(), request.getFromTime()));
+    return result;
+  }
+
+  @Override
+  public List<SupervisionRecordBean> getInitialSupervisionEventsOfIds(final InitialSupervisionEventsRequestBean request) {
+    waitQueryLatency();
+    final List<SupervisionRecordBean> result = new ArrayList<SupervisionRecordBean>();
+    for (final Long id : request.getIds()) {
+      result.add(createSupervisionRecordBean(request.getEntity(), id, request.getFromTime()));
+    }
+    return result;
+  }
+
+  /**
+   * @param entity
+   *          The entity of the event
+   * @param id
+   *          The id of the entity
+   * @param fromTime
+   *          The time the event must be before
+   * @return An event from a number of minutes before the time given by the
+   *         id, which is running for even ids and down for odd ids
+   */
+  public static SupervisionRecordBean createSupervisionRecordBean(final SupervisionEntity entity, final Long id, final Timestamp fromTime) {
+    final SupervisionRecordBean result = new SupervisionRecordBean(entity, id);
+    result.setDate(new Timestamp(fromTime.getTime() - (id % 60 + 1) * 60 * 1000L));
+    result.setStatus(id % 2 == 0 ? SupervisionStatus.RUNNING : SupervisionStatus.DOWN);
+    result.setMessage("Message of " + id);
+    return result;
   }
 
   @Override
@@ -156,6 +264,12 @@ public class FakeHistoryMapperImpl implements HistoryMapper {
     throw new UnsupportedOperationException("This test function is not yet implemented");
     // Todo implement to test
   }
+
+  @Override
+  public List<AggregatedHistoryRecordBean> getAggregatedRecords(final AggregatedHistoryRequestBean request) {
+    // The provider computes the aggregates from the records instead
+    throw new RuntimeException(new SQLFeatureNotSupportedException("The fake database cannot aggregate records"));
+  }
   
 
 }
@@ -0,0 +1,63 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess;
+
+import javax.sql.DataSource;
+
+import org.apache.ibatis.mapping.DatabaseIdProvider;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.mybatis.spring.SqlSessionFactoryBean;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
+import org.springframework.core.io.ClassPathResource;
+
+/**
+ * Creates the session factories of the tests which run the history queries
+ * against a real database, with the database id mapping of the shipped
+ * configuration, so the tests runs the statements production would use.
+ */
+public final class HistoryTestSessionFactory {
+
+  /** The shipped Spring configuration of the history module */
+  private static final String CONFIG_LOCATION = "config/c2mon-client-ext-history.xml";
+
+  /** Private constructor, no instance is necessary */
+  private HistoryTestSessionFactory() {
+    // Nothing here
+  }
+
+  /**
+   * @param dataSource
+   *          the database to run the queries against
+   * @return a session factory with the MyBatis configuration and database id
+   *         provider of the shipped configuration
+   * @throws Exception
+   *           if the session factory could not be created
+   */
+  public static SqlSessionFactory create(final DataSource dataSource) throws Exception {
+    // Only the database id provider is created, not the rest of the beans
+    final DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+    new XmlBeanDefinitionReader(beanFactory).loadBeanDefinitions(new ClassPathResource(CONFIG_LOCATION));
+    final DatabaseIdProvider databaseIdProvider = beanFactory.getBean("databaseIdProvider", DatabaseIdProvider.class);
+
+    final SqlSessionFactoryBean factoryBean = new SqlSessionFactoryBean();
+    factoryBean.setConfigLocation(new ClassPathResource("mybatis/config.xml"));
+    factoryBean.setDataSource(dataSource);
+    factoryBean.setDatabaseIdProvider(databaseIdProvider);
+    return factoryBean.getObject();
+  }
+}
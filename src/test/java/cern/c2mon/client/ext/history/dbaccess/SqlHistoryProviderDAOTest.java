@@ -0,0 +1,834 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistoryAggregate;
+import cern.c2mon.client.ext.history.common.HistorySupervisionEvent;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdateHandler;
+import cern.c2mon.client.ext.history.common.SupervisionEventRequest;
+import cern.c2mon.client.ext.history.dbaccess.beans.AggregatedHistoryRecordBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.AggregatedHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.HistoryRecordBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialRecordHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialRecordsHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialSupervisionEventsRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.ShortTermLogHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionEventRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionRecordBean;
+import cern.c2mon.client.ext.history.dbaccess.util.StatementRegistry;
+import cern.c2mon.client.ext.history.dbaccess.util.TagIdArrayTypeHandler;
+import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
+import cern.c2mon.shared.common.supervision.SupervisionConstants.SupervisionEntity;
+
+/**
+ * Tests the {@link SqlHistoryProviderDAO} with the
+ * {@link FakeHistoryMapperImpl}
+ */
+public class SqlHistoryProviderDAOTest {
+
+  /** The time each query to the fake mapper takes */
+  private static final long QUERY_LATENCY = 100;
+
+  /** The number of tags the provider requests in one query */
+  private static final int TAGS_PER_QUERY = 900;
+
+  /** The number of queries the request in the parallel test is split into */
+  private static final int NUMBER_OF_QUERIES = 8;
+
+  private ExecutorService queryExecutor;
+
+  @Before
+  public void setUp() {
+    queryExecutor = Executors.newFixedThreadPool(NUMBER_OF_QUERIES);
+  }
+
+  @After
+  public void tearDown() {
+    queryExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testParallelQueriesAreConcurrentAndInOrder() {
+    final ConcurrencyCountingMapper mapper = new ConcurrencyCountingMapper();
+    final SqlHistoryProviderDAO serialProvider = new SqlHistoryProviderDAO(mapper, null);
+    final SqlHistoryProviderDAO parallelProvider = new SqlHistoryProviderDAO(mapper, null, queryExecutor);
+
+    final Long[] tagIds = createTagIds(NUMBER_OF_QUERIES * TAGS_PER_QUERY);
+    final Timestamp to = new Timestamp(1400000000000L);
+    final Timestamp from = new Timestamp(to.getTime() - 12 * 60 * 60 * 1000L);
+
+    final Collection<HistoryTagValueUpdate> serialResult = serialProvider.getHistory(tagIds, from, to);
+    assertEquals(1, mapper.getMaximumConcurrentQueries());
+
+    mapper.resetMaximumConcurrentQueries();
+    final Collection<HistoryTagValueUpdate> parallelResult = parallelProvider.getHistory(tagIds, from, to);
+    assertTrue(String.format("%d queries ran at the same time", mapper.getMaximumConcurrentQueries()),
+        mapper.getMaximumConcurrentQueries() > 1);
+    assertTrue(mapper.getMaximumConcurrentQueries() <= NUMBER_OF_QUERIES);
+
+    // The records must be in the same order
+    assertEquals(serialResult.size(), parallelResult.size());
+    final List<HistoryTagValueUpdate> serialList = new ArrayList<HistoryTagValueUpdate>(serialResult);
+    final List<HistoryTagValueUpdate> parallelList = new ArrayList<HistoryTagValueUpdate>(parallelResult);
+    for (int i = 0; i < serialList.size(); i++) {
+      assertEquals(serialList.get(i).getId(), parallelList.get(i).getId());
+      assertEquals(serialList.get(i).getSourceTimestamp(), parallelList.get(i).getSourceTimestamp());
+    }
+  }
+
+  @Test
+  public void testQueriesAreLimitedToTheConnections() throws Exception {
+    final int connections = 3;
+    final ConcurrencyCountingMapper mapper = new ConcurrencyCountingMapper();
+    final HistoryMapper limitedMapper = new ConnectionLimitedHistoryMapper(mapper, new Semaphore(connections, true));
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(limitedMapper, null, queryExecutor);
+
+    final Long[] tagIds = createTagIds(NUMBER_OF_QUERIES * TAGS_PER_QUERY);
+    final Timestamp to = new Timestamp(1400000000000L);
+    final Timestamp from = new Timestamp(to.getTime() - 12 * 60 * 60 * 1000L);
+
+    // Two callers, as the loading workers of the playback, sharing the
+    // connections with the query executor
+    final ExecutorService callers = Executors.newFixedThreadPool(2);
+    try {
+      final List<Future<Collection<HistoryTagValueUpdate>>> results = new ArrayList<Future<Collection<HistoryTagValueUpdate>>>();
+      for (int i = 0; i < 2; i++) {
+        results.add(callers.submit(new Callable<Collection<HistoryTagValueUpdate>>() {
+          @Override
+          public Collection<HistoryTagValueUpdate> call() {
+            return provider.getHistory(tagIds, from, to);
+          }
+        }));
+      }
+      for (final Future<Collection<HistoryTagValueUpdate>> result : results) {
+        assertTrue(result.get(10, TimeUnit.SECONDS).size() > 0);
+      }
+    }
+    finally {
+      callers.shutdownNow();
+    }
+    assertEquals(connections, mapper.getMaximumConcurrentQueries());
+  }
+
+  @Test
+  public void testStreamedHistoryIsTheSameAsCollected() {
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl(), null);
+
+    final Long[] tagIds = new Long[] { 1L, 2L, 3L };
+    final Timestamp to = new Timestamp(1400000000000L);
+    final Timestamp from = new Timestamp(to.getTime() - 3 * 24 * 60 * 60 * 1000L);
+
+    final List<HistoryTagValueUpdate> collected = new ArrayList<HistoryTagValueUpdate>(provider.getHistory(tagIds, from, to));
+    final List<HistoryTagValueUpdate> streamed = new ArrayList<HistoryTagValueUpdate>();
+    provider.getHistory(tagIds, from, to, new HistoryTagValueUpdateHandler() {
+      @Override
+      public void handle(final HistoryTagValueUpdate update) {
+        streamed.add(update);
+      }
+    });
+
+    assertTrue(collected.size() > 0);
+    assertEquals(collected.size(), streamed.size());
+    for (int i = 0; i < collected.size(); i++) {
+      assertEquals(collected.get(i).getId(), streamed.get(i).getId());
+      assertEquals(collected.get(i).getSourceTimestamp(), streamed.get(i).getSourceTimestamp());
+    }
+  }
+
+  @Test
+  public void testTagIdsBoundAsArrayInOneQuery() {
+    final List<ShortTermLogHistoryRequestBean> requests = new ArrayList<ShortTermLogHistoryRequestBean>();
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<HistoryRecordBean> getRecords(final ShortTermLogHistoryRequestBean request) {
+        requests.add(request);
+        return super.getRecords(request);
+      }
+    }, null);
+
+    final Long[] tagIds = createTagIds(NUMBER_OF_QUERIES * TAGS_PER_QUERY);
+    final Timestamp to = new Timestamp(1400000000000L);
+    final Timestamp from = new Timestamp(to.getTime() - 60 * 60 * 1000L);
+    provider.getHistory(tagIds, from, to);
+
+    assertEquals(1, requests.size());
+    assertTrue(requests.get(0).isTagIdsAsArray());
+    assertEquals(tagIds.length, requests.get(0).getTagIds().length);
+  }
+
+  @Test
+  public void testTagIdArraysAreSplitBelowTheLimit() {
+    final List<ShortTermLogHistoryRequestBean> requests = new ArrayList<ShortTermLogHistoryRequestBean>();
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<HistoryRecordBean> getRecords(final ShortTermLogHistoryRequestBean request) {
+        requests.add(request);
+        return super.getRecords(request);
+      }
+    }, null);
+
+    final Long[] tagIds = createTagIds(2 * TagIdArrayTypeHandler.MAXIMUM_ARRAY_LENGTH + 10);
+    final Timestamp to = new Timestamp(1400000000000L);
+    final Timestamp from = new Timestamp(to.getTime() - 1000L);
+
+    provider.getHistory(tagIds, from, to);
+    assertArraysCoverTheTags(tagIds, requests);
+
+    requests.clear();
+    provider.getHistory(tagIds, from, to, new HistoryTagValueUpdateHandler() {
+      @Override
+      public void handle(final HistoryTagValueUpdate update) {
+        // Only the requests are checked
+      }
+    });
+    assertArraysCoverTheTags(tagIds, requests);
+  }
+
+  /**
+   * @param tagIds
+   *          the tags which were requested
+   * @param requests
+   *          the requests given to the mapper
+   */
+  private static void assertArraysCoverTheTags(final Long[] tagIds, final List<ShortTermLogHistoryRequestBean> requests) {
+    assertEquals(3, requests.size());
+    int index = 0;
+    for (final ShortTermLogHistoryRequestBean request : requests) {
+      assertTrue(request.isTagIdsAsArray());
+      assertTrue(request.getTagIds().length <= TagIdArrayTypeHandler.MAXIMUM_ARRAY_LENGTH);
+      for (final Long tagId : request.getTagIds()) {
+        assertEquals(tagIds[index++], tagId);
+      }
+    }
+    assertEquals(tagIds.length, index);
+  }
+
+  @Test
+  public void testRecordsPerTagInOneQueryPerChunk() {
+    final AtomicInteger recordsQueries = new AtomicInteger(0);
+    final AtomicInteger perTagQueries = new AtomicInteger(0);
+    final AtomicInteger maximumTagsPerQuery = new AtomicInteger(0);
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<HistoryRecordBean> getRecords(final ShortTermLogHistoryRequestBean request) {
+        recordsQueries.incrementAndGet();
+        return super.getRecords(request);
+      }
+
+      @Override
+      public List<HistoryRecordBean> getRecordsPerTag(final ShortTermLogHistoryRequestBean request) {
+        perTagQueries.incrementAndGet();
+        maximumTagsPerQuery.set(Math.max(maximumTagsPerQuery.get(), request.getTagIds().length));
+        return super.getRecordsPerTag(request);
+      }
+    }, null);
+
+    final Long[] tagIds = createTagIds(2 * TAGS_PER_QUERY + 10);
+    final Timestamp to = new Timestamp(1400000000000L);
+    final Timestamp from = new Timestamp(to.getTime() - 7 * 24 * 60 * 60 * 1000L);
+    assertRecordsPerTag(tagIds, 5, provider.getHistory(5, tagIds, from, to));
+    // One query per chunk of tags, not one per tag
+    assertEquals(3, perTagQueries.get());
+    assertEquals(TAGS_PER_QUERY, maximumTagsPerQuery.get());
+    assertEquals(0, recordsQueries.get());
+  }
+
+  @Test
+  public void testRecordsPerTagFallsBackToOneQueryPerTag() {
+    final AtomicInteger perTagQueries = new AtomicInteger(0);
+    final AtomicInteger recordsQueries = new AtomicInteger(0);
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<HistoryRecordBean> getRecords(final ShortTermLogHistoryRequestBean request) {
+        recordsQueries.incrementAndGet();
+        return super.getRecords(request);
+      }
+
+      @Override
+      public List<HistoryRecordBean> getRecordsPerTag(final ShortTermLogHistoryRequestBean request) {
+        perTagQueries.incrementAndGet();
+        throw new RuntimeException(new SQLFeatureNotSupportedException("Not supported by the database"));
+      }
+    }, null);
+
+    final Long[] tagIds = createTagIds(10);
+    final Timestamp to = new Timestamp(1400000000000L);
+    final Timestamp from = new Timestamp(to.getTime() - 7 * 24 * 60 * 60 * 1000L);
+    assertRecordsPerTag(tagIds, 5, provider.getHistory(5, tagIds, from, to));
+    assertEquals(1, perTagQueries.get());
+    assertEquals(10, recordsQueries.get());
+    // The next request goes directly to one query per tag
+    assertRecordsPerTag(tagIds, 5, provider.getHistory(5, tagIds, from, to));
+    assertEquals(1, perTagQueries.get());
+    assertEquals(20, recordsQueries.get());
+  }
+
+  @Test
+  public void testFailedQueryIsKeptWhenSupported() {
+    final AtomicInteger perTagQueries = new AtomicInteger(0);
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<HistoryRecordBean> getRecordsPerTag(final ShortTermLogHistoryRequestBean request) {
+        if (perTagQueries.incrementAndGet() == 1) {
+          throw new RuntimeException("The connection were lost", new SQLTransientConnectionException("Closed connection"));
+        }
+        return super.getRecordsPerTag(request);
+      }
+    }, null);
+
+    final Long[] tagIds = createTagIds(10);
+    final Timestamp to = new Timestamp(1400000000000L);
+    final Timestamp from = new Timestamp(to.getTime() - 7 * 24 * 60 * 60 * 1000L);
+    try {
+      provider.getHistory(5, tagIds, from, to);
+      fail("The failure should be given to the caller");
+    }
+    catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof SQLTransientConnectionException);
+    }
+
+    // The query is still used for the next request
+    assertRecordsPerTag(tagIds, 5, provider.getHistory(5, tagIds, from, to));
+    assertEquals(2, perTagQueries.get());
+  }
+
+  @Test
+  public void testNotSupportedErrors() {
+    assertTrue(SqlHistoryProviderDAO.isNotSupported(
+        new RuntimeException(new SQLSyntaxErrorException("ORA-00904: invalid identifier"))));
+    assertTrue(SqlHistoryProviderDAO.isNotSupported(
+        new RuntimeException(new RuntimeException(new SQLFeatureNotSupportedException("No arrays")))));
+    assertTrue(SqlHistoryProviderDAO.isNotSupported(new SQLException("Feature not supported", "0A000")));
+    assertTrue(SqlHistoryProviderDAO.isNotSupported(
+        new RuntimeException(new SQLException("ORA-22905: cannot access rows from a non-nested table item", null, 22905))));
+    assertTrue(SqlHistoryProviderDAO.isNotSupported(
+        new RuntimeException(new SQLException("This version of MySQL doesn't yet support it", "42000", 1235))));
+
+    assertFalse(SqlHistoryProviderDAO.isNotSupported(new RuntimeException("The statement were cancelled")));
+    assertFalse(SqlHistoryProviderDAO.isNotSupported(
+        new RuntimeException(new SQLException("ORA-01013: user requested cancel of current operation", "72000", 1013))));
+    assertFalse(SqlHistoryProviderDAO.isNotSupported(
+        new RuntimeException(new SQLTimeoutException("The query timed out"))));
+    assertFalse(SqlHistoryProviderDAO.isNotSupported(
+        new RuntimeException(new SQLException("ORA-01031: insufficient privileges", "42000", 1031))));
+    assertFalse(SqlHistoryProviderDAO.isNotSupported(new UnsupportedOperationException("Not implemented")));
+  }
+
+  @Test
+  public void testInitialSupervisionEventsAreRequestedInChunks() {
+    final AtomicInteger queries = new AtomicInteger(0);
+    final AtomicInteger maximumIdsPerQuery = new AtomicInteger(0);
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<SupervisionRecordBean> getInitialSupervisionEventsOfIds(final InitialSupervisionEventsRequestBean request) {
+        queries.incrementAndGet();
+        maximumIdsPerQuery.set(Math.max(maximumIdsPerQuery.get(), request.getIds().length));
+        return super.getInitialSupervisionEventsOfIds(request);
+      }
+
+      @Override
+      public List<SupervisionRecordBean> getInitialSupervisionEvents(final SupervisionEventRequestBean request) {
+        throw new AssertionError("The events should not be requested one id at a time");
+      }
+    }, null);
+
+    final List<SupervisionEventRequest> requests = new ArrayList<SupervisionEventRequest>();
+    for (final Long id : createTagIds(2 * TAGS_PER_QUERY + 10)) {
+      requests.add(new SupervisionEventRequest(id, SupervisionEntity.PROCESS));
+    }
+    for (final Long id : createTagIds(5)) {
+      requests.add(new SupervisionEventRequest(id, SupervisionEntity.EQUIPMENT));
+    }
+    final Timestamp initializationTime = new Timestamp(1400000000000L);
+
+    assertInitialSupervisionEvents(requests, initializationTime, provider.getInitialSupervisionEvents(initializationTime, requests));
+    // Three queries for the processes, and one for the equipments
+    assertEquals(4, queries.get());
+    assertEquals(TAGS_PER_QUERY, maximumIdsPerQuery.get());
+  }
+
+  @Test
+  public void testInitialSupervisionEventsFallBackToOneQueryPerId() {
+    final AtomicInteger queriesOfIds = new AtomicInteger(0);
+    final AtomicInteger queriesPerId = new AtomicInteger(0);
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<SupervisionRecordBean> getInitialSupervisionEventsOfIds(final InitialSupervisionEventsRequestBean request) {
+        queriesOfIds.incrementAndGet();
+        throw new RuntimeException(new SQLSyntaxErrorException("Not supported by the database"));
+      }
+
+      @Override
+      public List<SupervisionRecordBean> getInitialSupervisionEvents(final SupervisionEventRequestBean request) {
+        queriesPerId.incrementAndGet();
+        return super.getInitialSupervisionEvents(request);
+      }
+    }, null);
+
+    final List<SupervisionEventRequest> requests = new ArrayList<SupervisionEventRequest>();
+    for (final Long id : createTagIds(10)) {
+      requests.add(new SupervisionEventRequest(id, SupervisionEntity.PROCESS));
+    }
+    final Timestamp initializationTime = new Timestamp(1400000000000L);
+
+    assertInitialSupervisionEvents(requests, initializationTime, provider.getInitialSupervisionEvents(initializationTime, requests));
+    assertEquals(1, queriesOfIds.get());
+    assertEquals(10, queriesPerId.get());
+
+    // The next request goes directly to one query per id
+    assertInitialSupervisionEvents(requests, initializationTime, provider.getInitialSupervisionEvents(initializationTime, requests));
+    assertEquals(1, queriesOfIds.get());
+    assertEquals(20, queriesPerId.get());
+  }
+
+  @Test
+  public void testInitialValuesAreRequestedInChunks() {
+    final AtomicInteger queries = new AtomicInteger(0);
+    final AtomicInteger maximumTagsPerQuery = new AtomicInteger(0);
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<HistoryRecordBean> getInitialRecords(final InitialRecordsHistoryRequestBean request) {
+        queries.incrementAndGet();
+        maximumTagsPerQuery.set(Math.max(maximumTagsPerQuery.get(), request.getTagIds().length));
+        return super.getInitialRecords(request);
+      }
+    }, null);
+
+    final Long[] tagIds = createTagIds(2 * TAGS_PER_QUERY + 10);
+    assertInitialValues(tagIds, provider.getInitialValuesForTags(tagIds, new Timestamp(1400000000000L)));
+    assertEquals(3, queries.get());
+    assertEquals(TAGS_PER_QUERY, maximumTagsPerQuery.get());
+  }
+
+  @Test
+  public void testInitialValuesFallBackToOneQueryPerTag() {
+    final AtomicInteger queriesOfTags = new AtomicInteger(0);
+    final AtomicInteger queriesPerTag = new AtomicInteger(0);
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<HistoryRecordBean> getInitialRecords(final InitialRecordsHistoryRequestBean request) {
+        queriesOfTags.incrementAndGet();
+        throw new RuntimeException(new SQLSyntaxErrorException("Not supported by the database"));
+      }
+
+      @Override
+      public HistoryRecordBean getInitialRecord(final InitialRecordHistoryRequestBean request) {
+        queriesPerTag.incrementAndGet();
+        return super.getInitialRecord(request);
+      }
+    }, null);
+
+    final Long[] tagIds = createTagIds(10);
+    final Timestamp before = new Timestamp(1400000000000L);
+    assertInitialValues(tagIds, provider.getInitialValuesForTags(tagIds, before));
+    assertEquals(1, queriesOfTags.get());
+    assertEquals(10, queriesPerTag.get());
+
+    // The next request goes directly to one query per tag
+    assertInitialValues(tagIds, provider.getInitialValuesForTags(tagIds, before));
+    assertEquals(1, queriesOfTags.get());
+    assertEquals(20, queriesPerTag.get());
+  }
+
+  @Test
+  public void testInitialValuesFailureIsKeptWhenSupported() {
+    final AtomicInteger queriesOfTags = new AtomicInteger(0);
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<HistoryRecordBean> getInitialRecords(final InitialRecordsHistoryRequestBean request) {
+        if (queriesOfTags.incrementAndGet() == 1) {
+          throw new RuntimeException("The connection were lost", new SQLTransientConnectionException("Closed connection"));
+        }
+        return super.getInitialRecords(request);
+      }
+
+      @Override
+      public HistoryRecordBean getInitialRecord(final InitialRecordHistoryRequestBean request) {
+        throw new AssertionError("The initial records should not be requested one tag at a time");
+      }
+    }, null);
+
+    final Long[] tagIds = createTagIds(10);
+    final Timestamp before = new Timestamp(1400000000000L);
+    try {
+      provider.getInitialValuesForTags(tagIds, before);
+      fail("The failure should be given to the caller");
+    }
+    catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof SQLTransientConnectionException);
+    }
+    assertEquals(1, queriesOfTags.get());
+  }
+
+  @Test
+  public void testAggregatedHistoryFallsBackToRecords() {
+    final AtomicInteger aggregateQueries = new AtomicInteger(0);
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<HistoryRecordBean> getRecords(final ShortTermLogHistoryRequestBean request) {
+        // The aggregates are by server time, which the fake records don't have
+        final List<HistoryRecordBean> records = super.getRecords(request);
+        for (final HistoryRecordBean record : records) {
+          record.setServerTime(new Timestamp(record.getLogDateMillis()));
+        }
+        return records;
+      }
+
+      @Override
+      public List<AggregatedHistoryRecordBean> getAggregatedRecords(final AggregatedHistoryRequestBean request) {
+        aggregateQueries.incrementAndGet();
+        return super.getAggregatedRecords(request);
+      }
+    }, null);
+
+    final Long[] tagIds = createTagIds(3);
+    final Timestamp to = new Timestamp(1400000000000L);
+    final Timestamp from = new Timestamp(to.getTime() - 7 * 24 * 60 * 60 * 1000L);
+    final long bucketMillis = 24 * 60 * 60 * 1000L;
+    final Collection<HistoryTagValueUpdate> records = provider.getHistory(tagIds, from, to);
+    final Collection<HistoryAggregate> aggregates = provider.getAggregatedHistory(tagIds, from, to, bucketMillis);
+
+    long count = 0;
+    for (final HistoryAggregate aggregate : aggregates) {
+      count += aggregate.getCount();
+      assertTrue(aggregate.getMinimum() <= aggregate.getAverage() + 1e-9);
+      assertTrue(aggregate.getAverage() <= aggregate.getMaximum() + 1e-9);
+      assertEquals(0, (aggregate.getStartTime().getTime() - from.getTime()) % bucketMillis);
+      assertTrue(aggregate.getEndTime().getTime() <= to.getTime());
+    }
+    long expectedCount = 0;
+    for (final HistoryTagValueUpdate record : records) {
+      final long time = record.getServerTimestamp().getTime();
+      if (time >= from.getTime() && time < to.getTime()) {
+        expectedCount++;
+      }
+    }
+    assertTrue(expectedCount > 0);
+    assertEquals(expectedCount, count);
+
+    // The next request goes directly to the records
+    provider.getAggregatedHistory(tagIds, from, to, bucketMillis);
+    assertEquals(1, aggregateQueries.get());
+  }
+
+  @Test
+  public void testAggregatedHistoryFallsBackPerChunk() {
+    final AtomicInteger aggregateQueries = new AtomicInteger(0);
+    final Set<Long> tagIdsOfRecords = Collections.synchronizedSet(new HashSet<Long>());
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<HistoryRecordBean> getRecords(final ShortTermLogHistoryRequestBean request) {
+        tagIdsOfRecords.addAll(Arrays.asList(request.getTagIds()));
+        return super.getRecords(request);
+      }
+
+      @Override
+      public List<AggregatedHistoryRecordBean> getAggregatedRecords(final AggregatedHistoryRequestBean request) {
+        // Only the first chunk is aggregated by the database
+        if (aggregateQueries.incrementAndGet() == 1) {
+          return new ArrayList<AggregatedHistoryRecordBean>();
+        }
+        return super.getAggregatedRecords(request);
+      }
+    }, null);
+
+    final Long[] tagIds = createTagIds(2 * TAGS_PER_QUERY + 10);
+    final Timestamp to = new Timestamp(1400000000000L);
+    final Timestamp from = new Timestamp(to.getTime() - 24 * 60 * 60 * 1000L);
+    provider.getAggregatedHistory(tagIds, from, to, 60 * 60 * 1000L);
+
+    assertEquals(2, aggregateQueries.get());
+    assertEquals(tagIds.length - TAGS_PER_QUERY, tagIdsOfRecords.size());
+    for (int i = 0; i < tagIds.length; i++) {
+      assertEquals(i >= TAGS_PER_QUERY, tagIdsOfRecords.contains(tagIds[i]));
+    }
+  }
+
+  @Test
+  public void testAggregatesOrderTheRecordsLikeTheDatabases() {
+    final long hour = 60 * 60 * 1000L;
+    final Timestamp from = new Timestamp(1400000000000L);
+    final Timestamp serverTime = new Timestamp(from.getTime() + 10 * 60 * 1000L);
+    final Timestamp to = new Timestamp(from.getTime() + 2 * hour);
+    final Timestamp otherServerTime = new Timestamp(from.getTime() + hour);
+    final List<HistoryTagValueUpdate> records = new ArrayList<HistoryTagValueUpdate>();
+    // The same server time, the first and last values follow the daq time
+    records.add(createRecord(1L, Integer.valueOf(5), serverTime, new Timestamp(serverTime.getTime() - 1000)));
+    records.add(createRecord(1L, Integer.valueOf(9), serverTime, new Timestamp(serverTime.getTime() - 3000)));
+    records.add(createRecord(1L, Integer.valueOf(1), serverTime, new Timestamp(serverTime.getTime() - 2000)));
+    // The same times, the lowest value is the first and the highest the last
+    records.add(createRecord(1L, Integer.valueOf(7), otherServerTime, otherServerTime));
+    records.add(createRecord(1L, Integer.valueOf(3), otherServerTime, otherServerTime));
+
+    final List<HistoryAggregate> aggregates = new ArrayList<HistoryAggregate>(
+        HistoryProviderAbs.aggregate(records, from, to, hour));
+
+    assertEquals(2, aggregates.size());
+    assertEquals(9.0, aggregates.get(0).getFirst(), 0.0);
+    assertEquals(5.0, aggregates.get(0).getLast(), 0.0);
+    assertEquals(3.0, aggregates.get(1).getFirst(), 0.0);
+    assertEquals(7.0, aggregates.get(1).getLast(), 0.0);
+  }
+
+  @Test
+  public void testDisabledProviderDoesNoQueries() {
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl(QUERY_LATENCY), null, queryExecutor);
+    provider.disableProvider();
+
+    final Timestamp to = new Timestamp(1400000000000L);
+    final Timestamp from = new Timestamp(to.getTime() - 24 * 60 * 60 * 1000L);
+    assertEquals(0, provider.getHistory(5, new Long[] { 1L, 2L, 3L }, from, to).size());
+  }
+
+  @Test
+  public void testDisablingProviderCancelsRunningQuery() throws Exception {
+    // A statement which stays executing until it is cancelled
+    final CountDownLatch cancelled = new CountDownLatch(1);
+    final Statement statement = EasyMock.createNiceMock(Statement.class);
+    statement.cancel();
+    EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+      @Override
+      public Object answer() {
+        cancelled.countDown();
+        return null;
+      }
+    });
+    EasyMock.replay(statement);
+
+    final List<ShortTermLogHistoryRequestBean> requests = new ArrayList<ShortTermLogHistoryRequestBean>();
+    final SqlHistoryProviderDAO provider = new SqlHistoryProviderDAO(new FakeHistoryMapperImpl() {
+      @Override
+      public List<HistoryRecordBean> getRecords(final ShortTermLogHistoryRequestBean request) {
+        requests.add(request);
+        if (requests.size() > 1) {
+          return super.getRecords(request);
+        }
+        // Does what the interceptor does with the statements of the queries
+        final StatementRegistry registry = StatementRegistry.getCurrent();
+        registry.register(statement);
+        try {
+          if (cancelled.await(10, TimeUnit.SECONDS)) {
+            throw new RuntimeException("The statement were cancelled");
+          }
+          return super.getRecords(request);
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        finally {
+          registry.unregister(statement);
+        }
+      }
+    }, null);
+
+    final Long[] tagIds = new Long[] { 1L, 2L, 3L };
+    final Timestamp to = new Timestamp(1400000000000L);
+    final Timestamp from = new Timestamp(to.getTime() - 24 * 60 * 60 * 1000L);
+
+    final Future<Collection<HistoryTagValueUpdate>> query = queryExecutor.submit(new Callable<Collection<HistoryTagValueUpdate>>() {
+      @Override
+      public Collection<HistoryTagValueUpdate> call() {
+        return provider.getHistory(tagIds, from, to);
+      }
+    });
+    while (provider.getStatementRegistry().getNumberOfStatements() == 0) {
+      Thread.sleep(10);
+    }
+
+    // What the history player does when seeking
+    final long startTime = System.currentTimeMillis();
+    provider.disableProvider();
+    final Collection<HistoryTagValueUpdate> result = query.get(10, TimeUnit.SECONDS);
+    final long cancelTime = System.currentTimeMillis() - startTime;
+
+    assertTrue(String.format("The query took %d ms to stop", cancelTime), cancelTime < 1000);
+    assertEquals(0, result.size());
+    assertEquals(0, provider.getStatementRegistry().getNumberOfStatements());
+    EasyMock.verify(statement);
+
+    // The cancelled query is not taken as a failure of the database
+    provider.enableProvider();
+    assertTrue(provider.getHistory(tagIds, from, to).size() > 0);
+    assertEquals(2, requests.size());
+    assertTrue(requests.get(1).isTagIdsAsArray());
+  }
+
+  /**
+   * A database without arrays, so that the tag ids are split into queries,
+   * which counts how many queries for records runs at the same time
+   */
+  private static class ConcurrencyCountingMapper extends FakeHistoryMapperImpl {
+
+    /** The queries running now */
+    private final AtomicInteger concurrentQueries = new AtomicInteger(0);
+
+    /** The most queries which have run at the same time */
+    private final AtomicInteger maximumConcurrentQueries = new AtomicInteger(0);
+
+    ConcurrencyCountingMapper() {
+      super(QUERY_LATENCY);
+    }
+
+    @Override
+    public List<HistoryRecordBean> getRecords(final ShortTermLogHistoryRequestBean request) {
+      if (request.isTagIdsAsArray()) {
+        throw new RuntimeException(new SQLFeatureNotSupportedException("Arrays are not supported by the database"));
+      }
+      final int running = concurrentQueries.incrementAndGet();
+      try {
+        int maximum = maximumConcurrentQueries.get();
+        while (running > maximum && !maximumConcurrentQueries.compareAndSet(maximum, running)) {
+          maximum = maximumConcurrentQueries.get();
+        }
+        return super.getRecords(request);
+      }
+      finally {
+        concurrentQueries.decrementAndGet();
+      }
+    }
+
+    /**
+     * @return the most queries which have run at the same time
+     */
+    int getMaximumConcurrentQueries() {
+      return maximumConcurrentQueries.get();
+    }
+
+    /**
+     * Starts counting again
+     */
+    void resetMaximumConcurrentQueries() {
+      maximumConcurrentQueries.set(0);
+    }
+  }
+
+  /**
+   * Checks that there is one initial event for each request, as given by the
+   * {@link FakeHistoryMapperImpl}
+   * 
+   * @param requests
+   *          the requested ids
+   * @param initializationTime
+   *          the time the events were requested for
+   * @param events
+   *          the events given by the provider
+   */
+  private static void assertInitialSupervisionEvents(final Collection<SupervisionEventRequest> requests,
+      final Timestamp initializationTime, final Collection<HistorySupervisionEvent> events) {
+    assertEquals(requests.size(), events.size());
+    final Map<String, HistorySupervisionEvent> eventsById = new HashMap<String, HistorySupervisionEvent>();
+    for (final HistorySupervisionEvent event : events) {
+      eventsById.put(event.getEntity() + ":" + event.getEntityId(), event);
+      assertTrue(event.isInitialValue());
+    }
+    for (final SupervisionEventRequest request : requests) {
+      final HistorySupervisionEvent event = eventsById.get(request.getEntity() + ":" + request.getId());
+      final SupervisionRecordBean expected =
+          FakeHistoryMapperImpl.createSupervisionRecordBean(request.getEntity(), request.getId(), initializationTime);
+      assertEquals(expected.getStatus(), event.getStatus());
+      assertEquals(expected.getMessage(), event.getMessage());
+    }
+  }
+
+  /**
+   * Asserts that there is exactly one initial value for each of the tags
+   */
+  private static void assertInitialValues(final Long[] tagIds, final Collection<HistoryTagValueUpdate> values) {
+    assertEquals(tagIds.length, values.size());
+    final Set<Long> tagIdsOfValues = new HashSet<Long>();
+    for (final HistoryTagValueUpdate value : values) {
+      assertTrue(value.isInitialValue());
+      tagIdsOfValues.add(value.getId());
+    }
+    assertEquals(new HashSet<Long>(Arrays.asList(tagIds)), tagIdsOfValues);
+  }
+
+  /**
+   * @return a record with the daq time also as source time, and the server
+   *         time also as log time
+   */
+  private static HistoryTagValueUpdate createRecord(final Long tagId, final Object value, final Timestamp serverTime, 
+      final Timestamp daqTime) {
+    return new HistoryTagValueUpdateImpl(tagId, null, value, daqTime, daqTime, serverTime, serverTime, null, null);
+  }
+
+  /**
+   * @param numberOfTags
+   *          the number of tag ids to create
+   * @return the tag ids from 1 to <code>numberOfTags</code>
+   */
+  private static Long[] createTagIds(final int numberOfTags) {
+    final Long[] tagIds = new Long[numberOfTags];
+    for (int i = 0; i < tagIds.length; i++) {
+      tagIds[i] = Long.valueOf(i + 1);
+    }
+    return tagIds;
+  }
+
+  /**
+   * Asserts that there are exactly <code>recordsPerTag</code> records for
+   * each of the tags
+   */
+  private static void assertRecordsPerTag(final Long[] tagIds, final int recordsPerTag, final Collection<HistoryTagValueUpdate> records) {
+    final Map<Long, Integer> counts = new HashMap<Long, Integer>();
+    for (final HistoryTagValueUpdate record : records) {
+      final Integer count = counts.get(record.getId());
+      counts.put(record.getId(), count == null ? 1 : count + 1);
+    }
+    assertEquals(tagIds.length, counts.size());
+    for (final Long tagId : tagIds) {
+      assertEquals(Integer.valueOf(recordsPerTag), counts.get(tagId));
+    }
+  }
+}
@@ -0,0 +1,603 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess.spring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.type.JdbcType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.dbaccess.HistoryMapper;
+import cern.c2mon.client.ext.history.dbaccess.HistoryTestSessionFactory;
+import cern.c2mon.client.ext.history.dbaccess.beans.AggregatedHistoryRecordBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.AggregatedHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.DailySnapshotRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.HistoryRecordBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialRecordHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialRecordsHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.InitialSupervisionEventsRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.ShortTermLogHistoryRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionEventRequestBean;
+import cern.c2mon.client.ext.history.dbaccess.beans.SupervisionRecordBean;
+import cern.c2mon.client.ext.history.dbaccess.util.SharedDataTagQualityTypeHandler;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+import cern.c2mon.shared.common.datatag.DataTagQualityImpl;
+import cern.c2mon.shared.common.datatag.TagQualityStatus;
+import cern.c2mon.shared.common.supervision.SupervisionConstants.SupervisionEntity;
+import cern.c2mon.shared.common.supervision.SupervisionConstants.SupervisionStatus;
+
+/**
+ * Runs the {@link HistoryMapper} queries against an in-memory HSQLDB
+ * database, with the history tables created by the test.
+ */
+public class HistoryMapperHsqldbTest {
+
+  /** The columns of the short term log and the daily snapshot tables */
+  private static final String HISTORY_COLUMNS =
+      "(LOGDATE TIMESTAMP, TAGID BIGINT, TAGNAME VARCHAR(100), TAGVALUE VARCHAR(100), "
+    + "TAGVALUEDESC VARCHAR(100), TAGDATATYPE VARCHAR(100), TAGTIME TIMESTAMP, "
+    + "TAGDAQTIME TIMESTAMP, TAGSERVERTIME TIMESTAMP, TAGSTATUSDESC VARCHAR(100), TAGMODE SMALLINT)";
+
+  /** The day which the initial records are requested for */
+  private static final Timestamp DAY = Timestamp.valueOf("2014-03-10 00:00:00");
+
+  /** The time which the initial records are requested for */
+  private static final Timestamp BEFORE_TIME = Timestamp.valueOf("2014-03-10 12:00:00");
+
+  /** The number of tags in the shared values test */
+  private static final int SHARED_TEST_TAGS = 10;
+
+  /** The number of records per tag in the shared values test */
+  private static final int SHARED_TEST_RECORDS_PER_TAG = 1000;
+
+  private DataSource dataSource;
+
+  private SqlSession session;
+
+  private HistoryMapper mapper;
+
+  @Before
+  public void setUp() throws Exception {
+    dataSource = new UnpooledDataSource("org.hsqldb.jdbc.JDBCDriver", "jdbc:hsqldb:mem:historymapper", "sa", "");
+
+    final Connection connection = dataSource.getConnection();
+    try {
+      final Statement statement = connection.createStatement();
+      statement.execute("CREATE TABLE SHORTTERMLOG " + HISTORY_COLUMNS);
+      statement.execute("CREATE TABLE STL_DAY_SNAPSHOT " + HISTORY_COLUMNS);
+      statement.execute("CREATE TABLE SUPERVISION_LOG (SUL_ENTITY VARCHAR(20), SUL_ID BIGINT, "
+          + "SUL_DATE TIMESTAMP, SUL_STATUS VARCHAR(20), SUL_MESSAGE VARCHAR(100))");
+      statement.close();
+    }
+    finally {
+      connection.close();
+    }
+
+    final SqlSessionFactory sessionFactory = HistoryTestSessionFactory.create(dataSource);
+
+    session = sessionFactory.openSession(true);
+    mapper = session.getMapper(HistoryMapper.class);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    session.close();
+    final Connection connection = dataSource.getConnection();
+    try {
+      final Statement statement = connection.createStatement();
+      statement.execute("DROP TABLE SHORTTERMLOG");
+      statement.execute("DROP TABLE STL_DAY_SNAPSHOT");
+      statement.execute("DROP TABLE SUPERVISION_LOG");
+      statement.close();
+    }
+    finally {
+      connection.close();
+    }
+  }
+
+  @Test
+  public void testGetInitialRecords() throws Exception {
+    // Tag 1: the latest record before the time is used
+    insert("SHORTTERMLOG", DAY, 1L, "10:00:00", "10:00:00");
+    insert("SHORTTERMLOG", DAY, 1L, "11:00:00", "11:00:00");
+    insert("SHORTTERMLOG", DAY, 1L, "13:00:00", "13:00:00");
+
+    // Tag 2: only the snapshot of the day before
+    insert("STL_DAY_SNAPSHOT", Timestamp.valueOf("2014-03-09 00:00:00"), 2L, "2014-03-09 20:00:00", "2014-03-09 20:00:00");
+
+    // Tag 3: two records with the same server time, the latest daq time wins
+    insert("SHORTTERMLOG", DAY, 3L, "09:00:00", "08:58:00");
+    insert("SHORTTERMLOG", DAY, 3L, "09:00:00", "08:59:00");
+
+    // Tag 5: the short term log is newer than the snapshot
+    insert("STL_DAY_SNAPSHOT", Timestamp.valueOf("2014-03-09 00:00:00"), 5L, "2014-03-09 20:00:00", "2014-03-09 20:00:00");
+    insert("SHORTTERMLOG", DAY, 5L, "08:00:00", "08:00:00");
+
+    final List<HistoryRecordBean> records =
+        mapper.getInitialRecords(new InitialRecordsHistoryRequestBean(new Long[] { 1L, 2L, 3L, 4L, 5L }, BEFORE_TIME));
+
+    // Keeps the first record of each tag, as the provider does
+    final List<HistoryRecordBean> latest = new ArrayList<HistoryRecordBean>();
+    for (final HistoryRecordBean record : records) {
+      if (latest.isEmpty() || !latest.get(latest.size() - 1).getTagId().equals(record.getTagId())) {
+        latest.add(record);
+      }
+    }
+    assertEquals(4, latest.size());
+
+    assertEquals(Long.valueOf(1L), latest.get(0).getTagId());
+    assertEquals(Timestamp.valueOf("2014-03-10 11:00:00"), latest.get(0).getServerTime());
+    assertFalse(latest.get(0).isFromInitialSnapshot());
+
+    assertEquals(Long.valueOf(2L), latest.get(1).getTagId());
+    assertEquals(Timestamp.valueOf("2014-03-09 20:00:00"), latest.get(1).getServerTime());
+    assertEquals(DAY.getTime(), latest.get(1).getLogDate().getTime());
+    assertTrue(latest.get(1).isFromInitialSnapshot());
+
+    assertEquals(Long.valueOf(3L), latest.get(2).getTagId());
+    assertEquals(Timestamp.valueOf("2014-03-10 08:59:00"), latest.get(2).getDaqTime());
+
+    assertEquals(Long.valueOf(5L), latest.get(3).getTagId());
+    assertEquals(Timestamp.valueOf("2014-03-10 08:00:00"), latest.get(3).getServerTime());
+    assertFalse(latest.get(3).isFromInitialSnapshot());
+  }
+
+  @Test
+  public void testGetInitialRecord() throws Exception {
+    insert("SHORTTERMLOG", DAY, 1L, "10:00:00", "10:00:00");
+    insert("SHORTTERMLOG", DAY, 1L, "11:00:00", "11:00:00");
+    insert("SHORTTERMLOG", DAY, 1L, "13:00:00", "13:00:00");
+    insert("STL_DAY_SNAPSHOT", Timestamp.valueOf("2014-03-09 00:00:00"), 2L, "2014-03-09 20:00:00", "2014-03-09 20:00:00");
+
+    final HistoryRecordBean record = mapper.getInitialRecord(new InitialRecordHistoryRequestBean(1L, BEFORE_TIME));
+    assertEquals(Timestamp.valueOf("2014-03-10 11:00:00"), record.getServerTime());
+    assertFalse(record.isFromInitialSnapshot());
+
+    final HistoryRecordBean snapshot = mapper.getInitialRecord(new InitialRecordHistoryRequestBean(2L, BEFORE_TIME));
+    assertEquals(Timestamp.valueOf("2014-03-09 20:00:00"), snapshot.getServerTime());
+    assertTrue(snapshot.isFromInitialSnapshot());
+  }
+
+  @Test
+  public void testGetDailySnapshotRecords() throws Exception {
+    insert("STL_DAY_SNAPSHOT", Timestamp.valueOf("2014-03-08 00:00:00"), 1L, "2014-03-08 20:00:00", "2014-03-08 20:00:00");
+    insert("STL_DAY_SNAPSHOT", Timestamp.valueOf("2014-03-09 00:00:00"), 1L, "2014-03-09 20:00:00", "2014-03-09 20:00:00");
+    insert("STL_DAY_SNAPSHOT", Timestamp.valueOf("2014-03-09 00:00:00"), 2L, "2014-03-09 20:00:00", "2014-03-09 20:00:00");
+    insert("STL_DAY_SNAPSHOT", Timestamp.valueOf("2014-03-09 00:00:00"), 3L, "2014-03-09 20:00:00", "2014-03-09 20:00:00");
+
+    final DailySnapshotRequestBean request = new DailySnapshotRequestBean(new Long[] { 1L, 2L },
+        Timestamp.valueOf("2014-03-09 12:00:00"), BEFORE_TIME);
+    final List<HistoryRecordBean> listed = mapper.getDailySnapshotRecords(request);
+    request.setTagIdsAsArray(true);
+    final List<HistoryRecordBean> bound = mapper.getDailySnapshotRecords(request);
+
+    assertEquals(2, listed.size());
+    assertEquals(listed.size(), bound.size());
+    for (final HistoryRecordBean record : listed) {
+      assertEquals(DAY.getTime(), record.getLogDate().getTime());
+      assertTrue(record.isFromInitialSnapshot());
+    }
+  }
+
+  @Test
+  public void testGetSupervisionEvents() throws Exception {
+    insertSupervisionEvent(SupervisionEntity.PROCESS, 1L, "08:00:00", SupervisionStatus.DOWN);
+    insertSupervisionEvent(SupervisionEntity.PROCESS, 1L, "09:00:00", SupervisionStatus.RUNNING);
+    insertSupervisionEvent(SupervisionEntity.PROCESS, 1L, "13:00:00", SupervisionStatus.DOWN);
+
+    final List<SupervisionRecordBean> events = mapper.getSupervisionEvents(
+        new SupervisionEventRequestBean(1L, SupervisionEntity.PROCESS, toTimestamp("08:30:00"), toTimestamp("14:00:00")));
+    assertEquals(2, events.size());
+    assertEquals(toTimestamp("09:00:00"), events.get(0).getDate());
+    assertEquals(toTimestamp("13:00:00"), events.get(1).getDate());
+
+    final List<SupervisionRecordBean> initial = mapper.getInitialSupervisionEvents(
+        new SupervisionEventRequestBean(1L, SupervisionEntity.PROCESS, BEFORE_TIME, null));
+    assertEquals(1, initial.size());
+    assertEquals(SupervisionStatus.RUNNING, initial.get(0).getStatus());
+  }
+
+  @Test
+  public void testGetRecordsWithTagIdArray() throws Exception {
+    insert("SHORTTERMLOG", DAY, 1L, "10:00:00", "10:00:00");
+    insert("SHORTTERMLOG", DAY, 2L, "11:00:00", "11:00:00");
+    insert("SHORTTERMLOG", DAY, 3L, "09:00:00", "09:00:00");
+
+    final ShortTermLogHistoryRequestBean request = new ShortTermLogHistoryRequestBean(new Long[] { 1L, 2L }, DAY, BEFORE_TIME);
+    final List<HistoryRecordBean> listed = mapper.getRecords(request);
+    request.setTagIdsAsArray(true);
+    final List<HistoryRecordBean> bound = mapper.getRecords(request);
+
+    assertEquals(2, listed.size());
+    assertEquals(listed.size(), bound.size());
+    for (int i = 0; i < listed.size(); i++) {
+      assertEquals(listed.get(i).getTagId(), bound.get(i).getTagId());
+      assertEquals(listed.get(i).getServerTime(), bound.get(i).getServerTime());
+    }
+  }
+
+  @Test
+  public void testGetRecordsPerTag() throws Exception {
+    insert("SHORTTERMLOG", DAY, 1L, "10:00:00", "10:00:00");
+    insert("SHORTTERMLOG", DAY, 1L, "11:00:00", "11:00:00");
+    // After the end time
+    insert("SHORTTERMLOG", DAY, 1L, "13:00:00", "13:00:00");
+    insert("SHORTTERMLOG", DAY, 1L, "09:00:00", "09:00:00");
+
+    insert("SHORTTERMLOG", DAY, 2L, "08:00:00", "08:00:00");
+    insert("SHORTTERMLOG", DAY, 2L, "07:00:00", "07:00:00");
+    insert("SHORTTERMLOG", DAY, 2L, "06:00:00", "06:00:00");
+
+    // Only one record
+    insert("SHORTTERMLOG", DAY, 3L, "05:00:00", "05:00:00");
+
+    final List<HistoryRecordBean> records = mapper.getRecordsPerTag(
+        new ShortTermLogHistoryRequestBean(new Long[] { 1L, 2L, 3L }, DAY, BEFORE_TIME, 2));
+
+    assertEquals(5, records.size());
+    assertEquals(Long.valueOf(1L), records.get(0).getTagId());
+    assertEquals(toTimestamp("11:00:00"), records.get(0).getServerTime());
+    assertEquals(toTimestamp("10:00:00"), records.get(1).getServerTime());
+    assertEquals(Long.valueOf(2L), records.get(2).getTagId());
+    assertEquals(toTimestamp("08:00:00"), records.get(2).getServerTime());
+    assertEquals(toTimestamp("07:00:00"), records.get(3).getServerTime());
+    assertEquals(Long.valueOf(3L), records.get(4).getTagId());
+  }
+
+  @Test
+  public void testGetRecordsPerTagWithTheSameServerTime() throws Exception {
+    // Three records with the same server time, ordered by the daq time
+    insert("SHORTTERMLOG", DAY, 1L, "10:00:00", "09:57:00");
+    insert("SHORTTERMLOG", DAY, 1L, "10:00:00", "09:59:00");
+    insert("SHORTTERMLOG", DAY, 1L, "10:00:00", "09:58:00");
+    insert("SHORTTERMLOG", DAY, 2L, "08:00:00", "08:00:00");
+
+    final List<HistoryRecordBean> records = mapper.getRecordsPerTag(
+        new ShortTermLogHistoryRequestBean(new Long[] { 1L, 2L }, DAY, BEFORE_TIME, 2));
+
+    assertEquals(3, records.size());
+    assertEquals(Long.valueOf(1L), records.get(0).getTagId());
+    assertEquals(toTimestamp("09:59:00"), records.get(0).getDaqTime());
+    assertEquals(toTimestamp("09:58:00"), records.get(1).getDaqTime());
+    assertEquals(Long.valueOf(2L), records.get(2).getTagId());
+  }
+
+  @Test
+  public void testGetAggregatedRecords() throws Exception {
+    // Tag 1: two records in the first hour, one in the third
+    insert(1L, "06:10:00", "4.0", "Float");
+    insert(1L, "06:40:00", "2.0", "Float");
+    insert(1L, "08:30:00", "6.0", "java.lang.Float");
+    // Before the start and after the end
+    insert(1L, "05:59:59", "100.0", "Float");
+    insert(1L, "12:00:00", "100.0", "Float");
+
+    // Tag 2: not numeric
+    insert(2L, "07:00:00", "true", "Boolean");
+
+    // Tag 3: integers, the first and last values follow the server time
+    insert(3L, "06:00:00", "10", "Integer");
+    insert(3L, "06:30:00", "30", "Integer");
+    insert(3L, "06:20:00", "20", "Integer");
+
+    final List<AggregatedHistoryRecordBean> records = mapper.getAggregatedRecords(new AggregatedHistoryRequestBean(
+        new Long[] { 1L, 2L, 3L }, toTimestamp("06:00:00"), BEFORE_TIME, 60 * 60 * 1000L));
+
+    assertEquals(3, records.size());
+
+    assertEquals(Long.valueOf(1L), records.get(0).getTagId());
+    assertEquals(0L, records.get(0).getBucket());
+    assertEquals(2L, records.get(0).getValueCount());
+    assertEquals(2.0, records.get(0).getMinValue(), 0.0);
+    assertEquals(4.0, records.get(0).getMaxValue(), 0.0);
+    assertEquals(3.0, records.get(0).getAvgValue(), 0.0);
+    assertEquals(4.0, records.get(0).getFirstValue(), 0.0);
+    assertEquals(2.0, records.get(0).getLastValue(), 0.0);
+
+    assertEquals(Long.valueOf(1L), records.get(1).getTagId());
+    assertEquals(2L, records.get(1).getBucket());
+    assertEquals(1L, records.get(1).getValueCount());
+    assertEquals(6.0, records.get(1).getFirstValue(), 0.0);
+
+    assertEquals(Long.valueOf(3L), records.get(2).getTagId());
+    assertEquals(0L, records.get(2).getBucket());
+    assertEquals(3L, records.get(2).getValueCount());
+    assertEquals(20.0, records.get(2).getAvgValue(), 0.0);
+    assertEquals(10.0, records.get(2).getFirstValue(), 0.0);
+    assertEquals(30.0, records.get(2).getLastValue(), 0.0);
+  }
+
+  @Test
+  public void testGetAggregatedRecordsWithTheSameServerTime() throws Exception {
+    // The first and last values follow the daq time
+    insert(1L, "06:10:00", "06:09:00", "5", "Integer");
+    insert(1L, "06:10:00", "06:07:00", "9", "Integer");
+    insert(1L, "06:10:00", "06:08:00", "1", "Integer");
+    // The same times, the lowest value is the first and the highest the last
+    insert(1L, "07:10:00", "07:10:00", "7", "Integer");
+    insert(1L, "07:10:00", "07:10:00", "3", "Integer");
+
+    final List<AggregatedHistoryRecordBean> records = mapper.getAggregatedRecords(new AggregatedHistoryRequestBean(
+        new Long[] { 1L }, toTimestamp("06:00:00"), BEFORE_TIME, 60 * 60 * 1000L));
+
+    assertEquals(2, records.size());
+    assertEquals(9.0, records.get(0).getFirstValue(), 0.0);
+    assertEquals(5.0, records.get(0).getLastValue(), 0.0);
+    assertEquals(3.0, records.get(1).getFirstValue(), 0.0);
+    assertEquals(7.0, records.get(1).getLastValue(), 0.0);
+  }
+
+  @Test
+  public void testGetInitialSupervisionEventsOfIds() throws Exception {
+    insertSupervisionEvent(SupervisionEntity.PROCESS, 1L, "08:00:00", SupervisionStatus.DOWN);
+    insertSupervisionEvent(SupervisionEntity.PROCESS, 1L, "09:00:00", SupervisionStatus.RUNNING);
+    insertSupervisionEvent(SupervisionEntity.PROCESS, 1L, "13:00:00", SupervisionStatus.DOWN);
+    insertSupervisionEvent(SupervisionEntity.PROCESS, 2L, "10:00:00", SupervisionStatus.DOWN);
+    // Same id, other entity
+    insertSupervisionEvent(SupervisionEntity.EQUIPMENT, 2L, "11:00:00", SupervisionStatus.RUNNING);
+    // Only after the time
+    insertSupervisionEvent(SupervisionEntity.PROCESS, 3L, "13:00:00", SupervisionStatus.RUNNING);
+
+    final List<SupervisionRecordBean> records = mapper.getInitialSupervisionEventsOfIds(
+        new InitialSupervisionEventsRequestBean(SupervisionEntity.PROCESS, new Long[] { 1L, 2L, 3L }, BEFORE_TIME));
+
+    assertEquals(2, records.size());
+
+    assertEquals(Long.valueOf(1L), records.get(0).getId());
+    assertEquals(SupervisionEntity.PROCESS, records.get(0).getEntity());
+    assertEquals(SupervisionStatus.RUNNING, records.get(0).getStatus());
+    assertEquals(toTimestamp("09:00:00"), records.get(0).getDate());
+
+    assertEquals(Long.valueOf(2L), records.get(1).getId());
+    assertEquals(SupervisionEntity.PROCESS, records.get(1).getEntity());
+    assertEquals(SupervisionStatus.DOWN, records.get(1).getStatus());
+  }
+
+  @Test
+  public void testRecordsShareRepeatedValues() throws Exception {
+    final DataTagQuality validQuality = new DataTagQualityImpl();
+    validQuality.validate();
+    final DataTagQuality invalidQuality = new DataTagQualityImpl(TagQualityStatus.VALUE_OUT_OF_BOUNDS, "Out of bounds");
+
+    final Connection connection = dataSource.getConnection();
+    try {
+      final PreparedStatement statement = connection.prepareStatement("INSERT INTO SHORTTERMLOG"
+          + " (LOGDATE, TAGID, TAGNAME, TAGVALUE, TAGVALUEDESC, TAGDATATYPE, TAGTIME, TAGDAQTIME, TAGSERVERTIME, TAGSTATUSDESC, TAGMODE)"
+          + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+      final SharedDataTagQualityTypeHandler qualityHandler = new SharedDataTagQualityTypeHandler();
+      for (long tagId = 1; tagId <= SHARED_TEST_TAGS; tagId++) {
+        for (int i = 0; i < SHARED_TEST_RECORDS_PER_TAG; i++) {
+          // All the records of a tag have the same server time, so all of
+          // them are returned as initial record candidates
+          statement.setTimestamp(1, DAY);
+          statement.setLong(2, tagId);
+          statement.setString(3, "TagName" + tagId);
+          statement.setString(4, Integer.toString(i));
+          statement.setString(5, "Value description");
+          statement.setString(6, "Integer");
+          statement.setTimestamp(7, toTimestamp("10:00:00"));
+          statement.setTimestamp(8, toTimestamp("10:00:00"));
+          statement.setTimestamp(9, toTimestamp("10:00:00"));
+          qualityHandler.setParameter(statement, 10, i % 2 == 0 ? validQuality : invalidQuality, JdbcType.VARCHAR);
+          statement.setShort(11, (short) 0);
+          statement.addBatch();
+        }
+      }
+      statement.executeBatch();
+      statement.close();
+    }
+    finally {
+      connection.close();
+    }
+
+    final Long[] tagIds = new Long[SHARED_TEST_TAGS];
+    for (int i = 0; i < tagIds.length; i++) {
+      tagIds[i] = Long.valueOf(i + 1);
+    }
+
+    final List<HistoryRecordBean> records = mapper.getInitialRecords(new InitialRecordsHistoryRequestBean(tagIds, BEFORE_TIME));
+    assertEquals(SHARED_TEST_TAGS * SHARED_TEST_RECORDS_PER_TAG, records.size());
+
+    // The first record of each tag, and the first quality of even and odd values
+    final HistoryRecordBean[] firstOfTag = new HistoryRecordBean[SHARED_TEST_TAGS + 1];
+    final DataTagQuality[] qualities = new DataTagQuality[2];
+    for (final HistoryRecordBean record : records) {
+      final int tagId = record.getTagId().intValue();
+      if (firstOfTag[tagId] == null) {
+        firstOfTag[tagId] = record;
+      }
+      assertSame(firstOfTag[tagId].getTagName(), record.getTagName());
+      assertSame(records.get(0).getTagDataType(), record.getTagDataType());
+      assertSame(records.get(0).getTagValueDesc(), record.getTagValueDesc());
+
+      // The qualities are only parsed once, but each record gets its own copy
+      assertNotNull(record.getDataTagQuality());
+      final int parity = Integer.parseInt(record.getTagValue()) % 2;
+      if (qualities[parity] == null) {
+        qualities[parity] = record.getDataTagQuality();
+      }
+      else {
+        assertNotSame(qualities[parity], record.getDataTagQuality());
+      }
+      assertEquals(qualities[parity].isValid(), record.getDataTagQuality().isValid());
+      assertEquals(qualities[parity].getDescription(), record.getDataTagQuality().getDescription());
+    }
+    assertEquals(validQuality.isValid(), qualities[0].isValid());
+    assertEquals(invalidQuality.isValid(), qualities[1].isValid());
+
+    // Changing the quality of one record doesn't change the others
+    qualities[0].addInvalidStatus(TagQualityStatus.INACCESSIBLE, "Changed");
+    for (final HistoryRecordBean record : records) {
+      if (record.getDataTagQuality() != qualities[0]) {
+        assertEquals(Integer.parseInt(record.getTagValue()) % 2 == 0, record.getDataTagQuality().isValid());
+      }
+    }
+  }
+
+  /**
+   * Inserts an event into the supervision log
+   * 
+   * @param entity
+   *          The entity
+   * @param id
+   *          The id of the entity
+   * @param date
+   *          The time of {@link #DAY} of the event
+   * @param status
+   *          The status
+   */
+  private void insertSupervisionEvent(final SupervisionEntity entity, final Long id, final String date, final SupervisionStatus status) throws Exception {
+    final Connection connection = dataSource.getConnection();
+    try {
+      final PreparedStatement statement = connection.prepareStatement(
+          "INSERT INTO SUPERVISION_LOG (SUL_ENTITY, SUL_ID, SUL_DATE, SUL_STATUS, SUL_MESSAGE) VALUES (?, ?, ?, ?, ?)");
+      statement.setString(1, entity.name());
+      statement.setLong(2, id);
+      statement.setTimestamp(3, toTimestamp(date));
+      statement.setString(4, status.name());
+      statement.setString(5, "Test message");
+      statement.executeUpdate();
+      statement.close();
+    }
+    finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * Inserts a record into one of the history tables
+   * 
+   * @param table
+   *          The table to insert into
+   * @param logDate
+   *          The log date of the record
+   * @param tagId
+   *          The tag id
+   * @param serverTime
+   *          The server time, either as a time of {@link #DAY} or a full
+   *          timestamp
+   * @param daqTime
+   *          The daq time, in the same format as the server time
+   */
+  private void insert(final String table, final Timestamp logDate, final Long tagId, final String serverTime, final String daqTime) throws Exception {
+    final Connection connection = dataSource.getConnection();
+    try {
+      final PreparedStatement statement = connection.prepareStatement("INSERT INTO " + table
+          + " (LOGDATE, TAGID, TAGNAME, TAGVALUE, TAGDATATYPE, TAGTIME, TAGDAQTIME, TAGSERVERTIME, TAGMODE)"
+          + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+      statement.setTimestamp(1, logDate);
+      statement.setLong(2, tagId);
+      statement.setString(3, "TagName" + tagId);
+      statement.setString(4, "1.0");
+      statement.setString(5, "Float");
+      statement.setTimestamp(6, toTimestamp(daqTime));
+      statement.setTimestamp(7, toTimestamp(daqTime));
+      statement.setTimestamp(8, toTimestamp(serverTime));
+      statement.setShort(9, (short) 0);
+      statement.executeUpdate();
+      statement.close();
+    }
+    finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * Inserts a record with a value into the short term log
+   * 
+   * @param tagId
+   *          The tag id
+   * @param serverTime
+   *          The server time, as a time of {@link #DAY}
+   * @param value
+   *          The value as it is stored
+   * @param dataType
+   *          The data type of the value
+   */
+  private void insert(final Long tagId, final String serverTime, final String value, final String dataType) throws Exception {
+    insert(tagId, serverTime, serverTime, value, dataType);
+  }
+
+  /**
+   * Inserts a record with a value into the short term log
+   * 
+   * @param tagId
+   *          The tag id
+   * @param serverTime
+   *          The server time, as a time of {@link #DAY}
+   * @param daqTime
+   *          The DAQ and source time, as a time of {@link #DAY}
+   * @param value
+   *          The value as it is stored
+   * @param dataType
+   *          The data type of the value
+   */
+  private void insert(final Long tagId, final String serverTime, final String daqTime, final String value, 
+      final String dataType) throws Exception {
+    final Connection connection = dataSource.getConnection();
+    try {
+      final PreparedStatement statement = connection.prepareStatement("INSERT INTO SHORTTERMLOG"
+          + " (LOGDATE, TAGID, TAGNAME, TAGVALUE, TAGDATATYPE, TAGTIME, TAGDAQTIME, TAGSERVERTIME, TAGMODE)"
+          + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+      statement.setTimestamp(1, DAY);
+      statement.setLong(2, tagId);
+      statement.setString(3, "TagName" + tagId);
+      statement.setString(4, value);
+      statement.setString(5, dataType);
+      statement.setTimestamp(6, toTimestamp(daqTime));
+      statement.setTimestamp(7, toTimestamp(daqTime));
+      statement.setTimestamp(8, toTimestamp(serverTime));
+      statement.setShort(9, (short) 0);
+      statement.executeUpdate();
+      statement.close();
+    }
+    finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * @param time
+   *          Either a time of {@link #DAY} or a full timestamp
+   * @return The timestamp
+   */
+  private static Timestamp toTimestamp(final String time) {
+    if (time.length() == "00:00:00".length()) {
+      return Timestamp.valueOf("2014-03-10 " + time);
+    }
+    return Timestamp.valueOf(time);
+  }
+}
@@ -0,0 +1,195 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.dbaccess.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.c2mon.client.ext.history.dbaccess.beans.HistoryRecordBean;
+
+/**
+ * Tests the {@link TimeZoneUtil}, and compares the time it takes to convert
+ * the times of a {@link HistoryRecordBean} with the previous conversion
+ */
+public class TimeZoneUtilTest {
+
+  /** Log4j logger for this class */
+  private static final Logger LOG = LoggerFactory.getLogger(TimeZoneUtilTest.class);
+
+  /** The time zones to test, some of them with daylight saving time */
+  private static final TimeZone[] TIME_ZONES = new TimeZone[] {
+    TimeZone.getTimeZone("UTC"),
+    TimeZone.getTimeZone("Europe/Zurich"),
+    TimeZone.getTimeZone("America/New_York"),
+    TimeZone.getTimeZone("Australia/Lord_Howe"),
+    TimeZone.getTimeZone("Asia/Kolkata")
+  };
+
+  /** The number of records converted in the benchmark */
+  private static final int BENCHMARK_RECORDS = 1000000;
+
+  /** 2014-03-30 00:00:00 UTC, the day of the daylight saving transition in Europe */
+  private static final long TRANSITION_DAY = 1396137600000L;
+
+  /**
+   * Converts the same way as the previous implementation of
+   * {@link TimeZoneUtil#convertDateTimezone(TimeZone, Date, TimeZone)}
+   */
+  private static long convertWithTimeZone(final long time, final TimeZone timeZone, final TimeZone newTimeZone) {
+    return time - timeZone.getOffset(time) + newTimeZone.getOffset(time);
+  }
+
+  @Test
+  public void testConvertAroundTransitions() {
+    // Every minute for two days around the transition
+    for (long time = TRANSITION_DAY - 86400000L; time < TRANSITION_DAY + 86400000L; time += 60000L) {
+      assertConversions(time);
+      assertConversions(time - 1);
+    }
+  }
+
+  @Test
+  public void testConvertAlternatingAroundTransitions() {
+    // The records of several tags alternates between both sides of the
+    // transitions of several years
+    for (long time = TRANSITION_DAY; time < TRANSITION_DAY + 7200000L; time += 60000L) {
+      for (int year = 0; year < 3; year++) {
+        final long yearStart = time + year * 365L * 86400000L;
+        assertConversions(yearStart - 7200000L);
+        assertConversions(yearStart);
+      }
+    }
+  }
+
+  @Test
+  public void testConvertRandomTimes() {
+    final Random random = new Random(4863L);
+    for (int i = 0; i < 100000; i++) {
+      // Anything between 1970 and 2040
+      assertConversions((long) (random.nextDouble() * 2208988800000L));
+    }
+  }
+
+  @Test
+  public void testConvertDateTimezone() {
+    final Date date = new Date(TRANSITION_DAY + 3600000L);
+    final TimeZone utc = TimeZone.getTimeZone("UTC");
+    final TimeZone zurich = TimeZone.getTimeZone("Europe/Zurich");
+    final Timestamp converted = TimeZoneUtil.convertDateTimezone(zurich, date, utc);
+    assertEquals(convertWithTimeZone(date.getTime(), utc, zurich), converted.getTime());
+  }
+
+  @Test
+  public void testHistoryRecordBeanConversion() {
+    final TimeZone zurich = TimeZone.getTimeZone("Europe/Zurich");
+    final HistoryRecordBean bean = new HistoryRecordBean(1L);
+    bean.setServerTime(new Timestamp(TRANSITION_DAY));
+    bean.setLogDate(new Date(TRANSITION_DAY + 1));
+    bean.convertIntoTimeZone(zurich);
+
+    assertEquals(convertWithTimeZone(TRANSITION_DAY, TimeZone.getTimeZone("UTC"), zurich), bean.getServerTimeMillis());
+    assertEquals(convertWithTimeZone(TRANSITION_DAY + 1, TimeZone.getTimeZone("UTC"), zurich), bean.getLogDate().getTime());
+    assertEquals(HistoryRecordBean.NO_TIME, bean.getDaqTimeMillis());
+    assertEquals(null, bean.getDaqTime());
+  }
+
+  /**
+   * Compares converting the times of a million records with the previous
+   * conversion, which created a new timestamp for each of the times. Only
+   * logs the result, as timing is not reliable enough to assert on.
+   */
+  @Test
+  public void testConversionBenchmark() {
+    final TimeZone utc = TimeZone.getTimeZone("UTC");
+    final TimeZone zurich = TimeZone.getTimeZone("Europe/Zurich");
+    final long[] times = new long[BENCHMARK_RECORDS];
+    for (int i = 0; i < times.length; i++) {
+      times[i] = TRANSITION_DAY + i * 1000L;
+    }
+
+    // Warms up both conversions
+    long checksum = 0;
+    for (int round = 0; round < 3; round++) {
+      checksum += convertWithTimestamps(times, utc, zurich);
+      checksum -= convertWithMillis(times, utc, zurich);
+    }
+    assertEquals(0, checksum);
+
+    final long timestampStart = System.nanoTime();
+    checksum += convertWithTimestamps(times, utc, zurich);
+    final long timestampNanos = System.nanoTime() - timestampStart;
+
+    final long millisStart = System.nanoTime();
+    checksum -= convertWithMillis(times, utc, zurich);
+    final long millisNanos = System.nanoTime() - millisStart;
+    assertEquals(0, checksum);
+
+    LOG.info(String.format("Converting %d records (3 times each): %d ms with timestamps, %d ms with epoch millis",
+        BENCHMARK_RECORDS, timestampNanos / 1000000, millisNanos / 1000000));
+  }
+
+  /**
+   * Converts the times the same way as the previous
+   * {@link HistoryRecordBean#convertIntoTimeZone(TimeZone)}
+   */
+  private static long convertWithTimestamps(final long[] times, final TimeZone timeZone, final TimeZone newTimeZone) {
+    long sum = 0;
+    for (final long time : times) {
+      for (int i = 0; i < 3; i++) {
+        final Date date = new Timestamp(time + i);
+        final Timestamp converted = new Timestamp(convertWithTimeZone(date.getTime(), timeZone, newTimeZone));
+        sum += converted.getTime();
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Converts the times the same way as
+   * {@link HistoryRecordBean#convertIntoTimeZone(TimeZone)}
+   */
+  private static long convertWithMillis(final long[] times, final TimeZone timeZone, final TimeZone newTimeZone) {
+    long sum = 0;
+    for (final long time : times) {
+      for (int i = 0; i < 3; i++) {
+        sum += TimeZoneUtil.convertTimeZone(time + i, timeZone, newTimeZone);
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Asserts that all the conversions between the time zones gives the same
+   * result as {@link TimeZone#getOffset(long)}
+   */
+  private static void assertConversions(final long time) {
+    for (final TimeZone from : TIME_ZONES) {
+      for (final TimeZone to : TIME_ZONES) {
+        assertEquals(from.getID() + " -> " + to.getID() + " at " + time,
+            convertWithTimeZone(time, from, to), TimeZoneUtil.convertTimeZone(time, from, to));
+      }
+    }
+  }
+}
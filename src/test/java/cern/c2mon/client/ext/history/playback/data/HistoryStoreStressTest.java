@@ -0,0 +1,337 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.playback.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistoryUpdate;
+import cern.c2mon.client.ext.history.common.id.HistoryUpdateId;
+import cern.c2mon.client.ext.history.common.id.TagValueUpdateId;
+import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
+import cern.c2mon.shared.client.tag.TagMode;
+import cern.c2mon.shared.common.datatag.DataTagQualityImpl;
+
+/**
+ * Adds records to the {@link HistoryStore} from several loader threads while
+ * other threads reads the records and the state of the tags, like the
+ * scheduler does during the playback.
+ */
+public class HistoryStoreStressTest {
+
+  /** The number of tags in the store */
+  private static final int NUMBER_OF_TAGS = 500;
+
+  /** The number of threads adding records */
+  private static final int LOADER_THREADS = 4;
+
+  /** The number of threads reading records */
+  private static final int READER_THREADS = 4;
+
+  /** The number of times each loader thread adds records for its tags */
+  private static final int CHUNKS = 200;
+
+  /** The time each chunk covers */
+  private static final long CHUNK_MILLIS = 1000L;
+
+  /** The start time of the playback */
+  private static final long START = 10000L;
+
+  /** The store under test */
+  private HistoryStore historyStore;
+
+  /** The ids of the tags */
+  private List<HistoryUpdateId> tagIds;
+
+  @Before
+  public void setUp() {
+    historyStore = new HistoryStore();
+    historyStore.setStart(new Timestamp(START));
+    historyStore.setEnd(new Timestamp(START + CHUNKS * CHUNK_MILLIS));
+
+    tagIds = new ArrayList<HistoryUpdateId>();
+    final List<HistoryUpdate> initialRecords = new ArrayList<HistoryUpdate>();
+    for (long tagId = 1; tagId <= NUMBER_OF_TAGS; tagId++) {
+      tagIds.add(new TagValueUpdateId(tagId));
+      initialRecords.add(createRecord(tagId, START - 1));
+    }
+    historyStore.registerTags(tagIds.toArray(new HistoryUpdateId[0]));
+    historyStore.addInitialTagValueUpdates(tagIds, initialRecords);
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentLoadingAndReading() throws InterruptedException {
+    final Queue<Throwable> errors = new ConcurrentLinkedQueue<Throwable>();
+    final AtomicBoolean loading = new AtomicBoolean(true);
+    final CountDownLatch loadersFinished = new CountDownLatch(LOADER_THREADS);
+    final List<Thread> threads = new ArrayList<Thread>();
+
+    for (int i = 0; i < LOADER_THREADS; i++) {
+      final int loader = i;
+      threads.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            final List<HistoryUpdateId> ownIds = new ArrayList<HistoryUpdateId>();
+            for (int tag = loader; tag < NUMBER_OF_TAGS; tag += LOADER_THREADS) {
+              ownIds.add(tagIds.get(tag));
+            }
+            for (int chunk = 0; chunk < CHUNKS; chunk++) {
+              final long chunkStart = START + chunk * CHUNK_MILLIS;
+              final List<HistoryUpdate> records = new ArrayList<HistoryUpdate>();
+              for (final HistoryUpdateId id : ownIds) {
+                records.add(createRecord(id.toTagValueUpdateId().getTagId(), chunkStart + 1));
+              }
+              historyStore.addHistoryValues(ownIds, records, new Timestamp(chunkStart + CHUNK_MILLIS));
+            }
+          }
+          catch (Throwable e) {
+            errors.add(e);
+          }
+          finally {
+            loadersFinished.countDown();
+          }
+        }
+      }));
+    }
+
+    for (int i = 0; i < READER_THREADS; i++) {
+      final int reader = i;
+      threads.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            int tag = reader;
+            while (loading.get()) {
+              final HistoryUpdateId id = tagIds.get(tag);
+              tag = (tag + 1) % NUMBER_OF_TAGS;
+
+              assertTrue(historyStore.isTagInitialized(id));
+              final Timestamp loadedUntil = historyStore.getTagHaveRecordsUntilTime(id);
+              assertNotNull(loadedUntil);
+              // The value at the loaded time is always there
+              assertNotNull(historyStore.getTagValue(id, loadedUntil.getTime()));
+              assertNotNull(historyStore.getHistoryIsLoadedUntilTime());
+            }
+          }
+          catch (Throwable e) {
+            errors.add(e);
+          }
+        }
+      }));
+    }
+
+    for (final Thread thread : threads) {
+      thread.start();
+    }
+    loadersFinished.await();
+    loading.set(false);
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue("Errors: " + errors, errors.isEmpty());
+    for (final HistoryUpdateId id : tagIds) {
+      assertEquals(CHUNKS + 1, historyStore.getHistory(id).getHistory().length);
+      assertEquals(historyStore.getEnd(), historyStore.getTagHaveRecordsUntilTime(id));
+    }
+    assertEquals(historyStore.getEnd(), historyStore.getHistoryIsLoadedUntilTime(true));
+    assertEquals(historyStore.getEnd(), historyStore.getOldestTagHaveRecordsUntilTime());
+    assertTrue(historyStore.isLoadingComplete());
+  }
+
+  @Test
+  public void testRetriedRecordsAreNotAddedTwice() {
+    final HistoryUpdateId id = tagIds.get(0);
+    final Long tagId = id.toTagValueUpdateId().getTagId();
+
+    // A batch streamed before the query failed
+    final List<HistoryUpdate> streamedBatch = new ArrayList<HistoryUpdate>();
+    for (int i = 1; i <= 3; i++) {
+      streamedBatch.add(createRecord(tagId, START + i));
+    }
+    historyStore.addHistoryValues(Collections.<HistoryUpdateId>emptyList(), streamedBatch, new Timestamp(START + 10));
+
+    // The retried query returns the same records and the rest
+    final List<HistoryUpdate> retriedRecords = new ArrayList<HistoryUpdate>();
+    for (int i = 1; i <= 5; i++) {
+      retriedRecords.add(createRecord(tagId, START + i));
+    }
+    // Two records with the same time in one query are both kept
+    retriedRecords.add(createRecord(tagId, START + 5));
+    final int added = historyStore.addHistoryValues(Arrays.asList(id), retriedRecords, new Timestamp(START + 10));
+
+    assertEquals(3, added);
+    // The initial record, the five loaded times and the second record at the last time
+    assertEquals(7, historyStore.getHistory(id).getHistory().length);
+  }
+
+  @Test
+  public void testRecordsOfTheSameMillisecondAreKept() {
+    final HistoryUpdateId id = tagIds.get(0);
+    final Long tagId = id.toTagValueUpdateId().getTagId();
+
+    // A burst of values from the DAQ which the server received in the same millisecond
+    historyStore.addHistoryValues(Collections.<HistoryUpdateId>emptyList(),
+        Arrays.asList(createRecord(tagId, START + 1, START + 1)), new Timestamp(START + 10));
+    final int added = historyStore.addHistoryValues(Arrays.asList(id),
+        Arrays.asList(createRecord(tagId, START + 1, START - 1), createRecord(tagId, START + 1, START - 2)),
+        new Timestamp(START + 10));
+
+    assertEquals(2, added);
+    assertEquals(3, historyStore.getHistory(id).getHistory(START + 1, START + 1).size());
+  }
+
+  @Test
+  public void testRecordsAddedInParallelAreAddedOnce() throws InterruptedException {
+    final HistoryUpdateId id = tagIds.get(0);
+    final Long tagId = id.toTagValueUpdateId().getTagId();
+    final List<HistoryUpdate> records = new ArrayList<HistoryUpdate>();
+    for (int i = 1; i <= 100; i++) {
+      records.add(createRecord(tagId, START + i));
+    }
+
+    final AtomicInteger added = new AtomicInteger(0);
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> loaders = new ArrayList<Thread>();
+    for (int i = 0; i < LOADER_THREADS; i++) {
+      final Thread loader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+          added.addAndGet(historyStore.addHistoryValues(
+              Collections.<HistoryUpdateId>emptyList(), records, new Timestamp(START + 200)));
+        }
+      });
+      loader.start();
+      loaders.add(loader);
+    }
+    start.countDown();
+    for (final Thread loader : loaders) {
+      loader.join();
+    }
+
+    assertEquals(records.size(), added.get());
+    // The initial record and the loaded ones
+    assertEquals(records.size() + 1, historyStore.getHistory(id).size());
+  }
+
+  @Test(timeout = 60000)
+  public void testMemoryEstimateIsKeptWhileTagsAreRemoved() throws InterruptedException {
+    final List<HistoryUpdate> initialRecords = new ArrayList<HistoryUpdate>();
+    for (final HistoryUpdateId id : tagIds) {
+      initialRecords.add(createRecord(id.toTagValueUpdateId().getTagId(), START - 1));
+    }
+    for (int round = 0; round < CHUNKS / 10; round++) {
+      historyStore.registerTags(tagIds.toArray(new HistoryUpdateId[0]));
+      historyStore.addInitialTagValueUpdates(tagIds, initialRecords);
+
+      final CountDownLatch start = new CountDownLatch(1);
+      final List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < LOADER_THREADS; i++) {
+        final int loader = i;
+        threads.add(new Thread(new Runnable() {
+          @Override
+          public void run() {
+            final List<HistoryUpdate> records = new ArrayList<HistoryUpdate>();
+            for (int tag = loader; tag < NUMBER_OF_TAGS; tag += LOADER_THREADS) {
+              records.add(createRecord(tagIds.get(tag).toTagValueUpdateId().getTagId(), START + loader));
+            }
+            try {
+              start.await();
+            }
+            catch (InterruptedException e) {
+              return;
+            }
+            historyStore.addHistoryValues(Collections.<HistoryUpdateId>emptyList(), records, new Timestamp(START + CHUNK_MILLIS));
+          }
+        }));
+      }
+      threads.add(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          }
+          catch (InterruptedException e) {
+            return;
+          }
+          for (final HistoryUpdateId id : tagIds) {
+            historyStore.unregisterTags(Arrays.asList(id));
+          }
+        }
+      }));
+      for (final Thread thread : threads) {
+        thread.start();
+      }
+      start.countDown();
+      for (final Thread thread : threads) {
+        thread.join();
+      }
+
+      // Nothing is left in the store, also not in the estimate
+      assertEquals(0L, historyStore.getEstimatedMemoryUsage());
+    }
+  }
+
+  /**
+   * @param tagId
+   *          the tag id
+   * @param time
+   *          the time of the record
+   * @return a record for the tag at the time
+   */
+  private static HistoryUpdate createRecord(final Long tagId, final long time) {
+    return createRecord(tagId, time, time);
+  }
+
+  /**
+   * @param tagId
+   *          the tag id
+   * @param time
+   *          the server time of the record
+   * @param sourceTime
+   *          the source and daq time of the record, which is also the value
+   * @return a record for the tag at the time
+   */
+  private static HistoryUpdate createRecord(final Long tagId, final long time, final long sourceTime) {
+    final Timestamp timestamp = new Timestamp(time);
+    final Timestamp sourceTimestamp = new Timestamp(sourceTime);
+    return new HistoryTagValueUpdateImpl(tagId, new DataTagQualityImpl(), Long.valueOf(sourceTime),
+        sourceTimestamp, sourceTimestamp, timestamp, timestamp, "", TagMode.OPERATIONAL);
+  }
+}
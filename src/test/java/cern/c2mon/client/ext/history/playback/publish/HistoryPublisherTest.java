@@ -0,0 +1,78 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.playback.publish;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+
+import org.easymock.EasyMock;
+import org.easymock.IMocksControl;
+import org.junit.Test;
+
+import cern.c2mon.client.core.listener.TagUpdateListener;
+import cern.c2mon.client.ext.history.common.HistoryUpdate;
+import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
+import cern.c2mon.shared.client.tag.TagMode;
+import cern.c2mon.shared.common.datatag.DataTagQualityImpl;
+
+/**
+ * Tests the {@link HistoryPublisher#publishBatch(java.util.Collection)}
+ */
+public class HistoryPublisherTest {
+
+  @Test
+  public void testPublishBatchKeepsOrder() {
+    final HistoryPublisher publisher = new HistoryPublisher();
+    final IMocksControl mockCtrl = EasyMock.createStrictControl();
+    final TagUpdateListener listener1 = mockCtrl.createMock(TagUpdateListener.class);
+    final TagUpdateListener listener2 = mockCtrl.createMock(TagUpdateListener.class);
+    publisher.getTagListenersManager().add(1L, listener1);
+    publisher.getTagListenersManager().add(2L, listener2);
+
+    final HistoryTagValueUpdateImpl first = createRecord(1L, 100L);
+    final HistoryTagValueUpdateImpl second = createRecord(2L, 100L);
+    final HistoryTagValueUpdateImpl third = createRecord(1L, 101L);
+
+    EasyMock.expect(listener1.onUpdate(first)).andReturn(true);
+    EasyMock.expect(listener2.onUpdate(second)).andReturn(true);
+    EasyMock.expect(listener1.onUpdate(third)).andReturn(true);
+    mockCtrl.replay();
+
+    final List<HistoryUpdate> batch = Arrays.<HistoryUpdate>asList(first, second, third);
+    publisher.publishBatch(batch);
+
+    mockCtrl.verify();
+    assertEquals(1, publisher.getStatistics().getBatchCount());
+    assertEquals(3, publisher.getStatistics().getRecordCount());
+  }
+
+  /**
+   * @param tagId
+   *          the tag id
+   * @param time
+   *          the server time of the record
+   * @return a new record
+   */
+  private static HistoryTagValueUpdateImpl createRecord(final Long tagId, final long time) {
+    final Timestamp timestamp = new Timestamp(time);
+    return new HistoryTagValueUpdateImpl(tagId, new DataTagQualityImpl(), Long.valueOf(time),
+        timestamp, timestamp, timestamp, timestamp, "", TagMode.OPERATIONAL);
+  }
+}
@@ -0,0 +1,169 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.playback.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistoryUpdate;
+import cern.c2mon.client.ext.history.common.id.HistoryUpdateId;
+import cern.c2mon.client.ext.history.common.id.SupervisionEventId;
+import cern.c2mon.client.ext.history.common.id.TagValueUpdateId;
+import cern.c2mon.client.ext.history.playback.data.HistoryStore;
+import cern.c2mon.client.ext.history.updates.HistorySupervisionEventImpl;
+import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
+import cern.c2mon.client.ext.history.util.HistoryGroup;
+import cern.c2mon.shared.client.tag.TagMode;
+import cern.c2mon.shared.common.datatag.DataTagQualityImpl;
+import cern.c2mon.shared.common.supervision.SupervisionConstants.SupervisionEntity;
+import cern.c2mon.shared.common.supervision.SupervisionConstants.SupervisionStatus;
+
+/**
+ * Tests that the {@link PlaybackCursors} gives the records in order, and
+ * picks up records which are added after the cursors are placed.
+ */
+public class PlaybackCursorsTest {
+
+  /** The first tag */
+  private static final HistoryUpdateId TAG_1 = new TagValueUpdateId(1L);
+
+  /** The second tag */
+  private static final HistoryUpdateId TAG_2 = new TagValueUpdateId(2L);
+
+  /** The supervision events of an equipment */
+  private static final SupervisionEventId EQUIPMENT = new SupervisionEventId(SupervisionEntity.EQUIPMENT, 3L);
+
+  /** The records of the first tag */
+  private HistoryGroup group1;
+
+  /** The records of the second tag */
+  private HistoryGroup group2;
+
+  /** The supervision events of the equipment */
+  private HistoryGroup equipmentEvents;
+
+  /** The cursors under test */
+  private PlaybackCursors cursors;
+
+  @Before
+  public void setUp() {
+    group1 = new HistoryGroup(TAG_1);
+    group2 = new HistoryGroup(TAG_2);
+    group1.addSorted(new HistoryUpdate[] { createRecord(1L, 100L), createRecord(1L, 200L), createRecord(1L, 400L) });
+    group2.addSorted(new HistoryUpdate[] { createRecord(2L, 200L), createRecord(2L, 300L) });
+    equipmentEvents = new HistoryGroup(EQUIPMENT);
+    equipmentEvents.addSorted(new HistoryUpdate[] { 
+        new HistorySupervisionEventImpl(EQUIPMENT, SupervisionStatus.DOWN, new Timestamp(200L), "Down") });
+
+    final HistoryStore historyStore = EasyMock.createNiceMock(HistoryStore.class);
+    EasyMock.expect(historyStore.getHistory(TAG_1)).andReturn(group1).anyTimes();
+    EasyMock.expect(historyStore.getHistory(TAG_2)).andReturn(group2).anyTimes();
+    EasyMock.expect(historyStore.getHistory(EQUIPMENT)).andReturn(equipmentEvents).anyTimes();
+    EasyMock.replay(historyStore);
+
+    cursors = new PlaybackCursors(historyStore);
+  }
+
+  @Test
+  public void testRecordsArePolledInOrder() {
+    cursors.reset(Arrays.asList(TAG_1, TAG_2), 150L);
+    assertEquals(200L, cursors.getNextExecutionTime());
+
+    assertEquals(Collections.emptyList(), cursors.pollDue(199L));
+
+    final List<HistoryUpdate> due = cursors.pollDue(200L);
+    assertEquals(2, due.size());
+    assertEquals(300L, cursors.getNextExecutionTime());
+
+    assertTimes(cursors.pollDue(1000L), 300L, 400L);
+    assertEquals(HistoryGroup.NO_EXECUTION_TIME, cursors.getNextExecutionTime());
+    assertEquals(0, cursors.size());
+  }
+
+  @Test
+  public void testTagValuesComeBeforeSupervisionEventsOfTheSameTime() {
+    cursors.reset(Arrays.<HistoryUpdateId>asList(EQUIPMENT, TAG_1, TAG_2), 150L);
+
+    final List<HistoryUpdate> due = cursors.pollDue(200L);
+    assertTimes(due, 200L, 200L, 200L);
+    assertTrue(due.get(0).getUpdateId().isTagValueUpdateIdType());
+    assertTrue(due.get(1).getUpdateId().isTagValueUpdateIdType());
+    assertTrue(due.get(2).getUpdateId().isSupervisionEventIdType());
+  }
+
+  @Test
+  public void testNewRecordsJoinTheCursors() {
+    cursors.reset(Arrays.asList(TAG_1, TAG_2), 150L);
+    assertEquals(2, cursors.pollDue(200L).size());
+
+    // One record in the past, which is not published, and one in the future
+    group1.addSorted(new HistoryUpdate[] { createRecord(1L, 180L), createRecord(1L, 250L) });
+    cursors.refresh(Arrays.asList(TAG_1), 200L);
+
+    assertEquals(250L, cursors.getNextExecutionTime());
+    assertTimes(cursors.pollDue(1000L), 250L, 300L, 400L);
+  }
+
+  @Test
+  public void testRecordsBehindTheClockAreNotPublished() {
+    cursors.reset(Arrays.asList(TAG_1, TAG_2), 150L);
+    assertEquals(2, cursors.pollDue(200L).size());
+    assertTimes(cursors.pollDue(300L), 300L);
+
+    // The second tag has published until 301, but the clock is now at 350
+    group2.addSorted(new HistoryUpdate[] { createRecord(2L, 320L), createRecord(2L, 360L) });
+    cursors.refresh(Arrays.asList(TAG_2), 350L);
+
+    assertEquals(360L, cursors.getNextExecutionTime());
+    assertTimes(cursors.pollDue(1000L), 360L, 400L);
+  }
+
+  /**
+   * @param records
+   *          the records to check
+   * @param times
+   *          the expected execution times
+   */
+  private static void assertTimes(final List<HistoryUpdate> records, final long... times) {
+    assertEquals(times.length, records.size());
+    for (int i = 0; i < times.length; i++) {
+      assertEquals(times[i], records.get(i).getExecutionTimestamp().getTime());
+    }
+  }
+
+  /**
+   * @param tagId
+   *          the tag id
+   * @param time
+   *          the server time of the record
+   * @return a new record
+   */
+  private static HistoryUpdate createRecord(final Long tagId, final long time) {
+    final Timestamp timestamp = new Timestamp(time);
+    return new HistoryTagValueUpdateImpl(tagId, new DataTagQualityImpl(), Long.valueOf(time),
+        timestamp, timestamp, timestamp, timestamp, "", TagMode.OPERATIONAL);
+  }
+}
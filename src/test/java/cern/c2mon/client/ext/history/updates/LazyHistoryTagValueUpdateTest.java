@@ -0,0 +1,78 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.updates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+
+import org.junit.Test;
+
+import cern.c2mon.shared.client.tag.TagMode;
+import cern.c2mon.shared.common.datatag.DataTagQualityImpl;
+
+/**
+ * Tests the {@link LazyHistoryTagValueUpdate}
+ */
+public class LazyHistoryTagValueUpdateTest {
+
+  /**
+   * @param rawValue
+   *          the value as it is stored in the database
+   * @param dataType
+   *          the data type name
+   * @return a lazy record with the value
+   */
+  private static LazyHistoryTagValueUpdate create(final String rawValue, final String dataType) {
+    final Timestamp now = new Timestamp(System.currentTimeMillis());
+    return new LazyHistoryTagValueUpdate(100L, new DataTagQualityImpl(), rawValue, dataType, 
+        now, now, now, now, "", TagMode.OPERATIONAL);
+  }
+
+  @Test
+  public void testValueIsDecodedOnFirstAccess() {
+    final LazyHistoryTagValueUpdate update = create("12.5", "Float");
+    assertFalse(update.isDecoded());
+    assertEquals("12.5", update.getRawValue());
+    assertEquals(Float.valueOf(12.5f), update.getValue());
+    assertTrue(update.isDecoded());
+    assertNull(update.getRawValue());
+    assertEquals("Float", update.getValueClassName());
+  }
+
+  @Test
+  public void testDecodedTypes() {
+    assertEquals(Double.valueOf(1.25), create("1.25", "java.lang.Double").getValue());
+    assertEquals(Integer.valueOf(42), create("42", "Integer").getValue());
+    assertEquals(Long.valueOf(42), create("42", "Long").getValue());
+    assertEquals(Boolean.TRUE, create("true", "Boolean").getValue());
+    assertEquals("Some text", create("Some text", "String").getValue());
+    assertEquals(null, create(null, "Float").getValue());
+  }
+
+  @Test
+  public void testSetValueReplacesTheRawValue() {
+    final LazyHistoryTagValueUpdate update = create("1", "Integer");
+    update.setValue(Integer.valueOf(2));
+    assertTrue(update.isDecoded());
+    assertNull(update.getRawValue());
+    assertEquals(Integer.valueOf(2), update.getValue());
+  }
+}
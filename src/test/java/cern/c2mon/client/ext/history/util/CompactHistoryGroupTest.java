@@ -0,0 +1,279 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.Comparator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.common.HistoryUpdate;
+import cern.c2mon.client.ext.history.common.id.TagValueUpdateId;
+import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
+import cern.c2mon.shared.client.tag.TagMode;
+import cern.c2mon.shared.common.datatag.DataTagQualityImpl;
+import cern.c2mon.shared.common.datatag.TagQualityStatus;
+
+/**
+ * Tests that the {@link CompactHistoryGroup} gives back the same records as
+ * it is given, and that it uses less memory than the {@link HistoryGroup}
+ */
+public class CompactHistoryGroupTest {
+
+  /** The tag id used for the records */
+  private static final Long TAG_ID = 1234L;
+
+  /** The number of records used when comparing the memory */
+  private static final int MEMORY_TEST_RECORDS = 1000;
+
+  /** The group under test */
+  private CompactHistoryGroup group;
+
+  @Before
+  public void setUp() {
+    group = new CompactHistoryGroup(new TagValueUpdateId(TAG_ID));
+  }
+
+  @Test
+  public void testRecordsAreKeptAsTheyWere() {
+    final Object[] values = new Object[] {
+        Double.valueOf(1.5), Float.valueOf(2.5f), Long.valueOf(3L), Integer.valueOf(4),
+        Short.valueOf((short) 5), Byte.valueOf((byte) 6), Boolean.TRUE, "seven", null };
+
+    for (int i = 0; i < values.length; i++) {
+      final HistoryTagValueUpdateImpl record = createRecord(1000L + i, values[i], i);
+      record.getSourceTimestamp().setNanos(123456789);
+      group.add(record);
+    }
+
+    final HistoryUpdate[] history = group.getHistory();
+    assertEquals(values.length, history.length);
+    for (int i = 0; i < values.length; i++) {
+      final HistoryTagValueUpdateImpl expected = createRecord(1000L + i, values[i], i);
+      expected.getSourceTimestamp().setNanos(123456789);
+      assertSameContent(expected, (HistoryTagValueUpdate) history[i]);
+    }
+  }
+
+  @Test
+  public void testRecordsWhichCannotBeEncodedAreKept() {
+    final HistoryTagValueUpdateImpl otherType = new HistoryTagValueUpdateImpl(TAG_ID, new DataTagQualityImpl(), 1,
+        new Timestamp(100L), null, new Timestamp(100L), null, "", TagMode.OPERATIONAL) { };
+    group.add(createRecord(50L, 0, 0));
+    group.add(otherType);
+
+    assertSame(otherType, group.getHistory()[1]);
+    assertSame(otherType, group.getLatestUpdate(150L));
+  }
+
+  @Test
+  public void testRecordsWhichCannotBeEncodedFollowTheirRows() {
+    final HistoryUpdate first = createFallbackRecord(200L);
+    final HistoryUpdate second = createFallbackRecord(400L);
+    group.addSorted(new HistoryUpdate[] { createRecord(100L, 1, 0), first, createRecord(300L, 3, 0), second });
+
+    // Merged in between the rows which could not be encoded
+    group.addSorted(new HistoryUpdate[] { createRecord(250L, 2, 0), createRecord(350L, 3, 0) });
+    HistoryUpdate[] history = group.getHistory();
+    assertEquals(6, history.length);
+    assertSame(first, history[1]);
+    assertSame(second, history[5]);
+
+    group.sortHistory(new Comparator<HistoryUpdate>() {
+      @Override
+      public int compare(final HistoryUpdate o1, final HistoryUpdate o2) {
+        return o2.getExecutionTimestamp().compareTo(o1.getExecutionTimestamp());
+      }
+    });
+    history = group.getHistory();
+    assertSame(second, history[0]);
+    assertSame(first, history[4]);
+
+    group.sortHistory(new Comparator<HistoryUpdate>() {
+      @Override
+      public int compare(final HistoryUpdate o1, final HistoryUpdate o2) {
+        return o1.getExecutionTimestamp().compareTo(o2.getExecutionTimestamp());
+      }
+    });
+    assertEquals(4, group.evictBefore(360L));
+    history = group.getHistory();
+    assertEquals(2, history.length);
+    assertSame(second, history[1]);
+    assertSame(second, group.getLatestUpdate(400L));
+  }
+
+  @Test
+  public void testLatestUpdate() {
+    for (long time = 100; time <= 1000; time += 100) {
+      group.add(createRecord(time, time, 0));
+    }
+    assertNull(group.getLatestUpdate(99L));
+    assertEquals(100L, ((HistoryTagValueUpdate) group.getLatestUpdate(199L)).getValue());
+    assertEquals(1000L, ((HistoryTagValueUpdate) group.getLatestUpdate(Long.MAX_VALUE)).getValue());
+  }
+
+  @Test
+  public void testSortHistory() {
+    group.add(createRecord(300L, 3, 0));
+    group.add(createRecord(100L, 1, 0));
+    group.add(createRecord(200L, 2, 0));
+    group.sortHistory(new Comparator<HistoryUpdate>() {
+      @Override
+      public int compare(final HistoryUpdate o1, final HistoryUpdate o2) {
+        return o1.getExecutionTimestamp().compareTo(o2.getExecutionTimestamp());
+      }
+    });
+
+    final HistoryUpdate[] history = group.getHistory();
+    for (int i = 0; i < history.length; i++) {
+      assertEquals(i + 1, ((HistoryTagValueUpdate) history[i]).getValue());
+    }
+    assertEquals(2, ((HistoryTagValueUpdate) group.getLatestUpdate(250L)).getValue());
+  }
+
+  @Test
+  public void testAddSortedMergesOverlappingRecords() {
+    group.addSorted(new HistoryUpdate[] { createRecord(100L, 1, 0), createRecord(300L, 3, 0) });
+    group.addSorted(new HistoryUpdate[] { createRecord(400L, 4, 0), createRecord(200L, 2, 0) });
+
+    final HistoryUpdate[] history = group.getHistory();
+    assertEquals(4, history.length);
+    for (int i = 0; i < history.length; i++) {
+      assertEquals(i + 1, ((HistoryTagValueUpdate) history[i]).getValue());
+    }
+  }
+
+  @Test
+  public void testMemoryFootprint() {
+    final HistoryGroup objectGroup = new HistoryGroup(new TagValueUpdateId(TAG_ID));
+    fill(objectGroup);
+    fill(group);
+
+    assertEquals(objectGroup.size(), group.size());
+    assertTrue("The compact group should use less than half the memory",
+        group.getEstimatedMemoryUsage() * 2 < objectGroup.getEstimatedMemoryUsage());
+  }
+
+  @Test
+  public void testQualityIsCopied() {
+    final HistoryTagValueUpdateImpl record = createRecord(100L, 1, 0);
+    group.add(record);
+
+    // Changing the quality of the added record must not change the kept one
+    record.getDataTagQuality().addInvalidStatus(TagQualityStatus.VALUE_OUT_OF_BOUNDS, "Changed afterwards");
+    assertTrue(((HistoryTagValueUpdate) group.getLatestUpdate(100L)).getDataTagQuality().isValid());
+
+    // Neither must changing the quality of a returned record
+    ((HistoryTagValueUpdate) group.getLatestUpdate(100L)).getDataTagQuality()
+        .addInvalidStatus(TagQualityStatus.VALUE_OUT_OF_BOUNDS, "Changed afterwards");
+    assertTrue(((HistoryTagValueUpdate) group.getLatestUpdate(100L)).getDataTagQuality().isValid());
+  }
+
+  @Test
+  public void testEvictBeforePrunesDictionaries() {
+    final HistoryUpdate[] records = new HistoryUpdate[10];
+    for (int i = 0; i < records.length; i++) {
+      records[i] = createRecord(100L * (i + 1), "Value " + i, i);
+    }
+    group.addSorted(records);
+    final int dictionarySize = group.getDictionarySize();
+
+    // Keeps the latest record at or before the time, and the ones after it
+    assertEquals(8, group.evictBefore(900L));
+    assertTrue("The values of the evicted records should be removed", group.getDictionarySize() < dictionarySize);
+
+    final HistoryUpdate[] history = group.getHistory();
+    assertEquals(2, history.length);
+    assertSameContent((HistoryTagValueUpdate) records[8], (HistoryTagValueUpdate) history[0]);
+    assertSameContent((HistoryTagValueUpdate) records[9], (HistoryTagValueUpdate) history[1]);
+  }
+
+  /**
+   * Fills the group with records similar to the ones loaded from the database
+   * 
+   * @param historyGroup
+   *          the group to fill
+   */
+  private static void fill(final HistoryGroup historyGroup) {
+    for (int i = 0; i < MEMORY_TEST_RECORDS; i++) {
+      historyGroup.add(createRecord(1000L * i, Double.valueOf(i % 100), i % 3));
+    }
+  }
+
+  /**
+   * @param time
+   *          the server time of the record
+   * @return a record of a subclass, which the group does not encode
+   */
+  private static HistoryUpdate createFallbackRecord(final long time) {
+    return new HistoryTagValueUpdateImpl(TAG_ID, new DataTagQualityImpl(), 1,
+        new Timestamp(time), null, new Timestamp(time), null, "", TagMode.OPERATIONAL) { };
+  }
+
+  /**
+   * @param expected
+   *          the record which were added
+   * @param actual
+   *          the record which were returned by the group
+   */
+  private static void assertSameContent(final HistoryTagValueUpdate expected, final HistoryTagValueUpdate actual) {
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getValue(), actual.getValue());
+    assertEquals(expected.getValueClassName(), actual.getValueClassName());
+    assertEquals(expected.getSourceTimestamp(), actual.getSourceTimestamp());
+    assertEquals(expected.getDaqTimestamp(), actual.getDaqTimestamp());
+    assertEquals(expected.getServerTimestamp(), actual.getServerTimestamp());
+    assertEquals(expected.getLogTimestamp(), actual.getLogTimestamp());
+    assertEquals(expected.getDescription(), actual.getDescription());
+    assertEquals(expected.getMode(), actual.getMode());
+    assertEquals(expected.isInitialValue(), actual.isInitialValue());
+    assertEquals(expected.getDataTagQuality().isValid(), actual.getDataTagQuality().isValid());
+    assertEquals(expected.getDataTagQuality().getDescription(), actual.getDataTagQuality().getDescription());
+  }
+
+  /**
+   * Creates a record with its own instances of every field, as when it is
+   * read from the database
+   * 
+   * @param time
+   *          the server time of the record
+   * @param value
+   *          the value
+   * @param variant
+   *          selects one of a few qualities and descriptions
+   * @return a new record
+   */
+  private static HistoryTagValueUpdateImpl createRecord(final long time, final Object value, final int variant) {
+    final DataTagQualityImpl quality = new DataTagQualityImpl();
+    if (variant % 2 == 1) {
+      quality.addInvalidStatus(TagQualityStatus.VALUE_OUT_OF_BOUNDS, "Out of bounds " + variant);
+    }
+    final HistoryTagValueUpdateImpl record = new HistoryTagValueUpdateImpl(TAG_ID, quality, value,
+        new Timestamp(time - 2), new Timestamp(time - 1), new Timestamp(time), new Timestamp(time + 1),
+        new String("Description " + variant), TagMode.OPERATIONAL);
+    record.setValueClassName(value == null ? null : value.getClass().getName());
+    record.setInitialValue(variant == 0);
+    return record;
+  }
+}
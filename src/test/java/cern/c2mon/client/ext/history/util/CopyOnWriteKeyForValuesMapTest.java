@@ -0,0 +1,87 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link CopyOnWriteKeyForValuesMap}
+ */
+public class CopyOnWriteKeyForValuesMapTest {
+
+  /** The map under test */
+  private CopyOnWriteKeyForValuesMap<Long, String> map;
+
+  @Before
+  public void setUp() {
+    map = new CopyOnWriteKeyForValuesMap<Long, String>();
+  }
+
+  @Test
+  public void testAddAndGetValues() {
+    assertTrue(map.add(1L, "a"));
+    assertFalse(map.add(1L, "b"));
+    assertFalse(map.add(1L, "a"));
+    assertTrue(map.add(2L, "a"));
+
+    assertEquals(new HashSet<String>(Arrays.asList("a", "b")), new HashSet<String>(map.getValues(1L)));
+    assertTrue(map.getValues(3L).isEmpty());
+    assertTrue(map.haveKey(2L));
+    assertFalse(map.haveKey(3L));
+  }
+
+  @Test
+  public void testValuesIsASnapshot() {
+    map.add(1L, "a");
+    final Collection<String> values = map.getValues(1L);
+    map.add(1L, "b");
+
+    assertEquals(1, values.size());
+    assertEquals(2, map.getValues(1L).size());
+  }
+
+  @Test
+  public void testRemoveValueReturnsEmptiedKeys() {
+    map.add(1L, "a");
+    map.add(2L, "a");
+    map.add(2L, "b");
+
+    assertEquals(new HashSet<Long>(Arrays.asList(1L)), new HashSet<Long>(map.removeValue("a")));
+    assertFalse(map.haveKey(1L));
+    assertEquals(new HashSet<String>(Arrays.asList("b")), new HashSet<String>(map.getValues(2L)));
+    assertTrue(map.removeValue("a").isEmpty());
+  }
+
+  @Test
+  public void testRemoveKeyUpdatesReverseIndex() {
+    map.add(1L, "a");
+    map.add(2L, "a");
+    map.removeKey(1L);
+
+    assertFalse(map.haveKey(1L));
+    assertEquals(new HashSet<Long>(Arrays.asList(2L)), new HashSet<Long>(map.removeValue("a")));
+  }
+}
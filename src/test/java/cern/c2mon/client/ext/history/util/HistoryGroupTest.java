@@ -0,0 +1,194 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ * 
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ * 
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.client.ext.history.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Timestamp;
+import java.util.Comparator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistoryUpdate;
+import cern.c2mon.client.ext.history.common.id.TagValueUpdateId;
+import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
+import cern.c2mon.shared.client.tag.TagMode;
+import cern.c2mon.shared.common.datatag.DataTagQualityImpl;
+
+/**
+ * Tests the lookup of the value at a given time in {@link HistoryGroup}
+ */
+public class HistoryGroupTest {
+
+  /** The tag id used for the records */
+  private static final Long TAG_ID = 1234L;
+
+  /** The group under test */
+  private HistoryGroup group;
+
+  @Before
+  public void setUp() {
+    group = new HistoryGroup(new TagValueUpdateId(TAG_ID));
+  }
+
+  @Test
+  public void testLatestUpdateOnEmptyGroup() {
+    assertNull(group.getLatestUpdate(1000L));
+  }
+
+  @Test
+  public void testLatestUpdateOnSortedRecords() {
+    for (long time = 100; time <= 1000; time += 100) {
+      group.add(createRecord(time));
+    }
+
+    assertNull(group.getLatestUpdate(99L));
+    assertEquals(100L, group.getLatestUpdate(100L).getExecutionTimestamp().getTime());
+    assertEquals(100L, group.getLatestUpdate(199L).getExecutionTimestamp().getTime());
+    assertEquals(500L, group.getLatestUpdate(550L).getExecutionTimestamp().getTime());
+    assertEquals(1000L, group.getLatestUpdate(1000L).getExecutionTimestamp().getTime());
+    assertEquals(1000L, group.getLatestUpdate(Long.MAX_VALUE).getExecutionTimestamp().getTime());
+  }
+
+  @Test
+  public void testLatestUpdateReturnsLastOfEqualTimestamps() {
+    final HistoryUpdate first = createRecord(100L);
+    final HistoryUpdate second = createRecord(100L);
+    group.add(first);
+    group.add(second);
+
+    assertEquals(second, group.getLatestUpdate(100L));
+  }
+
+  @Test
+  public void testLatestUpdateAfterSorting() {
+    group.add(createRecord(300L));
+    group.add(createRecord(100L));
+    group.add(createRecord(200L));
+    group.sortHistory(new Comparator<HistoryUpdate>() {
+      @Override
+      public int compare(final HistoryUpdate o1, final HistoryUpdate o2) {
+        return o1.getExecutionTimestamp().compareTo(o2.getExecutionTimestamp());
+      }
+    });
+
+    assertEquals(200L, group.getLatestUpdate(250L).getExecutionTimestamp().getTime());
+  }
+
+  @Test
+  public void testAddSortedAppendsAndMerges() {
+    assertEquals(3, group.addSorted(new HistoryUpdate[] { createRecord(100L), createRecord(300L), createRecord(200L) }));
+    assertEquals(2, group.addSorted(new HistoryUpdate[] { createRecord(400L), createRecord(500L) }));
+    assertEquals(2, group.addSorted(new HistoryUpdate[] { createRecord(250L), null, createRecord(50L) }));
+
+    final HistoryUpdate[] history = group.getHistory();
+    final long[] expected = new long[] { 50L, 100L, 200L, 250L, 300L, 400L, 500L };
+    assertEquals(expected.length, history.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], history[i].getExecutionTimestamp().getTime());
+    }
+    assertEquals(250L, group.getLatestUpdate(299L).getExecutionTimestamp().getTime());
+  }
+
+  @Test
+  public void testAddSortedKeepsExistingRecordFirstOnEqualTime() {
+    final HistoryUpdate existing = createRecord(100L);
+    final HistoryUpdate added = createRecord(100L);
+    group.addSorted(new HistoryUpdate[] { existing, createRecord(200L) });
+    group.addSorted(new HistoryUpdate[] { added });
+
+    assertEquals(existing, group.getHistory()[0]);
+    assertEquals(added, group.getHistory()[1]);
+  }
+
+  @Test
+  public void testAddSortedAfterRecordsWithoutTimestamp() {
+    final HistoryUpdate withoutTimestamp = new HistoryTagValueUpdateImpl(TAG_ID, new DataTagQualityImpl(), null,
+        null, null, null, null, "", null, TagMode.OPERATIONAL);
+    group.add(createRecord(300L));
+    group.add(withoutTimestamp);
+    group.add(null);
+
+    assertEquals(2, group.addSorted(new HistoryUpdate[] { createRecord(200L), createRecord(100L) }));
+
+    // The records without timestamp are kept last
+    final HistoryUpdate[] history = group.getHistory();
+    assertEquals(5, history.length);
+    assertEquals(100L, history[0].getExecutionTimestamp().getTime());
+    assertEquals(200L, history[1].getExecutionTimestamp().getTime());
+    assertEquals(300L, history[2].getExecutionTimestamp().getTime());
+    assertEquals(withoutTimestamp, history[3]);
+    assertNull(history[4]);
+  }
+
+  @Test
+  public void testLatestUpdateAfterNullRecordAddedFirst() {
+    group.add(null);
+    assertNull(group.getLatestUpdate(150L));
+    assertEquals(HistoryGroup.NO_EXECUTION_TIME, group.getNextExecutionTime(150L));
+
+    assertEquals(2, group.addSorted(new HistoryUpdate[] { createRecord(200L), createRecord(100L) }));
+    assertEquals(100L, group.getLatestUpdate(150L).getExecutionTimestamp().getTime());
+    assertEquals(200L, group.getNextExecutionTime(150L));
+    assertNull(group.getHistory()[2]);
+  }
+
+  @Test
+  public void testLatestUpdateAfterRecordWithoutTimestampAddedFirst() {
+    group.add(new HistoryTagValueUpdateImpl(TAG_ID, new DataTagQualityImpl(), null,
+        null, null, null, null, "", null, TagMode.OPERATIONAL));
+
+    assertNull(group.getLatestUpdate(150L));
+    assertEquals(0, group.getHistory(0L, 150L).size());
+    assertEquals(0, group.evictBefore(150L));
+  }
+
+  @Test
+  public void testAddMissingSkipsOnlyTheSameRecords() {
+    group.addSorted(new HistoryUpdate[] { createRecord(100L), createRecord(200L) });
+
+    final Timestamp time = new Timestamp(200L);
+    final Timestamp daqTime = new Timestamp(150L);
+    final HistoryUpdate otherValue = new HistoryTagValueUpdateImpl(TAG_ID, new DataTagQualityImpl(), Long.valueOf(7),
+        time, time, time, time, "", null, TagMode.OPERATIONAL);
+    final HistoryUpdate otherDaqTime = new HistoryTagValueUpdateImpl(TAG_ID, new DataTagQualityImpl(), Long.valueOf(200L),
+        time, daqTime, time, time, "", null, TagMode.OPERATIONAL);
+
+    // The same records again, and two other records of the same millisecond
+    assertEquals(3, group.addMissing(new HistoryUpdate[] {
+        createRecord(100L), createRecord(200L), otherValue, otherDaqTime, createRecord(300L) }));
+
+    final HistoryUpdate[] history = group.getHistory();
+    assertEquals(5, history.length);
+    assertEquals(otherValue, history[2]);
+    assertEquals(otherDaqTime, history[3]);
+    assertEquals(300L, history[4].getExecutionTimestamp().getTime());
+  }
+
+  /**
+   * @param time
+   *          the server time of the record
+   * @return a new record with the given server time
+   */
+  private static HistoryUpdate createRecord(final long time) {
+    final Timestamp timestamp = new Timestamp(time);
+    return new HistoryTagValueUpdateImpl(TAG_ID, new DataTagQualityImpl(), Long.valueOf(time),
+        timestamp, timestamp, timestamp, timestamp, "", null, TagMode.OPERATIONAL);
+  }
+}